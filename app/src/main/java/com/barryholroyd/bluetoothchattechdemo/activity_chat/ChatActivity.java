@@ -2,64 +2,107 @@ package com.barryholroyd.bluetoothchattechdemo.activity_chat;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-import android.text.method.ScrollingMovementMethod;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.support.v7.widget.RecyclerView;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.barryholroyd.bluetoothchattechdemo.ActivityExtensions;
-import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
-import com.barryholroyd.bluetoothchattechdemo.support.ActivityPrintStates;
-import com.barryholroyd.bluetoothchattechdemo.support.ApplicationGlobalState;
 import com.barryholroyd.bluetoothchattechdemo.R;
+import com.barryholroyd.bluetoothchattechdemo.activity_chooser.ChooserActivity;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothBroadcastReceivers;
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Broadcaster;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameWriter;
+import com.barryholroyd.bluetoothchattechdemo.support.ActivityPrintStates;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
+import com.barryholroyd.bluetoothchattechdemo.transcript.SearchIndex;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
  * Display the Chat view for the user and manage the sending/receiving of text.
  * <p>
- *     Write requests are handled in this class. Incoming text is read by ChatServer --
- *     it uses the main UI's Handler to get the ChatActivity instance and fill in the
- *     "received" text field. This works cleanly because ChatServer is only used by
- *     ChatActivity.
+ *     There may be several chat sessions running at once, one per connected remote
+ *     device (see {@link SessionManager}). A Spinner at the top of the screen lets the
+ *     user choose which session is displayed; sends go to that session and "Done"
+ *     closes it. The Activity exits once the last session has closed. A session whose
+ *     connection has dropped stays listed while SessionManager reconnects it; messages
+ *     sent to it in the meantime are queued and go out once it is back.
+ * <p>
+ *     Write requests are handled in this class. Incoming text is read by each session's
+ *     ChatServer and, along with everything sent, recorded in the session's transcript.
+ *     The displayed session's transcript is shown in a RecyclerView by a
+ *     {@link TranscriptAdapter}, which pages it in from storage as the user scrolls
+ *     and adds new messages as they are written. The transcript can be searched; each
+ *     press of "Find" scrolls to the next older match.
+ * <p>
+ *     Long-clicking the link quality shows or hides a {@link MetricsOverlay} with the
+ *     app's metrics.
  */
 public class ChatActivity extends ActivityPrintStates implements ActivityExtensions
 {
     private EditText etTextSend;
-    private TextView tvTextReceive;
+    private EditText etSearch;
+    private TranscriptAdapter transcriptAdapter;
+    private TextView tvTransfer;
+    private TextView tvConnectedTo;
+    private TextView tvLinkQuality;
+    private Spinner spSessions;
+    private MetricsOverlay metricsOverlay;
+
+    /** Sessions listed in spSessions, in the same order. */
+    private final List<ChatServer> listedSessions = new ArrayList<>();
+    private ArrayAdapter<String> sessionsAdapter;
+
+    /** The session currently displayed; null if there are none. */
+    private ChatServer currentSession = null;
 
-    /** Handler message: call ChatActivity's finish() to exit. */
-    public static final int FINISH = 1;
+    /** Most matches a search returns. */
+    private static final int MAX_SEARCH_RESULTS = 500;
 
-    /** Bundle keys for incoming Intents. */
-    public static final String BUNDLE_KEY_BTDEVICE = "com.barryholroyd.bluetoothchattechdemo.BTDEVICE";
+    /**
+     * The last search: its query, the MAC address of the session's remote device (which
+     * stays the same when the session is resumed), matches (newest first) and the
+     * match shown.
+     */
+    private String searchQuery = null;
+    private String searchMac = null;
+    private long[] searchResults = new long[0];
+    private int searchPosition = 0;
 
-    /** Getter for "receive" TextView in ChatActivity. */
-    public TextView getTextViewReceive()  { return tvTextReceive; }
+    /** Request codes for onActivityResult(). */
+    private static final int RT_PICK_FILE = 1;
 
-    /** Bluetooth socket passed in from ChooserActivity via static hook in app. */
-    private static BluetoothSocket btChatSocket = null;
+    /** Bundle key used to retain the displayed session across configuration changes. */
+    private static final String STATE_KEY_SESSION = "current_session";
 
-    /** Handler providing callback to exit the current ChatActivity instance. */
-    private static ChatActivityHandler handler = null;
+    /** Getter for file transfer status TextView in ChatActivity. */
+    public TextView getTextViewTransfer() { return tvTransfer; }
+
+    /** Getter for link quality TextView in ChatActivity. */
+    public TextView getTextViewLinkQuality() { return tvLinkQuality; }
 
     /** This Activity instance. Cleared in onDestroy(). */
     @SuppressLint("StaticFieldLeak")
     static ChatActivity ca = null;
 
-    /** Only allow a single running server thread at a time. */
-    private static ChatServer chatServer = null;
-
     /**
      * Get the current Activity instance.
      *
@@ -68,11 +111,10 @@ public class ChatActivity extends ActivityPrintStates implements ActivityExtensi
     public static ChatActivity getActivity() { return ca; }
 
     /**
-     * Display the chat window for the user, get the BluetoothSocket stored in
-     * GlobalState by ChooserClient or ChooserListener, configure a
-     * callback Handler to exit the Activity if requested by the worker thread and
-     * then start the ChatServer worker thread to handle the actual reads and writes
-     * from the connection.
+     * Display the chat window for the user and show the session named in the
+     * Intent (or, after a configuration change, the session that was being shown).
+     * The sessions themselves are already running -- SessionManager starts them
+     * before starting this Activity.
      *
      * @param savedInstanceState standard Bundle argument.
      */
@@ -82,31 +124,58 @@ public class ChatActivity extends ActivityPrintStates implements ActivityExtensi
 
         ca = this;
 
-        Intent intent = getIntent();
-        BluetoothDevice btdevice = intent.getParcelableExtra(BUNDLE_KEY_BTDEVICE);
-
         setContentView(R.layout.activity_chat);
-        setTitle(btdevice);
 
         etTextSend = (EditText) findViewById(R.id.text_send);
-        tvTextReceive = (TextView) findViewById(R.id.text_receive);
+        etSearch = (EditText) findViewById(R.id.search_text);
+        tvTransfer = (TextView) findViewById(R.id.text_transfer);
+        tvConnectedTo = (TextView) findViewById(R.id.connected_to);
+        tvLinkQuality = (TextView) findViewById(R.id.link_quality);
+        spSessions = (Spinner) findViewById(R.id.session_list);
+        transcriptAdapter = new TranscriptAdapter((RecyclerView) findViewById(R.id.transcript));
+        metricsOverlay = new MetricsOverlay((TextView) findViewById(R.id.debug_overlay));
+        tvLinkQuality.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                metricsOverlay.toggle();
+                return true;
+            }
+        });
+
+        sessionsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        sessionsAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spSessions.setAdapter(sessionsAdapter);
+        spSessions.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                showSession(listedSessions.get(position));
+            }
 
-        configureScrollBars();
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
 
-        btChatSocket = retrieveBtChatSocket();
+        String mac = (savedInstanceState != null)
+                ? savedInstanceState.getString(STATE_KEY_SESSION)
+                : getIntent().getStringExtra(SessionManager.BUNDLE_KEY_SESSION);
+        refreshSessions(mac);
+    }
 
-        /*
-         * We create a static ChatActivityHandler class and pass it a WeakReference to the
-         * current ChatActivity instance to avoid possible memory leaks.
-         */
-        // TBD: does "handler" have to be static?
-        // TBD: do we really need to use a WeakReference here?
-        WeakReference<ChatActivity> wrca = new WeakReference<>(this);
-        handler = new ChatActivityHandler(wrca);
+    /** A new connection has been made while this Activity is on top: show it. */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        refreshSessions(intent.getStringExtra(SessionManager.BUNDLE_KEY_SESSION));
     }
 
-    private BluetoothSocket retrieveBtChatSocket() {
-        return ((ApplicationGlobalState) getApplication()).getBtChatSocket();
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (currentSession != null) {
+            outState.putString(STATE_KEY_SESSION, currentSession.getRemoteAddress());
+        }
     }
 
     @Override
@@ -114,25 +183,35 @@ public class ChatActivity extends ActivityPrintStates implements ActivityExtensi
         super.onStart();
         // Always register so that we can receive Bluetooth on/off broadcasts.
         BluetoothBroadcastReceivers.registerBroadcastReceiver(this, new ChatBroadcastReceiver());
-        startChatServer(btChatSocket, handler);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         Support.getGlobalState().setCurrentActivity(this);
+        metricsOverlay.resume();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        metricsOverlay.pause();
     }
 
     @Override
     public void onStop() {
         super.onStop();
         BluetoothBroadcastReceivers.unregisterBroadcastReceiver(this);
-        stopChatServer();
+        // Leaving the chat screen (as opposed to it just being hidden) ends every chat.
+        if (isFinishing()) {
+            SessionManager.closeAll();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        transcriptAdapter.close();
         ca = null;
     }
 
@@ -141,66 +220,184 @@ public class ChatActivity extends ActivityPrintStates implements ActivityExtensi
         switch (state) {
             case BluetoothAdapter.STATE_TURNING_ON: break;
             case BluetoothAdapter.STATE_TURNING_OFF: break;
-            case BluetoothAdapter.STATE_ON:
-                startChatServer(btChatSocket, handler);
-                break;
+            case BluetoothAdapter.STATE_ON: break;
             case BluetoothAdapter.STATE_OFF:
-                stopChatServer();
+                SessionManager.closeAll();
                 finish();
                 break;
         }
     }
 
-    private void startChatServer(BluetoothSocket btChatSocket,
-                                 ChatActivityHandler handler) {
-        if ((chatServer == null) && BluetoothUtils.getBluetoothAdapter().isEnabled()) {
-            try {
-                chatServer = new ChatServer(btChatSocket, handler);
-            }
-            catch (ChatServer.ChatServerException ca) {
-                Support.userMessageLong("Could not start Chat server.");
-                finish();
+    /**
+     * Check whether a session is the one being displayed.
+     *
+     * @param chatServer the session to check.
+     * @return true if chatServer is the displayed session.
+     */
+    boolean isCurrentSession(ChatServer chatServer) {
+        return chatServer == currentSession;
+    }
+
+    /**
+     * The set of sessions has changed (one has ended), or a session's connection has
+     * dropped or been restored. Called by SessionManager on the UI thread.
+     */
+    void onSessionsChanged() {
+        refreshSessions(null);
+    }
+
+    /**
+     * Rebuild the list of sessions and select one.
+     *
+     * @param mac MAC address of the session to display; if null, or if there is no such
+     *            session, keep showing the current session's remote device if it still
+     *            has a session (a resumed session is a new ChatServer for the same
+     *            device), else show the first.
+     */
+    private void refreshSessions(String mac) {
+        List<ChatServer> sessions = SessionManager.getSessions();
+        if (sessions.isEmpty()) {
+            trace("no sessions left; exiting chat activity...");
+            currentSession = null;
+            finish();
+            return;
+        }
+
+        ChatServer select = (mac != null) ? SessionManager.getSession(mac) : null;
+        if ((select == null) && (currentSession != null)) {
+            select = SessionManager.getSession(currentSession.getRemoteAddress());
+        }
+        // A session added since the snapshot isn't listed yet; the next refresh will show it.
+        if ((select == null) || !sessions.contains(select)) {
+            select = sessions.get(0);
+        }
+
+        listedSessions.clear();
+        listedSessions.addAll(sessions);
+        sessionsAdapter.clear();
+        for (ChatServer chatServer : sessions) {
+            String name = chatServer.getDisplayName();
+            if (SessionManager.isReconnecting(chatServer)) {
+                name = String.format(Locale.US, "%s (reconnecting)", name);
             }
-            chatServer.start();
+            sessionsAdapter.add(name);
         }
+        sessionsAdapter.notifyDataSetChanged();
+        spSessions.setSelection(listedSessions.indexOf(select));
+        showSession(select);
+    }
+
+    /** Display a session's connection state, transcript and file transfer status. */
+    private void showSession(ChatServer chatServer) {
+        currentSession = chatServer;
+        tvConnectedTo.setText(SessionManager.getConnectionStatus(chatServer));
+        transcriptAdapter.setStore(chatServer.getTranscript());
+        tvTransfer.setText(chatServer.getTransferStatus());
+        tvLinkQuality.setText(chatServer.getLinkQuality());
     }
 
-    private void stopChatServer() {
-        if ((chatServer != null) && isFinishing()) {
-            chatServer.stopChatServer();
-            chatServer = null;
+    /**
+     * Handle write requests from the user.
+     * <p>
+     *     The message is only queued here; it is written by ChatServer's writer thread and
+     *     the outcome (delivery or failure) is reported through a {@link SendResultCallback}.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public void clickSend(View v) {
+        if (currentSession == null) {
+            Support.userMessageShort("Not connected.");
+            return;
+        }
+        byte[] bytes = takeTextToSend();
+        if (bytes == null)
+            return;
+
+        Tracer.event(TraceEvent.MESSAGE_QUEUED, bytes.length);
+        if (!currentSession.writeChat(bytes, new SendResultCallback(bytes.length))) {
+            Support.userMessageLong(
+                    "Too many messages waiting to be acknowledged. Try again shortly.");
+        }
+        else if (SessionManager.isReconnecting(currentSession)) {
+            Support.userMessageShort("Reconnecting; the message will be sent once connected.");
         }
     }
 
     /**
-     * Configure scrollbars for the text receive TextView.
-     * For some reason, this doesn't seem to be configurable from XML.
+     * Send the message to every connected device.
+     * <p>
+     *     The message is encoded once and shared by every session's writer (see
+     *     SessionManager.broadcast()); the outcome is reported by a
+     *     {@link BroadcastResultCallback}.
      */
-    private void configureScrollBars() {
-        TextView receive = (TextView) findViewById(R.id.text_receive);
-        receive.setHorizontallyScrolling(true);
-        receive.setMovementMethod(new ScrollingMovementMethod());
+    @SuppressWarnings("UnusedParameters")
+    public void clickSendToAll(View v) {
+        if (SessionManager.getSessionCount() == 0) {
+            Support.userMessageShort("Not connected.");
+            return;
+        }
+        byte[] bytes = takeTextToSend();
+        if (bytes == null)
+            return;
+
+        int queued = SessionManager.broadcast(bytes, new BroadcastResultCallback());
+        Tracer.event(TraceEvent.BROADCAST_QUEUED, bytes.length, queued);
     }
 
-    /** Set the title of the chat window to reflect the name and MAC address of the remote device. */
-    private void setTitle(BluetoothDevice btdevice) {
-        TextView tvConnectedTo = (TextView) findViewById(R.id.connected_to);
-        String name = "?";
-        String mac  = "?";
+    /**
+     * Search the displayed session's transcript. A new query shows the newest match;
+     * repeating the query steps to the next older one, wrapping around at the oldest.
+     *
+     * @param v the View the user clicked on.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public void clickSearch(View v) {
+        if (currentSession == null) {
+            Support.userMessageShort("Not connected.");
+            return;
+        }
+        SearchIndex index = SessionManager.getSearchIndex(currentSession.getRemoteAddress());
+        if (index == null) {
+            Support.userMessageShort("No transcript to search.");
+            return;
+        }
+        String query = etSearch.getText().toString().trim();
+        if (query.isEmpty()) {
+            return;
+        }
 
-        if (btdevice != null) {
-            name = btdevice.getName();
-            if (name == null)
-                name = "?";
-            mac  = btdevice.getAddress();
+        if (query.equals(searchQuery)
+                && currentSession.getRemoteAddress().equals(searchMac)
+                && (searchResults.length > 0)) {
+            searchPosition = (searchPosition + 1) % searchResults.length;
+        }
+        else {
+            long startedAt = System.nanoTime();
+            searchResults = index.search(query, MAX_SEARCH_RESULTS);
+            Tracer.event(TraceEvent.SEARCH, searchResults.length,
+                    (System.nanoTime() - startedAt) / 1000);
+            searchQuery = query;
+            searchMac = currentSession.getRemoteAddress();
+            searchPosition = 0;
+        }
+
+        if (searchResults.length == 0) {
+            Support.userMessageShort("No matches.");
+        }
+        else if (transcriptAdapter.scrollToSeq(searchResults[searchPosition])) {
+            Support.userMessageShort(String.format(Locale.US, "Match %d of %d",
+                    searchPosition + 1, searchResults.length));
+        }
+        else {
+            Support.userMessageShort("That message is no longer in the transcript.");
         }
-        String title = String.format(Locale.US, "Connected to: %s [%s]", name, mac);
-        tvConnectedTo.setText(title);
     }
 
-    /** Handle write requests from the user. */
-    @SuppressWarnings("UnusedParameters")
-    public void clickSend(View v) {
+    /**
+     * Take the text the user has typed, clearing the input field.
+     *
+     * @return the text in UTF-8, or null (after telling the user) if it can't be sent.
+     */
+    private byte[] takeTextToSend() {
         String text = etTextSend.getText().toString();
         etTextSend.setText("");
         byte[] bytes;
@@ -210,75 +407,161 @@ public class ChatActivity extends ActivityPrintStates implements ActivityExtensi
         catch (UnsupportedEncodingException uee) {
             String msg = String.format(Locale.US, "Unsupported encoding: %s", uee.getMessage());
             Support.userMessageLong(msg);
-            return;
+            return null;
         }
 
-        if (bytes.length > ChatServer.BUFSIZE) {
+        if (bytes.length > ChatServer.MAX_MESSAGE) {
             Support.userMessageLong(String.format(Locale.US,
                     "Message is too long (%d). Maximum length is %d.",
-                    bytes.length, ChatServer.BUFSIZE));
-            return;
+                    bytes.length, ChatServer.MAX_MESSAGE));
+            return null;
         }
+        return bytes;
+    }
+
+    /**
+     * Report the outcome of a queued message: acknowledged by the remote device, or
+     * abandoned because the session was closed first. Called on one of ChatServer's
+     * threads; Support.userMessageLong() takes care of getting the Toast onto the UI
+     * thread.
+     */
+    private static class SendResultCallback implements FrameWriter.SendCallback
+    {
+        private final int length;
 
-        trace(String.format(Locale.US, "sent: %s", text));
-        chatServer.writeChat(bytes);
+        SendResultCallback(int _length) {
+            length = _length;
+        }
+
+        @Override
+        public void onSent() {
+            Tracer.event(TraceEvent.MESSAGE_DELIVERED, length);
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            Support.userMessageLong(String.format(Locale.US,
+                    "Message not delivered: %s", ioe.getMessage()));
+        }
+    }
+
+    /**
+     * Report the outcome of a broadcast once every device has acknowledged it, failed
+     * or been skipped. Called on whichever thread finishes it.
+     */
+    private static class BroadcastResultCallback implements Broadcaster.BroadcastCallback
+    {
+        @Override
+        public void onComplete(int sent, int failed, int skipped) {
+            Tracer.event(TraceEvent.BROADCAST_DONE, sent, failed, skipped);
+            if ((failed > 0) || (skipped > 0)) {
+                Support.userMessageLong(String.format(Locale.US,
+                        "Message sent to %d of %d devices.", sent, sent + failed + skipped));
+            }
+        }
     }
 
     /**
-     * Cancel the connection if it exists, then exit the ChatActivity. The original ChooserActivity
-     * will then be brought into the foreground from the back stack.
+     * Let the user pick a file to send. The transfer is started in onActivityResult().
      *
      * @param v the View the user clicked on.
      */
     @SuppressWarnings("UnusedParameters")
-    public void clickDone(View v) {
-        finish();
+    public void clickSendFile(View v) {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, RT_PICK_FILE);
     }
 
-    /*
-     * An instance of this Handler is passed to the ChatServer instance so that
-     * it can contact the current ChatActivity instance to tell it to exit (e.g.,
-     * when the server's connection goes away because the remote end exited).
-     *
-     * If we were to define this as an anonymous inner class, it could cause a
-     * memory leak since its continued existence could prevent the containing
-     * ChatActivity instance from being released. In order to prevent that,
-     * we define a new inner static class, ChatActivityHandler, and instantiate that.
-     *
-     * We put the ChatActivityHandler instance on a static hook because the static method
-     * startChatServer() needs to use it. That could result in a very small
-     * memory leak since the ChatActivityHandler instance itself can outlive the ChatActivity
-     * instance. However, it isn't very large and there will never be more than
-     * one of it (since each new ChatActivity instance will overwrite it), so that
-     * is acceptable.
-     *
-     * We pass the ChatActivity instance in to the ChatActivityHandler instance as a WeakReference;
-     * that way it will disappear if the ChatActivity instance itself goes away.
-     */
-    static class ChatActivityHandler extends Handler
-    {
-        final WeakReference<ChatActivity> wrca;
+    /** Handle the file chosen by the user: open it and hand its channel to ChatServer. */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if ((requestCode != RT_PICK_FILE) || (resultCode != RESULT_OK) || (data == null))
+            return;
+        if (currentSession == null) {
+            Support.userMessageShort("Not connected.");
+            return;
+        }
+        if (SessionManager.isReconnecting(currentSession)) {
+            Support.userMessageShort("Reconnecting; send the file again once connected.");
+            return;
+        }
 
-        ChatActivityHandler(WeakReference<ChatActivity> _wrca) {
-            wrca = _wrca;
+        Uri uri = data.getData();
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = getContentResolver().openFileDescriptor(uri, "r");
+        }
+        catch (IOException ioe) {
+            Support.userMessageLong(String.format(Locale.US,
+                    "Could not open file: %s", ioe.getMessage()));
+            return;
+        }
+        if (pfd == null) {
+            Support.userMessageLong("Could not open file.");
+            return;
         }
 
-        @Override
-        public void handleMessage(Message message) {
-            if (message.what == FINISH) {
-                trace("exiting chat activity...");
-                ChatActivity ca = wrca.get();
-                if (ca != null) {
-                    ca.finish();
+        // The channel keeps the descriptor open; closing the channel closes it.
+        FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        if (!currentSession.sendFile(fis.getChannel(), getDisplayName(uri), pfd.getStatSize())) {
+            Support.userMessageShort("A file is already being sent.");
+            try {
+                fis.close();
+            }
+            catch (IOException ioe) {
+                Support.exception("Failed to close file", ioe);
+            }
+        }
+    }
+
+    /** Get the name of the file behind a content Uri. */
+    private String getDisplayName(Uri uri) {
+        Cursor cursor = getContentResolver().query(uri,
+                new String[] { OpenableColumns.DISPLAY_NAME }, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
                 }
             }
-            else {
-                String msg = String.format(Locale.US,
-                        "Unexpected message type in ChatActivity: %d.",
-                        message.what);
-                throw new IllegalStateException(msg);
+            finally {
+                cursor.close();
             }
         }
+        String last = uri.getLastPathSegment();
+        return (last != null) ? last : "file";
+    }
+
+    /**
+     * Bring the ChooserActivity back to the front, without leaving this Activity, so that
+     * the user can connect to another device. Existing sessions keep running.
+     *
+     * @param v the View the user clicked on.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public void clickConnectAnother(View v) {
+        Intent intent = new Intent(this, ChooserActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
+        startActivity(intent);
+    }
+
+    /**
+     * Close the displayed session. If it was the last one, the ChatActivity exits and the
+     * original ChooserActivity is brought into the foreground from the back stack;
+     * otherwise another session is displayed.
+     *
+     * @param v the View the user clicked on.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public void clickDone(View v) {
+        if (currentSession == null) {
+            finish();
+            return;
+        }
+        SessionManager.closeSession(currentSession);
     }
 
     private static void trace(String msg) {
@@ -1,91 +1,149 @@
 package com.barryholroyd.bluetoothchattechdemo.activity_chat;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
-import android.widget.TextView;
 
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothTransport;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Gauge;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.protocol.CharBufferPool;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameWriter;
+import com.barryholroyd.bluetoothchattechdemo.protocol.ReliableChannel;
+import com.barryholroyd.bluetoothchattechdemo.protocol.RttEstimator;
+import com.barryholroyd.bluetoothchattechdemo.session.ChatSession;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptStore;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static com.barryholroyd.bluetoothchattechdemo.activity_chat.ChatActivity.getActivity;
 
 /**
- * Bluetooth communications: send and receive text over a Bluetooth connection.
+ * Bluetooth communications: one chat session with one remote device, connected to the UI.
  * <p>
- *     This class is only used by ChatActivity, so any reference to an Activity here is
- *     always to the ChatActivity. Its constructor accepts an initialized Bluetooth btSocket,
- *     creates input and output streams from it, then starts running in the background to
- *     read incoming data on the input stream; incoming data is then sent to the UI thread
- *     for displayShort to the user.
+ *     Each instance is one chat session with one remote device; {@link SessionManager}
+ *     owns all of the sessions and ChatActivity displays whichever one the user has
+ *     selected. The constructor accepts an initialized Bluetooth btSocket and runs a
+ *     {@link ChatSession} over it: the session does all of the protocol work (framing,
+ *     decoding, reliable delivery, heartbeats, file transfers, the transcript and the
+ *     session metrics) on its own threads and has no Android dependencies; this class
+ *     passes what it reports to the UI thread. Incoming messages are recorded in the
+ *     session's transcript, which ChatActivity displays if the session is the one
+ *     currently shown, and the user is told about messages arriving in other sessions.
  * <p>
- *     A static writeChat() method is provided for the UI thread to use to write data out
- *     to the remote app.
+ *     A writeChat() method is provided for the UI thread to use to write data out to the
+ *     remote app. It only queues the message, so a slow or stalled link can never block
+ *     the UI thread.
+ * <p>
+ *     Decoded messages go to the UI thread through a {@link FrameBatcher}, which hands
+ *     over everything that arrived during a display frame at once, so that a burst of
+ *     messages costs one main thread hop and one notification per frame rather than
+ *     one per message. The UI thread releases each message's buffer back to the
+ *     session once it is done with it.
+ * <p>
+ *     When the user ends the chat a TYPE_BYE frame is sent before the connection is
+ *     closed, so that the remote device can tell a deliberate close from a dropped
+ *     link; SessionManager only tries to reconnect after the latter.
+ * <p>
+ *     As well as the session's own metrics (see ChatSession.metricsPrefix()), the depth
+ *     of the inbox is kept as "session.&lt;MAC address&gt;.inbox.depth".
  */
-
-class ChatServer extends Thread
+class ChatServer
 {
-    /** Bluetooth socket to be read and written. */
-    private static BluetoothSocket btSocket;
+    /** The protocol engine, running over btSocket. */
+    private final ChatSession session;
+
+    /** The remote device at the other end of btSocket. */
+    private final BluetoothDevice remoteDevice;
+
+    /** SDP UUID to reconnect with if the connection drops; null if the remote device reconnects. */
+    private final UUID reconnectUuid;
+
+    /** How long to wait for TYPE_BYE to be written before closing the connection anyway. */
+    private static final long BYE_TIMEOUT_MS = 1000;
+
+    /** Handler message: displayShort file transfer status held in a String. */
+    private static final int FILESTATUS = 3;
+
+    /** Handler message: the connection has closed and the session has ended. */
+    private static final int ENDED = 4;
 
-    /** Handler message: displayShort incoming chat text. */
-    private static final int CHATTEXT = 1;
+    /** Handler message: a new round trip time sample has been taken. */
+    private static final int LINKQUALITY = 5;
 
-    /** Buffer size for both input and output. */
-    static final int BUFSIZE = 1024;
+    /** Largest chat message that can be sent or received, in bytes. */
+    static final int MAX_MESSAGE = ChatSession.MAX_MESSAGE;
+
+    /** Most of a message shown in the toast announcing it. */
+    private static final int PREVIEW_CHARS = 40;
+
+    /** Number of messages which can wait for the next display frame. */
+    private static final int INBOX_SIZE = 2 * ChatSession.RECEIVE_BUFFERS;
 
     /** Handler for the UI thread. */
-    private static Handler uiHandler = null;
+    private final Handler uiHandler;
+
+    /** Most recent file transfer status for this session; only used on the UI thread. */
+    private String transferStatus = "";
 
-    /** Handler to cause the calling ChatActivity to exit. */
-    private final Handler caHandler;
+    /** Most recent link quality for this session; only used on the UI thread. */
+    private String linkQuality = "";
 
-    /** Bluetooth input stream. */
-    private static InputStream btIn;
+    /** Incoming messages waiting for the next display frame; created with uiHandler. */
+    private final FrameBatcher<CharBufferPool.PooledChars> inbox;
 
-    /** Bluetooth output stream. */
-    private static OutputStream btOut;
+    /** Number of messages in the inbox; see the class comment. */
+    private final Gauge inboxDepth;
 
     /**
-     * Constructor -- set up IO and UI handler.
+     * Constructor -- set up the session and the UI handler.
      *
      * ChatServer is responsible for closing the btSocket when done.
      *
-     * @param _btSocket Bluetooth socket to be read and written.
-     * @param handler   Handler to cause the calling ChatActivity to exit.
+     * @param btSocket       Bluetooth socket to be read and written.
+     * @param channel        reliable channel for chat messages to the remote device.
+     * @param transcript     transcript to record the session's messages in; or null.
+     * @param filesDir       directory in which to store received files.
+     * @param _reconnectUuid SDP UUID to reconnect with if the connection drops, if this
+     *                       device made the connection; null if it was accepted.
      */
-    ChatServer(BluetoothSocket _btSocket, Handler handler) throws ChatServerException {
-        btSocket = _btSocket;
-        caHandler = handler;
+    ChatServer(BluetoothSocket btSocket, ReliableChannel channel,
+               TranscriptStore transcript, File filesDir, UUID _reconnectUuid)
+            throws ChatServerException {
+        reconnectUuid = _reconnectUuid;
         if (btSocket == null) {
             throw new ChatServerException("Null Bluetooth socket.");
         }
-        try {
-            btIn = btSocket.getInputStream();
-            btOut = btSocket.getOutputStream();
-        }
-        catch (IOException ioe) {
-            String msg = String.format(Locale.US,
-                    "Error: could not get input or output stream: %s",
-                    ioe.getMessage());
-            throw new ChatServerException(msg);
-        }
+        remoteDevice = btSocket.getRemoteDevice();
+        inboxDepth = MetricsRegistry.getDefault().gauge(
+                ChatSession.metricsPrefix(remoteDevice.getAddress()) + "inbox.depth");
+
         /*
          * Create the UI handler responsible for displaying the text on the UI thread.
-         * ChatActivity should be running; processMessage() will check to make sure.
+         * ChatActivity may not be running (or may be showing another session);
+         * processMessages() checks.
          */
         uiHandler = new Handler(Looper.getMainLooper()) {
             @Override
             public void handleMessage(Message message) {
-                if (message.what == CHATTEXT) {
-                    processMessage(message);
+                if (message.what == FILESTATUS) {
+                    processFileStatus((String) message.obj);
+                }
+                else if (message.what == ENDED) {
+                    SessionManager.onSessionEnded(ChatServer.this);
+                }
+                else if (message.what == LINKQUALITY) {
+                    processLinkQuality();
                 }
                 else {
                     String msg = String.format(Locale.US,
@@ -95,139 +153,309 @@ class ChatServer extends Thread
                 }
             }
         };
+        inbox = new FrameBatcher<>(INBOX_SIZE, uiHandler, new InboxConsumer());
+
+        try {
+            session = new ChatSession(new BluetoothTransport(btSocket), channel,
+                    transcript, filesDir, new SessionListener());
+        }
+        catch (IOException ioe) {
+            String msg = String.format(Locale.US,
+                    "Error: could not get input or output stream: %s",
+                    ioe.getMessage());
+            throw new ChatServerException(msg);
+        }
     }
 
     /**
-     * Convert the incoming message into a text string and displayShort it.
-     * Called by the UI handler.
+     * Start running the session in the background.
+     * <p>
+     *     When the connection is closed, SessionManager is told on the UI thread, and
+     *     either reconnects or ends the session; once the last session has ended
+     *     ChatActivity exits, returning control to the original ChooserActivity.
      *
-     * @param m the Message containing the text to be displayed.
+     * @see #stopChatServer()
      */
-    private void processMessage(Message m) {
-        byte[] bytes = (byte[]) m.obj;
-        String text;
+    void start() {
+        session.start();
+    }
 
-        // Find the end of the zero-terminated text string.
-        int len = 0;
-        while (len < bytes.length) {
-            if (bytes[len] == 0)
-                break;
-            len++;
-        }
+    /**
+     * Tell the user about a batch of incoming messages, already decoded by the server
+     * thread. Called on the UI thread once per display frame, however many messages
+     * arrived during it.
+     * <p>
+     *     If this session is the one ChatActivity is showing, the messages appear in its
+     *     transcript view as soon as the transcript has written them, so there is
+     *     nothing to do here; otherwise the latest message is shown in a toast. Nothing
+     *     is allocated unless a toast is shown.
+     *
+     * @param text  the latest message, read in place; only valid during this call.
+     * @param count number of messages in the batch.
+     */
+    private void processMessages(CharSequence text, int count) {
+        Tracer.event(TraceEvent.MESSAGES_RECEIVED, count, text.length());
 
-        try {
-            text = new String(bytes, 0, len, "UTF-8");
-        }
-        catch (UnsupportedEncodingException uee) {
-            String msg = String.format(Locale.US, "Unsupported encoding: %s", uee.getMessage());
-            Support.userMessageLong(msg);
+        ChatActivity ca = getActivity();
+        if ((ca != null) && ca.isCurrentSession(this) && (session.getTranscript() != null)) {
             return;
         }
+        if (count == 1) {
+            if (text.length() > PREVIEW_CHARS) {
+                text = text.subSequence(0, PREVIEW_CHARS) + "\u2026";
+            }
+            Support.userMessageShort(String.format(Locale.US,
+                    "%s: %s", getDisplayName(), text));
+        }
+        else {
+            Support.userMessageShort(String.format(Locale.US,
+                    "%d new messages from %s", count, getDisplayName()));
+        }
+    }
 
-        // The current Activity should be an instance of ChatActivity.
+    /**
+     * Display file transfer status. Called by the UI handler.
+     *
+     * @param status text to be displayed.
+     */
+    private void processFileStatus(String status) {
+        transferStatus = status;
         ChatActivity ca = getActivity();
-        if (ca == null) {
-            String msg = String.format(Locale.US,
-                    "Internal error -- could not displayShort incoming chat message: %s", text);
-            Support.userMessageLong(msg);
-            return;
+        if ((ca != null) && ca.isCurrentSession(this)) {
+            ca.getTextViewTransfer().setText(status);
         }
-        trace(String.format(Locale.US, "received: %s", text));
-        TextView tv = ca.getTextViewReceive();
-        tv.setText(text);
     }
 
     /**
-     * Run read/displayShort loop.
-     * <p>
-     *     When the connection is closed, exit the loop and tell the running ChatActivity
-     *     to exit, returning control to the original ChooserActivity.
-     * <p>
-     *     Sending this thread an interrupt won't have any effect. To interrupt the read(),
-     *     the btIn input stream needs to be closed. This is due to an apparent bug in
-     *     Android.
+     * Display the latest round trip time estimate. Called by the UI handler.
+     */
+    private void processLinkQuality() {
+        RttEstimator estimator = session.getRttEstimator();
+        linkQuality = String.format(Locale.US, "RTT %d ms (\u00b1%d ms)",
+                TimeUnit.NANOSECONDS.toMillis(estimator.getSmoothedRttNanos()),
+                TimeUnit.NANOSECONDS.toMillis(estimator.getRttVarNanos()));
+        ChatActivity ca = getActivity();
+        if ((ca != null) && ca.isCurrentSession(this)) {
+            ca.getTextViewLinkQuality().setText(linkQuality);
+        }
+    }
+
+    /** The remote device for this session. */
+    BluetoothDevice getRemoteDevice() { return remoteDevice; }
+
+    /** MAC address of the remote device; sessions are keyed by it. */
+    String getRemoteAddress() { return remoteDevice.getAddress(); }
+
+    /** Name and MAC address of the remote device, for display. */
+    String getDisplayName() {
+        String name = remoteDevice.getName();
+        if (name == null)
+            name = "?";
+        return String.format(Locale.US, "%s [%s]", name, remoteDevice.getAddress());
+    }
+
+    /** Most recent file transfer status for this session. Only call on the UI thread. */
+    String getTransferStatus() { return transferStatus; }
+
+    /** Most recent link quality for this session. Only call on the UI thread. */
+    String getLinkQuality() { return linkQuality; }
+
+    /** Round trip time estimates for this session's connection. */
+    RttEstimator getRttEstimator() { return session.getRttEstimator(); }
+
+    /** Batches incoming messages for the UI thread; has counters per display frame. */
+    FrameBatcher<CharBufferPool.PooledChars> getInbox() { return inbox; }
+
+    /** SDP UUID to reconnect with, or null if it's up to the remote device to reconnect. */
+    UUID getReconnectUuid() { return reconnectUuid; }
+
+    /** True if the connection ended because the remote device's user ended the chat. */
+    boolean isClosedByRemote() { return session.isClosedByRemote(); }
+
+    /**
+     * Carry the displayed state of an earlier connection to the same device over to
+     * this one, so that a reconnect doesn't blank the screen. Only call on the UI thread.
      *
-     * @see <a href="http://stackoverflow.com/questions/6579539/how-to-unblock-inputstream-read-on-android">How to unblock InputStream.read() on Android?</a>
-     * @see #stopChatServer()
+     * @param previous the session this one replaces.
      */
-    @Override
-    public void run() {
-        while (true) {
-            byte[] bytes = new byte[BUFSIZE];
-            trace("waiting to read input...");
-            try {
-                //noinspection ResultOfMethodCallIgnored
-                btIn.read(bytes, 0, BUFSIZE);
-            }
-            catch (IOException ioe) {
-                /*
-                 * This can be caused by either the connection going down (e.g., if the other
-                 * end closed it) or by a call to stopServer() (which closes btIn to force
-                 * this exception to be generated).
-                 */
-                trace("closing the connection...");
-                try {
-                    btSocket.close();
-                } catch (IOException ioe2) {
-                    Support.exception("Failed to close the connection", ioe2);
-                }
+    void inheritState(ChatServer previous) {
+        transferStatus = previous.transferStatus;
+        linkQuality = previous.linkQuality;
+    }
+
+    /**
+     * Pass what the session reports to the UI thread. Incoming messages go into the
+     * inbox; everything else is a Handler message.
+     */
+    private class SessionListener implements ChatSession.Listener {
+        @Override
+        public void onMessage(CharBufferPool.PooledChars message) throws IOException {
+            inboxDepth.add(1);
+            inbox.post(message);
+        }
+
+        @Override
+        public void onMessageTooLarge(long length) {
+            Support.userMessageLong(String.format(Locale.US,
+                    "Incoming message dropped: too long (%d). Maximum length is %d.",
+                    length, MAX_MESSAGE));
+        }
 
-                /*
-                 * If the exception was not requested by ChatActivity calling stopChatServer(),
-                 * then we need to tell the running ChatActivity instance to exit. Doing this
-                 * is o.k. even if the ChatActivity did trigger this exception.
-                 */
-                Message m = caHandler.obtainMessage(ChatActivity.FINISH);
-                caHandler.sendMessage(m);
-                return;
+        @Override
+        public void onRtt(RttEstimator estimator) {
+            if (!uiHandler.hasMessages(LINKQUALITY)) {
+                uiHandler.sendEmptyMessage(LINKQUALITY);
             }
-            Message m = uiHandler.obtainMessage(CHATTEXT, bytes);
+        }
+
+        /*
+         * Whether or not the connection was closed by calling stopChatServer(),
+         * SessionManager needs to hear about it (on the UI thread). Doing this
+         * is o.k. even if SessionManager has already removed the session.
+         */
+        @Override
+        public void onEnded() {
+            uiHandler.sendEmptyMessage(ENDED);
+        }
+
+        @Override
+        public void onProgress(String name, long confirmed, long size) {
+            long percent = (size == 0) ? 100 : (confirmed * 100) / size;
+            postFileStatus(String.format(Locale.US, "%s: %d%% (%d of %d bytes)",
+                    name, percent, confirmed, size));
+        }
+
+        @Override
+        public void onComplete(String name, File file) {
+            postFileStatus(file == null
+                    ? String.format(Locale.US, "%s: sent", name)
+                    : String.format(Locale.US, "%s: received (%s)", name, file.getPath()));
+        }
+
+        @Override
+        public void onFailed(String name, IOException ioe) {
+            postFileStatus(String.format(Locale.US,
+                    "%s: interrupted (%s); send again to resume", name, ioe.getMessage()));
+        }
+
+        private void postFileStatus(String status) {
+            Message m = uiHandler.obtainMessage(FILESTATUS, status);
             uiHandler.sendMessage(m);
         }
     }
 
     /**
-     * Send the chat message.
-     * <p>
-     *     This is called directly by ChatActivity.
-     *     The message is limited to BUFSIZE bytes.
-     *
-     * @param bytes the buffer of bytes to write out.
+     * Take batches of incoming messages from the inbox on the UI thread, releasing
+     * every buffer but the latest one's as it goes.
      */
-    void writeChat(byte[] bytes) {
-        try {
-            btOut.write(bytes, 0, bytes.length);
+    private class InboxConsumer implements FrameBatcher.Consumer<CharBufferPool.PooledChars> {
+        private CharBufferPool.PooledChars latest = null;
+
+        @Override
+        public void onItem(CharBufferPool.PooledChars item) {
+            inboxDepth.add(-1);
+            if (latest != null) {
+                latest.release();
+            }
+            latest = item;
         }
-        catch (IOException ioe) {
-            Support.userMessageLong(String.format(Locale.US,
-                    "Could not write message: %s", ioe.getMessage()));
+
+        @Override
+        public void onBatch(int count) {
+            // Read in place, then released: no copy of the message is made.
+            processMessages(latest.getCharBuffer(), count);
+            latest.release();
+            latest = null;
         }
     }
 
     /**
-     * Stop the background chat server.
+     * Start sending a file. Returns immediately; progress is displayed as the transfer
+     * proceeds.
+     *
+     * @param channel channel to read the file from; closed when the transfer ends.
+     * @param name    name of the file, as presented to the receiver.
+     * @param size    size of the file.
+     * @return false if a file is already being sent.
+     */
+    boolean sendFile(FileChannel channel, String name, long size) {
+        return session.sendFile(channel, name, size);
+    }
+
+    /**
+     * Queue the chat message for sending.
      * <p>
-     *     Sending this thread an interrupt won't have any effect. Instead, the
-     *     input stream must be closed. That will cause the read() method to throw
-     *     an exception and the thread can then exit.
+     *     This is called directly by ChatActivity and returns immediately.
+     *     The message is limited to MAX_MESSAGE bytes (see ChatSession.writeChat()).
      *
-     * @see #run()
+     * @param bytes    the buffer of bytes to write out; must not be modified afterwards.
+     * @param callback called once the remote device has acknowledged the message, or
+     *                 when the session is closed without it having done so.
+     * @return false if the window of unacknowledged messages is full and the message
+     *         was not queued.
      */
-    void stopChatServer() {
-        trace("stopping...");
-        if (btIn == null) {
-            throw new IllegalStateException("Bluetooth input stream already closed.");
-        }
-        try {
-            btIn.close();
-        }
-        catch (Exception e) {
-            Support.exception("Exception attempting to close input stream", e);
+    boolean writeChat(byte[] bytes, FrameWriter.SendCallback callback) {
+        return session.writeChat(bytes, callback);
+    }
+
+    /**
+     * Record an outgoing chat message in the transcript.
+     *
+     * @param bytes the message, in UTF-8.
+     */
+    void recordSent(byte[] bytes) {
+        session.recordSent(bytes);
+    }
+
+    /** Transcript of the session's messages, or null if it couldn't be opened. */
+    TranscriptStore getTranscript() { return session.getTranscript(); }
+
+    /** The session's reliable channel for chat messages. */
+    ReliableChannel getChannel() { return session.getChannel(); }
+
+    /**
+     * End the chat at the user's request: tell the remote device, so that it doesn't
+     * try to reconnect, then stop the chat server. Called on the UI thread; returns
+     * immediately.
+     */
+    void closeChatServer() {
+        final Runnable stop = new Runnable() {
+            @Override
+            public void run() {
+                stopChatServer();
+            }
+        };
+        FrameWriter.SendCallback stopWhenWritten = new FrameWriter.SendCallback() {
+            @Override
+            public void onSent() {
+                uiHandler.post(stop);
+            }
+
+            @Override
+            public void onFailed(IOException ioe) {
+                uiHandler.post(stop);
+            }
+        };
+        if (!session.sendBye(stopWhenWritten)) {
+            stopChatServer();
+            return;
         }
+        // In case the link has stalled and the frame is never written.
+        uiHandler.postDelayed(stop, BYE_TIMEOUT_MS);
     }
 
-    private static void trace(String msg) {
-        Support.trace("ChatServer: " + msg);
+    /**
+     * Stop the background chat server.
+     * <p>
+     *     Sending the session's thread an interrupt won't have any effect; due to an
+     *     apparent bug in Android, the input stream must be closed instead. That will
+     *     cause the read() method to throw an exception and the thread can then exit.
+     *
+     * @see <a href="http://stackoverflow.com/questions/6579539/how-to-unblock-inputstream-read-on-android">How to unblock InputStream.read() on Android?</a>
+     * @see ChatSession#stopSession()
+     */
+    void stopChatServer() {
+        session.stopSession();
     }
 
     /**
@@ -239,4 +467,3 @@ class ChatServer extends Thread
         }
     }
 }
-
@@ -0,0 +1,171 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chat;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.SpscQueue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hand items from a background thread to the UI thread at most once per display frame.
+ * <p>
+ *     Posting a Handler message per item means one main thread hop -- and, if each one
+ *     updates a View, one relayout -- per item, which a burst of incoming messages
+ *     turns into hundreds per second. Instead the producer puts items on a lock-free
+ *     {@link SpscQueue}, and the first item to arrive in an empty batch asks the
+ *     {@link Choreographer} for a frame callback. When the frame comes, everything
+ *     queued by then is handed to the Consumer in one go and the Consumer updates the
+ *     display once for the whole batch.
+ * <p>
+ *     Counters are kept for the number of frames with something to drain, items per
+ *     frame and drain latency: the time from the first item of a batch being queued to
+ *     the batch being drained.
+ *
+ * @param <E> item type.
+ */
+class FrameBatcher<E> implements Choreographer.FrameCallback
+{
+    /** Receives batches of items on the UI thread. */
+    interface Consumer<E> {
+        /**
+         * One item of the current batch, oldest first.
+         *
+         * @param item the item.
+         */
+        void onItem(E item);
+
+        /**
+         * The current batch is complete.
+         *
+         * @param count number of items in the batch.
+         */
+        void onBatch(int count);
+    }
+
+    /** How long the producer waits before trying again when the queue is full. */
+    private static final long FULL_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final SpscQueue<E> queue;
+    private final Handler uiHandler;
+    private final Consumer<E> consumer;
+
+    /** Set while a frame callback is pending or about to be. */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /** System.nanoTime() when the pending frame callback was requested. */
+    private volatile long scheduledAt = 0;
+
+    /** Asks the UI thread's Choreographer for a frame callback; posted by the producer. */
+    private final Runnable requestFrame = new Runnable() {
+        @Override
+        public void run() {
+            // Choreographer.getInstance() belongs to the calling thread, so this has to
+            // run on the UI thread.
+            Choreographer.getInstance().postFrameCallback(FrameBatcher.this);
+        }
+    };
+
+    /** Frames in which at least one item was drained. */
+    private final AtomicLong frames = new AtomicLong();
+
+    /** Items drained. */
+    private final AtomicLong items = new AtomicLong();
+
+    /** Most items drained in one frame. */
+    private final AtomicLong maxPerFrame = new AtomicLong();
+
+    /** Total drain latency, in nanoseconds, over all frames counted. */
+    private final AtomicLong drainLatencyTotalNs = new AtomicLong();
+
+    /** Largest drain latency seen, in nanoseconds. */
+    private final AtomicLong drainLatencyMaxNs = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity   largest number of items which can wait for a frame.
+     * @param _uiHandler Handler for the UI thread.
+     * @param _consumer  receives the batches.
+     */
+    FrameBatcher(int capacity, Handler _uiHandler, Consumer<E> _consumer) {
+        queue = new SpscQueue<>(capacity);
+        uiHandler = _uiHandler;
+        consumer = _consumer;
+    }
+
+    /**
+     * Queue an item for the next frame. Only call from the one producer thread. If the
+     * queue is full (the UI thread has fallen far behind), waits for room.
+     *
+     * @param item the item.
+     * @throws InterruptedIOException if the producer is interrupted while waiting.
+     */
+    void post(E item) throws InterruptedIOException {
+        while (!queue.offer(item)) {
+            LockSupport.parkNanos(FULL_WAIT_NS);
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted waiting for the UI thread.");
+            }
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            scheduledAt = System.nanoTime();
+            uiHandler.post(requestFrame);
+        }
+    }
+
+    /** Drain everything queued so far. Called by the Choreographer on the UI thread. */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long requestedAt = scheduledAt;
+        // Anything queued from here on asks for another frame.
+        scheduled.set(false);
+
+        int count = 0;
+        E item;
+        while ((item = queue.poll()) != null) {
+            consumer.onItem(item);
+            count++;
+        }
+        if (count == 0)
+            return;
+        consumer.onBatch(count);
+
+        long latency = System.nanoTime() - requestedAt;
+        frames.incrementAndGet();
+        items.addAndGet(count);
+        drainLatencyTotalNs.addAndGet(latency);
+        updateMax(maxPerFrame, count);
+        updateMax(drainLatencyMaxNs, latency);
+    }
+
+    /** Number of frames in which at least one item was drained. */
+    long getFrameCount() { return frames.get(); }
+
+    /** Number of items drained. */
+    long getItemCount() { return items.get(); }
+
+    /** Most items drained in one frame. */
+    long getMaxItemsPerFrame() { return maxPerFrame.get(); }
+
+    /** Mean drain latency in nanoseconds, or 0 if nothing has been drained yet. */
+    long getMeanDrainLatencyNs() {
+        long n = frames.get();
+        return (n == 0) ? 0 : drainLatencyTotalNs.get() / n;
+    }
+
+    /** Largest drain latency seen, in nanoseconds. */
+    long getMaxDrainLatencyNs() { return drainLatencyMaxNs.get(); }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                break;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.support.Support;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Debug overlay showing every metric in the default {@link MetricsRegistry}.
+ * <p>
+ *     Hidden until toggle() is called. While it is shown and the Activity is in the
+ *     foreground, it is refreshed from a new snapshot every REFRESH_MS. Long-clicking
+ *     the overlay writes a snapshot to "metrics-&lt;time&gt;.txt" in the app's
+ *     external files directory (the same place as received files), on a background
+ *     thread, along with the {@link Tracer} buffer if tracing is on. Only use on the UI
+ *     thread.
+ */
+class MetricsOverlay
+{
+    /** How often the overlay is refreshed while shown. */
+    private static final long REFRESH_MS = 1000;
+
+    private final TextView tvOverlay;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /** False while the Activity is paused. */
+    private boolean resumed = false;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            tvOverlay.setText(MetricsRegistry.getDefault().snapshot().toString());
+            uiHandler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param _tvOverlay the overlay's TextView; initially hidden.
+     */
+    MetricsOverlay(TextView _tvOverlay) {
+        tvOverlay = _tvOverlay;
+        tvOverlay.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                dump(v.getContext().getApplicationContext());
+                return true;
+            }
+        });
+    }
+
+    /** Show the overlay if it's hidden, hide it if it's shown. */
+    void toggle() {
+        if (isShown()) {
+            tvOverlay.setVisibility(View.GONE);
+            uiHandler.removeCallbacks(refresh);
+        }
+        else {
+            tvOverlay.setVisibility(View.VISIBLE);
+            if (resumed) {
+                refresh.run();
+            }
+        }
+    }
+
+    /** The Activity has come to the foreground: refresh the overlay if it's shown. */
+    void resume() {
+        resumed = true;
+        if (isShown()) {
+            refresh.run();
+        }
+    }
+
+    /** The Activity has gone to the background: stop refreshing. */
+    void pause() {
+        resumed = false;
+        uiHandler.removeCallbacks(refresh);
+    }
+
+    private boolean isShown() {
+        return tvOverlay.getVisibility() == View.VISIBLE;
+    }
+
+    /** Write a snapshot of the metrics (and the trace) to files, reporting where. */
+    private static void dump(Context ac) {
+        File dir = ac.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = ac.getFilesDir();
+        }
+        long now = System.currentTimeMillis();
+        final File file = new File(dir, String.format(Locale.US, "metrics-%d.txt", now));
+        final File traceFile = new File(dir, String.format(Locale.US, "trace-%d.txt", now));
+        new Thread("MetricsDump") {
+            @Override
+            public void run() {
+                try {
+                    MetricsRegistry.getDefault().dump(file);
+                    Tracer.dump(traceFile);
+                    Support.userMessageShort(String.format(Locale.US,
+                            "Metrics written to %s", file.getPath()));
+                }
+                catch (IOException ioe) {
+                    Support.userMessageLong(String.format(Locale.US,
+                            "Could not write metrics: %s", ioe.getMessage()));
+                }
+            }
+        }.start();
+    }
+}
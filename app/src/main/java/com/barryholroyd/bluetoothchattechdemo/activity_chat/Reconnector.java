@@ -0,0 +1,138 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Backoff;
+import com.barryholroyd.bluetoothchattechdemo.support.Support;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Reconnect to a remote device whose connection dropped.
+ * <p>
+ *     Only the device which made the original connection reconnects; the other end's
+ *     ChooserListener is still accepting connections, so it just waits. Attempts are
+ *     spaced out by a {@link Backoff}, and the new socket is handed to
+ *     SessionManager.onReconnected(), which resumes the session on it. If every
+ *     attempt fails, SessionManager.onReconnectFailed() ends the session.
+ * <p>
+ *     Runs as a background thread, one per dropped session.
+ */
+class Reconnector extends Thread
+{
+    private final Context ac;
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private final Backoff backoff =
+            new Backoff(Backoff.DEFAULT_INITIAL_MS, Backoff.DEFAULT_MAX_MS,
+                    Backoff.DEFAULT_MAX_ATTEMPTS, new Random());
+
+    /** Socket being connected, so that cancel() can abort connect(). */
+    private volatile BluetoothSocket btSocket = null;
+
+    /** Set by cancel(). */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor.
+     *
+     * @param _ac     the app's Context.
+     * @param _device the remote device to reconnect to.
+     * @param _uuid   SDP UUID of the chat service.
+     */
+    Reconnector(Context _ac, BluetoothDevice _device, UUID _uuid) {
+        super("Reconnector");
+        setDaemon(true);
+        ac = _ac;
+        device = _device;
+        uuid = _uuid;
+    }
+
+    /** The remote device being reconnected to. */
+    BluetoothDevice getDevice() { return device; }
+
+    /** Number of connection attempts started so far. */
+    int getAttempts() { return backoff.getAttempts(); }
+
+    /** Stop trying. Any attempt in progress is aborted by closing its socket. */
+    void cancel() {
+        cancelled = true;
+        interrupt();
+        closeSocket(btSocket);
+    }
+
+    @Override
+    public void run() {
+        long macId = Tracer.ENABLED ? Tracer.mac(device.getAddress()) : 0;
+        while (!cancelled) {
+            long delay = backoff.nextDelayMs();
+            if (delay < 0) {
+                Tracer.event(TraceEvent.RECONNECT_GAVE_UP, macId, backoff.getAttempts());
+                SessionManager.onReconnectFailed(this);
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException ie) {
+                return;
+            }
+            if (cancelled || !BluetoothUtils.isEnabled())
+                return;
+
+            // As in ChooserClient, discovery slows connection attempts down enough to fail them.
+            BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+            if (adapter.isDiscovering()) {
+                adapter.cancelDiscovery();
+            }
+
+            Tracer.event(TraceEvent.RECONNECT_ATTEMPT, backoff.getAttempts(), macId, delay);
+            SessionManager.onReconnectAttempt(this);
+            BluetoothSocket socket = null;
+            try {
+                socket = device.createRfcommSocketToServiceRecord(uuid);
+                btSocket = socket;
+                if (cancelled) {
+                    closeSocket(socket);
+                    return;
+                }
+                socket.connect();
+            }
+            catch (IOException ioe) {
+                Tracer.event(TraceEvent.RECONNECT_FAILED, macId);
+                closeSocket(socket);
+                continue;
+            }
+            finally {
+                btSocket = null;
+            }
+
+            if (cancelled) {
+                closeSocket(socket);
+                return;
+            }
+            SessionManager.onReconnected(ac, this, socket);
+            return;
+        }
+    }
+
+    /** Close a socket which has not been handed to SessionManager. */
+    private static void closeSocket(BluetoothSocket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        }
+        catch (IOException ioe) {
+            Support.exception("Reconnector: failed to close Bluetooth socket", ioe);
+        }
+    }
+}
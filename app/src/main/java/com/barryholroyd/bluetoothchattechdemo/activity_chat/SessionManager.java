@@ -0,0 +1,745 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chat;
+
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Broadcaster;
+import com.barryholroyd.bluetoothchattechdemo.protocol.ReliableChannel;
+import com.barryholroyd.bluetoothchattechdemo.session.ChatSession;
+import com.barryholroyd.bluetoothchattechdemo.support.Support;
+import com.barryholroyd.bluetoothchattechdemo.transcript.SearchIndex;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
+import static android.content.Intent.FLAG_ACTIVITY_REORDER_TO_FRONT;
+
+/**
+ * Owns the app's chat sessions: one ChatServer per connected remote device, keyed
+ * by the remote device's MAC address.
+ * <p>
+ *     Each session has its own socket, streams, reader thread and writer thread, so any
+ *     number of remote devices can be chatted with at once. New connections are added
+ *     by ChooserClient and ChooserListener (on their own threads); sessions are removed
+ *     on the UI thread, either when the user closes them (at either end) or when their
+ *     connection can't be restored. ChatActivity is told about every change so that it
+ *     can update its list of sessions, and it exits once the last session has gone.
+ * <p>
+ *     Each remote device also has a {@link ReliableChannel} for its chat messages. The
+ *     channel is kept when a session's connection drops, so that the next connection
+ *     to the same device picks up where the old one left off and resends whatever the
+ *     device hadn't acknowledged. It is only discarded when the session ends.
+ * <p>
+ *     A dropped connection doesn't end the session. It stays listed as reconnecting
+ *     and messages the user sends are queued on its channel. If this device made the
+ *     connection, a {@link Reconnector} reconnects to the same device with exponential
+ *     backoff; otherwise the remote device is given RECONNECT_WAIT_MS to reconnect to
+ *     ChooserListener. Either way the new connection resumes the session in place, and
+ *     the time from the drop to the resume is recorded. Sessions which can't be
+ *     resumed are ended as before.
+ * <p>
+ *     Every message sent and received is also kept in a per-device
+ *     {@link TranscriptStore}, opened the first time a session with the device starts
+ *     and kept open, like the channel, across sessions until closeAll(). Each
+ *     transcript has a {@link SearchIndex}, which indexes it in the background.
+ *     closeAll() is called on the UI thread, so it hands the slow part of closing
+ *     them (waiting for the indexers, writing the index files and flushing the
+ *     transcripts) to a background thread; a new session with a device waits for
+ *     that to finish before opening the device's transcript again. Opening one is
+ *     also slow, so it is done without the class lock held (see getTranscript()).
+ */
+public class SessionManager
+{
+    /** Bundle key for the MAC address of the session ChatActivity should display. */
+    static final String BUNDLE_KEY_SESSION = "com.barryholroyd.bluetoothchattechdemo.SESSION";
+
+    /**
+     * Most sessions which can be open at once. A Bluetooth piconet has at most seven
+     * active slaves, so there is no point accepting more than that.
+     */
+    public static final int MAX_SESSIONS = 7;
+
+    /** Fans messages out to every session; see broadcast(). */
+    private static final Broadcaster broadcaster =
+            new Broadcaster(Broadcaster.DEFAULT_PEER_QUEUE_LIMIT);
+
+    /** Sessions in the order they were created; guarded by the class lock. */
+    private static final LinkedHashMap<String, ChatServer> sessions = new LinkedHashMap<>();
+
+    /** Reliable channels by MAC address, including those of ended sessions; guarded by the class lock. */
+    private static final HashMap<String, ReliableChannel> channels = new HashMap<>();
+
+    /**
+     * How long to keep a dropped session waiting for the remote device to reconnect,
+     * when it's up to the remote device. Roughly the time Reconnector takes to give up.
+     */
+    static final long RECONNECT_WAIT_MS = 3 * 60 * 1000;
+
+    /** Transcripts by MAC address; guarded by the class lock. */
+    private static final HashMap<String, TranscriptStore> transcripts = new HashMap<>();
+
+    /** Search indexes of the transcripts, by MAC address; guarded by the class lock. */
+    private static final HashMap<String, SearchIndex> searchIndexes = new HashMap<>();
+
+    /** Sessions whose connection has dropped, by MAC address; guarded by the class lock. */
+    private static final HashMap<String, Outage> outages = new HashMap<>();
+
+    /** Closes search indexes and transcripts off the UI thread, in the order handed over. */
+    private static final ExecutorService closer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SessionCloser");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Held while opening a transcript and its index; see getTranscript(). Never taken
+     * with the class lock held.
+     */
+    private static final Object openLock = new Object();
+
+    /** The last work handed to "closer"; null if none. Guarded by the class lock. */
+    private static Future<?> pendingClose = null;
+
+    /** Directory, under the app's private files directory, holding the transcripts. */
+    private static final String TRANSCRIPTS_DIR = "transcripts";
+
+    /** Handler for the UI thread. */
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /** The app's Context, saved by addSession() for reconnects. */
+    private static Context appContext = null;
+
+    /** Sessions resumed on a new connection after their connection dropped. */
+    private static final Counter resumed =
+            MetricsRegistry.getDefault().counter("sessions.resumed");
+
+    /** Sessions ended because their connection couldn't be restored. */
+    private static final Counter resumeFailed =
+            MetricsRegistry.getDefault().counter("sessions.resume.failed");
+
+    /** Time to resume, in nanoseconds, of every resumed session. */
+    private static final Histogram resumeTime =
+            MetricsRegistry.getDefault().histogram("sessions.resume.time");
+
+    /** A session whose connection has dropped and which is waiting to be resumed. */
+    private static class Outage
+    {
+        /** System.nanoTime() when the drop was noticed. */
+        final long startedAt = System.nanoTime();
+
+        /** Reconnects to the remote device; null if the remote device is to reconnect. */
+        Reconnector reconnector = null;
+
+        /** Ends the session if the remote device doesn't reconnect in time; or null. */
+        Runnable giveUp = null;
+    }
+
+    /**
+     * Start a chat session on a newly connected socket and bring up ChatActivity
+     * showing it. A session which already exists for the same remote device is
+     * replaced; if its connection had dropped, it is resumed on the new one instead
+     * and ChatActivity is left where it is. If MAX_SESSIONS sessions are already open
+     * with other devices, the socket is closed and no session is started.
+     * <p>
+     *     Can be called from any thread. SessionManager is responsible for closing
+     *     the socket.
+     *
+     * @param ac            the app's Context.
+     * @param btChatSocket  a connected Bluetooth socket.
+     * @param reconnectUuid SDP UUID to reconnect with if the connection drops, if this
+     *                      device made the connection; null if it was accepted.
+     * @return true if the session was started; false if there was no room for it or
+     *         it could not be started.
+     */
+    public static boolean addSession(Context ac, BluetoothSocket btChatSocket,
+                                     UUID reconnectUuid) {
+        String mac = btChatSocket.getRemoteDevice().getAddress();
+        synchronized (SessionManager.class) {
+            if ((sessions.size() >= MAX_SESSIONS) && !sessions.containsKey(mac)) {
+                if (Tracer.ENABLED)
+                    Tracer.event(TraceEvent.SESSION_REJECTED, Tracer.mac(mac));
+                closeSocket(btChatSocket);
+                return false;
+            }
+        }
+
+        ReliableChannel channel = getChannel(mac);
+        ChatServer chatServer;
+        try {
+            chatServer = new ChatServer(btChatSocket, channel, getTranscript(ac, mac),
+                    getReceivedFilesDir(ac), reconnectUuid);
+        }
+        catch (ChatServer.ChatServerException cse) {
+            Support.userMessageLong("Could not start Chat server.");
+            closeSocket(btChatSocket);
+            return false;
+        }
+
+        final ChatServer previous;
+        final Outage outage;
+        synchronized (SessionManager.class) {
+            // Re-check: another thread may have added a session since the check above.
+            if ((sessions.size() >= MAX_SESSIONS) && !sessions.containsKey(mac)) {
+                if (Tracer.ENABLED)
+                    Tracer.event(TraceEvent.SESSION_REJECTED, Tracer.mac(mac));
+                closeSocket(btChatSocket);
+                return false;
+            }
+            appContext = ac;
+            previous = sessions.put(mac, chatServer);
+            outage = outages.remove(mac);
+        }
+        if (previous != null) {
+            if (Tracer.ENABLED)
+                Tracer.event(TraceEvent.SESSION_REPLACED, Tracer.mac(mac));
+            previous.stopChatServer();
+        }
+
+        if ((previous != null) || (outage != null)) {
+            // Queued ahead of anything the new server sends to the UI thread.
+            final ChatServer replacement = chatServer;
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onReplaced(replacement, previous, outage);
+                }
+            });
+        }
+        chatServer.start();
+        if (outage != null) {
+            // Resumed in place; leave the user wherever they are.
+            return true;
+        }
+
+        Intent intent = new Intent(ac, ChatActivity.class);
+        intent.putExtra(BUNDLE_KEY_SESSION, mac);
+        // Reuse a running ChatActivity (it gets onNewIntent()) rather than stacking another.
+        intent.addFlags(FLAG_ACTIVITY_NEW_TASK | FLAG_ACTIVITY_REORDER_TO_FRONT);
+        ac.startActivity(intent);
+        return true;
+    }
+
+    /**
+     * Get a session.
+     *
+     * @param mac MAC address of the remote device.
+     * @return the session, or null if there isn't one.
+     */
+    static synchronized ChatServer getSession(String mac) {
+        return sessions.get(mac);
+    }
+
+    /** Snapshot of the current sessions, oldest first. */
+    static synchronized List<ChatServer> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /** Number of current sessions. */
+    public static synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Total bytes sent and received so far by the current sessions, from their
+     * metrics; e.g., to tell whether any of them is moving data. Falls when a session
+     * ends.
+     */
+    public static long getTrafficBytes() {
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        long total = 0;
+        for (ChatServer chatServer : getSessions()) {
+            String prefix = ChatSession.metricsPrefix(chatServer.getRemoteAddress());
+            total += registry.counter(prefix + "bytes.in").get()
+                    + registry.counter(prefix + "bytes.out").get();
+        }
+        return total;
+    }
+
+    /** True if another session can be started without replacing an existing one. */
+    public static synchronized boolean hasCapacity() {
+        return sessions.size() < MAX_SESSIONS;
+    }
+
+    /** True if the session's connection has dropped and it is waiting to be resumed. */
+    static synchronized boolean isReconnecting(ChatServer chatServer) {
+        return outages.containsKey(chatServer.getRemoteAddress());
+    }
+
+    /**
+     * Describe the state of a session's connection, for display.
+     *
+     * @param chatServer the session.
+     * @return a short description, e.g. "Connected to: ...".
+     */
+    static synchronized String getConnectionStatus(ChatServer chatServer) {
+        String name = chatServer.getDisplayName();
+        Outage outage = outages.get(chatServer.getRemoteAddress());
+        if (outage == null) {
+            return String.format(Locale.US, "Connected to: %s", name);
+        }
+        if (outage.reconnector == null) {
+            return String.format(Locale.US, "Waiting for %s to reconnect...", name);
+        }
+        return String.format(Locale.US, "Reconnecting to: %s (attempt %d)",
+                name, outage.reconnector.getAttempts());
+    }
+
+    /** Number of sessions resumed after their connection dropped. */
+    static long getResumedCount() { return resumed.get(); }
+
+    /** Number of sessions ended because their connection couldn't be restored. */
+    static long getResumeFailedCount() { return resumeFailed.get(); }
+
+    /** Mean time to resume a session in nanoseconds, or 0 if none has been resumed. */
+    static long getMeanResumeTimeNs() { return resumeTime.snapshot().getMean(); }
+
+    /** Longest time to resume a session seen, in nanoseconds. */
+    static long getMaxResumeTimeNs() { return resumeTime.snapshot().getMax(); }
+
+    /**
+     * Send a chat message to every session. Never blocks.
+     * <p>
+     *     The message is encoded once and the same frame is queued on every session's
+     *     writer. A session which is already too far behind is skipped for this message
+     *     so that it can't hold back the others.
+     *
+     * @param bytes    the message; must not be modified afterwards.
+     * @param callback called once every session has sent, failed or been skipped.
+     * @return the number of sessions the message was queued for.
+     */
+    static int broadcast(byte[] bytes, Broadcaster.BroadcastCallback callback) {
+        List<ChatServer> current = getSessions();
+        List<ReliableChannel> targets = new ArrayList<>(current.size());
+        for (ChatServer chatServer : current) {
+            targets.add(chatServer.getChannel());
+            // Recorded even if the session ends up being skipped: the user did send it.
+            chatServer.recordSent(bytes);
+        }
+        return broadcaster.broadcast(targets, bytes, 0, bytes.length, callback);
+    }
+
+    /**
+     * Close a session at the user's request. Called on the UI thread.
+     *
+     * @param chatServer the session to close.
+     */
+    static void closeSession(ChatServer chatServer) {
+        cancelOutage(chatServer.getRemoteAddress());
+        chatServer.closeChatServer();
+        endSession(chatServer, new IOException("Session closed."));
+    }
+
+    /** Close every session (e.g., when Bluetooth is turned off). Called on the UI thread. */
+    static void closeAll() {
+        for (ChatServer chatServer : getSessions()) {
+            closeSession(chatServer);
+        }
+        List<ReliableChannel> parked;
+        synchronized (SessionManager.class) {
+            parked = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for (ReliableChannel channel : parked) {
+            channel.close(new IOException("Session closed."));
+        }
+
+        // Closing an index waits for its indexer and writes its file, and closing a
+        // transcript joins its writer thread and syncs its segment, so both are done
+        // on the closer thread. Indexes first: they read from the transcripts. They
+        // are taken out of the maps and handed over in one step, so that
+        // getTranscript() never finds a device's transcript gone but not yet closing.
+        synchronized (SessionManager.class) {
+            final List<SearchIndex> closingIndexes = new ArrayList<>(searchIndexes.values());
+            searchIndexes.clear();
+            final List<TranscriptStore> closingTranscripts = new ArrayList<>(transcripts.values());
+            transcripts.clear();
+            pendingClose = closer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (SearchIndex index : closingIndexes) {
+                        try {
+                            index.close();
+                        }
+                        catch (IOException ioe) {
+                            Support.exception("SessionManager: failed to save search index", ioe);
+                        }
+                    }
+                    for (TranscriptStore transcript : closingTranscripts) {
+                        try {
+                            // Only waits for the last batch, if any, to be written.
+                            transcript.close();
+                        }
+                        catch (IOException ioe) {
+                            Support.exception("SessionManager: failed to close transcript", ioe);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait for work handed to the closer thread. Not called on the UI thread, nor with
+     * the class lock held.
+     */
+    private static void awaitClose(Future<?> f) {
+        try {
+            f.get();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ee) {
+            Support.exception("SessionManager: failed to close a session's files", ee);
+        }
+    }
+
+    /**
+     * Get the transcript for a remote device, opening it if necessary.
+     * <p>
+     *     Opening a transcript scans, maps and checks every record, and its index loads
+     *     its file, which takes a while for a long history; so it is done holding only
+     *     openLock, which the UI thread never takes, and the transcript and index are
+     *     added to the maps under the class lock once they are ready. Holding openLock
+     *     also means that two threads starting sessions with the same device at once
+     *     don't both open its files: the second finds the first's transcript. Not
+     *     called on the UI thread.
+     *
+     * @param ac  the app's Context.
+     * @param mac MAC address of the remote device.
+     * @return the transcript, or null if it could not be opened; the session then
+     *         goes unrecorded.
+     */
+    static TranscriptStore getTranscript(Context ac, String mac) {
+        synchronized (openLock) {
+            while (true) {
+                Future<?> f;
+                synchronized (SessionManager.class) {
+                    TranscriptStore open = transcripts.get(mac);
+                    if (open != null)
+                        return open;
+                    f = pendingClose;
+                }
+                if ((f == null) || f.isDone())
+                    break;
+                // Don't reopen a transcript while closeAll() may still be closing it.
+                awaitClose(f);
+                if (Thread.currentThread().isInterrupted())
+                    return null;
+            }
+
+            File dir = new File(new File(ac.getFilesDir(), TRANSCRIPTS_DIR),
+                    mac.replace(':', '_'));
+            TranscriptStore transcript;
+            try {
+                transcript = new TranscriptStore(dir);
+            }
+            catch (IOException ioe) {
+                Support.exception("SessionManager: could not open transcript", ioe);
+                return null;
+            }
+            SearchIndex index = new SearchIndex(transcript);
+            synchronized (SessionManager.class) {
+                transcripts.put(mac, transcript);
+                searchIndexes.put(mac, index);
+            }
+            return transcript;
+        }
+    }
+
+    /**
+     * Get the search index of a remote device's transcript.
+     *
+     * @param mac MAC address of the remote device.
+     * @return the index, or null if the device's transcript isn't open.
+     */
+    static synchronized SearchIndex getSearchIndex(String mac) {
+        return searchIndexes.get(mac);
+    }
+
+    /** Get the reliable channel for a remote device, creating it if necessary. */
+    private static synchronized ReliableChannel getChannel(String mac) {
+        ReliableChannel channel = channels.get(mac);
+        if ((channel == null) || channel.isClosed()) {
+            channel = new ReliableChannel(ReliableChannel.DEFAULT_WINDOW);
+            channels.put(mac, channel);
+        }
+        else {
+            if (Tracer.ENABLED)
+                Tracer.event(TraceEvent.CHANNEL_RESUMED, Tracer.mac(mac), channel.backlog());
+        }
+        return channel;
+    }
+
+    /**
+     * Handle a session whose connection has gone away. Called on the UI thread by the
+     * ChatServer when its read loop exits; ignored if the session has already been
+     * closed or replaced, or is already waiting to be resumed.
+     * <p>
+     *     If the remote device's user ended the chat, or Bluetooth has been turned off,
+     *     the session ends. Otherwise it is kept, marked as reconnecting, until it is
+     *     resumed by a new connection or given up on.
+     *
+     * @param chatServer the session whose connection has gone away.
+     */
+    static void onSessionEnded(ChatServer chatServer) {
+        String mac = chatServer.getRemoteAddress();
+        synchronized (SessionManager.class) {
+            if ((sessions.get(mac) != chatServer) || outages.containsKey(mac))
+                return;
+        }
+        if (chatServer.isClosedByRemote()) {
+            Support.userMessageShort(String.format(Locale.US,
+                    "%s ended the chat.", chatServer.getDisplayName()));
+            endSession(chatServer, new IOException("Remote device ended the chat."));
+            return;
+        }
+        if ((appContext == null) || !BluetoothUtils.isEnabled()) {
+            endSession(chatServer, new IOException("Connection lost."));
+            return;
+        }
+
+        final Outage outage = new Outage();
+        UUID uuid = chatServer.getReconnectUuid();
+        if (uuid != null) {
+            outage.reconnector = new Reconnector(appContext, chatServer.getRemoteDevice(), uuid);
+        }
+        else {
+            final ChatServer waiting = chatServer;
+            outage.giveUp = new Runnable() {
+                @Override
+                public void run() {
+                    giveUp(waiting, outage);
+                }
+            };
+        }
+        synchronized (SessionManager.class) {
+            outages.put(mac, outage);
+        }
+        if (outage.reconnector != null) {
+            outage.reconnector.start();
+        }
+        else {
+            uiHandler.postDelayed(outage.giveUp, RECONNECT_WAIT_MS);
+        }
+
+        if (Tracer.ENABLED)
+            Tracer.event(TraceEvent.CONNECTION_LOST, Tracer.mac(mac), (uuid != null) ? 1 : 0);
+        Support.userMessageShort(String.format(Locale.US,
+                "Lost connection to %s; reconnecting...", chatServer.getDisplayName()));
+        notifyActivity();
+    }
+
+    /**
+     * A Reconnector is about to try to connect. Called on the Reconnector's thread.
+     *
+     * @param reconnector the Reconnector.
+     */
+    static void onReconnectAttempt(Reconnector reconnector) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyActivity();
+            }
+        });
+    }
+
+    /**
+     * A Reconnector has connected to the remote device: resume the session on the new
+     * socket. If the session has been closed in the meantime, the socket is closed.
+     * Called on the Reconnector's thread.
+     *
+     * @param ac          the app's Context.
+     * @param reconnector the Reconnector.
+     * @param btSocket    the newly connected socket.
+     */
+    static void onReconnected(Context ac, Reconnector reconnector, BluetoothSocket btSocket) {
+        String mac = reconnector.getDevice().getAddress();
+        UUID uuid;
+        synchronized (SessionManager.class) {
+            Outage outage = outages.get(mac);
+            ChatServer chatServer = sessions.get(mac);
+            if ((outage == null) || (outage.reconnector != reconnector) || (chatServer == null)) {
+                uuid = null;
+            }
+            else {
+                uuid = chatServer.getReconnectUuid();
+            }
+        }
+        if (uuid == null) {
+            if (Tracer.ENABLED)
+                Tracer.event(TraceEvent.RECONNECT_DROPPED, Tracer.mac(mac));
+            closeSocket(btSocket);
+            return;
+        }
+        addSession(ac, btSocket, uuid);
+    }
+
+    /**
+     * A Reconnector has run out of attempts: end its session. Called on the
+     * Reconnector's thread.
+     *
+     * @param reconnector the Reconnector.
+     */
+    static void onReconnectFailed(final Reconnector reconnector) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String mac = reconnector.getDevice().getAddress();
+                Outage outage;
+                ChatServer chatServer;
+                synchronized (SessionManager.class) {
+                    outage = outages.get(mac);
+                    chatServer = sessions.get(mac);
+                }
+                if ((outage != null) && (outage.reconnector == reconnector)
+                        && (chatServer != null)) {
+                    giveUp(chatServer, outage);
+                }
+            }
+        });
+    }
+
+    /**
+     * End a session which couldn't be resumed, failing any messages still waiting on
+     * its channel. Called on the UI thread.
+     */
+    private static void giveUp(ChatServer chatServer, Outage outage) {
+        synchronized (SessionManager.class) {
+            if (outages.get(chatServer.getRemoteAddress()) != outage)
+                return;
+            outages.remove(chatServer.getRemoteAddress());
+        }
+        resumeFailed.inc();
+        Support.userMessageLong(String.format(Locale.US,
+                "Could not reconnect to %s.", chatServer.getDisplayName()));
+        endSession(chatServer, new IOException("Could not reconnect."));
+    }
+
+    /**
+     * A session has been replaced by a new connection to the same device: carry over
+     * what was being displayed and, if the old connection had dropped, stop waiting
+     * and record the time to resume. Called on the UI thread.
+     *
+     * @param chatServer the new session.
+     * @param previous   the session it replaced; may be null.
+     * @param outage     the outage it ended; null if the old connection hadn't dropped
+     *                   (or hadn't been noticed to).
+     */
+    private static void onReplaced(ChatServer chatServer, ChatServer previous, Outage outage) {
+        if (previous != null) {
+            chatServer.inheritState(previous);
+        }
+        if (outage == null) {
+            notifyActivity();
+            return;
+        }
+        stopWaiting(outage);
+
+        long elapsed = System.nanoTime() - outage.startedAt;
+        resumed.inc();
+        resumeTime.record(elapsed);
+        if (Tracer.ENABLED)
+            Tracer.event(TraceEvent.SESSION_RESUMED, Tracer.mac(chatServer.getRemoteAddress()),
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+        Support.userMessageShort(String.format(Locale.US,
+                "Reconnected to %s.", chatServer.getDisplayName()));
+        notifyActivity();
+    }
+
+    /** Stop waiting for a session to be resumed, e.g. because the user closed it. */
+    private static void cancelOutage(String mac) {
+        Outage outage;
+        synchronized (SessionManager.class) {
+            outage = outages.remove(mac);
+        }
+        if (outage != null) {
+            stopWaiting(outage);
+        }
+    }
+
+    /** Stop an outage's Reconnector or give-up timer. */
+    private static void stopWaiting(Outage outage) {
+        if (outage.reconnector != null) {
+            outage.reconnector.cancel();
+        }
+        if (outage.giveUp != null) {
+            uiHandler.removeCallbacks(outage.giveUp);
+        }
+    }
+
+    /**
+     * Remove a session and discard its channel, failing whatever is still queued on it.
+     * Called on the UI thread; ignored if the session has already been removed or
+     * replaced.
+     */
+    private static void endSession(ChatServer chatServer, IOException cause) {
+        String mac = chatServer.getRemoteAddress();
+        ReliableChannel channel = chatServer.getChannel();
+        synchronized (SessionManager.class) {
+            if (sessions.get(mac) != chatServer)
+                return;
+            sessions.remove(mac);
+            if (channels.get(mac) == channel) {
+                channels.remove(mac);
+            }
+        }
+        channel.close(cause);
+
+        if (Tracer.ENABLED)
+            Tracer.event(TraceEvent.SESSION_ENDED, Tracer.mac(mac));
+        notifyActivity();
+    }
+
+    /** Tell ChatActivity, if it's running, that the sessions or their states have changed. */
+    private static void notifyActivity() {
+        ChatActivity ca = ChatActivity.getActivity();
+        if (ca != null) {
+            ca.onSessionsChanged();
+        }
+    }
+
+    /** Directory where files received from remote devices are stored. */
+    private static File getReceivedFilesDir(Context ac) {
+        File dir = ac.getExternalFilesDir(null);
+        return (dir != null) ? dir : ac.getFilesDir();
+    }
+
+    /** Close a socket which has not been handed to a ChatServer. */
+    private static void closeSocket(BluetoothSocket btChatSocket) {
+        try {
+            btChatSocket.close();
+        }
+        catch (IOException ioe) {
+            Support.exception("SessionManager: failed to close Bluetooth socket", ioe);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.barryholroyd.bluetoothchattechdemo.R;
+import com.barryholroyd.bluetoothchattechdemo.support.Support;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptEntry;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptPager;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptStore;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RecyclerView adapter showing the transcript of the displayed session: every message
+ * sent and received, oldest first.
+ * <p>
+ *     Rows come from the session's {@link TranscriptStore} through a
+ *     {@link TranscriptPager}, so only the pages around the part of the transcript on
+ *     screen are in memory however long the transcript is. Pages are read and their
+ *     rows prepared (time stamp formatted, text decoded and cut down to MAX_ROW_CHARS
+ *     so that no row is expensive to lay out) on a background thread; a row whose page
+ *     hasn't arrived yet is shown as a placeholder and rebound when it does.
+ * <p>
+ *     The adapter follows the store as new messages are written, inserting rows at the
+ *     end (and removing rows at the start once the store deletes old messages), and
+ *     keeps the newest message in view if it was in view already. Only use on the UI
+ *     thread, except where noted.
+ */
+class TranscriptAdapter extends RecyclerView.Adapter<TranscriptAdapter.RowHolder>
+{
+    /** A transcript entry ready for display; built on the loader thread. */
+    static final class Row
+    {
+        final String label;
+        final String text;
+
+        Row(String _label, String _text) {
+            label = _label;
+            text = _text;
+        }
+    }
+
+    /** Standard ViewHolder: the time stamp and the text of one message. */
+    static class RowHolder extends RecyclerView.ViewHolder {
+        final TextView tvTime;
+        final TextView tvText;
+
+        RowHolder(View v) {
+            super(v);
+            tvTime = (TextView) v.findViewById(R.id.row_time);
+            tvText = (TextView) v.findViewById(R.id.row_text);
+        }
+    }
+
+    /** Longest text shown for one message; the rest is cut off. */
+    static final int MAX_ROW_CHARS = 500;
+
+    /** Shown in place of a row whose page is still being loaded. */
+    private static final String LOADING = "\u2026";
+
+    /** Appended to text which has been cut off. */
+    private static final String CUT = " \u2026";
+
+    /** Shown in place of a message which has been deleted to make room. */
+    private static final String EXPIRED = "(expired)";
+
+    private final RecyclerView recyclerView;
+    private final LinearLayoutManager layoutManager;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /** Reads and formats pages; one thread, so the formatter needs no locking. */
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+
+    /** Store being shown; null if none. */
+    private TranscriptStore store = null;
+
+    /** Pager for store; replaced along with it. */
+    private TranscriptPager<Row> pager = null;
+
+    /** The pager's listener; pages loaded for an earlier pager are ignored. */
+    private PageListener pageListener = null;
+
+    /** Sequence number of the entry in the first row. */
+    private long firstSeq = 0;
+
+    /** Sequence number after the entry in the last row. */
+    private long nextSeq = 0;
+
+    /** Set while a refresh is posted to the UI thread. */
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+    /** Told by the store about new entries, on its writer thread. */
+    private final TranscriptStore.CommitListener commitListener =
+            new TranscriptStore.CommitListener() {
+                @Override
+                public void onCommitted(long seq) {
+                    if (refreshPending.compareAndSet(false, true)) {
+                        uiHandler.post(refresh);
+                    }
+                }
+            };
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshPending.set(false);
+            refresh();
+        }
+    };
+
+    /**
+     * Constructor: sets up the RecyclerView to show this adapter.
+     *
+     * @param _recyclerView the transcript's RecyclerView.
+     */
+    TranscriptAdapter(RecyclerView _recyclerView) {
+        recyclerView = _recyclerView;
+        layoutManager = new LinearLayoutManager(recyclerView.getContext());
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(this);
+    }
+
+    /**
+     * Show another transcript.
+     *
+     * @param _store the transcript; null to show nothing.
+     */
+    void setStore(TranscriptStore _store) {
+        if (_store == store) {
+            return;
+        }
+        detach();
+        store = _store;
+        if (store != null) {
+            pageListener = new PageListener();
+            pager = new TranscriptPager<>(store, TranscriptPager.DEFAULT_PAGE_SIZE,
+                    TranscriptPager.DEFAULT_MAX_PAGES, loader, new Formatter(),
+                    pageListener);
+            store.addCommitListener(commitListener);
+            firstSeq = store.getFirstSeq();
+            nextSeq = store.getNextSeq();
+        }
+        else {
+            firstSeq = 0;
+            nextSeq = 0;
+        }
+        notifyDataSetChanged();
+        scrollToEnd();
+    }
+
+    /** Stop following the store and stop the loader thread. */
+    void close() {
+        detach();
+        store = null;
+        loader.shutdown();
+    }
+
+    @Override
+    public RowHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View v = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.transcript_row, parent, false);
+        return new RowHolder(v);
+    }
+
+    @Override
+    public void onBindViewHolder(RowHolder holder, int position) {
+        long seq = firstSeq + position;
+        Row row = pager.get(seq);
+        if (row != null) {
+            holder.tvTime.setText(row.label);
+            holder.tvText.setText(row.text);
+        }
+        else {
+            holder.tvTime.setText("");
+            holder.tvText.setText(seq < store.getFirstSeq() ? EXPIRED : LOADING);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return (int) (nextSeq - firstSeq);
+    }
+
+    /**
+     * Scroll to a message.
+     *
+     * @param seq the message's sequence number.
+     * @return false if the message isn't in the transcript (any more).
+     */
+    boolean scrollToSeq(long seq) {
+        if ((seq < firstSeq) || (seq >= nextSeq)) {
+            return false;
+        }
+        layoutManager.scrollToPositionWithOffset((int) (seq - firstSeq), 0);
+        return true;
+    }
+
+    /** Catch up with the store: drop deleted entries and add new ones. */
+    private void refresh() {
+        if (store == null) {
+            return;
+        }
+        boolean atEnd = layoutManager.findLastVisibleItemPosition() >= getItemCount() - 1;
+        long newFirst = Math.min(store.getFirstSeq(), nextSeq);
+        if (newFirst > firstSeq) {
+            int removed = (int) (newFirst - firstSeq);
+            firstSeq = newFirst;
+            notifyItemRangeRemoved(0, removed);
+        }
+        long newNext = store.getNextSeq();
+        if (newNext > nextSeq) {
+            int at = (int) (nextSeq - firstSeq);
+            int inserted = (int) (newNext - nextSeq);
+            nextSeq = newNext;
+            notifyItemRangeInserted(at, inserted);
+        }
+        if (atEnd) {
+            scrollToEnd();
+        }
+    }
+
+    private void scrollToEnd() {
+        if (getItemCount() > 0) {
+            recyclerView.scrollToPosition(getItemCount() - 1);
+        }
+    }
+
+    private void detach() {
+        if (store != null) {
+            store.removeCommitListener(commitListener);
+        }
+        if (pager != null) {
+            pager.close();
+            pager = null;
+            pageListener = null;
+        }
+    }
+
+    /** Builds rows on the loader thread. */
+    private static class Formatter implements TranscriptPager.RowFormatter<Row> {
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        private final Date date = new Date();
+
+        @Override
+        public Row format(TranscriptEntry entry) {
+            date.setTime(entry.getTimeMillis());
+            String label = String.format(Locale.US, "%s %s", timeFormat.format(date),
+                    (entry.getDirection() == TranscriptStore.SENT) ? "sent" : "received");
+            String text = entry.getText();
+            if (text.length() > MAX_ROW_CHARS) {
+                text = text.substring(0, MAX_ROW_CHARS) + CUT;
+            }
+            return new Row(label, text);
+        }
+    }
+
+    /** Rebinds rows as their pages arrive; called on the loader thread. */
+    private class PageListener implements TranscriptPager.Listener {
+        @Override
+        public void onPageLoaded(final long pageSeq, final int count) {
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pageListener != PageListener.this) {
+                        return;
+                    }
+                    long from = Math.max(pageSeq, firstSeq);
+                    long to = Math.min(pageSeq + count, nextSeq);
+                    if (from < to) {
+                        notifyItemRangeChanged((int) (from - firstSeq), (int) (to - from));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onLoadFailed(IOException ioe) {
+            Support.exception("TranscriptAdapter: could not read transcript", ioe);
+        }
+    }
+}
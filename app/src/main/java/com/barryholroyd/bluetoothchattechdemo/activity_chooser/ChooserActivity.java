@@ -13,9 +13,11 @@ import com.barryholroyd.bluetoothchattechdemo.support.ActivityPrintStates;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothDevices;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothBroadcastReceivers;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceCache;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
-import java.util.Set;
+import java.util.LinkedHashMap;
 
 /**
  * Display client UI to initiate connection requests and fork off a worker
@@ -24,8 +26,9 @@ import java.util.Set;
  * instantiate ChatActivity to manage the chat session. ChatActivity uses
  * ChatServer to send and receive text over the Bluetooth connection.
  *
- * We will never need more than one ChooserClient and one ChooseListener
- * and will never allow more than once ChatClient and associated ChatServer.
+ * We will never need more than one ChooserClient and one ChooseListener at a time.
+ * There can be several chat sessions (one ChatServer per remote device), all
+ * owned by SessionManager and displayed by a single ChatActivity.
  */
 public class ChooserActivity extends ActivityPrintStates implements ActivityExtensions
 {
@@ -39,9 +42,15 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
     private static RecyclerViewAdapter mAdapterDiscovered = new RecyclerViewAdapter();
     private static RecyclerViewAdapter mAdapterPaired = new RecyclerViewAdapter();
 
+    /** Incremented by each refreshPaired(); only used on the UI thread. */
+    private static int pairedGeneration = 0;
+
     // This Activity.
     private static ChooserActivity ca = null;
 
+    // The app's Context; kept after ca is gone for use by ChooserListener.
+    private static Context appContext = null;
+
     /**
      * Get the current Activity instance.
      *
@@ -54,7 +63,7 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
      *
      * @return the app's Context instance.
      */
-    public static Context getAppContext() { return ca.getApplicationContext(); }
+    public static Context getAppContext() { return appContext; }
 
     /** Get the "Discovered" RecyclerViewManager for the current ChooserActivity instance. */
     RecyclerViewManager  getRvmDiscovered() { return rvmDiscovered; }
@@ -75,6 +84,7 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
         Support.getGlobalState().setMainThreadId();
 
         ca = this;
+        appContext = getApplicationContext();
 
         // Display the "client" interface.
         setContentView(R.layout.activity_chooser);
@@ -82,6 +92,12 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
         rvmPaired         = new RecyclerViewManager(this, R.id.rv_paired, mAdapterPaired);
         rvmDiscovered     = new RecyclerViewManager(this, R.id.rv_discovered, mAdapterDiscovered);
 
+        // Show the devices seen last time while discovery runs (only once per process).
+        ChooserDeviceCache.load(this);
+
+        // Runs discovery from now on, and keeps it out of the way of busy chat sessions.
+        ChooserDiscovery.start();
+
         //Ensure Bluetooth is enabled; if not, ask the user for permission.
         if (BluetoothUtils.isEnabled()) {
             if (appStarting)
@@ -115,8 +131,11 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
         // Ask user if the device should be discoverable (asks only once per app lifecycle).
         BluetoothUtils.requestDiscoverable(this);
 
-        // Start listening for incoming connections.
+        // Start listening for incoming connections (no-op if already listening).
         ChooserListener.startListener();
+
+        // Discovery results are only shown while this Activity is started.
+        ChooserDiscovery.setPeriodic(true);
     }
 
     @Override
@@ -130,12 +149,16 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
     public void onStop() {
         super.onStop();
         BluetoothBroadcastReceivers.unregisterBroadcastReceiver(this);
-        ChooserListener.stopListener();
+        ChooserDeviceCache.save();
+        ChooserDiscovery.setPeriodic(false);
+        // The listener keeps running so that other devices can connect during a chat.
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        ChooserListener.stopListener();
+        ChooserDiscovery.stop();
         ca = null;
     }
 
@@ -205,8 +228,8 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
     /**
      * Refresh the user interface when Bluetooth has been enabled.
      * <p>
-     *     The background listener for incoming connection requests is started and stopped
-     *     by onStart() and onStop(), respectively, as well as by ChooserBroadcastReceiver
+     *     The background listener for incoming connection requests is started by
+     *     onStart() and stopped by onDestroy(), as well as by ChooserBroadcastReceiver
      *     when Bluetooth is toggled.
      */
     void refreshUI(boolean clearRequest) {
@@ -217,18 +240,43 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
 
     /**
      * Find and displayShort devices which are already paired with this one.
+     * <p>
+     *     Devices which are still paired keep their rows; only those which have been
+     *     unpaired or newly paired since the last refresh are removed or added.
+     * <p>
+     *     Getting the paired devices and their names are calls into the Bluetooth
+     *     service, so they are made on a background thread, which also builds the rows;
+     *     the list is then updated on the UI thread. A refresh which has been overtaken
+     *     by a later one (e.g., a clear) is dropped.
      */
     void refreshPaired(boolean clearRequest) {
-        Set<BluetoothDevice> pairedDevices = BluetoothUtils.getPairedDevices();
-        RecyclerViewAdapter recyclerViewAdapter = getRvmPaired().getAdapter();
-        BluetoothDevices btds = recyclerViewAdapter.getDevices();
-        btds.clear();
-        if (!clearRequest) {
-            for (BluetoothDevice device : pairedDevices) {
-                btds.add(device);
-            }
+        final BluetoothDevices btds = getRvmPaired().getAdapter().getDevices();
+        final int generation = ++pairedGeneration;
+        if (clearRequest) {
+            btds.clear();
+            return;
         }
-        recyclerViewAdapter.notifyDataSetChanged();
+        new Thread("PairedDevices") {
+            @Override
+            public void run() {
+                final LinkedHashMap<String, DeviceRow<BluetoothDevice>> rows =
+                        new LinkedHashMap<>();
+                for (BluetoothDevice device : BluetoothUtils.getPairedDevices()) {
+                    String name = device.getName();
+                    rows.put(device.getAddress(), BluetoothDevices.row(device, name));
+                    ChooserDeviceCache.seen(device.getAddress(), name, DeviceCache.NO_RSSI, true);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != pairedGeneration)
+                            return;
+                        btds.retainAll(rows.keySet());
+                        btds.putAll(rows);
+                    }
+                });
+            }
+        }.start();
     }
 
     /**
@@ -237,18 +285,16 @@ public class ChooserActivity extends ActivityPrintStates implements ActivityExte
      *     When new devices are discovered, a broadcast is sent out. The "Discovered" RecyclerView
      *     is updated by the BroadcastReceiver.
      *     See {@link ChooserBroadcastReceiver#onReceive}.
+     * <p>
+     *     Discovery itself is run by {@link ChooserDiscovery}, which starts it as soon
+     *     as no chat session is busy.
      */
     void refreshDiscovered(boolean clearRequest) {
-        RecyclerViewAdapter recyclerViewAdapter = getRvmDiscovered().getAdapter();
-        BluetoothDevices btds = recyclerViewAdapter.getDevices();
-        btds.clear();
-        if (clearRequest) {
-            RecyclerViewAdapter recyclerViewAdapterDiscovered = ca.getRvmDiscovered().getAdapter();
-            recyclerViewAdapterDiscovered.notifyDataSetChanged();
-        }
-        else {
+        ChooserBroadcastReceiver.discardDiscovered();
+        getRvmDiscovered().getAdapter().getDevices().clear();
+        if (!clearRequest) {
             Support.userMessageShort("Refreshing list of discovered devices...");
-            BluetoothUtils.startDiscovery();
+            ChooserDiscovery.scanSoon();
         }
     }
 }
@@ -6,8 +6,15 @@ import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothBroadcastReceivers;
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothDevices;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceCache;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
+import com.barryholroyd.bluetoothchattechdemo.devices.DiscoveryBatcher;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
 /**
@@ -21,9 +28,46 @@ import com.barryholroyd.bluetoothchattechdemo.support.Support;
  *     ChooserActivity life cycle because it uses a RecyclerView adapter and that comes
  *     and goes with the Activity (retaining the RecyclerView would cause the Activity
  *     to also be retained, causing a memory leak).
+ * <p>
+ *     Devices found by discovery aren't added to the list straight away: they are
+ *     collected by a {@link DiscoveryBatcher} for DISCOVERY_BATCH_MS, merging repeated
+ *     reports of the same device, and then applied to the list together, so that a
+ *     busy scan updates the list a few times a second rather than once per report.
+ *     Whatever is pending is applied as soon as discovery finishes. Every device found
+ *     is also recorded, with its name and signal strength, in the
+ *     {@link ChooserDeviceCache}, which is saved when discovery finishes.
+ * <p>
+ *     Each device's row is built here, with the name from the broadcast (or, failing
+ *     that, from the cache), so the list never has to ask the device for its name. A
+ *     device reported again without a name keeps the name its row already has.
+ * <p>
+ *     Discovery is measured in the default {@link MetricsRegistry}: devices reported
+ *     ("discovery.found"), those which were new ("discovery.added"), discovery runs
+ *     finished ("discovery.finished") and how long each run took ("discovery.time"),
+ *     as well as the batcher's own metrics. The number of new devices is also passed
+ *     to {@link ChooserDiscovery}, which runs discovery more often while it finds some.
  */
 public class ChooserBroadcastReceiver extends BroadcastReceiver
 {
+    /** System.nanoTime() when the current discovery run started; 0 if none. */
+    private static long discoveryStartedAt = 0;
+
+    /** How long discovered devices are collected before the list is updated. */
+    private static final long DISCOVERY_BATCH_MS = DiscoveryBatcher.DEFAULT_WINDOW_MS;
+
+    /** Devices found during the current window; only used on the UI thread. */
+    private static final DiscoveryBatcher<DeviceRow<BluetoothDevice>> discoveryBatcher =
+            new DiscoveryBatcher<>(DISCOVERY_BATCH_MS);
+
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    private static final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushDiscovered();
+        }
+    };
+
     /**
      * Callback called by the system when a broadcast is received.
      *
@@ -38,24 +82,72 @@ public class ChooserBroadcastReceiver extends BroadcastReceiver
         if (ca == null)
             return;
 
+        MetricsRegistry registry = MetricsRegistry.getDefault();
         String action = intent.getAction();
         switch (action) {
             case BluetoothDevice.ACTION_FOUND: // device found by startDiscovery()
+                registry.counter("discovery.found").inc();
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // Do not add to the discovered list if the device has already been paired.
-                if (ca.getRvmPaired().getAdapter()
-                        .getDevices().getDevice(device.getAddress()) == null) {
-                    RecyclerViewAdapter recyclerViewAdapterDiscovered = ca.getRvmDiscovered().getAdapter();
-                    recyclerViewAdapterDiscovered.getDevices().addNoDup(device);
-                    recyclerViewAdapterDiscovered.notifyDataSetChanged();
+                String mac = device.getAddress();
+                String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                ChooserDeviceCache.seen(mac, name,
+                        intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceCache.NO_RSSI),
+                        false);
+                if (name == null) {
+                    // Not in this broadcast; the name the device had last time, if any.
+                    name = ChooserDeviceCache.getName(mac);
+                }
+                // A report without a name doesn't take away a name already shown.
+                DeviceRow<BluetoothDevice> known = discoveryBatcher.get(mac);
+                if (known == null) {
+                    known = ca.getRvmDiscovered().getAdapter().getDevices().get(mac);
+                }
+                DeviceRow<BluetoothDevice> row = (known == null)
+                        ? BluetoothDevices.row(device, name) : known.withName(name);
+                if (discoveryBatcher.add(mac, row)) {
+                    uiHandler.postDelayed(flushRunnable, discoveryBatcher.getWindowMs());
                 }
                 break;
             case BluetoothAdapter.ACTION_STATE_CHANGED: // Bluetooth state change
                 ca.onBluetoothToggle();
                 break;
+            case BluetoothAdapter.ACTION_DISCOVERY_STARTED:
+                discoveryStartedAt = System.nanoTime();
+                break;
             case BluetoothAdapter.ACTION_DISCOVERY_FINISHED:
+                flushDiscovered();
+                ChooserDeviceCache.save();
+                registry.counter("discovery.finished").inc();
+                if (discoveryStartedAt != 0) {
+                    registry.histogram("discovery.time")
+                            .record(System.nanoTime() - discoveryStartedAt);
+                    discoveryStartedAt = 0;
+                }
                 Support.userMessageShort("Discovery Finished");
         }
     }
+
+    /**
+     * Apply the devices found during the current window to the discovered list, except
+     * for those which are already in the paired list. Only call on the UI thread.
+     */
+    static void flushDiscovered() {
+        uiHandler.removeCallbacks(flushRunnable);
+        ChooserActivity ca = ChooserActivity.getActivity();
+        if (ca == null) {
+            discoveryBatcher.discard();
+            return;
+        }
+        int added = discoveryBatcher.flush(ca.getRvmDiscovered().getAdapter().getDevices(),
+                ca.getRvmPaired().getAdapter().getDevices());
+        MetricsRegistry.getDefault().counter("discovery.added").add(added);
+        ChooserDiscovery.onDevicesFound(added);
+    }
+
+    /** Drop the devices found during the current window. Only call on the UI thread. */
+    static void discardDiscovered() {
+        uiHandler.removeCallbacks(flushRunnable);
+        discoveryBatcher.discard();
+    }
 }
 
@@ -5,6 +5,8 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
 import java.io.IOException;
@@ -17,6 +19,10 @@ import static com.barryholroyd.bluetoothchattechdemo.activity_chooser.ChooserLis
  * <p>
  *     Given a remote device, create a connection to it and then call start
  *     ChatActivity to connect a chat session.
+ * <p>
+ *     Connection attempts are counted in the default {@link MetricsRegistry}
+ *     ("client.connected" and "client.failed") and the time each took is recorded in
+ *     "client.connect.time".
  */
 public class ChooserClient extends Thread
 {
@@ -66,10 +72,17 @@ public class ChooserClient extends Thread
          * Create a Bluetooth socket by providing an SDP UUID -- that will be used to
          * select a channel.
          */
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        Histogram connectTime = registry.histogram("client.connect.time");
+        long start = System.nanoTime();
         try {
             btChatSocket = btdevice.createRfcommSocketToServiceRecord( MY_UUID );
             btChatSocket.connect( );
+            connectTime.record(System.nanoTime() - start);
+            registry.counter("client.connected").inc();
         } catch ( IOException ioe ) {
+            connectTime.record(System.nanoTime() - start);
+            registry.counter("client.failed").inc();
             try {
                 if (btChatSocket != null) {
                     btChatSocket.close();
@@ -85,12 +98,12 @@ public class ChooserClient extends Thread
         /*
         * Pass control to the chat Activity.
         *
-        * ChooserListener is running, waiting for an incoming connection, but it
-        * will be stopped by ChooserActivity.onStop(). (Ideally it should be stopped
-        * while an outgoing connection attempt is being made, but that is beyond
-        * the scope of this demo.)
+        * ChooserListener keeps running, waiting for further incoming connections.
+        * If the maximum number of sessions are already open, SessionManager closes
+        * the socket instead. Since this end made the connection, it is also the end
+        * which reconnects if the connection drops.
         */
-        ChooserSupport.startChatActivity(btChatSocket);
+        ChooserSupport.startChatActivity(btChatSocket, MY_UUID);
     }
 
     /** Local method to close the btChatSocket if it hasn't been passed to ChatServer yet. */
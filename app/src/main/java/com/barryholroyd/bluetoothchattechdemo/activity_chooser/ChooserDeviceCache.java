@@ -0,0 +1,168 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chooser;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothDevices;
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceCache;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
+import com.barryholroyd.bluetoothchattechdemo.support.Support;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The app's {@link DeviceCache}: devices seen recently, shown in the "discovered"
+ * list as soon as ChooserActivity starts rather than after a full discovery run.
+ * <p>
+ *     load() reads the cache file on a background thread, once per process, then fills
+ *     the discovered list on the UI thread with the cached devices which aren't paired.
+ *     Their rows are built on the background thread too, with their cached names.
+ *     Live discovery then refreshes them in place: devices found again keep their rows,
+ *     and the cache records every device discovery or the paired list reports. save()
+ *     writes the cache back, also on a background thread, after evicting devices which
+ *     haven't been seen for DeviceCache.DEFAULT_TTL_MS. ChooserActivity saves it when
+ *     it stops, and ChooserBroadcastReceiver when discovery finishes.
+ */
+class ChooserDeviceCache
+{
+    /** Name of the cache file in the app's files directory. */
+    private static final String FILE_NAME = "devices.cache";
+
+    /** The cache; null until load() is first called. */
+    private static DeviceCache cache = null;
+
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Load the cache and show the cached devices, unless that has already been done.
+     * Only call on the UI thread.
+     *
+     * @param c any Context; only used to find the app's files directory.
+     */
+    static void load(Context c) {
+        if (cache != null)
+            return;
+        final DeviceCache dc = new DeviceCache(
+                new File(c.getApplicationContext().getFilesDir(), FILE_NAME),
+                DeviceCache.DEFAULT_TTL_MS);
+        cache = dc;
+        new Thread("DeviceCacheLoad") {
+            @Override
+            public void run() {
+                List<DeviceCache.Entry> entries;
+                try {
+                    entries = dc.load(System.currentTimeMillis());
+                }
+                catch (IOException ioe) {
+                    Support.exception("Could not load the device cache", ioe);
+                    return;
+                }
+                final LinkedHashMap<String, DeviceRow<BluetoothDevice>> rows = rows(entries);
+                if (rows == null)
+                    return;
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        show(rows);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * Build the rows for the cached devices which aren't paired, with their cached
+     * names. Doesn't call into the Bluetooth service.
+     *
+     * @return the rows, keyed by MAC address, most recently seen first; null if
+     *         Bluetooth isn't available.
+     */
+    private static LinkedHashMap<String, DeviceRow<BluetoothDevice>> rows(
+            List<DeviceCache.Entry> entries) {
+        BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+        if (adapter == null)
+            return null;
+        LinkedHashMap<String, DeviceRow<BluetoothDevice>> rows = new LinkedHashMap<>();
+        for (DeviceCache.Entry e : entries) {
+            if (!e.isPaired()) {
+                // Creates a BluetoothDevice object for the address; no IPC.
+                BluetoothDevice device = adapter.getRemoteDevice(e.getMac());
+                rows.put(e.getMac(), BluetoothDevices.row(device, e.getName()));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Add the cached devices to the discovered list, as one insertion, leaving out any
+     * which are in the paired list now.
+     */
+    private static void show(LinkedHashMap<String, DeviceRow<BluetoothDevice>> rows) {
+        ChooserActivity ca = ChooserActivity.getActivity();
+        BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+        if ((ca == null) || (adapter == null) || !adapter.isEnabled())
+            return;
+
+        BluetoothDevices paired = ca.getRvmPaired().getAdapter().getDevices();
+        Iterator<String> it = rows.keySet().iterator();
+        while (it.hasNext()) {
+            if (paired.contains(it.next()))
+                it.remove();
+        }
+        ca.getRvmDiscovered().getAdapter().getDevices().putAll(rows);
+    }
+
+    /**
+     * Name of a device, as last seen.
+     *
+     * @param mac MAC address of the device.
+     * @return its name; null if it isn't known or load() hasn't been called.
+     */
+    static String getName(String mac) {
+        DeviceCache dc = cache;
+        DeviceCache.Entry e = (dc == null) ? null : dc.get(mac);
+        return (e == null) ? null : e.getName();
+    }
+
+    /**
+     * Record that a device has been seen. Does nothing until load() has been called.
+     *
+     * @param mac    MAC address of the device.
+     * @param name   its name; null if it isn't known.
+     * @param rssi   its signal strength; or DeviceCache.NO_RSSI.
+     * @param paired true if it's paired with this device.
+     */
+    static void seen(String mac, String name, short rssi, boolean paired) {
+        DeviceCache dc = cache;
+        if (dc != null) {
+            dc.seen(mac, name, rssi, paired, System.currentTimeMillis());
+        }
+    }
+
+    /** Evict stale devices and write the cache file on a background thread. */
+    static void save() {
+        final DeviceCache dc = cache;
+        if (dc == null)
+            return;
+        new Thread("DeviceCacheSave") {
+            @Override
+            public void run() {
+                try {
+                    dc.evict(System.currentTimeMillis());
+                    dc.save();
+                }
+                catch (IOException ioe) {
+                    Support.exception("Could not save the device cache", ioe);
+                }
+            }
+        }.start();
+    }
+}
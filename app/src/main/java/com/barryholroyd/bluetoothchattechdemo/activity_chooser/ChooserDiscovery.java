@@ -0,0 +1,116 @@
+package com.barryholroyd.bluetoothchattechdemo.activity_chooser;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.SystemClock;
+
+import com.barryholroyd.bluetoothchattechdemo.activity_chat.SessionManager;
+import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.devices.DiscoveryScheduler;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Backoff;
+
+import java.util.Random;
+
+/**
+ * The app's {@link DiscoveryScheduler}: runs discovery periodically while the device
+ * chooser is shown, and keeps it out of the way of chat sessions which are moving data.
+ * <p>
+ *     A background thread ticks the scheduler every TICK_MS with the sessions' traffic
+ *     (see SessionManager.getTrafficBytes()); asking the adapter whether it is
+ *     discovering is a call into the Bluetooth service, so it is kept off the UI
+ *     thread. The thread runs from ChooserActivity's onCreate() to its onDestroy(), so
+ *     discovery is cancelled when a session gets busy even while ChatActivity is in
+ *     front; new runs are only started between onStart() and onStop(), when the
+ *     results can be shown.
+ * <p>
+ *     The user's refresh goes through scanSoon() rather than starting discovery
+ *     directly, so it also waits until the sessions are idle.
+ */
+class ChooserDiscovery
+{
+    /** How often the scheduler is ticked. */
+    private static final long TICK_MS = 1000;
+
+    /** Discovery, as seen by the scheduler. */
+    private static final DiscoveryScheduler.Radio radio = new DiscoveryScheduler.Radio() {
+        @Override
+        public boolean isDiscovering() {
+            BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+            return (adapter != null) && adapter.isDiscovering();
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+            return (adapter != null) && adapter.isEnabled() && adapter.startDiscovery();
+        }
+
+        @Override
+        public void cancelDiscovery() {
+            BluetoothAdapter adapter = BluetoothUtils.getBluetoothAdapter();
+            if (adapter != null) {
+                adapter.cancelDiscovery();
+            }
+        }
+    };
+
+    private static final DiscoveryScheduler scheduler = new DiscoveryScheduler(radio,
+            new Backoff(DiscoveryScheduler.DEFAULT_INITIAL_INTERVAL_MS,
+                    DiscoveryScheduler.DEFAULT_MAX_INTERVAL_MS, Integer.MAX_VALUE, new Random()),
+            DiscoveryScheduler.DEFAULT_BUSY_BYTES_PER_SEC, DiscoveryScheduler.DEFAULT_IDLE_MS);
+
+    /** The thread ticking the scheduler; null if it isn't running. Only used on the UI thread. */
+    private static Thread ticker = null;
+
+    /** Start ticking the scheduler, unless it already is. Only call on the UI thread. */
+    static void start() {
+        if (ticker != null)
+            return;
+        ticker = new Thread("DiscoveryScheduler") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(TICK_MS);
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                    scheduler.tick(SystemClock.elapsedRealtime(), SessionManager.getTrafficBytes());
+                }
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /** Stop ticking the scheduler. Only call on the UI thread. */
+    static void stop() {
+        if (ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Turn periodic runs on or off.
+     *
+     * @param periodic true while the chooser is shown.
+     */
+    static void setPeriodic(boolean periodic) {
+        scheduler.setPeriodic(periodic);
+    }
+
+    /** Run discovery as soon as the sessions are idle, e.g., at the user's request. */
+    static void scanSoon() {
+        scheduler.scanSoon(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Record devices newly added to the discovered list.
+     *
+     * @param count number of devices added.
+     */
+    static void onDevicesFound(int count) {
+        scheduler.onDevicesFound(count);
+    }
+}
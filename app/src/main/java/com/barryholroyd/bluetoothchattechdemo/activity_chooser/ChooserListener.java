@@ -5,6 +5,11 @@ import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
 import java.io.IOException;
@@ -13,10 +18,25 @@ import java.util.UUID;
 /**
  *  * Bluetooth listener to receive incoming connection requests.
  * <p>
- *     Listen for an incoming connection request, accept it and then call start
- *     ChatActivity to connect a chat session.
+ *     Listen for incoming connection requests, accept each one and then pass it to
+ *     SessionManager to start a chat session.
  * <p>
- *     Runs as a background thread. We only ever need one of these.
+ *     The server socket stays open and accept() is called repeatedly, so each new
+ *     remote device does not have to wait for the socket to be torn down and
+ *     listenUsingRfcommWithServiceRecord() to be called again (which can take several
+ *     seconds). Once SessionManager.MAX_SESSIONS sessions are open, further connections
+ *     are accepted and immediately closed, so that the remote device gets a prompt
+ *     failure rather than a long connect timeout.
+ * <p>
+ *     Counters are kept for the number of connections accepted and rejected and for
+ *     accept latency: the time from accept() returning to the chat session being
+ *     started (or the connection being rejected). They are in the default
+ *     {@link MetricsRegistry} as "listener.accepted", "listener.rejected" and
+ *     "listener.accept.latency".
+ * <p>
+ *     Runs as a background thread. We only ever need one of these. It is started by
+ *     ChooserActivity and keeps running while chat sessions are in progress, until
+ *     Bluetooth is turned off or ChooserActivity is destroyed.
  */
 class ChooserListener extends Thread
 {
@@ -28,28 +48,54 @@ class ChooserListener extends Thread
 
     static private ChooserListener chooserListener = null;
 
-    static private BluetoothServerSocket btServerSocket = null;
+    static private volatile BluetoothServerSocket btServerSocket = null;
+
+    /** Connections accepted and handed to SessionManager. */
+    static private final Counter accepted =
+            MetricsRegistry.getDefault().counter("listener.accepted");
+
+    /** Connections accepted and then closed because there was no room for them. */
+    static private final Counter rejected =
+            MetricsRegistry.getDefault().counter("listener.rejected");
+
+    /** Accept latency, in nanoseconds, of all accepted and rejected connections. */
+    static private final Histogram acceptLatency =
+            MetricsRegistry.getDefault().histogram("listener.accept.latency");
 
+    /** Set by stopListener() so that the accept loop knows its exception was requested. */
+    private volatile boolean stopping = false;
+
+    /** Start the listener if Bluetooth is on and it isn't already running. */
     static void startListener() {
-        if (BluetoothUtils.isEnabled()) {
-            trace("starting...");
-            chooserListener = new ChooserListener();
-            chooserListener.start();
-        }
+        if (!BluetoothUtils.isEnabled())
+            return;
+        if ((chooserListener != null) && chooserListener.isAlive() && !chooserListener.stopping)
+            return;
+
+        trace("starting...");
+        chooserListener = new ChooserListener();
+        chooserListener.start();
     }
+
     /**
      * Close the listening BluetoothServerSocket. Per the BluetoothServerSocket
      * reference page, its close() method must be used to abort its accept() method
      * (the worker thread's interrupt() method is ignored).
      */
     static void stopListener() {
+        if (chooserListener != null) {
+            chooserListener.stopping = true;
+            chooserListener = null;
+        }
+
         // btServerSocket can be null if Bluetooth wasn't turned on when the app was started.
-        if (btServerSocket == null)
+        BluetoothServerSocket serverSocket = btServerSocket;
+        if (serverSocket == null)
             return;
 
         trace("stopping...");
         try {
-                btServerSocket.close();
+                serverSocket.close();
         }
         catch (Exception e) {
             Support.exception(
@@ -60,14 +106,27 @@ class ChooserListener extends Thread
         }
     }
 
+    /** Number of connections accepted and handed to SessionManager. */
+    static long getAcceptedCount() { return accepted.get(); }
+
+    /** Number of connections rejected because the maximum number of sessions was open. */
+    static long getRejectedCount() { return rejected.get(); }
+
+    /** Mean accept latency in nanoseconds, or 0 if nothing has been accepted yet. */
+    static long getMeanAcceptLatencyNs() { return acceptLatency.snapshot().getMean(); }
+
+    /** Largest accept latency seen, in nanoseconds. */
+    static long getMaxAcceptLatencyNs() { return acceptLatency.snapshot().getMax(); }
+
     /**
-     * Accept a connection from a remote Bluetooth client and then pass it to ChatActivity
-     * to connect the chat session.
+     * Accept connections from remote Bluetooth clients until the server socket is
+     * closed, passing each one to SessionManager to start a chat session.
      */
     public void run() {
+        BluetoothServerSocket serverSocket;
         try {
             trace("creating new server socket...");
-            btServerSocket = BluetoothUtils.getBluetoothAdapter().
+            serverSocket = BluetoothUtils.getBluetoothAdapter().
                     listenUsingRfcommWithServiceRecord(SERVICE_NAME, MY_UUID);
         } catch (IOException e) {
             reportError("Listener: failed to get Bluetooth server socket.");
@@ -75,58 +134,91 @@ class ChooserListener extends Thread
         }
 
         // to keep the compiler happy
-        if (btServerSocket == null) {
+        if (serverSocket == null) {
             reportError("Listener: failed to get Bluetooth server socket.");
+            return;
         }
+        btServerSocket = serverSocket;
 
-        // Bluetooth socket. ChatServer is responsible for closing it.
-        //noinspection InfiniteLoopStatement
-        BluetoothSocket btChooserSocket = null;
-
-        if (!BluetoothUtils.isEnabled()) {
-            Support.userMessageLong("Listener: connection dropped.");
+        // stopListener() may have been called before btServerSocket was set.
+        if (stopping) {
+            closeServerSocket(serverSocket);
             return;
         }
-        trace("waiting for a connection...");
 
         try {
-            btChooserSocket = btServerSocket.accept();
-        }
-        catch (IOException ioe) {
-            /*
-             * From https://developer.android.com/guide/topics/connectivity/
-             *      bluetooth.html#ConnectingDevices:
-             *   To abort a blocked call such as accept(), call close() on the
-             *   BluetoothServerSocket or BluetoothSocket from another thread.
-             */
-            trace("exiting...");
-            return;
+            while (!stopping) {
+                if (!BluetoothUtils.isEnabled()) {
+                    Support.userMessageLong("Listener: connection dropped.");
+                    return;
+                }
+                trace("waiting for a connection...");
+
+                // Bluetooth socket. SessionManager is responsible for closing it.
+                BluetoothSocket btChooserSocket;
+                try {
+                    btChooserSocket = serverSocket.accept();
+                }
+                catch (IOException ioe) {
+                    /*
+                     * From https://developer.android.com/guide/topics/connectivity/
+                     *      bluetooth.html#ConnectingDevices:
+                     *   To abort a blocked call such as accept(), call close() on the
+                     *   BluetoothServerSocket or BluetoothSocket from another thread.
+                     */
+                    trace("exiting...");
+                    return;
+                }
+
+                if (btChooserSocket == null) {
+                    reportError("Failed to get Bluetooth socket.");
+                    return;
+                }
+                handleConnection(btChooserSocket, System.nanoTime());
+            }
         }
         finally {
             /*
-             * From https://developer.android.com/guide/topics/connectivity/
-             *      bluetooth.html#ConnectingDevices:
-             *   This method call [close()] releases the server socket and all its resources,
-             *   but doesn't close the connected BluetoothSocket that's been returned
-             *   by accept(). Unlike TCP/IP, RFCOMM allows only one connected client
-             *   per channel at a time, so in most cases, it makes sense to call close()
-             *   on the BluetoothServerSocket immediately after accepting a connected socket.
+             * Unlike the usual pattern of closing the server socket right after the
+             * first accept(), it is kept open for the life of the listener. Closing it
+             * doesn't close the connected BluetoothSockets returned by accept().
              */
-            try {
-                if (btServerSocket != null)
-                    btServerSocket.close();
-            }
-            catch (IOException ioe) {
-                trace("exiting...");
-            }
+            closeServerSocket(serverSocket);
         }
+    }
 
-        if (btChooserSocket == null) {
-            reportError("Failed to get Bluetooth socket.");
+    /**
+     * Start a chat session on a newly accepted connection, or close it if the maximum
+     * number of sessions are already open, and record the accept latency.
+     *
+     * @param btChooserSocket  the accepted socket.
+     * @param acceptedAt       System.nanoTime() when accept() returned.
+     */
+    private static void handleConnection(BluetoothSocket btChooserSocket, long acceptedAt) {
+        // The remote device made the connection, so it's the one to reconnect.
+        boolean started = ChooserSupport.startChatActivity(btChooserSocket, null);
+        long latency = System.nanoTime() - acceptedAt;
+
+        if (started)
+            accepted.inc();
+        else
+            rejected.inc();
+        acceptLatency.record(latency);
+
+        Tracer.event(started ? TraceEvent.CONNECTION_ACCEPTED : TraceEvent.CONNECTION_REJECTED,
+                latency / 1000);
+    }
+
+    /** Close the server socket when the accept loop exits. */
+    private static void closeServerSocket(BluetoothServerSocket serverSocket) {
+        try {
+            serverSocket.close();
         }
-        else {
-            ChooserSupport.startChatActivity(btChooserSocket);
+        catch (IOException ioe) {
+            trace("exiting...");
         }
+        if (btServerSocket == serverSocket)
+            btServerSocket = null;
     }
 
     private static void reportError(String msg) {
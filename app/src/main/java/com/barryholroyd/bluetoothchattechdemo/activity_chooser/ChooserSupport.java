@@ -2,12 +2,12 @@ package com.barryholroyd.bluetoothchattechdemo.activity_chooser;
 
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.Intent;
 
-import com.barryholroyd.bluetoothchattechdemo.activity_chat.ChatActivity;
+import com.barryholroyd.bluetoothchattechdemo.activity_chat.SessionManager;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
-import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
+import java.util.Locale;
+import java.util.UUID;
 
 /**
  * Support class providing "utility" methods for Chooser.
@@ -15,16 +15,24 @@ import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
 class ChooserSupport {
     /*
      * Pass control to the ChatActivity.
-     * Make the Bluetooth socket available to ChatActivity.
-     * ChatActivity is responsible for closing it.
+     * Hand the Bluetooth socket to SessionManager, which starts a chat session on it
+     * and brings up ChatActivity. SessionManager is responsible for closing it.
+     * reconnectUuid is the UUID to reconnect with if the connection drops, if this
+     * device made the connection, or null if it's up to the remote device.
+     * Returns false if the session could not be started (e.g., because the maximum
+     * number of sessions are already open).
      */
-    static void startChatActivity(BluetoothSocket btChatSocket) {
-        Support.userMessageLong("Connected!");
-        Support.getGlobalState().setBtChatSocket(btChatSocket);
+    static boolean startChatActivity(BluetoothSocket btChatSocket, UUID reconnectUuid) {
         Context ac = ChooserActivity.getAppContext();
-        Intent intent = new Intent(ac, ChatActivity.class);
-        intent.putExtra(ChatActivity.BUNDLE_KEY_BTDEVICE, btChatSocket.getRemoteDevice());
-        intent.addFlags(FLAG_ACTIVITY_NEW_TASK); // required since an App Context is used
-        ac.startActivity(intent);
+        if (!SessionManager.addSession(ac, btChatSocket, reconnectUuid)) {
+            if (!SessionManager.hasCapacity()) {
+                Support.userMessageLong(String.format(Locale.US,
+                        "Connection refused: already chatting with %d devices.",
+                        SessionManager.MAX_SESSIONS));
+            }
+            return false;
+        }
+        Support.userMessageLong("Connected!");
+        return true;
     }
 }
@@ -12,18 +12,49 @@ import android.widget.TextView;
 import com.barryholroyd.bluetoothchattechdemo.R;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothUtils;
 import com.barryholroyd.bluetoothchattechdemo.bluetooth.BluetoothDevices;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceIndex;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
 import com.barryholroyd.bluetoothchattechdemo.support.Support;
 
-import java.util.ArrayList;
 import java.util.Locale;
 
 /**
  * RecyclerView adapter used for displaying both the list of discovered devices
  * and the list of paired devices.
+ * <p>
+ *     The adapter listens to its {@link BluetoothDevices} and passes on exactly which
+ *     rows were inserted, changed or removed, so that, e.g., one newly discovered
+ *     device only costs one row bind rather than a rebind of the whole list. Rows have
+ *     stable IDs (the devices' MAC addresses), so RecyclerView can keep track of them
+ *     across changes.
+ * <p>
+ *     Each row's text is built once, off the UI thread where possible, when its device
+ *     is added (see {@link DeviceRow}), so binding a row while scrolling makes no calls
+ *     into the Bluetooth service and allocates nothing.
  */
 public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapter.MyViewHolder> {
     private final BluetoothDevices bluetoothDevices = new BluetoothDevices();
 
+    RecyclerViewAdapter() {
+        setHasStableIds(true);
+        bluetoothDevices.setListener(new DeviceIndex.Listener() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+            }
+
+            @Override
+            public void onChanged(int position) {
+                notifyItemChanged(position);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(position, count);
+            }
+        });
+    }
+
     /**
      * Standard ViewHolder class.
      * <p>
@@ -43,7 +74,7 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
         }
     }
 
-    // For adding/deleting devices from the list.
+    // For adding/deleting devices from the list; changes are passed on to the RecyclerView.
     BluetoothDevices getDevices() { return bluetoothDevices; }
 
     @Override
@@ -55,14 +86,10 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
 
     @Override
     public void onBindViewHolder(MyViewHolder mvh, int position) {
-        BluetoothDevice bd = bluetoothDevices.get(position);
-        String name = bd.getName();
-        if (name == null) {
-            name = "<unknown>";
-        }
-        String text = String.format("%s: %s", name, bd.getAddress());
-        mvh.mTvText.setText(text);
-        mvh.mTvMac.setText(bd.getAddress());
+        // Only strings which already exist: no Bluetooth calls and no allocation.
+        DeviceRow<BluetoothDevice> row = bluetoothDevices.get(position);
+        mvh.mTvText.setText(row.getLabel());
+        mvh.mTvMac.setText(row.getMac());
     }
 
     @Override
@@ -70,6 +97,11 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
         return bluetoothDevices.size();
     }
 
+    @Override
+    public long getItemId(int position) {
+        return bluetoothDevices.getId(position);
+    }
+
     /**
      * Callback to handle clicks on a row in either the "discovered" or "paired"
      * list.
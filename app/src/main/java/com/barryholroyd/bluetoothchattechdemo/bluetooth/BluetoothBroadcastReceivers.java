@@ -8,10 +8,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 
-import com.barryholroyd.bluetoothchattechdemo.support.Support;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
 
 import java.util.HashMap;
-import java.util.Locale;
 
 import static android.bluetooth.BluetoothAdapter.EXTRA_PREVIOUS_SCAN_MODE;
 import static android.bluetooth.BluetoothAdapter.EXTRA_PREVIOUS_STATE;
@@ -40,10 +40,9 @@ public class BluetoothBroadcastReceivers
         ifilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
 
         // Register the receiver.
-        trace(String.format("registering Broadcast Receiver for: %s",
-                c.getClass().getSimpleName()));
         broadcastReceivers.put(c, br);
         c.registerReceiver(br, ifilter);
+        Tracer.event(TraceEvent.RECEIVER_REGISTERED, broadcastReceivers.size());
     }
 
     /**
@@ -52,84 +51,47 @@ public class BluetoothBroadcastReceivers
      * @param c the current Activity's Context.
      */
     public static void unregisterBroadcastReceiver(Context c) {
-        trace(String.format("unregistering Broadcast Receiver for: %s",
-                c.getClass().getSimpleName()));
         BroadcastReceiver mReceiver = broadcastReceivers.get(c);
         if (mReceiver != null) {
             c.unregisterReceiver(mReceiver);
             broadcastReceivers.remove(c);
         }
+        Tracer.event(TraceEvent.RECEIVER_UNREGISTERED, broadcastReceivers.size());
     }
 
     /**
-     * Bluetooth Broadcast Receiver logging.
+     * Bluetooth Broadcast Receiver logging: each broadcast is recorded as a
+     * {@link TraceEvent}; state and scan mode changes with their old and new values.
      */
     public static class Log {
-        private static final HashMap<Integer,String> BtState = new HashMap<Integer,String>() {
-            {
-                put(BluetoothAdapter.STATE_OFF, "STATE_OFF");
-                put(BluetoothAdapter.STATE_ON, "STATE_ON");
-                put(BluetoothAdapter.STATE_TURNING_OFF, "STATE_TURNING_OFF");
-                put(BluetoothAdapter.STATE_TURNING_ON, "STATE_TURNING_ON");
-            }
-        };
-
-        private static final HashMap<Integer,String> BtScanMode = new HashMap<Integer,String>() {
-            {
-                put(BluetoothAdapter.SCAN_MODE_NONE, "SCAN_MODE_NONE");
-                put(BluetoothAdapter.SCAN_MODE_CONNECTABLE, "SCAN_MODE_CONNECTABLE");
-                put(BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE,
-                        "SCAN_MODE_CONNECTABLE_DISCOVERABLE");
-            }
-        };
-
         public static void logAction(Context context, Intent intent) {
-            String name = context.getClass().getSimpleName();
             String action = intent.getAction();
             switch (action) {
                 case BluetoothDevice.ACTION_FOUND:
-                    BluetoothBroadcastReceivers.Log.brlog(name, "Found device");
+                    Tracer.event(TraceEvent.DEVICE_FOUND);
                     break;
                 case BluetoothAdapter.ACTION_DISCOVERY_STARTED:
-                    BluetoothBroadcastReceivers.Log.brlog(name, "Discovery Started");
+                    Tracer.event(TraceEvent.DISCOVERY_STARTED);
                     break;
                 case BluetoothAdapter.ACTION_DISCOVERY_FINISHED:
-                    BluetoothBroadcastReceivers.Log.brlog(name, "Discovery Finished");
+                    Tracer.event(TraceEvent.DISCOVERY_FINISHED);
                     break;
                 case BluetoothAdapter.ACTION_STATE_CHANGED:
-                    BluetoothBroadcastReceivers.Log.logActionStateChanged(name, intent);
+                    if (Tracer.ENABLED) {
+                        Bundle extras = intent.getExtras();
+                        Tracer.event(TraceEvent.BLUETOOTH_STATE,
+                                extras.getInt(EXTRA_PREVIOUS_STATE), extras.getInt(EXTRA_STATE));
+                    }
                     break;
                 case BluetoothAdapter.ACTION_SCAN_MODE_CHANGED:
-                    BluetoothBroadcastReceivers.Log.logScanModeChanged(name, intent);
+                    if (Tracer.ENABLED) {
+                        Bundle extras = intent.getExtras();
+                        Tracer.event(TraceEvent.SCAN_MODE,
+                                extras.getInt(EXTRA_PREVIOUS_SCAN_MODE),
+                                extras.getInt(EXTRA_SCAN_MODE));
+                    }
                     break;
             }
-
-        }
-
-        /** Log changes to the Bluetooth state. */
-        private static void logActionStateChanged(String name, Intent intent) {
-            Bundle extras = intent.getExtras();
-            brlog(name, String.format(Locale.US,
-                    "State Changed: Old=%s New=%s",
-                    BtState.get(extras.getInt(EXTRA_PREVIOUS_STATE)),
-                    BtState.get(extras.getInt(EXTRA_STATE))));
-        }
-
-        /** Log changes when the Bluetooth scanning mode changes. */
-        private static void logScanModeChanged(String name, Intent intent) {
-            Bundle extras = intent.getExtras();
-            brlog(name, String.format(Locale.US,
-                    "Scan Mode Changed: Old=%s New=%s",
-                    BtScanMode.get(extras.getInt(EXTRA_PREVIOUS_SCAN_MODE)),
-                    BtScanMode.get(extras.getInt(EXTRA_SCAN_MODE))));
         }
-
-        /** Wrapper for Bluetooth Broad Receiver log messages. */
-        private static void brlog(String name, String s) {
-            trace(String.format(Locale.US, "> Broadcast received by %s: %s", name, s));
-        }
-    }
-    private static void trace(String msg) {
-        Support.trace("BluetoothBroadcastReceivers: " + msg);
     }
 }
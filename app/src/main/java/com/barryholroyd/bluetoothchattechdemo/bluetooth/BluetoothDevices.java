@@ -2,42 +2,43 @@ package com.barryholroyd.bluetoothchattechdemo.bluetooth;
 
 import android.bluetooth.BluetoothDevice;
 
-import java.util.ArrayList;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceIndex;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
 
 /**
  * Class which provides access to a list of Bluetooth devices.
  * <p>
  *     This class exists primarily to assist with type safety and code readability.
- *     It also facilitates device lookup by MAC address.
+ *     Devices are indexed by MAC address (see {@link DeviceIndex}), so looking one up
+ *     doesn't scan the list, and each change is reported to the list's listener with
+ *     the positions affected.
+ * <p>
+ *     Each device is held as a {@link DeviceRow}, with the name it was found with and
+ *     its label already worked out, so that displaying it never calls
+ *     BluetoothDevice.getName() (a call into the Bluetooth service).
  */
-public class BluetoothDevices extends ArrayList<BluetoothDevice>
+public class BluetoothDevices extends DeviceIndex<DeviceRow<BluetoothDevice>>
 {
     /**
-     * Avoid adding duplicates.
-     * <p>
-     *     Remote Bluetooth devices may "advertise" multiple times, so we have to filter
-     *     out duplicates. See
-     *     {@link <a href="https://github.com/WebBluetoothCG/web-bluetooth/issues/225">
-     *         Discovery Duplicates
-     *         </a>}.
+     * Build the row for a device. Doesn't call into the Bluetooth service, so it can be
+     * used on any thread.
+     *
+     * @param device the device.
+     * @param name   its name; null if it isn't known.
+     * @return the row.
      */
-    public void addNoDup(BluetoothDevice device) {
-        if (getDevice(device.getAddress()) != null)
-            return;
-        add(device);
+    public static DeviceRow<BluetoothDevice> row(BluetoothDevice device, String name) {
+        return new DeviceRow<>(device, device.getAddress(), name);
     }
+
     /**
      * Find a BluetoothDevice based on its mac value.
      *
      * @param mac the BluetoothDevice's MAC address.
-     * @return the BluetoothDevice of interest.
+     * @return the BluetoothDevice of interest; null if it isn't in the list.
      */
     public BluetoothDevice getDevice(String mac) {
-        for (BluetoothDevice bd : this) {
-            if (bd.getAddress().equals(mac)) {
-                return bd;
-            }
-        }
-        return null;
+        DeviceRow<BluetoothDevice> row = get(mac);
+        return (row == null) ? null : row.getDevice();
     }
 }
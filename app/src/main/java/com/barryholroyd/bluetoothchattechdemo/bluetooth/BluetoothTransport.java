@@ -0,0 +1,48 @@
+package com.barryholroyd.bluetoothchattechdemo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import com.barryholroyd.bluetoothchattechdemo.session.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link Transport} over a connected Bluetooth RFCOMM socket.
+ */
+public class BluetoothTransport implements Transport
+{
+    private final BluetoothSocket btSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param _btSocket connected socket; closed by close().
+     */
+    public BluetoothTransport(BluetoothSocket _btSocket) {
+        btSocket = _btSocket;
+    }
+
+    /** The remote device at the other end of the socket. */
+    public BluetoothDevice getRemoteDevice() { return btSocket.getRemoteDevice(); }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return btSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return btSocket.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() { return btSocket.getRemoteDevice().getAddress(); }
+
+    @Override
+    public void close() throws IOException {
+        btSocket.close();
+    }
+}
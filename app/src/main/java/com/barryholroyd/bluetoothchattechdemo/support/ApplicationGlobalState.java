@@ -2,7 +2,6 @@ package com.barryholroyd.bluetoothchattechdemo.support;
 
 import android.app.Activity;
 import android.app.Application;
-import android.bluetooth.BluetoothSocket;
 
 /**
  * Extended Application class used to save state across components.
@@ -10,15 +9,9 @@ import android.bluetooth.BluetoothSocket;
 
 public class ApplicationGlobalState extends Application implements GlobalState
 {
-    private BluetoothSocket btChatSocket;
     private Activity currentActivity = null;
     private long mainThreadId;
 
-    @Override public BluetoothSocket getBtChatSocket() { return btChatSocket; }
-    @Override public void setBtChatSocket(BluetoothSocket _btChatSocket) {
-        btChatSocket = _btChatSocket;
-    }
-
     @Override public Activity getCurrentActivity() { return currentActivity; }
     @Override public void     setCurrentActivity(Activity a) { currentActivity = a; }
 
@@ -1,19 +1,11 @@
 package com.barryholroyd.bluetoothchattechdemo.support;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothSocket;
 
 /**
  * Interface defining global state to be maintained.
  */
 public interface GlobalState {
-    /**
-     * BluetoothSocket to be passed from ChooserActivity to ChatActivity.
-     * BluetoothSockets are not parcelable, so they can't be passed as Intent extras.
-     */
-    BluetoothSocket getBtChatSocket();
-    void setBtChatSocket(BluetoothSocket _btChatSocket);
-
     /**
      * Reference to the "current" Activity.
      * <p>
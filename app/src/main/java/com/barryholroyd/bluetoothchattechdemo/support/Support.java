@@ -6,6 +6,10 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.util.Log;
 
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+
+import java.io.File;
 import java.util.Locale;
 
 /**
@@ -21,6 +25,10 @@ public class Support {
         globalState = (GlobalState) a.getApplication();
         Context ac = a.getApplicationContext();
         Toaster.init(ac);
+        if (Tracer.ENABLED) {
+            File dir = ac.getExternalFilesDir(null);
+            Tracer.installCrashDump((dir != null) ? dir : ac.getFilesDir());
+        }
         if (appLabel == null) {
             PackageManager pm = ac.getPackageManager();
             try {
@@ -54,7 +62,11 @@ public class Support {
     /** Return the app label as defined in the manifest. */
     public static String getAppLabel() { return appLabel; }
 
-    /** External access to logging -- turn off in production. */
+    /**
+     * External access to logging -- turn off in production. The message is built
+     * whether or not it is logged, so for anything which has to be formatted, or is
+     * on a busy path, record a {@link TraceEvent} with {@link Tracer} instead.
+     */
     public static void trace(String msg) {
         if (traceEnabled)
             log(msg);
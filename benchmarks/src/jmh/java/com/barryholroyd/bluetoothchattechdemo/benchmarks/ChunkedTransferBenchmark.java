@@ -0,0 +1,123 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameDecoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameWriter;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Frames;
+import com.barryholroyd.bluetoothchattechdemo.protocol.TextAssembler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A large message sent in chunks, per message.
+ * <p>
+ *     transfer() sends the message with FrameWriter.sendChunked() and returns once the
+ *     writer reports it sent. The writer's stream feeds each write straight to a
+ *     FrameDecoder and TextAssembler, as ChatSession uses them, so by then the message
+ *     has been reassembled as well. Divide the size by the time per message for the
+ *     throughput, without the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkedTransferBenchmark
+{
+    /** Message size, in bytes. */
+    @Param({ "65536", "1048576", "4194304" })
+    public int size;
+
+    private byte[] message;
+    private FrameWriter writer;
+    private Blackhole blackhole;
+
+    /** Called back once per message, when the writer has sent it. */
+    private static class Latch implements FrameWriter.SendCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSent() {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole _blackhole) throws IOException {
+        blackhole = _blackhole;
+        StringBuilder sb = new StringBuilder(size);
+        int line = 0;
+        while (sb.length() < size) {
+            sb.append(String.format(Locale.US,
+                    "%08d log line, temp 21\u00b0C, some config = value\n", line++));
+        }
+        sb.setLength(size);
+        message = sb.toString().getBytes("UTF-8");
+
+        final TextAssembler assembler = new TextAssembler(new TextAssembler.TextListener() {
+            @Override
+            public void onText(CharBuffer text) {
+                blackhole.consume(text.get(text.limit() - 1));
+            }
+
+            @Override
+            public void onMessageTooLarge(long length) {
+                throw new IllegalStateException("too large: " + length);
+            }
+        }, TextAssembler.DEFAULT_MAX_MESSAGE);
+        final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] payload, int length)
+                    throws IOException {
+                if (type == Frames.TYPE_CHUNK) {
+                    assembler.onChunk(flags, payload, length);
+                }
+            }
+        });
+        writer = new FrameWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                decoder.decode(b, off, len);
+            }
+        }, FrameWriter.DEFAULT_QUEUE_SIZE);
+        writer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        writer.close();
+        writer.join();
+    }
+
+    @Benchmark
+    public void transfer() throws InterruptedException {
+        Latch sent = new Latch();
+        if (!writer.sendChunked(message, 0, message.length, sent)) {
+            throw new IllegalStateException("writer queue full");
+        }
+        sent.done.await();
+    }
+}
@@ -0,0 +1,99 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device lookup by MAC address, as done for every device discovery reports.
+ * <p>
+ *     android.bluetooth.BluetoothDevice can't be created off a device, so this uses
+ *     stand-ins with the same getAddress(). hit() and miss() look up the last device
+ *     in the list (the worst case for a scan) and a new device (what happens for each
+ *     one discovered) in a {@link DeviceIndex}, as BluetoothDevices does; scanHit()
+ *     and scanMiss() do the same with the linear scan BluetoothDevices used to do, as
+ *     a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceLookupBenchmark
+{
+    /** Stand-in for BluetoothDevice. */
+    static final class Device
+    {
+        private final String address;
+
+        Device(String _address) {
+            address = _address;
+        }
+
+        String getAddress() { return address; }
+    }
+
+    @Param({ "4", "32", "256" })
+    public int deviceCount;
+
+    private final ArrayList<Device> devices = new ArrayList<>();
+    private final DeviceIndex<Device> index = new DeviceIndex<>();
+    private String last;
+    private String missing;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < deviceCount; i++) {
+            Device d = new Device(address(i));
+            devices.add(d);
+            index.put(d.getAddress(), d);
+        }
+        // Fresh copies, so that equals() can't short-circuit on identity.
+        last = new String(address(deviceCount - 1));
+        missing = address(deviceCount);
+    }
+
+    @Benchmark
+    public Device hit() {
+        return index.get(last);
+    }
+
+    @Benchmark
+    public Device miss() {
+        return index.get(missing);
+    }
+
+    @Benchmark
+    public Device scanHit() {
+        return scan(last);
+    }
+
+    @Benchmark
+    public Device scanMiss() {
+        return scan(missing);
+    }
+
+    /** The linear scan BluetoothDevices.getDevice() used to do. */
+    private Device scan(String mac) {
+        for (Device bd : devices) {
+            if (bd.getAddress().equals(mac)) {
+                return bd;
+            }
+        }
+        return null;
+    }
+
+    /** A MAC address which only differs from the others in its last bytes. */
+    private static String address(int i) {
+        return String.format(Locale.US, "00:1A:7D:DA:%02X:%02X", (i >> 8) & 0xff, i & 0xff);
+    }
+}
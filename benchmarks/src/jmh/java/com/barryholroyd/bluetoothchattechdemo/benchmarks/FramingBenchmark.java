@@ -0,0 +1,89 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameDecoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameEncoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Frames;
+import com.barryholroyd.bluetoothchattechdemo.session.ChatSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame encoding and decoding, per frame.
+ * <p>
+ *     decode() hands the decoder a block of FRAMES whole frames at once, as when
+ *     several messages arrive in one read; decodeInReads() feeds the same block in
+ *     ChatSession-sized reads, so that frames are split across reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark
+{
+    /** Frames in the block decoded per invocation. */
+    private static final int FRAMES = 64;
+
+    /** Size of ChatSession's read buffer. */
+    private static final int READ_SIZE = ChatSession.BUFSIZE;
+
+    @Param({ "16", "256", "4096" })
+    public int payloadSize;
+
+    private byte[] payload;
+    private byte[] frame;
+    private byte[] block;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole _blackhole) {
+        blackhole = _blackhole;
+        payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        frame = new byte[Frames.MAX_FRAME];
+
+        int frameSize = Frames.HEADER_SIZE + payloadSize;
+        block = new byte[FRAMES * frameSize];
+        for (int i = 0; i < FRAMES; i++) {
+            FrameEncoder.encode(Frames.TYPE_CHAT, 0, payload, 0, payloadSize,
+                    block, i * frameSize);
+        }
+        decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] p, int length) {
+                blackhole.consume(p[length - 1]);
+            }
+        });
+    }
+
+    @Benchmark
+    public int encode() {
+        return FrameEncoder.encode(Frames.TYPE_CHAT, 0, payload, 0, payloadSize, frame, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() throws IOException {
+        decoder.decode(block, 0, block.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeInReads() throws IOException {
+        for (int off = 0; off < block.length; off += READ_SIZE) {
+            decoder.decode(block, off, Math.min(READ_SIZE, block.length - off));
+        }
+    }
+}
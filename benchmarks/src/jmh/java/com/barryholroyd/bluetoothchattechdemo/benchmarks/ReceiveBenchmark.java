@@ -0,0 +1,123 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.CharBufferPool;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameDecoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameEncoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Frames;
+import com.barryholroyd.bluetoothchattechdemo.protocol.SpscQueue;
+import com.barryholroyd.bluetoothchattechdemo.protocol.TextDecoder;
+import com.barryholroyd.bluetoothchattechdemo.session.ChatSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatSession's receive path, per message, minus the socket and the UI thread.
+ * <p>
+ *     pooled() does what ChatSession does with each incoming TYPE_CHAT frame: decode
+ *     the frame stream in reads of ChatSession.BUFSIZE, decode each payload into a
+ *     buffer from a {@link CharBufferPool}, queue it for the UI thread on a
+ *     {@link SpscQueue} (as FrameBatcher does), then, as the UI thread would, take it
+ *     off the queue and release it. allocating() does the same with a new String per
+ *     message and no pool, as a baseline. Both run on one thread, so they measure
+ *     CPU cost and garbage, not hand-off latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReceiveBenchmark
+{
+    /** Messages in the block received per invocation; also the queue's capacity. */
+    private static final int MESSAGES = 32;
+
+    /** Size of ChatSession's read buffer. */
+    private static final int READ_SIZE = ChatSession.BUFSIZE;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Message length, in ASCII chars. */
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    private byte[] block;
+    private FrameDecoder pooledDecoder;
+    private FrameDecoder allocatingDecoder;
+    private final SpscQueue<CharBufferPool.PooledChars> pooledQueue =
+            new SpscQueue<>(MESSAGES);
+    private final SpscQueue<String> stringQueue = new SpscQueue<>(MESSAGES);
+    private final CharBufferPool pool = new CharBufferPool(MESSAGES, Frames.MAX_PAYLOAD);
+    private final TextDecoder textDecoder = new TextDecoder();
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole _blackhole) throws IOException {
+        blackhole = _blackhole;
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        int frameSize = Frames.HEADER_SIZE + length;
+        block = new byte[MESSAGES * frameSize];
+        for (int i = 0; i < MESSAGES; i++) {
+            FrameEncoder.encode(Frames.TYPE_CHAT, 0, payload, 0, length, block, i * frameSize);
+        }
+
+        pooledDecoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] p, int len) throws IOException {
+                CharBufferPool.PooledChars buffer = pool.acquire();
+                CharBuffer text = buffer.getCharBuffer();
+                textDecoder.decode(p, 0, len, text);
+                textDecoder.finish(text);
+                text.flip();
+                pooledQueue.offer(buffer);
+            }
+        });
+        allocatingDecoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] p, int len) {
+                stringQueue.offer(new String(p, 0, len, UTF8));
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void pooled() throws IOException {
+        feed(pooledDecoder);
+        CharBufferPool.PooledChars buffer;
+        while ((buffer = pooledQueue.poll()) != null) {
+            blackhole.consume(buffer.getCharBuffer().get(0));
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void allocating() throws IOException {
+        feed(allocatingDecoder);
+        String text;
+        while ((text = stringQueue.poll()) != null) {
+            blackhole.consume(text.charAt(0));
+        }
+    }
+
+    private void feed(FrameDecoder decoder) throws IOException {
+        for (int off = 0; off < block.length; off += READ_SIZE) {
+            decoder.decode(block, off, Math.min(READ_SIZE, block.length - off));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceIndex;
+import com.barryholroyd.bluetoothchattechdemo.devices.DeviceRow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding every row of a device list, as scrolling the chooser does.
+ * <p>
+ *     rows() gets the text for each row from a {@link DeviceRow}, as
+ *     RecyclerViewAdapter.onBindViewHolder() does; format() builds it with
+ *     String.format() for each bind, as the adapter used to, as a baseline. The names
+ *     are plain fields here; on a device the baseline also made a call into the
+ *     Bluetooth service for each name, which isn't measured. Run with -prof gc to see
+ *     the allocation per bind.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RowBindBenchmark
+{
+    /** Stand-in for BluetoothDevice. */
+    static final class Device
+    {
+        private final String address;
+        private final String name;
+
+        Device(String _address, String _name) {
+            address = _address;
+            name = _name;
+        }
+
+        String getAddress() { return address; }
+        String getName() { return name; }
+    }
+
+    @Param({ "32", "256" })
+    public int deviceCount;
+
+    private final ArrayList<Device> devices = new ArrayList<>();
+    private final DeviceIndex<DeviceRow<Device>> index = new DeviceIndex<>();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < deviceCount; i++) {
+            String address = String.format(Locale.US, "00:11:22:33:%02X:%02X", i >> 8, i & 0xff);
+            // Every fourth device's name isn't known.
+            Device d = new Device(address, ((i % 4) == 3) ? null : "Device " + i);
+            devices.add(d);
+            index.put(address, new DeviceRow<>(d, address, d.getName()));
+        }
+    }
+
+    @Benchmark
+    public void rows(Blackhole bh) {
+        for (int i = 0; i < index.size(); i++) {
+            DeviceRow<Device> row = index.get(i);
+            bh.consume(row.getLabel());
+            bh.consume(row.getMac());
+        }
+    }
+
+    @Benchmark
+    public void format(Blackhole bh) {
+        for (int i = 0; i < devices.size(); i++) {
+            Device d = devices.get(i);
+            String name = d.getName();
+            if (name == null) {
+                name = "<unknown>";
+            }
+            bh.consume(String.format("%s: %s", name, d.getAddress()));
+            bh.consume(d.getAddress());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.barryholroyd.bluetoothchattechdemo.benchmarks;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.TextDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UTF-8 encoding of outgoing messages and decoding of incoming ones.
+ * <p>
+ *     encode() is what ChatActivity does to the text to send. decodeTextDecoder() is
+ *     the receive path, decoding into a reused buffer; decodeString() is the
+ *     allocating new String() it replaced, as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Utf8Benchmark
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Message length, in chars. */
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    /** "ascii", or "mixed": one char in four outside ASCII, some of them surrogates. */
+    @Param({ "ascii", "mixed" })
+    public String text;
+
+    private String message;
+    private byte[] bytes;
+    private final TextDecoder decoder = new TextDecoder();
+    private CharBuffer out;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            int i = sb.length();
+            if (text.equals("ascii") || (i % 4 != 3)) {
+                sb.append((char) ('a' + i % 26));
+            }
+            else if (i % 8 == 3) {
+                sb.append('\u00e9');
+            }
+            else if (i + 1 < length) {
+                sb.append("\ud83d\ude00");
+            }
+            else {
+                sb.append('\u20ac');
+            }
+        }
+        message = sb.toString();
+        bytes = message.getBytes(UTF8);
+        out = CharBuffer.allocate(bytes.length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws UnsupportedEncodingException {
+        return message.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public int decodeTextDecoder() {
+        out.clear();
+        decoder.decode(bytes, 0, bytes.length, out);
+        decoder.finish(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return new String(bytes, UTF8);
+    }
+}
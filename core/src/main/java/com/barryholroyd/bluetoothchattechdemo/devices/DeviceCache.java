@@ -0,0 +1,301 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.MacAddress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Devices seen recently, kept in a small file so that the device chooser can show
+ * them as soon as it starts rather than waiting for discovery.
+ * <p>
+ *     For each device the cache keeps its name, when it was last seen, its signal
+ *     strength then and whether it was paired. seen() updates an entry in memory;
+ *     load() and save() read and write the whole file, and are meant to be called on
+ *     a background thread. Entries not seen for ttlMs are dropped by load() and
+ *     evict(). All methods are thread safe.
+ * <p>
+ *     File format: the magic number and version, the number of entries, then for each
+ *     entry its MAC address (6 bytes), last seen time (8), signal strength (2), flags
+ *     (1) and, if FLAG_NAMED is set, its name (modified UTF-8, as written by
+ *     DataOutputStream). save() writes a new file and renames it over the old one, so
+ *     a crash part way through leaves the previous cache intact.
+ */
+public class DeviceCache
+{
+    /** Default time after which a device which hasn't been seen is dropped. */
+    public static final long DEFAULT_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /** Signal strength of a device whose strength isn't known. */
+    public static final short NO_RSSI = Short.MIN_VALUE;
+
+    /** Most entries kept; beyond this, the ones seen longest ago are dropped. */
+    public static final int MAX_ENTRIES = 1024;
+
+    private static final int MAGIC = 0x42434443; // "BCDC"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_PAIRED = 1;
+    private static final int FLAG_NAMED = 2;
+
+    /** One device; immutable. */
+    public static class Entry
+    {
+        private final String mac;
+        private final String name;
+        private final long lastSeen;
+        private final short rssi;
+        private final boolean paired;
+
+        /**
+         * Constructor.
+         *
+         * @param _mac      MAC address, e.g., "00:11:22:AA:BB:CC".
+         * @param _name     the device's name; null if it isn't known.
+         * @param _lastSeen when the device was last seen, in System.currentTimeMillis() time.
+         * @param _rssi     signal strength in dBm when it was last seen; or NO_RSSI.
+         * @param _paired   true if the device is paired with this one.
+         */
+        public Entry(String _mac, String _name, long _lastSeen, short _rssi, boolean _paired) {
+            mac = _mac;
+            name = _name;
+            lastSeen = _lastSeen;
+            rssi = _rssi;
+            paired = _paired;
+        }
+
+        public String getMac() { return mac; }
+        public String getName() { return name; }
+        public long getLastSeen() { return lastSeen; }
+        public short getRssi() { return rssi; }
+        public boolean isPaired() { return paired; }
+    }
+
+    private final File file;
+    private final long ttlMs;
+
+    /** Entries by MAC address, least recently seen first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    /** Held while the file is written, so that two saves don't share the temporary file. */
+    private final Object saveLock = new Object();
+
+    /**
+     * Constructor. Nothing is read until load() is called.
+     *
+     * @param _file  the cache file; need not exist.
+     * @param _ttlMs time after which a device which hasn't been seen is dropped.
+     */
+    public DeviceCache(File _file, long _ttlMs) {
+        file = _file;
+        ttlMs = _ttlMs;
+    }
+
+    /**
+     * Record that a device has been seen. Anything not known this time (the name or the
+     * signal strength) is kept from the previous entry.
+     *
+     * @param mac    MAC address of the device.
+     * @param name   its name; null if it isn't known.
+     * @param rssi   its signal strength; or NO_RSSI.
+     * @param paired true if it's paired with this device.
+     * @param now    the current time, in System.currentTimeMillis() time.
+     */
+    public synchronized void seen(String mac, String name, short rssi, boolean paired, long now) {
+        Entry old = entries.remove(mac);
+        if (old != null) {
+            if (name == null)
+                name = old.name;
+            if (rssi == NO_RSSI)
+                rssi = old.rssi;
+        }
+        entries.put(mac, new Entry(mac, name, now, rssi, paired));
+        trim();
+    }
+
+    /**
+     * Find a device.
+     *
+     * @param mac MAC address of the device.
+     * @return its entry; null if it isn't in the cache.
+     */
+    public synchronized Entry get(String mac) { return entries.get(mac); }
+
+    /** Number of devices in the cache. */
+    public synchronized int size() { return entries.size(); }
+
+    /** All of the devices in the cache, most recently seen first. */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        for (int i = 0, j = list.size() - 1; i < j; i++, j--) {
+            Entry e = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, e);
+        }
+        return list;
+    }
+
+    /**
+     * Drop the devices which haven't been seen for ttlMs.
+     *
+     * @param now the current time, in System.currentTimeMillis() time.
+     * @return number of devices dropped.
+     */
+    public synchronized int evict(long now) {
+        int evicted = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastSeen > ttlMs) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Read the cache file, adding its devices to those already seen, then evict(). A
+     * device seen since the file was written keeps its newer entry. A missing file is
+     * the same as an empty one.
+     *
+     * @param now the current time, in System.currentTimeMillis() time.
+     * @return all of the devices in the cache, most recently seen first.
+     * @throws IOException if the file can't be read or isn't a valid cache; the
+     *                     devices already in memory are kept.
+     */
+    public List<Entry> load(long now) throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+        catch (FileNotFoundException fnfe) {
+            return getEntries();
+        }
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Not a device cache: " + file.getPath());
+            }
+            int count = in.readInt();
+            if ((count < 0) || (count > MAX_ENTRIES)) {
+                throw new IOException("Corrupt device cache: " + file.getPath());
+            }
+            for (int i = 0; i < count; i++) {
+                long address = ((long) in.readShort() & 0xffff) << 32
+                        | ((long) in.readInt() & 0xffffffffL);
+                long lastSeen = in.readLong();
+                short rssi = in.readShort();
+                int flags = in.readByte();
+                String name = ((flags & FLAG_NAMED) != 0) ? in.readUTF() : null;
+                loaded.add(new Entry(formatMac(address), name, lastSeen, rssi,
+                        (flags & FLAG_PAIRED) != 0));
+            }
+        }
+        catch (EOFException eofe) {
+            throw new IOException("Truncated device cache: " + file.getPath());
+        }
+        finally {
+            in.close();
+        }
+
+        synchronized (this) {
+            // The file is in the same order as the map: least recently seen first.
+            LinkedHashMap<String, Entry> merged = new LinkedHashMap<>();
+            for (Entry e : loaded) {
+                Entry current = entries.get(e.mac);
+                if ((current == null) || (current.lastSeen < e.lastSeen)) {
+                    merged.put(e.mac, e);
+                }
+            }
+            for (Entry e : entries.values()) {
+                if (!merged.containsKey(e.mac)) {
+                    merged.put(e.mac, e);
+                }
+            }
+            entries.clear();
+            entries.putAll(merged);
+            evict(now);
+            trim();
+            return getEntries();
+        }
+    }
+
+    /**
+     * Write the cache file.
+     *
+     * @throws IOException if it can't be written; the previous file is left in place.
+     */
+    public void save() throws IOException {
+        List<Entry> list = new ArrayList<>();
+        synchronized (this) {
+            for (Entry e : entries.values()) {
+                // Only real MAC addresses fit in the file.
+                if (MacAddress.parse(e.mac) >= 0) {
+                    list.add(e);
+                }
+            }
+        }
+        synchronized (saveLock) {
+            write(list);
+        }
+    }
+
+    /** Write entries to a temporary file, then rename it over the cache file. */
+    private void write(List<Entry> list) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(list.size());
+            for (Entry e : list) {
+                long address = MacAddress.parse(e.mac);
+                out.writeShort((int) (address >>> 32));
+                out.writeInt((int) address);
+                out.writeLong(e.lastSeen);
+                out.writeShort(e.rssi);
+                int flags = (e.paired ? FLAG_PAIRED : 0) | ((e.name != null) ? FLAG_NAMED : 0);
+                out.writeByte(flags);
+                if (e.name != null) {
+                    out.writeUTF(e.name);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file.getPath());
+        }
+    }
+
+    /** Drop the least recently seen entries beyond MAX_ENTRIES. */
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > MAX_ENTRIES) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** Format a 48-bit MAC address as, e.g., "00:11:22:AA:BB:CC". */
+    private static String formatMac(long address) {
+        return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                (address >> 40) & 0xff, (address >> 32) & 0xff, (address >> 24) & 0xff,
+                (address >> 16) & 0xff, (address >> 8) & 0xff, address & 0xff);
+    }
+}
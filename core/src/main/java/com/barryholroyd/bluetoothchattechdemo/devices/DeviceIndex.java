@@ -0,0 +1,254 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.MacAddress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Devices in display order, indexed by MAC address.
+ * <p>
+ *     Lookup by MAC address, adding a device at the end and replacing one in place are
+ *     all O(1): each entry knows its own position, so an update doesn't have to search
+ *     the list for it. Removing a device is O(n), since the entries after it move up,
+ *     but that only happens when a list is refreshed.
+ * <p>
+ *     Every change is reported to the {@link Listener} with the exact positions
+ *     affected, e.g., so that a RecyclerView adapter can rebind just those rows. Each
+ *     device also has a stable ID for the adapter: its MAC address as a 48-bit number,
+ *     which stays the same however often the device is removed and found again.
+ * <p>
+ *     Devices are matched by MAC address; the device objects themselves are only
+ *     compared with equals(), to decide whether a replacement is a change. Only use on
+ *     one thread (the UI thread, for the chooser's lists).
+ *
+ * @param <D> the type of the devices.
+ */
+public class DeviceIndex<D>
+{
+    /** Told about every change to the index, after it has been made. */
+    public interface Listener {
+        /** count devices were added starting at position. */
+        void onInserted(int position, int count);
+
+        /** The device at position was replaced by a different one. */
+        void onChanged(int position);
+
+        /** count devices starting at position were removed. */
+        void onRemoved(int position, int count);
+    }
+
+    /** Listener which ignores everything. */
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onInserted(int position, int count) {}
+
+        @Override
+        public void onChanged(int position) {}
+
+        @Override
+        public void onRemoved(int position, int count) {}
+    };
+
+    /** IDs for devices whose MAC address can't be parsed start here, above any MAC. */
+    private static final long FIRST_UNPARSED_ID = 1L << 48;
+
+    private static class Entry<D> {
+        final String mac;
+        final long id;
+        D device;
+        int position;
+
+        Entry(String _mac, long _id, D _device, int _position) {
+            mac = _mac;
+            id = _id;
+            device = _device;
+            position = _position;
+        }
+    }
+
+    private final ArrayList<Entry<D>> entries = new ArrayList<>();
+    private final HashMap<String, Entry<D>> byMac = new HashMap<>();
+    private Listener listener = NO_LISTENER;
+    private long nextUnparsedId = FIRST_UNPARSED_ID;
+
+    /**
+     * Set the listener to be told about changes.
+     *
+     * @param _listener the listener; null for none.
+     */
+    public void setListener(Listener _listener) {
+        listener = (_listener == null) ? NO_LISTENER : _listener;
+    }
+
+    /** Number of devices. */
+    public int size() { return entries.size(); }
+
+    /** The device at a position. */
+    public D get(int position) { return entries.get(position).device; }
+
+    /** MAC address of the device at a position. */
+    public String getMac(int position) { return entries.get(position).mac; }
+
+    /** Stable ID of the device at a position. */
+    public long getId(int position) { return entries.get(position).id; }
+
+    /**
+     * Find a device by its MAC address.
+     *
+     * @param mac the device's MAC address.
+     * @return the device; null if it isn't in the index.
+     */
+    public D get(String mac) {
+        Entry<D> e = byMac.get(mac);
+        return (e == null) ? null : e.device;
+    }
+
+    /** True if the device with this MAC address is in the index. */
+    public boolean contains(String mac) { return byMac.containsKey(mac); }
+
+    /**
+     * Position of a device.
+     *
+     * @param mac the device's MAC address.
+     * @return its position; -1 if it isn't in the index.
+     */
+    public int indexOf(String mac) {
+        Entry<D> e = byMac.get(mac);
+        return (e == null) ? -1 : e.position;
+    }
+
+    /**
+     * Add a device at the end, or replace the one already there with the same MAC
+     * address. Remote devices may "advertise" several times, so replacing a device with
+     * an equal one is common and isn't reported as a change.
+     *
+     * @param mac    the device's MAC address.
+     * @param device the device.
+     * @return true if the device was new.
+     */
+    public boolean put(String mac, D device) {
+        Entry<D> e = byMac.get(mac);
+        if (e != null) {
+            D old = e.device;
+            e.device = device;
+            if (!old.equals(device)) {
+                listener.onChanged(e.position);
+            }
+            return false;
+        }
+        append(mac, device);
+        listener.onInserted(entries.size() - 1, 1);
+        return true;
+    }
+
+    /**
+     * put() a batch of devices, reporting the new ones as a single insertion at the
+     * end, after any changes to devices already there.
+     *
+     * @param devices the devices, keyed by MAC address, in the order to add them.
+     * @return number of devices which were new.
+     */
+    public int putAll(Map<String, D> devices) {
+        int first = entries.size();
+        for (Map.Entry<String, D> d : devices.entrySet()) {
+            Entry<D> e = byMac.get(d.getKey());
+            if (e == null) {
+                append(d.getKey(), d.getValue());
+            }
+            else if (e.position < first) {
+                D old = e.device;
+                e.device = d.getValue();
+                if (!old.equals(e.device)) {
+                    listener.onChanged(e.position);
+                }
+            }
+            else {
+                // Added earlier in this batch; not reported yet.
+                e.device = d.getValue();
+            }
+        }
+        int added = entries.size() - first;
+        if (added > 0) {
+            listener.onInserted(first, added);
+        }
+        return added;
+    }
+
+    /** Add an entry at the end, without telling the listener. */
+    private void append(String mac, D device) {
+        long id = MacAddress.parse(mac);
+        if (id < 0) {
+            id = nextUnparsedId++;
+        }
+        Entry<D> e = new Entry<>(mac, id, device, entries.size());
+        entries.add(e);
+        byMac.put(mac, e);
+    }
+
+    /**
+     * Remove a device.
+     *
+     * @param mac the device's MAC address.
+     * @return true if it was in the index.
+     */
+    public boolean remove(String mac) {
+        Entry<D> e = byMac.remove(mac);
+        if (e == null) {
+            return false;
+        }
+        entries.remove(e.position);
+        renumberFrom(e.position);
+        listener.onRemoved(e.position, 1);
+        return true;
+    }
+
+    /**
+     * Remove every device whose MAC address isn't in macs. Each run of adjacent
+     * devices removed is reported as one removal; the runs are removed from the end of
+     * the list backwards, so that the positions reported are never shifted by a later
+     * removal.
+     *
+     * @param macs MAC addresses of the devices to keep.
+     */
+    public void retainAll(Collection<String> macs) {
+        Set<String> keep = (macs instanceof Set) ? (Set<String>) macs : new HashSet<>(macs);
+        int i = entries.size() - 1;
+        while (i >= 0) {
+            if (keep.contains(entries.get(i).mac)) {
+                i--;
+                continue;
+            }
+            int end = i;
+            while ((i >= 0) && !keep.contains(entries.get(i).mac)) {
+                byMac.remove(entries.get(i).mac);
+                i--;
+            }
+            entries.subList(i + 1, end + 1).clear();
+            renumberFrom(i + 1);
+            listener.onRemoved(i + 1, end - i);
+        }
+    }
+
+    /** Remove every device. */
+    public void clear() {
+        int size = entries.size();
+        if (size == 0) {
+            return;
+        }
+        entries.clear();
+        byMac.clear();
+        listener.onRemoved(0, size);
+    }
+
+    /** Update the positions recorded in the entries from position on. */
+    private void renumberFrom(int position) {
+        for (int i = position; i < entries.size(); i++) {
+            entries.get(i).position = i;
+        }
+    }
+}
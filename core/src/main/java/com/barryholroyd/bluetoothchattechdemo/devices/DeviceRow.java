@@ -0,0 +1,93 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+/**
+ * One row of a device list, with everything needed to display it; immutable.
+ * <p>
+ *     A row is built once, when its device is first seen (or seen again with a
+ *     different name), rather than each time the row is displayed: the label is worked
+ *     out here, so binding a row to a view just sets strings which already exist. On
+ *     Android that matters because asking a BluetoothDevice for its name is a call into
+ *     the Bluetooth service, so the name should come from wherever the device was
+ *     found (e.g., the discovery broadcast or the {@link DeviceCache}) instead.
+ * <p>
+ *     Two rows are equal if they have the same MAC address and name, i.e., if they
+ *     would be displayed the same way, so that putting an equal row in a
+ *     {@link DeviceIndex} isn't reported as a change.
+ *
+ * @param <D> the type of the device.
+ */
+public class DeviceRow<D>
+{
+    /** Shown in place of the name of a device whose name isn't known. */
+    public static final String UNKNOWN_NAME = "<unknown>";
+
+    private final D device;
+    private final String mac;
+    private final String name;
+    private final String label;
+
+    /**
+     * Constructor.
+     *
+     * @param _device the device.
+     * @param _mac    its MAC address, e.g., "00:11:22:AA:BB:CC".
+     * @param _name   its name; null if it isn't known.
+     */
+    public DeviceRow(D _device, String _mac, String _name) {
+        device = _device;
+        mac = _mac;
+        name = _name;
+        label = label(_name, _mac);
+    }
+
+    public D getDevice() { return device; }
+    public String getMac() { return mac; }
+
+    /** The device's name; null if it isn't known. */
+    public String getName() { return name; }
+
+    /** Text to display for the device, e.g., "Phone: 00:11:22:AA:BB:CC". */
+    public String getLabel() { return label; }
+
+    /**
+     * This row with a name, if it doesn't already have one. A row with a name keeps it
+     * when the device is seen again without one.
+     *
+     * @param _name the name; null if it isn't known.
+     * @return this row if the name isn't new; otherwise a new row.
+     */
+    public DeviceRow<D> withName(String _name) {
+        if ((_name == null) || _name.equals(name))
+            return this;
+        return new DeviceRow<>(device, mac, _name);
+    }
+
+    /**
+     * The text to display for a device.
+     *
+     * @param name the device's name; null if it isn't known.
+     * @param mac  its MAC address.
+     * @return the label, e.g., "Phone: 00:11:22:AA:BB:CC".
+     */
+    public static String label(String name, String mac) {
+        return ((name == null) ? UNKNOWN_NAME : name) + ": " + mac;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof DeviceRow))
+            return false;
+        DeviceRow<?> r = (DeviceRow<?>) o;
+        return mac.equals(r.mac) && ((name == null) ? (r.name == null) : name.equals(r.name));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mac.hashCode() + ((name == null) ? 0 : name.hashCode());
+    }
+
+    @Override
+    public String toString() { return label; }
+}
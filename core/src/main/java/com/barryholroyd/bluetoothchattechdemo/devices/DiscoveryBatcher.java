@@ -0,0 +1,129 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Collects the devices reported by discovery over a short window and applies them to
+ * a {@link DeviceIndex} all at once.
+ * <p>
+ *     During a busy scan a device can be reported many times a second. Rather than
+ *     update the list for every report, add() only records the device, keyed by MAC
+ *     address so that repeated reports of one device are merged, and flush() applies
+ *     the whole window with DeviceIndex.putAll(): one change per device which is
+ *     different and one insertion for all of the new ones.
+ * <p>
+ *     The batcher doesn't keep time itself: add() says when a window starts and the
+ *     caller arranges for flush() to be called windowMs later, e.g., with a Handler.
+ * <p>
+ *     Each flush is measured in the default {@link MetricsRegistry}: the number of
+ *     batches ("discovery.batches"), the reports in each ("discovery.batch.events") and
+ *     how many of them were merged into another report of the same device
+ *     ("discovery.batch.merged"). Only use on one thread.
+ *
+ * @param <D> the type of the devices.
+ */
+public class DiscoveryBatcher<D>
+{
+    /** Default length of a window. */
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    private final long windowMs;
+
+    /** Devices reported in the current window, in the order first reported. */
+    private final LinkedHashMap<String, D> pending = new LinkedHashMap<>();
+
+    /** Reports in the current window, including repeats. */
+    private int events = 0;
+
+    /** Reports merged in the last batch flushed. */
+    private int lastMerged = 0;
+
+    private final Counter batches;
+    private final Histogram batchEvents;
+    private final Histogram batchMerged;
+
+    /**
+     * Constructor.
+     *
+     * @param _windowMs how long to collect devices before applying them.
+     */
+    public DiscoveryBatcher(long _windowMs) {
+        windowMs = _windowMs;
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        batches = registry.counter("discovery.batches");
+        batchEvents = registry.histogram("discovery.batch.events", Histogram.COUNTS);
+        batchMerged = registry.histogram("discovery.batch.merged", Histogram.COUNTS);
+    }
+
+    /** How long to collect devices before calling flush(). */
+    public long getWindowMs() { return windowMs; }
+
+    /** Number of distinct devices waiting to be flushed. */
+    public int pending() { return pending.size(); }
+
+    /**
+     * The device reported in the current window.
+     *
+     * @param mac the device's MAC address.
+     * @return the device as last reported; null if it hasn't been reported in this window.
+     */
+    public D get(String mac) { return pending.get(mac); }
+
+    /** Number of reports merged into another report of the same device in the last batch. */
+    public int getLastMerged() { return lastMerged; }
+
+    /**
+     * Record a device reported by discovery. A later report of the same device in the
+     * same window replaces it, keeping its place.
+     *
+     * @param mac    the device's MAC address.
+     * @param device the device.
+     * @return true if this starts a new window, in which case the caller should call
+     *         flush() after getWindowMs().
+     */
+    public boolean add(String mac, D device) {
+        events++;
+        pending.put(mac, device);
+        return events == 1;
+    }
+
+    /**
+     * Apply the current window to a list of devices and start a new one.
+     *
+     * @param target  the list to add the devices to.
+     * @param exclude devices not to add to target (e.g., ones already paired); or null.
+     * @return number of devices which were new to target.
+     */
+    public int flush(DeviceIndex<D> target, DeviceIndex<?> exclude) {
+        if (events == 0) {
+            return 0;
+        }
+        lastMerged = events - pending.size();
+        batches.inc();
+        batchEvents.record(events);
+        batchMerged.record(lastMerged);
+
+        if (exclude != null) {
+            Iterator<String> it = pending.keySet().iterator();
+            while (it.hasNext()) {
+                if (exclude.contains(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        int added = target.putAll(pending);
+        discard();
+        return added;
+    }
+
+    /** Drop the current window without applying it. */
+    public void discard() {
+        pending.clear();
+        events = 0;
+    }
+}
@@ -0,0 +1,260 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Gauge;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Backoff;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when to run device discovery: periodically, backing off while it finds
+ * nothing new, and never while a chat session is moving data.
+ * <p>
+ *     An inquiry scan takes most of the radio's time, so a session's throughput drops
+ *     sharply while discovery runs. The scheduler is given the total bytes all of the
+ *     sessions have sent and received on each tick(); while they move at least
+ *     busyBytesPerSec it cancels any discovery which is running (including one the
+ *     user started) and starts none, and it only starts one again once they have been
+ *     quiet for idleMs. A run which had to be cancelled is retried as soon as the
+ *     sessions are idle.
+ * <p>
+ *     Between runs it waits for a delay from its {@link Backoff}. A run which finds new
+ *     devices resets the backoff, so the delay stays short while devices keep turning
+ *     up and grows towards the backoff's cap while they don't. scanSoon() (e.g., when
+ *     the user asks for a refresh) also resets it.
+ * <p>
+ *     The scheduler doesn't keep time itself: the caller calls tick() every second or
+ *     so, e.g., on a background thread, since asking the radio whether it is
+ *     discovering may be a slow call. All methods are thread safe; onDevicesFound()
+ *     never waits for a tick in progress, so it can be called on the UI thread.
+ * <p>
+ *     Its work is measured in the default {@link MetricsRegistry}: runs started
+ *     ("discovery.scheduled"), runs cancelled because a session was busy
+ *     ("discovery.cancelled") and runs put off for the same reason
+ *     ("discovery.deferred"). To show what cancelling recovers, the sessions'
+ *     throughput on each busy tick, in bytes per second, goes into
+ *     "discovery.session.rate.scanning" if discovery was running during the tick and
+ *     "discovery.session.rate.clear" if it wasn't, and "discovery.session.rate.recovered"
+ *     is the difference between their means.
+ */
+public class DiscoveryScheduler
+{
+    /** Default session throughput, in bytes per second, above which discovery is held off. */
+    public static final long DEFAULT_BUSY_BYTES_PER_SEC = 1024;
+
+    /** Default time the sessions must be quiet before discovery may start. */
+    public static final long DEFAULT_IDLE_MS = 5000;
+
+    /** Default delay between runs which find new devices. */
+    public static final long DEFAULT_INITIAL_INTERVAL_MS = 30 * 1000;
+
+    /** Default cap on the delay between runs which find nothing new. */
+    public static final long DEFAULT_MAX_INTERVAL_MS = 10 * 60 * 1000;
+
+    /** What the scheduler controls: the device's discovery. */
+    public interface Radio {
+        /** True if discovery is running, however it was started. */
+        boolean isDiscovering();
+
+        /** Start discovery; returns false if it couldn't be started. */
+        boolean startDiscovery();
+
+        /** Cancel discovery, if it is running. */
+        void cancelDiscovery();
+    }
+
+    private final Radio radio;
+    private final Backoff backoff;
+    private final long busyBytesPerSec;
+    private final long idleMs;
+
+    /** False to only cancel discovery, never start it. */
+    private boolean periodic = false;
+
+    /** True while a run this scheduler knows about is in progress. */
+    private boolean scanning = false;
+
+    /** True if the run in progress has been cancelled because a session was busy. */
+    private boolean interrupted = false;
+
+    /** True if a run was going (and not cancelled) as of the last tick. */
+    private boolean scannedSinceLastTick = false;
+
+    /** New devices found by the run in progress; not guarded, so that adding never waits. */
+    private final AtomicInteger found = new AtomicInteger();
+
+    /** Time at or after which the next run may start. */
+    private long nextScanAt = 0;
+
+    /** True if the run due now has already been counted as deferred. */
+    private boolean deferred = false;
+
+    /** Time and session bytes of the last tick; lastTickAt is -1 before the first. */
+    private long lastTickAt = -1;
+    private long lastBytes = 0;
+
+    /** Time of the last tick on which the sessions were busy. */
+    private long lastBusyAt;
+
+    private final Counter scheduled;
+    private final Counter cancelled;
+    private final Counter deferredRuns;
+    private final Histogram rateScanning;
+    private final Histogram rateClear;
+    private final Gauge rateRecovered;
+
+    /**
+     * Constructor. No run starts until setPeriodic(true) is called.
+     *
+     * @param _radio           the discovery to control.
+     * @param _backoff         delays between runs; should not give up (i.e., have a
+     *                         very large maxAttempts).
+     * @param _busyBytesPerSec session throughput, in bytes per second, at or above
+     *                         which discovery is held off.
+     * @param _idleMs          time the sessions must be quiet before discovery may start.
+     */
+    public DiscoveryScheduler(Radio _radio, Backoff _backoff, long _busyBytesPerSec,
+                              long _idleMs) {
+        radio = _radio;
+        backoff = _backoff;
+        busyBytesPerSec = _busyBytesPerSec;
+        idleMs = _idleMs;
+        lastBusyAt = -_idleMs;
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        scheduled = registry.counter("discovery.scheduled");
+        cancelled = registry.counter("discovery.cancelled");
+        deferredRuns = registry.counter("discovery.deferred");
+        rateScanning = registry.histogram("discovery.session.rate.scanning", Histogram.SIZE_BYTES);
+        rateClear = registry.histogram("discovery.session.rate.clear", Histogram.SIZE_BYTES);
+        rateRecovered = registry.gauge("discovery.session.rate.recovered");
+    }
+
+    /**
+     * Turn periodic runs on or off, e.g., while the device list is shown. Busy sessions
+     * still cancel discovery while they are off.
+     *
+     * @param _periodic true to start runs; false to only cancel them.
+     */
+    public synchronized void setPeriodic(boolean _periodic) {
+        periodic = _periodic;
+    }
+
+    /**
+     * Run as soon as the sessions are idle, and start the backoff again.
+     *
+     * @param now the current time, as passed to tick().
+     */
+    public synchronized void scanSoon(long now) {
+        backoff.reset();
+        nextScanAt = now;
+    }
+
+    /**
+     * Record new devices found by the run in progress.
+     *
+     * @param count number of devices which weren't already known.
+     */
+    public void onDevicesFound(int count) {
+        found.addAndGet(count);
+    }
+
+    /** True if the sessions were busy on the last tick. */
+    public synchronized boolean isBusy() { return lastBusyAt == lastTickAt; }
+
+    /** Time at or after which the next run may start. */
+    public synchronized long getNextScanAt() { return nextScanAt; }
+
+    /**
+     * Check on the sessions and discovery, cancelling or starting discovery as needed.
+     *
+     * @param now          the current time in milliseconds, from any fixed origin.
+     * @param sessionBytes total bytes sent and received by the sessions so far. A
+     *                     smaller total than last time (e.g., a session has ended) is
+     *                     taken as no traffic.
+     */
+    public synchronized void tick(long now, long sessionBytes) {
+        boolean discovering = radio.isDiscovering();
+        // Whether discovery was running at any point since the last tick.
+        boolean scanned = scannedSinceLastTick;
+        if (discovering && !scanning) {
+            // Started by someone else (e.g., the user); treat it as ours.
+            scanning = true;
+            interrupted = false;
+            found.set(0);
+            scanned = true;
+        }
+
+        if ((lastTickAt >= 0) && (now > lastTickAt)) {
+            long bytes = Math.max(0, sessionBytes - lastBytes);
+            long rate = bytes * 1000 / (now - lastTickAt);
+            if (rate >= busyBytesPerSec) {
+                lastBusyAt = now;
+                (scanned ? rateScanning : rateClear).record(rate);
+                updateRecovered();
+            }
+        }
+        lastTickAt = now;
+        lastBytes = sessionBytes;
+        boolean busy = (lastBusyAt == now);
+
+        if (busy && discovering && !interrupted) {
+            radio.cancelDiscovery();
+            cancelled.inc();
+            interrupted = true;
+        }
+        if (scanning && !discovering) {
+            finishRun(now);
+        }
+
+        if (periodic && !discovering && (now >= nextScanAt)) {
+            start(now);
+        }
+        scannedSinceLastTick = scanning && !interrupted;
+    }
+
+    /** Start a run which is due, unless the sessions haven't been idle for long enough. */
+    private void start(long now) {
+        if (now - lastBusyAt < idleMs) {
+            if (!deferred) {
+                deferredRuns.inc();
+                deferred = true;
+            }
+            return;
+        }
+        if (radio.startDiscovery()) {
+            scheduled.inc();
+            scanning = true;
+            interrupted = false;
+            found.set(0);
+            deferred = false;
+        }
+    }
+
+    /** The run in progress has ended: work out when the next one is due. */
+    private void finishRun(long now) {
+        scanning = false;
+        if (interrupted) {
+            // Didn't get to finish; try again once the sessions are idle.
+            nextScanAt = now;
+        }
+        else {
+            if (found.get() > 0) {
+                backoff.reset();
+            }
+            nextScanAt = now + backoff.nextDelayMs();
+        }
+        interrupted = false;
+        found.set(0);
+    }
+
+    /** Set the recovered rate from the two throughput histograms, once both have samples. */
+    private void updateRecovered() {
+        Histogram.Snapshot withScan = rateScanning.snapshot();
+        Histogram.Snapshot clear = rateClear.snapshot();
+        if ((withScan.getCount() > 0) && (clear.getCount() > 0)) {
+            rateRecovered.set(clear.getMean() - withScan.getMean());
+        }
+    }
+}
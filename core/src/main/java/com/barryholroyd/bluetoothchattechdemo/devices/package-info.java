@@ -0,0 +1,10 @@
+/**
+ * Lists of remote devices, as shown by the device chooser.
+ * <p>
+ *     A {@link com.barryholroyd.bluetoothchattechdemo.devices.DeviceIndex} keeps devices
+ *     in display order, looks them up by MAC address in constant time and reports
+ *     exactly which rows changed, so that a list of hundreds of devices only rebinds the
+ *     rows affected by each update. Like the protocol package, this package has no
+ *     Android dependencies so that it can be unit tested on the development machine.
+ */
+package com.barryholroyd.bluetoothchattechdemo.devices;
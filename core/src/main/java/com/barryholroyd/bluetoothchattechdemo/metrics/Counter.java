@@ -0,0 +1,31 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count which only goes up, e.g., of messages received.
+ */
+public class Counter
+{
+    private final AtomicLong value = new AtomicLong();
+
+    Counter() {
+    }
+
+    /** Add one. */
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    /**
+     * Add to the count.
+     *
+     * @param n amount to add; not negative.
+     */
+    public void add(long n) {
+        value.addAndGet(n);
+    }
+
+    /** The current count. */
+    public long get() { return value.get(); }
+}
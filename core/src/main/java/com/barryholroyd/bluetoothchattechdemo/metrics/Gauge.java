@@ -0,0 +1,41 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value which goes up and down, e.g., the depth of a queue, along with the highest
+ * value it has had.
+ */
+public class Gauge
+{
+    private final AtomicLong value = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Gauge() {
+    }
+
+    /**
+     * Set the value.
+     *
+     * @param v the new value.
+     */
+    public void set(long v) {
+        value.set(v);
+        Histogram.updateMax(max, v);
+    }
+
+    /**
+     * Add to the value.
+     *
+     * @param delta amount to add; may be negative.
+     */
+    public void add(long delta) {
+        Histogram.updateMax(max, value.addAndGet(delta));
+    }
+
+    /** The current value. */
+    public long get() { return value.get(); }
+
+    /** The highest value set so far. */
+    public long getMax() { return max.get(); }
+}
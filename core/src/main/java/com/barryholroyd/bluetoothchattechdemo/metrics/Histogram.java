@@ -0,0 +1,166 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of a value, e.g., a latency, in fixed buckets.
+ * <p>
+ *     Each bucket counts the values up to its upper bound (and above the previous
+ *     bucket's); one more bucket counts everything above the last bound. Recording a
+ *     value is a binary search over the bounds and a few atomic adds, with no locking
+ *     and no allocation. Percentiles are only as precise as the buckets: they are
+ *     reported as the upper bound of the bucket they fall in, so with the default
+ *     exponential bounds they are within a factor of two.
+ */
+public class Histogram
+{
+    /** Bounds for latencies in nanoseconds: 1 us to about 67 s, doubling. */
+    public static final long[] LATENCY_NS = exponentialBounds(1000, 27);
+
+    /** Bounds for sizes in bytes: 16 bytes to 1 MB, doubling. */
+    public static final long[] SIZE_BYTES = exponentialBounds(16, 17);
+
+    /** Bounds for small counts, e.g., of items in a batch: 1 to 1024, doubling. */
+    public static final long[] COUNTS = exponentialBounds(1, 11);
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param _bounds upper bounds of the buckets, ascending.
+     */
+    Histogram(long[] _bounds) {
+        for (int i = 1; i < _bounds.length; i++) {
+            if (_bounds[i] <= _bounds[i - 1]) {
+                throw new IllegalArgumentException("Bounds must be ascending.");
+            }
+        }
+        bounds = _bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Bounds which start at "first" and double "count" - 1 times.
+     *
+     * @param first the first bound.
+     * @param count number of bounds.
+     * @return the bounds.
+     */
+    public static long[] exponentialBounds(long first, int count) {
+        long[] b = new long[count];
+        for (int i = 0; i < count; i++) {
+            b[i] = first << i;
+        }
+        return b;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param v the value; negative values are counted as 0.
+     */
+    public void record(long v) {
+        if (v < 0) {
+            v = 0;
+        }
+        int i = Arrays.binarySearch(bounds, v);
+        counts.incrementAndGet((i >= 0) ? i : -i - 1);
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        updateMax(max, v);
+    }
+
+    /** Number of values recorded. */
+    public long getCount() { return count.get(); }
+
+    /** A consistent-enough copy of the histogram, for reporting. */
+    public Snapshot snapshot() {
+        long[] c = new long[counts.length()];
+        long n = 0;
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+        // The bucket counts are the truth; count and sum may be a value or two ahead.
+        return new Snapshot(bounds, c, n, sum.get(), max.get());
+    }
+
+    /** Raise "max" to "value" if it's higher. */
+    static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    /** Copy of a histogram at one moment. */
+    public static class Snapshot
+    {
+        private final long[] bounds;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] _bounds, long[] _counts, long _count, long _sum, long _max) {
+            bounds = _bounds;
+            counts = _counts;
+            count = _count;
+            sum = _sum;
+            max = _max;
+        }
+
+        /** Number of values recorded. */
+        public long getCount() { return count; }
+
+        /** Largest value recorded. */
+        public long getMax() { return max; }
+
+        /** Mean of the values recorded, or 0 if there are none. */
+        public long getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        /**
+         * Estimate a percentile.
+         *
+         * @param p the percentile, from 0 to 100.
+         * @return the upper bound of the bucket the percentile falls in (or the largest
+         * value, if that is lower); 0 if nothing has been recorded.
+         */
+        public long getPercentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * p / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (i < bounds.length) ? Math.min(bounds[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        /** One-line summary: count, mean, p50, p95, p99 and max. */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%d p50=%d p95=%d p99=%d max=%d",
+                    count, getMean(), getPercentile(50), getPercentile(95),
+                    getPercentile(99), max);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream which counts the writes made to the stream it wraps, the bytes written
+ * and how long each write took.
+ * <p>
+ *     A write to a Bluetooth socket blocks while the link is congested, so the write
+ *     time is a direct measure of back pressure from the remote device.
+ */
+public class MeteredOutputStream extends FilterOutputStream
+{
+    private final Counter writes;
+    private final Counter bytes;
+    private final Histogram writeTime;
+
+    /**
+     * Constructor.
+     *
+     * @param out        the stream to wrap.
+     * @param _writes    counts write() calls.
+     * @param _bytes     counts bytes written.
+     * @param _writeTime time taken by each write() call, in nanoseconds.
+     */
+    public MeteredOutputStream(OutputStream out, Counter _writes, Counter _bytes,
+                               Histogram _writeTime) {
+        super(out);
+        writes = _writes;
+        bytes = _bytes;
+        writeTime = _writeTime;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /** Unlike FilterOutputStream's, passes the array on in one write. */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        writeTime.record(System.nanoTime() - start);
+        writes.inc();
+        bytes.add(len);
+    }
+}
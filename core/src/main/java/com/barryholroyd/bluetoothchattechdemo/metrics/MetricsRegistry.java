@@ -0,0 +1,132 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named metrics: {@link Counter}s, {@link Gauge}s and {@link Histogram}s.
+ * <p>
+ *     A metric is created the first time its name is asked for and the same instance is
+ *     returned after that, so callers look their metrics up once and keep them. Names
+ *     are dotted paths, e.g., "session.00:11:22:33:44:55.bytes.in"; metrics belonging
+ *     to one session share a prefix and can be removed together.
+ * <p>
+ *     snapshot() copies every metric for reporting; dump() writes a snapshot to a file.
+ *     The app uses the default registry; tests can create their own.
+ */
+public class MetricsRegistry
+{
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    /** The app's registry. */
+    public static MetricsRegistry getDefault() { return defaultRegistry; }
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name the counter's name.
+     * @return the counter.
+     */
+    public Counter counter(String name) {
+        Counter c = get(name, Counter.class);
+        return (c != null) ? c : put(name, new Counter(), Counter.class);
+    }
+
+    /**
+     * Get or create a gauge.
+     *
+     * @param name the gauge's name.
+     * @return the gauge.
+     */
+    public Gauge gauge(String name) {
+        Gauge g = get(name, Gauge.class);
+        return (g != null) ? g : put(name, new Gauge(), Gauge.class);
+    }
+
+    /**
+     * Get or create a latency histogram, in nanoseconds.
+     *
+     * @param name the histogram's name.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name) {
+        return histogram(name, Histogram.LATENCY_NS);
+    }
+
+    /**
+     * Get or create a histogram.
+     *
+     * @param name   the histogram's name.
+     * @param bounds upper bounds of its buckets, if it has to be created.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name, long[] bounds) {
+        Histogram h = get(name, Histogram.class);
+        return (h != null) ? h : put(name, new Histogram(bounds), Histogram.class);
+    }
+
+    /**
+     * Remove every metric whose name starts with a prefix, e.g., those of a session
+     * which has ended. Anyone still holding one can go on updating it unseen.
+     *
+     * @param prefix the prefix.
+     */
+    public void removeAll(String prefix) {
+        Iterator<String> it = metrics.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Copy every metric's current value. */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(System.currentTimeMillis(), metrics);
+    }
+
+    /**
+     * Write a snapshot of every metric to a file, one per line.
+     *
+     * @param file the file; replaced if it exists.
+     */
+    public void dump(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(snapshot().toString());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private <T> T get(String name, Class<T> type) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            return null;
+        }
+        return cast(name, metric, type);
+    }
+
+    private <T> T put(String name, T created, Class<T> type) {
+        Object existing = metrics.putIfAbsent(name, created);
+        return (existing == null) ? created : cast(name, existing, type);
+    }
+
+    private static <T> T cast(String name, Object metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Metric %s is a %s, not a %s.", name,
+                    metric.getClass().getSimpleName(), type.getSimpleName()));
+        }
+        return type.cast(metric);
+    }
+}
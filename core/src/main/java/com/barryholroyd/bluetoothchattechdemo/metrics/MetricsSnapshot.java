@@ -0,0 +1,122 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Values of every metric in a {@link MetricsRegistry} at one moment, sorted by name.
+ * <p>
+ *     Counters are copied as their count, gauges as their value and highest value, and
+ *     histograms as a {@link Histogram.Snapshot}. toString() formats the lot, one
+ *     metric per line.
+ */
+public class MetricsSnapshot
+{
+    private final long timeMillis;
+
+    /** Long for counters, long[] { value, max } for gauges, Histogram.Snapshot. */
+    private final TreeMap<String, Object> values = new TreeMap<>();
+
+    MetricsSnapshot(long _timeMillis, Map<String, Object> metrics) {
+        timeMillis = _timeMillis;
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            Object metric = e.getValue();
+            Object value;
+            if (metric instanceof Counter) {
+                value = ((Counter) metric).get();
+            }
+            else if (metric instanceof Gauge) {
+                Gauge g = (Gauge) metric;
+                value = new long[] { g.get(), g.getMax() };
+            }
+            else {
+                value = ((Histogram) metric).snapshot();
+            }
+            values.put(e.getKey(), value);
+        }
+    }
+
+    /** When the snapshot was taken (System.currentTimeMillis()). */
+    public long getTimeMillis() { return timeMillis; }
+
+    /** Names of every metric, sorted. */
+    public Set<String> getNames() { return values.keySet(); }
+
+    /**
+     * A counter's count.
+     *
+     * @param name the counter's name.
+     * @return the count, or 0 if there is no such counter.
+     */
+    public long getCounter(String name) {
+        Object v = values.get(name);
+        return (v instanceof Long) ? (Long) v : 0;
+    }
+
+    /**
+     * A gauge's value.
+     *
+     * @param name the gauge's name.
+     * @return the value, or 0 if there is no such gauge.
+     */
+    public long getGauge(String name) {
+        Object v = values.get(name);
+        return (v instanceof long[]) ? ((long[]) v)[0] : 0;
+    }
+
+    /**
+     * A gauge's highest value.
+     *
+     * @param name the gauge's name.
+     * @return the highest value, or 0 if there is no such gauge.
+     */
+    public long getGaugeMax(String name) {
+        Object v = values.get(name);
+        return (v instanceof long[]) ? ((long[]) v)[1] : 0;
+    }
+
+    /**
+     * A histogram.
+     *
+     * @param name the histogram's name.
+     * @return the histogram, or null if there is no such histogram.
+     */
+    public Histogram.Snapshot getHistogram(String name) {
+        Object v = values.get(name);
+        return (v instanceof Histogram.Snapshot) ? (Histogram.Snapshot) v : null;
+    }
+
+    /**
+     * Format the metrics whose names start with a prefix, one per line.
+     *
+     * @param prefix the prefix; "" for every metric.
+     * @return the formatted metrics.
+     */
+    public String format(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : values.tailMap(prefix).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            Object v = e.getValue();
+            if (v instanceof Long) {
+                sb.append(String.format(Locale.US, "%s %d%n", e.getKey(), v));
+            }
+            else if (v instanceof long[]) {
+                long[] g = (long[]) v;
+                sb.append(String.format(Locale.US, "%s %d (max %d)%n", e.getKey(), g[0], g[1]));
+            }
+            else {
+                sb.append(String.format(Locale.US, "%s %s%n", e.getKey(), v));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format("");
+    }
+}
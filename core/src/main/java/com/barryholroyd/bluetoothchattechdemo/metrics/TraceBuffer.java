@@ -0,0 +1,115 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of trace events; once it is full, each new event overwrites the
+ * oldest.
+ * <p>
+ *     Everything is allocated up front, in parallel arrays, so recording an event is a
+ *     few array stores with no allocation and no locking, from any thread. Each slot
+ *     carries the sequence number of the event in it, written last; dump() skips a
+ *     slot whose number changed while it was being read, i.e., one being overwritten.
+ */
+public class TraceBuffer
+{
+    /** Most arguments an event can have. */
+    public static final int MAX_ARGS = 3;
+
+    private final int mask;
+    private final TraceEvent[] events;
+    private final long[] times;
+    private final long[] threads;
+    private final long[] args;
+
+    /** Sequence number of the event in each slot; -1 while it is being written. */
+    private final AtomicLongArray seqs;
+
+    /** Sequence number of the next event. */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of events kept; a power of 2.
+     */
+    public TraceBuffer(int capacity) {
+        if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0)) {
+            throw new IllegalArgumentException("Capacity must be a power of 2.");
+        }
+        mask = capacity - 1;
+        events = new TraceEvent[capacity];
+        times = new long[capacity];
+        threads = new long[capacity];
+        args = new long[capacity * MAX_ARGS];
+        seqs = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            seqs.set(i, -1);
+        }
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event the event.
+     * @param a     first argument; ignored if the event has none.
+     * @param b     second argument; ignored if the event has fewer.
+     * @param c     third argument; ignored if the event has fewer.
+     */
+    public void record(TraceEvent event, long a, long b, long c) {
+        long seq = next.getAndIncrement();
+        int i = (int) seq & mask;
+        seqs.set(i, -1);
+        events[i] = event;
+        times[i] = System.nanoTime();
+        threads[i] = Thread.currentThread().getId();
+        args[i * MAX_ARGS] = a;
+        args[i * MAX_ARGS + 1] = b;
+        args[i * MAX_ARGS + 2] = c;
+        seqs.set(i, seq);
+    }
+
+    /** Number of events recorded, including those which have been overwritten. */
+    public long getCount() { return next.get(); }
+
+    /**
+     * Write the events still in the buffer, oldest first, one per line: time in ms
+     * since the oldest, thread id and the formatted event.
+     *
+     * @param out where to write them.
+     * @return number of events written.
+     */
+    public int dump(Writer out) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        long firstTime = 0;
+        int written = 0;
+        for (long seq = start; seq < end; seq++) {
+            int i = (int) seq & mask;
+            if (seqs.get(i) != seq) {
+                continue;
+            }
+            TraceEvent event = events[i];
+            long time = times[i];
+            long thread = threads[i];
+            long a = args[i * MAX_ARGS];
+            long b = args[i * MAX_ARGS + 1];
+            long c = args[i * MAX_ARGS + 2];
+            if (seqs.get(i) != seq) {
+                continue;
+            }
+            if (written == 0) {
+                firstTime = time;
+            }
+            out.write(String.format(Locale.US, "%12.3f [%d] %s%n",
+                    (time - firstTime) / 1e6, thread,
+                    String.format(Locale.US, event.getFormat(), a, b, c)));
+            written++;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,61 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+/**
+ * Events recorded by {@link Tracer}.
+ * <p>
+ *     Each event has a format for its arguments, which are all longs; it is only
+ *     applied when the trace is dumped. MAC addresses are passed as longs (see
+ *     Tracer.mac()) and formatted with %012x.
+ */
+public enum TraceEvent
+{
+    // Broadcasts.
+    RECEIVER_REGISTERED("receivers: registered; %d registered"),
+    RECEIVER_UNREGISTERED("receivers: unregistered; %d registered"),
+    DEVICE_FOUND("broadcast: device found"),
+    DISCOVERY_STARTED("broadcast: discovery started"),
+    DISCOVERY_FINISHED("broadcast: discovery finished"),
+    BLUETOOTH_STATE("broadcast: Bluetooth state %d -> %d"),
+    SCAN_MODE("broadcast: scan mode %d -> %d"),
+
+    // Incoming connections.
+    CONNECTION_ACCEPTED("listener: accepted a connection in %d us"),
+    CONNECTION_REJECTED("listener: rejected a connection in %d us"),
+
+    // Chat screen.
+    MESSAGE_QUEUED("chat: queued %d bytes"),
+    MESSAGE_DELIVERED("chat: delivered %d bytes"),
+    BROADCAST_QUEUED("chat: broadcast %d bytes to %d devices"),
+    BROADCAST_DONE("chat: broadcast sent=%d failed=%d skipped=%d"),
+    SEARCH("chat: search found %d matches in %d us"),
+
+    // Sessions.
+    SESSION_STARTED("server: started; waiting to read input"),
+    READ("server: read %d bytes"),
+    READ_FAILED("server: read failed; closing the connection"),
+    MESSAGES_RECEIVED("server: %d messages received; latest %d chars"),
+    FRAME_IGNORED("server: ignored frame of type %d"),
+    LINK_DEAD("server: nothing heard for %d ms; closing the connection"),
+    BYE_RECEIVED("server: remote device ended the chat"),
+    SESSION_STOPPING("server: stopping"),
+    CLOSE_FAILED("server: failed to close the connection"),
+    SESSION_REJECTED("sessions: at capacity; rejected %012x"),
+    SESSION_REPLACED("sessions: replacing session for %012x"),
+    CHANNEL_RESUMED("sessions: resuming channel for %012x (%d outstanding)"),
+    CONNECTION_LOST("sessions: connection to %012x lost; reconnecting=%d"),
+    RECONNECT_DROPPED("sessions: session with %012x has gone; dropping reconnect"),
+    SESSION_RESUMED("sessions: resumed %012x in %d ms"),
+    SESSION_ENDED("sessions: session with %012x ended"),
+    RECONNECT_ATTEMPT("reconnector: attempt %d to reconnect to %012x after %d ms"),
+    RECONNECT_FAILED("reconnector: attempt to reconnect to %012x failed"),
+    RECONNECT_GAVE_UP("reconnector: gave up on %012x after %d attempts");
+
+    private final String format;
+
+    TraceEvent(String _format) {
+        format = _format;
+    }
+
+    /** Format for the event's arguments, for String.format(). */
+    public String getFormat() { return format; }
+}
@@ -0,0 +1,123 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.MacAddress;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Structured tracing: typed events with up to three long arguments, recorded in an
+ * in-memory {@link TraceBuffer}.
+ * <p>
+ *     Unlike the app's Support.trace(), nothing is formatted when an event is recorded; the
+ *     arguments are stored as they are and only formatted when the buffer is dumped.
+ *     Tracing is switched on and off at compile time by ENABLED. When it is off, the
+ *     event() methods are empty and inlined away, and an argument which takes work
+ *     to compute (e.g., mac()) should be guarded with "if (Tracer.ENABLED)", which the
+ *     compiler removes along with the code it guards.
+ * <p>
+ *     The buffer can be dumped on demand (see dump()) and, once installCrashDump() has
+ *     been called, is dumped automatically when a thread dies of an uncaught exception.
+ */
+public class Tracer
+{
+    /** Compile-time switch for tracing. */
+    public static final boolean ENABLED = false;
+
+    /** Number of events kept. */
+    private static final int CAPACITY = 8192;
+
+    private static final TraceBuffer buffer = ENABLED ? new TraceBuffer(CAPACITY) : null;
+
+    private static boolean crashDumpInstalled = false;
+
+    private Tracer() {
+    }
+
+    /** Record an event with no arguments. */
+    public static void event(TraceEvent event) {
+        if (ENABLED)
+            buffer.record(event, 0, 0, 0);
+    }
+
+    /** Record an event with one argument. */
+    public static void event(TraceEvent event, long a) {
+        if (ENABLED)
+            buffer.record(event, a, 0, 0);
+    }
+
+    /** Record an event with two arguments. */
+    public static void event(TraceEvent event, long a, long b) {
+        if (ENABLED)
+            buffer.record(event, a, b, 0);
+    }
+
+    /** Record an event with three arguments. */
+    public static void event(TraceEvent event, long a, long b, long c) {
+        if (ENABLED)
+            buffer.record(event, a, b, c);
+    }
+
+    /**
+     * Convert a MAC address to a long, to be passed as an event argument.
+     *
+     * @param mac the address, e.g., "00:11:22:AA:BB:CC".
+     * @return the address as a 48-bit number; -1 if it isn't a valid address.
+     */
+    public static long mac(String mac) {
+        return MacAddress.parse(mac);
+    }
+
+    /**
+     * Write the events in the buffer to a file.
+     *
+     * @param file the file; replaced if it exists.
+     * @return number of events written; 0 if tracing is off.
+     */
+    public static int dump(File file) throws IOException {
+        if (!ENABLED)
+            return 0;
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            return buffer.dump(out);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Dump the buffer to "trace-crash-&lt;time&gt;.txt" in a directory when a thread
+     * dies of an uncaught exception, then pass the exception on to the handler which
+     * was installed before. Does nothing if tracing is off or it has already been
+     * installed.
+     *
+     * @param dir directory to write the dump to.
+     */
+    public static synchronized void installCrashDump(final File dir) {
+        if (!ENABLED || crashDumpInstalled)
+            return;
+        crashDumpInstalled = true;
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                try {
+                    dump(new File(dir, String.format(Locale.US,
+                            "trace-crash-%d.txt", System.currentTimeMillis())));
+                }
+                catch (IOException ioe) {
+                    // Nothing more can be done; the crash itself is reported below.
+                }
+                if (previous != null) {
+                    previous.uncaughtException(t, e);
+                }
+            }
+        });
+    }
+}
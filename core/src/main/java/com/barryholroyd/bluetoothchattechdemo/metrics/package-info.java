@@ -0,0 +1,11 @@
+/**
+ * Run-time metrics: counters, gauges and latency histograms; and structured tracing
+ * ({@link com.barryholroyd.bluetoothchattechdemo.metrics.Tracer}).
+ * <p>
+ *     Metrics are created in a
+ *     {@link com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry} by name and
+ *     updated without locks, so they can be left on in the hot paths. Like the protocol
+ *     package, this package has no Android dependencies so that it can be unit tested
+ *     on the development machine.
+ */
+package com.barryholroyd.bluetoothchattechdemo.metrics;
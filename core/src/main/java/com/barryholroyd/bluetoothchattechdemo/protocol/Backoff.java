@@ -0,0 +1,79 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, for retrying a connection.
+ * <p>
+ *     The nth delay is drawn at random from the upper half of
+ *     min(initial * 2^n, max), so that it roughly doubles after each failure without
+ *     several devices which lost their connections at the same moment all retrying in
+ *     step. After maxAttempts delays nextDelayMs() returns -1 to say that it is time to
+ *     give up.
+ * <p>
+ *     Not thread safe; each retry loop should have its own.
+ */
+public class Backoff
+{
+    /** Default delay before the first attempt. */
+    public static final long DEFAULT_INITIAL_MS = 500;
+
+    /** Default cap on the delay between attempts. */
+    public static final long DEFAULT_MAX_MS = 30000;
+
+    /** Default number of attempts before giving up. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private final long initialMs;
+    private final long maxMs;
+    private final int maxAttempts;
+    private final Random random;
+
+    /** Number of delays handed out since the last reset. */
+    private int attempts = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param _initialMs   delay before the first attempt.
+     * @param _maxMs       cap on the delay between attempts.
+     * @param _maxAttempts number of attempts before giving up.
+     * @param _random      source of jitter.
+     */
+    public Backoff(long _initialMs, long _maxMs, int _maxAttempts, Random _random) {
+        if ((_initialMs <= 0) || (_maxMs < _initialMs) || (_maxAttempts <= 0)) {
+            throw new IllegalArgumentException("Invalid backoff parameters.");
+        }
+        initialMs = _initialMs;
+        maxMs = _maxMs;
+        maxAttempts = _maxAttempts;
+        random = _random;
+    }
+
+    /**
+     * Get the delay before the next attempt.
+     *
+     * @return the delay in milliseconds, or -1 if maxAttempts have already been made.
+     */
+    public long nextDelayMs() {
+        if (attempts >= maxAttempts) {
+            return -1;
+        }
+        long ceiling = maxMs;
+        // Beyond 2^30 the doubling would overflow, and is well past any sensible cap.
+        if (attempts < 30) {
+            ceiling = Math.min(maxMs, initialMs << attempts);
+        }
+        attempts++;
+        long half = ceiling / 2;
+        return (ceiling - half) + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /** Number of attempts made since the last reset. */
+    public int getAttempts() { return attempts; }
+
+    /** Start again from the initial delay, e.g. once a connection has been made. */
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,136 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fan-out of one chat message to several remote devices.
+ * <p>
+ *     The message is encoded once and the result is shared by every device's
+ *     {@link ReliableChannel}: a message which fits in a single frame becomes one
+ *     {@link EncodedFrame}, and a larger one is queued on every channel using the
+ *     same (uncopied) byte array.
+ * <p>
+ *     Sending never blocks. A device whose channel already has peerQueueLimit
+ *     messages outstanding, or whose window is full, is skipped for this message, so
+ *     one slow device can't hold back the others or pile up an unbounded backlog. The
+ *     BroadcastCallback is called once, after every device has either acknowledged
+ *     the message, failed or been skipped.
+ */
+public class Broadcaster
+{
+    /** Default number of messages a channel may have outstanding before it is skipped. */
+    public static final int DEFAULT_PEER_QUEUE_LIMIT = 16;
+
+    /** Outcome of a broadcast. Called once, on whichever thread completes it last. */
+    public interface BroadcastCallback {
+        /**
+         * Every device has been dealt with.
+         *
+         * @param sent    number of devices which acknowledged the message.
+         * @param failed  number of devices whose write failed.
+         * @param skipped number of devices skipped because they were too far behind.
+         */
+        void onComplete(int sent, int failed, int skipped);
+    }
+
+    /** Messages a channel may have outstanding before it is skipped. */
+    private final int peerQueueLimit;
+
+    /**
+     * Constructor.
+     *
+     * @param _peerQueueLimit number of messages a channel may have outstanding before
+     *                        it is skipped.
+     */
+    public Broadcaster(int _peerQueueLimit) {
+        peerQueueLimit = _peerQueueLimit;
+    }
+
+    /**
+     * Send a chat message to every channel in the list. Never blocks.
+     * <p>
+     *     Messages larger than a single frame are not copied: the caller must not
+     *     modify the message until the callback has been called.
+     *
+     * @param channels one channel per remote device.
+     * @param message  buffer holding the message.
+     * @param off      offset of the message in the buffer.
+     * @param len      length of the message.
+     * @param callback completion callback; may be null.
+     * @return the number of channels the message was queued on.
+     */
+    public int broadcast(List<ReliableChannel> channels, byte[] message, int off, int len,
+                         BroadcastCallback callback) {
+        EncodedFrame frame = (len <= Frames.MAX_PAYLOAD)
+                ? EncodedFrame.encode(Frames.TYPE_CHAT, 0, message, off, len)
+                : null;
+
+        Fanout fanout = new Fanout(channels.size(), callback);
+        int queued = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            ReliableChannel channel = channels.get(i);
+            boolean accepted;
+            if (channel.backlog() >= peerQueueLimit) {
+                accepted = false;
+            }
+            else if (frame != null) {
+                accepted = channel.sendEncoded(frame, fanout);
+            }
+            else {
+                accepted = channel.send(message, off, len, fanout);
+            }
+            if (accepted) {
+                queued++;
+            }
+            else {
+                fanout.skip();
+            }
+        }
+        fanout.release();
+        return queued;
+    }
+
+    /**
+     * Collects the per-channel results of one broadcast. One extra count is held
+     * until broadcast() has finished queueing, so that channels which complete
+     * quickly can't report the broadcast as finished early.
+     */
+    private static class Fanout implements FrameWriter.SendCallback
+    {
+        private final BroadcastCallback callback;
+        private final AtomicInteger remaining;
+        private final AtomicInteger sent = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        Fanout(int channels, BroadcastCallback _callback) {
+            callback = _callback;
+            remaining = new AtomicInteger(channels + 1);
+        }
+
+        @Override
+        public void onSent() {
+            sent.incrementAndGet();
+            release();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            failed.incrementAndGet();
+            release();
+        }
+
+        void skip() {
+            skipped.incrementAndGet();
+            release();
+        }
+
+        void release() {
+            if ((remaining.decrementAndGet() == 0) && (callback != null)) {
+                callback.onComplete(sent.get(), failed.get(), skipped.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of reusable byte buffers.
+ * <p>
+ *     All buffers are allocated up front by the constructor. A producer (e.g.,
+ *     FileSender) acquires a buffer, fills it and passes it to a consumer (e.g., the
+ *     FrameWriter), which releases it back to the pool once it is done with it.
+ *     Nothing is allocated per buffer's worth of data. Received text uses the char
+ *     counterpart, {@link CharBufferPool}.
+ * <p>
+ *     When every buffer is in use acquire() blocks. That provides back-pressure: a
+ *     producer which gets ahead of its consumer simply waits until it catches up.
+ */
+public class BufferPool
+{
+    /** Buffers currently available for use. */
+    private final ArrayBlockingQueue<PooledBuffer> free;
+
+    /** Capacity of each buffer, in bytes. */
+    private final int bufferSize;
+
+    /**
+     * A byte buffer which belongs to a BufferPool.
+     */
+    public static class PooledBuffer {
+        private final BufferPool pool;
+        private final byte[] bytes;
+        private final ByteBuffer byteBuffer;
+        private int length = 0;
+
+        private PooledBuffer(BufferPool _pool, int size) {
+            pool = _pool;
+            bytes = new byte[size];
+            byteBuffer = ByteBuffer.wrap(bytes);
+        }
+
+        /** Backing array; only the first getLength() bytes are valid. */
+        public byte[] getBytes() { return bytes; }
+
+        /** Number of valid bytes in the buffer. */
+        public int getLength() { return length; }
+
+        /**
+         * NIO view of the backing array, for filling the buffer from a channel.
+         * Position and limit are left as the previous user set them.
+         */
+        public ByteBuffer getByteBuffer() { return byteBuffer; }
+
+        /** Set the number of valid bytes after filling the backing array directly. */
+        public void setLength(int len) {
+            if ((len < 0) || (len > bytes.length)) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "Length %d out of range (0..%d).", len, bytes.length));
+            }
+            length = len;
+        }
+
+        /**
+         * Replace the buffer's contents.
+         *
+         * @param src buffer to copy from.
+         * @param off offset of the first byte to copy.
+         * @param len number of bytes to copy.
+         */
+        public void put(byte[] src, int off, int len) {
+            if (len > bytes.length) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "Length %d exceeds buffer size %d.", len, bytes.length));
+            }
+            System.arraycopy(src, off, bytes, 0, len);
+            length = len;
+        }
+
+        /** Return the buffer to its pool. The caller must not use it afterwards. */
+        public void release() {
+            length = 0;
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Constructor -- allocate all of the buffers.
+     *
+     * @param count      number of buffers in the pool.
+     * @param _bufferSize capacity of each buffer, in bytes.
+     */
+    public BufferPool(int count, int _bufferSize) {
+        bufferSize = _bufferSize;
+        free = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(new PooledBuffer(this, bufferSize));
+        }
+    }
+
+    /**
+     * Get a buffer, waiting for one to be released if necessary.
+     *
+     * @return an empty buffer.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting.
+     */
+    public PooledBuffer acquire() throws InterruptedIOException {
+        try {
+            return free.take();
+        }
+        catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted waiting for a free buffer.");
+        }
+    }
+
+    /** Number of buffers not currently in use. */
+    public int available() { return free.size(); }
+
+    /** Capacity of each buffer, in bytes. */
+    public int getBufferSize() { return bufferSize; }
+
+    private void release(PooledBuffer buffer) {
+        if (!free.offer(buffer)) {
+            throw new IllegalStateException("Buffer released to a full pool.");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.InterruptedIOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of reusable char buffers, for decoded text.
+ * <p>
+ *     The char counterpart of {@link BufferPool}: all buffers are allocated up front,
+ *     a producer (e.g., the ChatServer read loop) acquires one and decodes into it, and
+ *     the consumer (e.g., the UI thread) releases it once it is done. acquire() blocks
+ *     while every buffer is in use, which holds the reader back until the UI catches up.
+ */
+public class CharBufferPool
+{
+    /** Buffers currently available for use. */
+    private final ArrayBlockingQueue<PooledChars> free;
+
+    /** Capacity of each buffer, in chars. */
+    private final int bufferSize;
+
+    /**
+     * A char buffer which belongs to a CharBufferPool.
+     */
+    public static class PooledChars {
+        private final CharBufferPool pool;
+        private final CharBuffer chars;
+
+        private PooledChars(CharBufferPool _pool, CharBuffer _chars) {
+            pool = _pool;
+            chars = _chars;
+        }
+
+        /**
+         * The buffer. It is empty and ready to be filled when acquired; the producer
+         * flips it once filled, so that the consumer can read it.
+         */
+        public CharBuffer getCharBuffer() { return chars; }
+
+        /**
+         * Return the buffer to its pool. The caller must not use it afterwards.
+         * Does nothing for a buffer which doesn't belong to a pool.
+         */
+        public void release() {
+            if (pool != null) {
+                chars.clear();
+                pool.release(this);
+            }
+        }
+    }
+
+    /**
+     * Wrap a buffer which doesn't belong to any pool (e.g., one holding a large
+     * reassembled message), so that it can travel the same path as pooled buffers.
+     *
+     * @param chars the buffer, ready to be read.
+     * @return the wrapped buffer; releasing it does nothing.
+     */
+    public static PooledChars wrap(CharBuffer chars) {
+        return new PooledChars(null, chars);
+    }
+
+    /**
+     * Constructor -- allocate all of the buffers.
+     *
+     * @param count       number of buffers in the pool.
+     * @param _bufferSize capacity of each buffer, in chars.
+     */
+    public CharBufferPool(int count, int _bufferSize) {
+        bufferSize = _bufferSize;
+        free = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(new PooledChars(this, CharBuffer.allocate(bufferSize)));
+        }
+    }
+
+    /**
+     * Get a buffer, waiting for one to be released if necessary.
+     *
+     * @return an empty buffer.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting.
+     */
+    public PooledChars acquire() throws InterruptedIOException {
+        try {
+            return free.take();
+        }
+        catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted waiting for a free buffer.");
+        }
+    }
+
+    /** Number of buffers not currently in use. */
+    public int available() { return free.size(); }
+
+    /** Capacity of each buffer, in chars. */
+    public int getBufferSize() { return bufferSize; }
+
+    private void release(PooledChars buffer) {
+        if (!free.offer(buffer)) {
+            throw new IllegalStateException("Buffer released to a full pool.");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+/**
+ * A complete frame, header and payload, encoded once and never modified afterwards.
+ * <p>
+ *     Used when the same frame is sent to several remote devices: every FrameWriter
+ *     is handed the same instance, so the message is encoded and copied once rather
+ *     than once per device. Large frames are written straight from the shared bytes
+ *     (see {@link FrameWriter#sendEncoded}).
+ */
+public final class EncodedFrame
+{
+    /** Header and payload; never modified after construction. */
+    private final byte[] bytes;
+
+    private EncodedFrame(byte[] _bytes) {
+        bytes = _bytes;
+    }
+
+    /**
+     * Encode a frame.
+     *
+     * @param type    frame type.
+     * @param flags   frame flags.
+     * @param payload buffer holding the payload; copied, so it may be reused afterwards.
+     * @param off     offset of the payload in the buffer.
+     * @param len     length of the payload; at most Frames.MAX_PAYLOAD.
+     * @return the encoded frame.
+     */
+    public static EncodedFrame encode(int type, int flags, byte[] payload, int off, int len) {
+        if ((len < 0) || (len > Frames.MAX_PAYLOAD)) {
+            throw new IllegalArgumentException("Payload too large for a single frame.");
+        }
+        byte[] bytes = new byte[Frames.HEADER_SIZE + len];
+        FrameEncoder.encode(type, flags, payload, off, len, bytes, 0);
+        return new EncodedFrame(bytes);
+    }
+
+    /** Total length of the frame, header included. */
+    public int length() { return bytes.length; }
+
+    /** The encoded frame. Must not be modified. */
+    byte[] getBytes() { return bytes; }
+}
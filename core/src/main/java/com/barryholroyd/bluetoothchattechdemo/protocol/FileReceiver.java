@@ -0,0 +1,278 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Receive a file sent by a FileSender, writing it straight into the destination file.
+ * <p>
+ *     On a TYPE_FILE_OFFER the destination "&lt;name&gt;.part" file is created at its
+ *     full size and each TYPE_FILE_DATA payload is written from the frame decoder's
+ *     buffer directly to its offset in the file's channel; nothing is buffered in
+ *     between. Every ACK_INTERVAL bytes the file is forced to storage, the confirmed
+ *     offset is recorded in a small "&lt;name&gt;.part.offset" side file and a
+ *     TYPE_FILE_ACK is sent. If the connection drops, a later offer of the same file
+ *     resumes from the recorded offset. When the last chunk arrives the part file is
+ *     renamed to its final name, provided that the whole file has arrived; if the
+ *     sender ends early the transfer fails and its part file isn't resumed.
+ * <p>
+ *     All methods are called on the connection's reader thread. Only one incoming
+ *     transfer is active at a time; a new offer abandons the current one.
+ */
+public class FileReceiver
+{
+    /** Number of bytes between forced writes and acknowledgements. */
+    static final long ACK_INTERVAL = 256 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String OFFSET_SUFFIX = ".part.offset";
+
+    private final File directory;
+    private final FrameWriter writer;
+    private final FileTransferListener listener;
+
+    /** State of the current transfer; channel is null when there is none. */
+    private FileChannel channel = null;
+    private long transferId;
+    private String name;
+    private long size;
+    private File partFile;
+    private File offsetFile;
+
+    /** Bytes written contiguously from the start of the file. */
+    private long received;
+
+    /** Bytes forced to storage and acknowledged. */
+    private long confirmed;
+
+    /** NIO view of the decoder's payload buffer, which is reused for every frame. */
+    private ByteBuffer payloadView = null;
+
+    /**
+     * Constructor.
+     *
+     * @param _directory directory to store received files in.
+     * @param _writer    writer for the connection, used to send acceptances and acks.
+     * @param _listener  progress callbacks.
+     */
+    public FileReceiver(File _directory, FrameWriter _writer, FileTransferListener _listener) {
+        directory = _directory;
+        writer = _writer;
+        listener = _listener;
+    }
+
+    /**
+     * Handle a TYPE_FILE_OFFER frame.
+     *
+     * @param payload frame payload.
+     * @param length  payload length.
+     * @throws IOException if the offer is malformed.
+     */
+    public void onOffer(byte[] payload, int length) throws IOException {
+        if (length < FileSender.DATA_HEADER) {
+            throw new ProtocolException("Short file offer.");
+        }
+        abandon(new IOException("Superseded by a new transfer."));
+
+        long id = Frames.getLong(payload, 0);
+        long offeredSize = Frames.getLong(payload, 8);
+        String offeredName = safeName(new String(payload, FileSender.DATA_HEADER,
+                length - FileSender.DATA_HEADER, "UTF-8"));
+        try {
+            open(id, offeredName, offeredSize);
+        }
+        catch (IOException ioe) {
+            channel = null;
+            listener.onFailed(offeredName, ioe);
+            return;
+        }
+        sendControl(Frames.TYPE_FILE_ACCEPT, confirmed);
+        listener.onProgress(name, confirmed, size);
+    }
+
+    /**
+     * Handle a TYPE_FILE_DATA frame.
+     *
+     * @param flags   frame flags; FLAG_LAST marks the end of the file.
+     * @param payload frame payload; only valid during this call.
+     * @param length  payload length.
+     * @throws IOException if the frame is malformed.
+     */
+    public void onData(int flags, byte[] payload, int length) throws IOException {
+        if (length < FileSender.DATA_HEADER) {
+            throw new ProtocolException("Short file data frame.");
+        }
+        if ((channel == null) || (Frames.getLong(payload, 0) != transferId)) {
+            return;
+        }
+        long offset = Frames.getLong(payload, 8);
+        int count = length - FileSender.DATA_HEADER;
+        if ((offset != received) || (offset + count > size)) {
+            abandon(new IOException(String.format(Locale.US,
+                    "Unexpected data at offset %d (expected %d).", offset, received)));
+            return;
+        }
+
+        try {
+            if ((payloadView == null) || (payloadView.array() != payload)) {
+                payloadView = ByteBuffer.wrap(payload);
+            }
+            payloadView.limit(length);
+            payloadView.position(FileSender.DATA_HEADER);
+            while (payloadView.hasRemaining()) {
+                channel.write(payloadView, offset + payloadView.position() - FileSender.DATA_HEADER);
+            }
+            received += count;
+
+            if ((flags & Frames.FLAG_LAST) != 0) {
+                if (received != size) {
+                    // The sender's file doesn't match its offer; start over next time.
+                    writeOffset(0);
+                    abandon(new IOException(String.format(Locale.US,
+                            "File ended at %d of %d bytes.", received, size)));
+                    return;
+                }
+                finish();
+            }
+            else if (received - confirmed >= ACK_INTERVAL) {
+                confirm();
+                listener.onProgress(name, confirmed, size);
+            }
+        }
+        catch (IOException ioe) {
+            if (channel != null) {
+                abandon(ioe);
+            }
+            else {
+                listener.onFailed(name, ioe);
+            }
+        }
+    }
+
+    /**
+     * Stop the current transfer, e.g. because the connection dropped. What has been
+     * confirmed so far is kept so that the transfer can be resumed.
+     *
+     * @param cause reason reported to the listener.
+     */
+    public void abandon(IOException cause) {
+        if (channel == null) {
+            return;
+        }
+        closeChannel();
+        listener.onFailed(name, cause);
+    }
+
+    /** Set up the part file, picking up where a previous attempt left off. */
+    private void open(long id, String offeredName, long offeredSize) throws IOException {
+        transferId = id;
+        name = offeredName;
+        size = offeredSize;
+        partFile = new File(directory, name + PART_SUFFIX);
+        offsetFile = new File(directory, name + OFFSET_SUFFIX);
+        confirmed = 0;
+
+        if (partFile.exists() && (partFile.length() == size) && offsetFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(offsetFile));
+            try {
+                long savedId = in.readLong();
+                long savedOffset = in.readLong();
+                if ((savedId == id) && (savedOffset >= 0) && (savedOffset <= size)) {
+                    confirmed = savedOffset;
+                }
+            }
+            catch (IOException ioe) {
+                // Unreadable side file: start from the beginning.
+            }
+            finally {
+                in.close();
+            }
+        }
+        received = confirmed;
+
+        RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+        try {
+            raf.setLength(size);
+        }
+        catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+        channel = raf.getChannel();
+        if (confirmed == 0) {
+            writeOffset(0);
+        }
+    }
+
+    /** Force received data to storage, record it and acknowledge it. */
+    private void confirm() throws IOException {
+        channel.force(false);
+        writeOffset(received);
+        confirmed = received;
+        sendControl(Frames.TYPE_FILE_ACK, confirmed);
+    }
+
+    /** The last chunk has arrived: make the file permanent. */
+    private void finish() throws IOException {
+        channel.force(false);
+        closeChannel();
+        File done = new File(directory, name);
+        if (done.exists() && !done.delete()) {
+            throw new IOException("Could not replace existing " + name);
+        }
+        if (!partFile.renameTo(done)) {
+            throw new IOException("Could not rename " + partFile.getName());
+        }
+        //noinspection ResultOfMethodCallIgnored
+        offsetFile.delete();
+        confirmed = received;
+        sendControl(Frames.TYPE_FILE_ACK, confirmed);
+        listener.onComplete(name, done);
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(offsetFile));
+        try {
+            out.writeLong(transferId);
+            out.writeLong(offset);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void sendControl(int type, long offset) {
+        byte[] payload = new byte[16];
+        Frames.putLong(payload, 0, transferId);
+        Frames.putLong(payload, 8, offset);
+        writer.send(type, 0, payload, 0, payload.length, null);
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            // Nothing more we can do.
+        }
+        channel = null;
+    }
+
+    /** Strip any directory components so a peer can't write outside "directory". */
+    private static String safeName(String offered) throws ProtocolException {
+        String base = new File(offered).getName();
+        if (base.isEmpty() || base.equals(".") || base.equals("..")) {
+            throw new ProtocolException("Invalid file name in offer: " + offered);
+        }
+        return base;
+    }
+}
@@ -0,0 +1,264 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Send a file over the connection, streaming it straight from a FileChannel.
+ * <p>
+ *     The file is never staged in memory: each TYPE_FILE_DATA frame is read from the
+ *     channel directly into a buffer from a small BufferPool, just behind the frame's
+ *     16 byte transfer id/offset prefix, and that buffer is handed to the FrameWriter
+ *     as the frame payload. The buffer goes back to the pool once the writer has
+ *     written it, so the pool size bounds both memory use and how far the sender can
+ *     get ahead of the link.
+ * <p>
+ *     The transfer starts with a TYPE_FILE_OFFER. The receiver answers with a
+ *     TYPE_FILE_ACCEPT carrying the offset to start from -- non-zero if an earlier
+ *     attempt at the same file was interrupted -- and confirms progress with
+ *     TYPE_FILE_ACK frames. The transfer id is derived from the file's name and size
+ *     and a checksum of its first and last blocks, so that a re-sent file is
+ *     recognised by the receiver and resumed, while a different file with the same
+ *     name and size (e.g., a regenerated dump) starts from the beginning instead of
+ *     being pieced together with the old one's bytes.
+ */
+public class FileSender extends Thread
+{
+    /** Size of the transfer id and offset which prefix each TYPE_FILE_DATA payload. */
+    public static final int DATA_HEADER = 16;
+
+    /** Largest amount of file data carried by one TYPE_FILE_DATA frame. */
+    static final int DATA_SIZE = Frames.MAX_PAYLOAD - DATA_HEADER;
+
+    /** Number of data frames which may be queued for writing at once. */
+    private static final int BUFFERS = 4;
+
+    /** How long to wait for the receiver to accept the offer. */
+    private static final long ACCEPT_TIMEOUT_MS = 30000;
+
+    private final FrameWriter writer;
+    private final FileChannel channel;
+    private final String name;
+    private final long size;
+
+    /** Set by run() before the offer is sent; 0 until then. */
+    private volatile long transferId = 0;
+
+    private final FileTransferListener listener;
+    private final BufferPool buffers = new BufferPool(BUFFERS, Frames.MAX_PAYLOAD);
+
+    /** Offset sent by the receiver in its TYPE_FILE_ACCEPT; -1 until then. */
+    private long acceptOffset = -1;
+
+    /** Highest offset the receiver has confirmed. */
+    private volatile long confirmed = 0;
+
+    /** Set by the writer if a frame can't be written. */
+    private volatile IOException writeFailure = null;
+
+    /**
+     * Constructor.
+     *
+     * @param _writer   writer for the connection.
+     * @param _channel  channel to read the file from; closed when the transfer ends.
+     * @param _name     name of the file, as presented to the receiver.
+     * @param _size     size of the file.
+     * @param _listener progress callbacks.
+     */
+    public FileSender(FrameWriter _writer, FileChannel _channel, String _name, long _size,
+                      FileTransferListener _listener) {
+        super("FileSender");
+        writer = _writer;
+        channel = _channel;
+        name = _name;
+        size = _size;
+        listener = _listener;
+    }
+
+    /**
+     * Derive a transfer id which is the same each time a given file is sent, and
+     * differs for a file with the same name and size but different contents at its
+     * start or end. Reads the file, so call it on the sending thread.
+     *
+     * @param channel channel to read the file from; its position isn't changed.
+     * @param name    name of the file.
+     * @param size    size of the file.
+     * @return the transfer id.
+     * @throws IOException if the file can't be read.
+     */
+    public static long transferId(FileChannel channel, String name, long size)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(DATA_SIZE, size));
+        readBlock(channel, 0, block);
+        crc.update(block.array(), 0, block.limit());
+        if (size > DATA_SIZE) {
+            readBlock(channel, size - DATA_SIZE, block);
+            crc.update(block.array(), 0, block.limit());
+        }
+        int nameAndSize = (name.hashCode() * 31) + (int) (size ^ (size >>> 32));
+        return ((long) nameAndSize << 32) | crc.getValue();
+    }
+
+    /** Fill "block" from "offset" in the file. */
+    private static void readBlock(FileChannel channel, long offset, ByteBuffer block)
+            throws IOException {
+        block.clear();
+        while (block.hasRemaining()) {
+            if (channel.read(block, offset + block.position()) < 0) {
+                throw new IOException("File shrank while being sent.");
+            }
+        }
+        block.flip();
+    }
+
+    /** The id of this transfer; 0 until the offer has been sent. */
+    public long getTransferId() { return transferId; }
+
+    /**
+     * The receiver has accepted the offer. Called on the reader thread.
+     *
+     * @param id     transfer id from the TYPE_FILE_ACCEPT frame.
+     * @param offset offset to start sending from.
+     */
+    public synchronized void onAccept(long id, long offset) {
+        if (id == transferId) {
+            acceptOffset = offset;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The receiver has stored the file up to an offset. Called on the reader thread.
+     *
+     * @param id     transfer id from the TYPE_FILE_ACK frame.
+     * @param offset number of bytes stored.
+     */
+    public void onAck(long id, long offset) {
+        if ((id != transferId) || (offset <= confirmed)) {
+            return;
+        }
+        confirmed = offset;
+        if (offset >= size) {
+            listener.onComplete(name, null);
+        }
+        else {
+            listener.onProgress(name, offset, size);
+        }
+    }
+
+    /** Abandon the transfer. The receiver keeps what it has so far. */
+    public void cancel() {
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            transferId = transferId(channel, name, size);
+            sendOffer();
+            long offset = waitForAccept();
+            listener.onProgress(name, offset, size);
+            sendData(offset);
+        }
+        catch (IOException ioe) {
+            listener.onFailed(name, ioe);
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                // Nothing more we can do.
+            }
+        }
+    }
+
+    private void sendOffer() throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int length = Math.min(DATA_HEADER + nameBytes.length, Frames.MAX_PAYLOAD);
+        byte[] payload = new byte[length];
+        Frames.putLong(payload, 0, transferId);
+        Frames.putLong(payload, 8, size);
+        System.arraycopy(nameBytes, 0, payload, DATA_HEADER, length - DATA_HEADER);
+        if (!writer.send(Frames.TYPE_FILE_OFFER, 0, payload, 0, length, null)) {
+            throw new IOException("Outgoing queue is full.");
+        }
+    }
+
+    private synchronized long waitForAccept() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_TIMEOUT_MS);
+        try {
+            while (acceptOffset < 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new IOException("No response to file offer.");
+                }
+                wait(remaining);
+            }
+        }
+        catch (InterruptedException ie) {
+            throw new InterruptedIOException("File transfer cancelled.");
+        }
+        if (acceptOffset > size) {
+            throw new IOException(String.format(Locale.US,
+                    "Receiver asked for offset %d beyond end of file (%d).", acceptOffset, size));
+        }
+        return acceptOffset;
+    }
+
+    /** Stream the file from "offset" to the end. */
+    private void sendData(long offset) throws IOException {
+        do {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            final BufferPool.PooledBuffer buffer = buffers.acquire();
+            byte[] bytes = buffer.getBytes();
+            Frames.putLong(bytes, 0, transferId);
+            Frames.putLong(bytes, 8, offset);
+
+            ByteBuffer bb = buffer.getByteBuffer();
+            bb.limit(DATA_HEADER + (int) Math.min(DATA_SIZE, size - offset));
+            bb.position(DATA_HEADER);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, offset + bb.position() - DATA_HEADER) < 0) {
+                    buffer.release();
+                    throw new IOException("File shrank while being sent.");
+                }
+            }
+            buffer.setLength(bb.position());
+            offset += bb.position() - DATA_HEADER;
+
+            int flags = (offset == size) ? Frames.FLAG_LAST : 0;
+            FrameWriter.SendCallback callback = new FrameWriter.SendCallback() {
+                @Override
+                public void onSent() {
+                    buffer.release();
+                }
+
+                @Override
+                public void onFailed(IOException ioe) {
+                    writeFailure = ioe;
+                    buffer.release();
+                }
+            };
+            while (!writer.send(Frames.TYPE_FILE_DATA, flags,
+                    bytes, 0, buffer.getLength(), callback)) {
+                // Chat traffic has filled the queue; give it a moment to drain.
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException ie) {
+                    buffer.release();
+                    throw new InterruptedIOException("File transfer cancelled.");
+                }
+            }
+        } while (offset < size);
+    }
+}
@@ -0,0 +1,36 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Progress and completion callbacks for a file transfer, in either direction.
+ * Called on the thread which drives the transfer (the reader or the sender thread).
+ */
+public interface FileTransferListener
+{
+    /**
+     * Progress report.
+     *
+     * @param name      name of the file.
+     * @param confirmed number of bytes the receiver has durably stored.
+     * @param size      total size of the file.
+     */
+    void onProgress(String name, long confirmed, long size);
+
+    /**
+     * The whole file has been stored by the receiver.
+     *
+     * @param name name of the file.
+     * @param file the completed file on the receiving side; null on the sending side.
+     */
+    void onComplete(String name, File file);
+
+    /**
+     * The transfer failed. It can be resumed by sending the same file again.
+     *
+     * @param name name of the file.
+     * @param ioe  the cause of the failure.
+     */
+    void onFailed(String name, IOException ioe);
+}
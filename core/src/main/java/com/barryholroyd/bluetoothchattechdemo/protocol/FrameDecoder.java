@@ -0,0 +1,137 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Locale;
+
+/**
+ * Streaming frame decoder.
+ * <p>
+ *     Bytes are fed in as they arrive from the connection, in whatever pieces the
+ *     underlying read() happens to return. A single read may contain a fraction of a
+ *     frame, exactly one frame or several frames; the decoder keeps the partial header
+ *     and payload between calls and hands each complete frame to the listener.
+ * <p>
+ *     The payload buffer is allocated once and reused, so the payload passed to the
+ *     listener is only valid for the duration of the callback.
+ */
+public class FrameDecoder
+{
+    /**
+     * Receives complete frames from the decoder.
+     */
+    public interface FrameListener {
+        /**
+         * Called once for each complete frame.
+         *
+         * @param type    frame type.
+         * @param flags   frame flags.
+         * @param payload buffer holding the payload; only valid during this call.
+         * @param length  length of the payload, starting at offset 0.
+         * @throws IOException if the listener can't process the frame.
+         */
+        void onFrame(int type, int flags, byte[] payload, int length) throws IOException;
+    }
+
+    private final FrameListener listener;
+
+    /** Header of the frame currently being assembled. */
+    private final byte[] header = new byte[Frames.HEADER_SIZE];
+
+    /** Number of header bytes received so far. */
+    private int headerCount = 0;
+
+    /** Payload of the frame currently being assembled. */
+    private final byte[] payload = new byte[Frames.MAX_PAYLOAD];
+
+    /** Payload length announced by the current header; -1 while reading the header. */
+    private int payloadLength = -1;
+
+    /** Number of payload bytes received so far. */
+    private int payloadCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param _listener callback for complete frames.
+     */
+    public FrameDecoder(FrameListener _listener) {
+        listener = _listener;
+    }
+
+    /**
+     * Do a single read from the input stream and decode whatever it returned.
+     *
+     * @param in  stream to read from.
+     * @param buf scratch buffer to read into.
+     * @return the number of bytes read, or -1 at end of stream.
+     * @throws IOException if the read fails or the data is not a valid frame stream.
+     */
+    public int readFrom(InputStream in, byte[] buf) throws IOException {
+        int count = in.read(buf, 0, buf.length);
+        if (count > 0) {
+            decode(buf, 0, count);
+        }
+        return count;
+    }
+
+    /**
+     * Decode a block of bytes.
+     *
+     * @param buf buffer holding the bytes.
+     * @param off offset of the first byte.
+     * @param len number of bytes.
+     * @throws IOException if the data is not a valid frame stream, or the listener fails.
+     */
+    public void decode(byte[] buf, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            if (payloadLength < 0) {
+                int n = Math.min(Frames.HEADER_SIZE - headerCount, end - off);
+                System.arraycopy(buf, off, header, headerCount, n);
+                headerCount += n;
+                off += n;
+                if (headerCount < Frames.HEADER_SIZE) {
+                    return;
+                }
+                payloadLength = checkHeader();
+                payloadCount = 0;
+            }
+
+            int n = Math.min(payloadLength - payloadCount, end - off);
+            System.arraycopy(buf, off, payload, payloadCount, n);
+            payloadCount += n;
+            off += n;
+            if (payloadCount == payloadLength) {
+                int type  = header[Frames.OFFSET_TYPE] & 0xff;
+                int flags = header[Frames.OFFSET_FLAGS] & 0xff;
+                reset();
+                listener.onFrame(type, flags, payload, payloadCount);
+            }
+        }
+    }
+
+    /** Discard any partially decoded frame. */
+    public void reset() {
+        headerCount = 0;
+        payloadLength = -1;
+    }
+
+    /** Validate the completed header and return the payload length. */
+    private int checkHeader() throws ProtocolException {
+        int type = header[Frames.OFFSET_TYPE] & 0xff;
+        int length = Frames.getLength(header, 0);
+        if ((type == 0) || (type > Frames.TYPE_MAX)) {
+            reset();
+            throw new ProtocolException(String.format(Locale.US,
+                    "Unknown frame type: %d.", type));
+        }
+        if ((length < 0) || (length > Frames.MAX_PAYLOAD)) {
+            reset();
+            throw new ProtocolException(String.format(Locale.US,
+                    "Frame length %d out of range (0..%d).", length, Frames.MAX_PAYLOAD));
+        }
+        return length;
+    }
+}
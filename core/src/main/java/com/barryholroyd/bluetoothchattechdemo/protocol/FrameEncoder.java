@@ -0,0 +1,60 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Encode frames onto an output stream.
+ * <p>
+ *     The header and payload are copied into a single scratch buffer and written with
+ *     one write() call so that a frame is never split across two RFCOMM packets by
+ *     the encoder itself. The scratch buffer is allocated once, so instances are not
+ *     thread safe; callers that write from more than one thread must synchronize.
+ */
+public class FrameEncoder
+{
+    /** Scratch buffer holding the frame currently being written. */
+    private final byte[] frame = new byte[Frames.MAX_FRAME];
+
+    /**
+     * Encode a frame and write it to the output stream.
+     *
+     * @param out     stream to write to.
+     * @param type    frame type.
+     * @param flags   frame flags.
+     * @param payload buffer holding the payload.
+     * @param off     offset of the payload in the buffer.
+     * @param len     length of the payload.
+     * @throws IOException if the write fails.
+     */
+    public void write(OutputStream out, int type, int flags, byte[] payload, int off, int len)
+            throws IOException {
+        int size = encode(type, flags, payload, off, len, frame, 0);
+        out.write(frame, 0, size);
+    }
+
+    /**
+     * Encode a frame into a caller-supplied buffer.
+     *
+     * @param type    frame type.
+     * @param flags   frame flags.
+     * @param payload buffer holding the payload.
+     * @param off     offset of the payload in the buffer.
+     * @param len     length of the payload.
+     * @param dst     buffer to encode the frame into.
+     * @param dstOff  offset in dst at which to start.
+     * @return the number of bytes written into dst.
+     */
+    public static int encode(int type, int flags, byte[] payload, int off, int len,
+                             byte[] dst, int dstOff) {
+        if ((len < 0) || (len > Frames.MAX_PAYLOAD)) {
+            String msg = String.format(Locale.US,
+                    "Payload length %d out of range (0..%d).", len, Frames.MAX_PAYLOAD);
+            throw new IllegalArgumentException(msg);
+        }
+        Frames.putHeader(dst, dstOff, type, flags, len);
+        System.arraycopy(payload, off, dst, dstOff + Frames.HEADER_SIZE, len);
+        return Frames.HEADER_SIZE + len;
+    }
+}
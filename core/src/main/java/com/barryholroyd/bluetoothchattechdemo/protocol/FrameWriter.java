@@ -0,0 +1,398 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Background writer for outgoing frames.
+ * <p>
+ *     Callers queue frames with send(), which never blocks; a dedicated thread drains
+ *     the queue and writes the frames to the output stream. Whatever has accumulated
+ *     in the queue by the time the writer gets to it is encoded into a single
+ *     coalescing buffer and written with one write() call, so a burst of small
+ *     messages costs a few large socket writes rather than one write per message.
+ * <p>
+ *     Messages too large for a single frame are queued with sendChunked(). They are
+ *     split into TYPE_CHUNK frames as they are written, one chunk per pass of the
+ *     writer loop, and whatever small frames have been queued in the meantime go out
+ *     ahead of the next chunk. A multi-megabyte message therefore never holds up
+ *     interactive traffic by more than one chunk.
+ * <p>
+ *     Frames which have already been encoded, typically because the same frame is
+ *     being sent to several remote devices, are queued with sendEncoded(). Small ones
+ *     are copied into the coalescing buffer like any other frame; larger ones are
+ *     written straight from the shared {@link EncodedFrame} without being copied.
+ * <p>
+ *     Each frame may carry a SendCallback, which is called on the writer thread once
+ *     the frame has been written or has failed. After a write fails, the writer exits
+ *     and every frame still queued, or sent later, fails as well.
+ */
+public class FrameWriter extends Thread
+{
+    /** Default limit on the number of frames waiting to be written. */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /** Limit on the number of chunked messages waiting to be written. */
+    public static final int CHUNKED_QUEUE_SIZE = 4;
+
+    /** Size of the coalescing buffer; a full-size frame always fits. */
+    static final int BATCH_SIZE = 2 * Frames.MAX_FRAME;
+
+    /** Payload size of each TYPE_CHUNK frame. */
+    static final int CHUNK_SIZE = Frames.MAX_PAYLOAD;
+
+    /**
+     * Encoded frames at least this long are written directly rather than copied into
+     * the coalescing buffer.
+     */
+    static final int DIRECT_WRITE_SIZE = 1024;
+
+    /**
+     * Per-frame completion callback. Called on the writer thread.
+     */
+    public interface SendCallback {
+        /** The frame has been handed to the output stream. */
+        void onSent();
+
+        /**
+         * The frame could not be written.
+         *
+         * @param ioe the cause of the failure.
+         */
+        void onFailed(IOException ioe);
+    }
+
+    /** A frame waiting to be written. */
+    private static class Outbound {
+        final int type;
+        final int flags;
+        final byte[] payload;
+        final int off;
+        final int len;
+        final SendCallback callback;
+
+        /** Already-encoded frame, or null if the frame is encoded by the writer. */
+        final EncodedFrame encoded;
+
+        Outbound(int _type, int _flags, byte[] _payload, int _off, int _len,
+                 SendCallback _callback) {
+            type = _type;
+            flags = _flags;
+            payload = _payload;
+            off = _off;
+            len = _len;
+            callback = _callback;
+            encoded = null;
+        }
+
+        Outbound(EncodedFrame _encoded, SendCallback _callback) {
+            type = 0;
+            flags = 0;
+            payload = null;
+            off = 0;
+            len = _encoded.length() - Frames.HEADER_SIZE;
+            callback = _callback;
+            encoded = _encoded;
+        }
+    }
+
+    /** A message being sent as a series of TYPE_CHUNK frames. */
+    private static class Chunked {
+        final byte[] message;
+        final int end;
+        final SendCallback callback;
+
+        /** Offset of the next chunk to be scheduled. */
+        int next;
+
+        Chunked(byte[] _message, int off, int len, SendCallback _callback) {
+            message = _message;
+            next = off;
+            end = off + len;
+            callback = _callback;
+        }
+    }
+
+    /** Queued after a chunked message to wake a writer waiting for small frames. */
+    private static final Outbound WAKEUP = new Outbound(0, 0, null, 0, 0, null);
+
+    private final OutputStream out;
+    private final ArrayBlockingQueue<Outbound> queue;
+
+    /** Chunked messages waiting to be written. */
+    private final ArrayBlockingQueue<Chunked> chunkedQueue =
+            new ArrayBlockingQueue<>(CHUNKED_QUEUE_SIZE);
+
+    /** Chunked message currently being written; only used by the writer thread. */
+    private Chunked current = null;
+
+    /** Frames taken from the queue for the current batch; only used by the writer thread. */
+    private final ArrayList<Outbound> pending = new ArrayList<>();
+
+    /** Frames encoded into the coalescing buffer but not yet written. */
+    private final ArrayList<Outbound> batched = new ArrayList<>();
+
+    /** Coalescing buffer; only used by the writer thread. */
+    private final byte[] batch = new byte[BATCH_SIZE];
+
+    /** Set once the writer has stopped accepting frames. */
+    private volatile IOException closedCause = null;
+
+    /**
+     * Constructor.
+     *
+     * @param _out       stream to write frames to.
+     * @param queueSize  maximum number of frames waiting to be written.
+     */
+    public FrameWriter(OutputStream _out, int queueSize) {
+        super("FrameWriter");
+        out = _out;
+        queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Queue a frame for writing. Never blocks.
+     * <p>
+     *     The payload is not copied: the caller must not modify it until the callback
+     *     has been called.
+     *
+     * @param type     frame type.
+     * @param flags    frame flags.
+     * @param payload  buffer holding the payload.
+     * @param off      offset of the payload in the buffer.
+     * @param len      length of the payload; at most Frames.MAX_PAYLOAD.
+     * @param callback completion callback; may be null.
+     * @return true if the frame was queued; false if the queue is full. If the writer
+     *         has already stopped, the callback's onFailed() is called and true is
+     *         returned.
+     */
+    public boolean send(int type, int flags, byte[] payload, int off, int len,
+                        SendCallback callback) {
+        if (len > Frames.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too large for a single frame.");
+        }
+        return offer(new Outbound(type, flags, payload, off, len, callback));
+    }
+
+    /**
+     * Queue an already-encoded frame for writing. Never blocks.
+     * <p>
+     *     The same EncodedFrame may be queued on any number of writers at once.
+     *
+     * @param frame    the encoded frame.
+     * @param callback completion callback; may be null.
+     * @return true if the frame was queued; false if the queue is full. If the writer
+     *         has already stopped, the callback's onFailed() is called and true is
+     *         returned.
+     */
+    public boolean sendEncoded(EncodedFrame frame, SendCallback callback) {
+        return offer(new Outbound(frame, callback));
+    }
+
+    /** Add a frame to the queue, or fail it if the writer has stopped. */
+    private boolean offer(Outbound frame) {
+        IOException cause = closedCause;
+        if (cause != null) {
+            fail(frame, cause);
+            return true;
+        }
+        if (!queue.offer(frame)) {
+            return false;
+        }
+        // Close the race with a writer which stopped after the check above.
+        cause = closedCause;
+        if ((cause != null) && queue.remove(frame)) {
+            fail(frame, cause);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a message of any size for writing as a series of TYPE_CHUNK frames.
+     * Never blocks.
+     * <p>
+     *     The message is not copied: the caller must not modify it until the callback
+     *     has been called. The callback reports on the message as a whole.
+     *
+     * @param message  buffer holding the message.
+     * @param off      offset of the message in the buffer.
+     * @param len      length of the message.
+     * @param callback completion callback; may be null.
+     * @return true if the message was queued; false if too many chunked messages are
+     *         already waiting. If the writer has already stopped, the callback's
+     *         onFailed() is called and true is returned.
+     */
+    public boolean sendChunked(byte[] message, int off, int len, SendCallback callback) {
+        Chunked chunked = new Chunked(message, off, len, callback);
+        IOException cause = closedCause;
+        if (cause != null) {
+            fail(chunked.callback, cause);
+            return true;
+        }
+        if (!chunkedQueue.offer(chunked)) {
+            return false;
+        }
+        // If the frame queue is full the writer is busy and will get to it anyway.
+        queue.offer(WAKEUP);
+        cause = closedCause;
+        if ((cause != null) && chunkedQueue.remove(chunked)) {
+            fail(chunked.callback, cause);
+        }
+        return true;
+    }
+
+    /** Number of frames waiting to be written. */
+    public int queued() { return queue.size(); }
+
+    /** Stop the writer. Frames still queued fail with an IOException. */
+    public void close() {
+        if (closedCause == null) {
+            closedCause = new IOException("Writer closed.");
+        }
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (current == null) {
+                    current = chunkedQueue.poll();
+                }
+                if (current == null) {
+                    pending.add(queue.take());
+                }
+                queue.drainTo(pending);
+                if (current != null) {
+                    scheduleChunk();
+                }
+                writeBatch();
+            }
+        }
+        catch (InterruptedException ie) {
+            // close() was called.
+        }
+        catch (IOException ioe) {
+            if (closedCause == null) {
+                closedCause = ioe;
+            }
+        }
+        finally {
+            if (closedCause == null) {
+                closedCause = new IOException("Writer stopped.");
+            }
+            failAll(batched);
+            failAll(pending);
+            queue.drainTo(pending);
+            failAll(pending);
+            if (current != null) {
+                fail(current.callback, closedCause);
+                current = null;
+            }
+            Chunked chunked;
+            while ((chunked = chunkedQueue.poll()) != null) {
+                fail(chunked.callback, closedCause);
+            }
+        }
+    }
+
+    /**
+     * Add the next chunk of the current chunked message to "pending". The message's
+     * callback rides on its last chunk.
+     */
+    private void scheduleChunk() {
+        int len = Math.min(CHUNK_SIZE, current.end - current.next);
+        boolean last = (current.next + len == current.end);
+        pending.add(new Outbound(Frames.TYPE_CHUNK, last ? Frames.FLAG_LAST : 0,
+                current.message, current.next, len, last ? current.callback : null));
+        current.next += len;
+        if (last) {
+            current = null;
+        }
+    }
+
+    /** Encode and write everything in "pending", flushing whenever the buffer fills. */
+    private void writeBatch() throws IOException {
+        int used = 0;
+        int i = 0;
+        try {
+            for (; i < pending.size(); i++) {
+                Outbound frame = pending.get(i);
+                if (frame == WAKEUP) {
+                    continue;
+                }
+                if (used + Frames.HEADER_SIZE + frame.len > batch.length) {
+                    flush(used);
+                    used = 0;
+                }
+                if (frame.encoded == null) {
+                    used += FrameEncoder.encode(frame.type, frame.flags,
+                            frame.payload, frame.off, frame.len, batch, used);
+                }
+                else if (frame.encoded.length() < DIRECT_WRITE_SIZE) {
+                    byte[] bytes = frame.encoded.getBytes();
+                    System.arraycopy(bytes, 0, batch, used, bytes.length);
+                    used += bytes.length;
+                }
+                else {
+                    // Keep frames in order: write out what's batched so far first.
+                    flush(used);
+                    used = 0;
+                    writeDirect(frame);
+                    continue;
+                }
+                batched.add(frame);
+            }
+        }
+        finally {
+            // Frames before i are either written or in "batched".
+            pending.subList(0, i).clear();
+        }
+        flush(used);
+    }
+
+    /** Write an encoded frame straight from its shared bytes. */
+    private void writeDirect(Outbound frame) throws IOException {
+        byte[] bytes = frame.encoded.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+        if (frame.callback != null) {
+            frame.callback.onSent();
+        }
+    }
+
+    /** Write the coalescing buffer and report success for the frames it held. */
+    private void flush(int used) throws IOException {
+        if (used == 0) {
+            return;
+        }
+        out.write(batch, 0, used);
+        out.flush();
+        for (int i = 0; i < batched.size(); i++) {
+            SendCallback callback = batched.get(i).callback;
+            if (callback != null) {
+                callback.onSent();
+            }
+        }
+        batched.clear();
+    }
+
+    private void failAll(ArrayList<Outbound> frames) {
+        for (int i = 0; i < frames.size(); i++) {
+            fail(frames.get(i), closedCause);
+        }
+        frames.clear();
+    }
+
+    private static void fail(Outbound frame, IOException cause) {
+        fail(frame.callback, cause);
+    }
+
+    private static void fail(SendCallback callback, IOException cause) {
+        if (callback != null) {
+            callback.onFailed(cause);
+        }
+    }
+}
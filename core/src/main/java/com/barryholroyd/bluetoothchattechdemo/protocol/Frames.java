@@ -0,0 +1,135 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+/**
+ * Frame layout and frame type constants.
+ * <p>
+ *     Each frame on the wire consists of a fixed size header followed by the payload:
+ * <pre>
+ *     +------+-------+----------------------+-------------------+
+ *     | type | flags | payload length (BE)  | payload ...       |
+ *     | 1    | 1     | 4                    | 0..MAX_PAYLOAD    |
+ *     +------+-------+----------------------+-------------------+
+ * </pre>
+ * <p>
+ *     The length is a big-endian unsigned value; lengths above MAX_PAYLOAD are treated
+ *     as a protocol error rather than trusted, so that a corrupt stream can't make the
+ *     receiver allocate or wait for an arbitrary amount of data.
+ */
+public final class Frames
+{
+    /** Size of the frame header, in bytes. */
+    public static final int HEADER_SIZE = 6;
+
+    /** Largest payload a single frame may carry, in bytes. */
+    public static final int MAX_PAYLOAD = 16 * 1024;
+
+    /** Largest frame, header included. */
+    public static final int MAX_FRAME = HEADER_SIZE + MAX_PAYLOAD;
+
+    /** Frame type: a complete UTF-8 chat message. */
+    public static final int TYPE_CHAT = 1;
+
+    /**
+     * Frame type: one piece of a chat message too large for a single frame. The
+     * chunks of a message are sent in order; the last one carries FLAG_LAST.
+     * TYPE_CHAT frames may be interleaved between the chunks.
+     */
+    public static final int TYPE_CHUNK = 2;
+
+    /** Frame type: sender offers a file. Payload: transfer id, size, UTF-8 name. */
+    public static final int TYPE_FILE_OFFER = 3;
+
+    /** Frame type: receiver accepts a file. Payload: transfer id, offset to start at. */
+    public static final int TYPE_FILE_ACCEPT = 4;
+
+    /** Frame type: file contents. Payload: transfer id, offset, data. */
+    public static final int TYPE_FILE_DATA = 5;
+
+    /** Frame type: receiver has durably stored the file up to an offset. Payload: transfer id, offset. */
+    public static final int TYPE_FILE_ACK = 6;
+
+    /**
+     * Frame type: cumulative acknowledgement of chat messages. Payload: the number of
+     * chat messages received so far on the sender's current stream.
+     */
+    public static final int TYPE_ACK = 7;
+
+    /**
+     * Frame type: sent first on every connection to identify the sender's message
+     * streams. Payload: the sender's outgoing stream id, the id of the incoming
+     * stream it has received from and the number of messages received on it.
+     */
+    public static final int TYPE_HELLO = 8;
+
+    /** Frame type: heartbeat request. Payload: the sender's timestamp, echoed back. */
+    public static final int TYPE_PING = 9;
+
+    /** Frame type: heartbeat reply. Payload: the payload of the TYPE_PING being answered. */
+    public static final int TYPE_PONG = 10;
+
+    /**
+     * Frame type: the sender's user has ended the chat, so the connection is about to
+     * be closed on purpose and should not be reconnected. No payload.
+     */
+    public static final int TYPE_BYE = 11;
+
+    /** Highest frame type currently defined. */
+    static final int TYPE_MAX = TYPE_BYE;
+
+    /** Flag: this is the final chunk of a chunked message. */
+    public static final int FLAG_LAST = 0x01;
+
+    /** Offset of the type byte within the header. */
+    static final int OFFSET_TYPE = 0;
+
+    /** Offset of the flags byte within the header. */
+    static final int OFFSET_FLAGS = 1;
+
+    /** Offset of the payload length within the header. */
+    static final int OFFSET_LENGTH = 2;
+
+    private Frames() {}
+
+    /**
+     * Write a frame header into a buffer.
+     *
+     * @param dst    buffer to write the header into.
+     * @param off    offset in dst at which to start writing.
+     * @param type   frame type.
+     * @param flags  frame flags.
+     * @param length payload length.
+     */
+    static void putHeader(byte[] dst, int off, int type, int flags, int length) {
+        dst[off + OFFSET_TYPE]       = (byte) type;
+        dst[off + OFFSET_FLAGS]      = (byte) flags;
+        dst[off + OFFSET_LENGTH]     = (byte) (length >>> 24);
+        dst[off + OFFSET_LENGTH + 1] = (byte) (length >>> 16);
+        dst[off + OFFSET_LENGTH + 2] = (byte) (length >>> 8);
+        dst[off + OFFSET_LENGTH + 3] = (byte) length;
+    }
+
+    /** Write a big-endian long into a buffer. */
+    public static void putLong(byte[] dst, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /** Read a big-endian long out of a buffer. */
+    public static long getLong(byte[] src, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[off + i] & 0xff);
+        }
+        return value;
+    }
+
+    /** Read the payload length out of a frame header. */
+    static int getLength(byte[] src, int off) {
+        return ((src[off + OFFSET_LENGTH]     & 0xff) << 24)
+             | ((src[off + OFFSET_LENGTH + 1] & 0xff) << 16)
+             | ((src[off + OFFSET_LENGTH + 2] & 0xff) << 8)
+             |  (src[off + OFFSET_LENGTH + 3] & 0xff);
+    }
+}
@@ -0,0 +1,166 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.net.ProtocolException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeat for one connection: measures round trip time and notices quickly when
+ * the remote device has gone away.
+ * <p>
+ *     A blocking read on a Bluetooth socket can take a very long time to fail when
+ *     the remote device walks out of range. Instead, every interval the heartbeat
+ *     thread sends a TYPE_PING carrying a timestamp, which the remote device echoes
+ *     back in a TYPE_PONG; the difference gives an RTT sample for the connection's
+ *     {@link RttEstimator}. Anything at all arriving from the remote device counts as
+ *     a sign of life, and once nothing has arrived for missedBeats intervals the link
+ *     is declared dead and the Listener is told, so that the connection can be closed.
+ * <p>
+ *     The reader thread reports everything it reads with onReceived() and passes
+ *     TYPE_PING and TYPE_PONG frames to onFrame().
+ */
+public class Heartbeat extends Thread
+{
+    /** Default interval between pings. */
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+
+    /** Default number of intervals without hearing from the remote device before the link is dead. */
+    public static final int DEFAULT_MISSED_BEATS = 3;
+
+    /** Size of TYPE_PING and TYPE_PONG payloads: a timestamp. */
+    static final int PING_SIZE = 8;
+
+    /** Told about RTT samples and about the link dying. Called on the heartbeat or reader thread. */
+    public interface Listener {
+        /**
+         * A new RTT sample has been taken.
+         *
+         * @param estimator the connection's RTT estimator.
+         */
+        void onRtt(RttEstimator estimator);
+
+        /**
+         * Nothing has been heard from the remote device for too long. Called once, on
+         * the heartbeat thread, which then exits.
+         *
+         * @param silentNanos how long it has been since anything arrived.
+         */
+        void onLinkDead(long silentNanos);
+    }
+
+    private final FrameWriter writer;
+    private final Listener listener;
+    private final long intervalNanos;
+    private final long deadAfterNanos;
+    private final RttEstimator estimator = new RttEstimator();
+
+    /** When anything was last received from the remote device (System.nanoTime()). */
+    private volatile long lastReceived;
+
+    /** Set by close(). */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param _writer      writer for the connection.
+     * @param _listener    told about RTT samples and the link dying.
+     * @param intervalMs   interval between pings.
+     * @param missedBeats  number of intervals without hearing from the remote device
+     *                     after which the link is declared dead.
+     */
+    public Heartbeat(FrameWriter _writer, Listener _listener, long intervalMs, int missedBeats) {
+        super("Heartbeat");
+        setDaemon(true);
+        writer = _writer;
+        listener = _listener;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        deadAfterNanos = intervalNanos * missedBeats;
+        lastReceived = System.nanoTime();
+    }
+
+    /** The connection's RTT estimator. */
+    public RttEstimator getEstimator() { return estimator; }
+
+    /** Stop the heartbeat. */
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+
+    /**
+     * Record that data has arrived from the remote device. Called by the reader thread
+     * after each read.
+     *
+     * @param now System.nanoTime().
+     */
+    public void onReceived(long now) {
+        lastReceived = now;
+    }
+
+    /**
+     * Handle a TYPE_PING or TYPE_PONG frame. Called on the reader thread.
+     *
+     * @param type    frame type.
+     * @param payload frame payload.
+     * @param length  payload length.
+     * @return false if the frame isn't one of the heartbeat's.
+     * @throws ProtocolException if the frame is malformed.
+     */
+    public boolean onFrame(int type, byte[] payload, int length) throws ProtocolException {
+        if ((type != Frames.TYPE_PING) && (type != Frames.TYPE_PONG)) {
+            return false;
+        }
+        if (length != PING_SIZE) {
+            throw new ProtocolException(String.format(Locale.US,
+                    "Frame of type %d has length %d; expected %d.", type, length, PING_SIZE));
+        }
+        if (type == Frames.TYPE_PING) {
+            // The decoder reuses its payload buffer, so the echo needs its own copy.
+            byte[] pong = new byte[PING_SIZE];
+            System.arraycopy(payload, 0, pong, 0, PING_SIZE);
+            writer.send(Frames.TYPE_PONG, 0, pong, 0, PING_SIZE, null);
+        }
+        else {
+            estimator.sample(System.nanoTime() - Frames.getLong(payload, 0));
+            listener.onRtt(estimator);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                if (!tick(System.nanoTime())) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            // close() was called.
+        }
+    }
+
+    /**
+     * Check the deadline and send a ping. Called once per interval.
+     *
+     * @param now System.nanoTime().
+     * @return false if the link has been declared dead.
+     */
+    boolean tick(long now) {
+        long silent = now - lastReceived;
+        if (silent >= deadAfterNanos) {
+            if (!closed) {
+                listener.onLinkDead(silent);
+            }
+            return false;
+        }
+        byte[] ping = new byte[PING_SIZE];
+        Frames.putLong(ping, 0, now);
+        // If the queue is full the link is busy; the next interval will try again.
+        writer.send(Frames.TYPE_PING, 0, ping, 0, PING_SIZE, null);
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+/**
+ * Bluetooth MAC addresses as numbers.
+ * <p>
+ *     Kept here, with no dependencies, so that both the device lists and the trace
+ *     buffer can use it without either depending on the other.
+ */
+public class MacAddress
+{
+    private MacAddress() {}
+
+    /**
+     * Convert a MAC address to a number.
+     *
+     * @param mac the address, e.g., "00:11:22:AA:BB:CC".
+     * @return the address as a 48-bit number; -1 if it isn't a valid address.
+     */
+    public static long parse(String mac) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            int d = Character.digit(mac.charAt(i), 16);
+            if (d >= 0) {
+                value = (value << 4) | d;
+                digits++;
+            }
+            else if (mac.charAt(i) != ':') {
+                return -1;
+            }
+        }
+        return (digits == 12) ? value : -1;
+    }
+}
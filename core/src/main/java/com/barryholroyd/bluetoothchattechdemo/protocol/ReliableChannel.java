@@ -0,0 +1,593 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reliable, ordered delivery of chat messages to one remote device, across
+ * reconnections.
+ * <p>
+ *     Every chat message sent to the device goes through its ReliableChannel and is
+ *     given a sequence number: its position in the stream of messages sent so far.
+ *     RFCOMM delivers in order and without loss while a connection is up, so the
+ *     number isn't carried in the data frames themselves (which keeps broadcast frames
+ *     shareable between devices); each side counts the messages it receives and
+ *     returns the count in a cumulative TYPE_ACK. Sequence numbers are
+ *     assigned as messages are written to the socket, because the writer lets small
+ *     messages overtake a large chunked one and the count must match the order in
+ *     which the remote device completes them.
+ * <p>
+ *     At most "window" messages may be unacknowledged at once; send() returns false
+ *     once the window is full. Within the window, messages are queued on the writer
+ *     as fast as it will take them, so the link is kept busy rather than waiting for
+ *     each message to be acknowledged.
+ * <p>
+ *     Each direction of the conversation is a stream with a random id. The channel
+ *     outlives any one connection: when the connection drops it is detached, and
+ *     when a new connection is made to the same device it is attach()ed to it and
+ *     sends a TYPE_HELLO with its stream ids and how many messages it has received.
+ *     When the remote device's HELLO arrives, messages it has confirmed are released
+ *     and every other outstanding message is retransmitted, in order, ahead of
+ *     anything sent later. A remote device which has lost track of this channel's
+ *     stream (e.g., because it was restarted) starts counting from zero again and
+ *     simply gets every outstanding message.
+ * <p>
+ *     The old connection's writer may still be finishing when the HELLO arrives, and a
+ *     message it wrote has been counted by the remote device even though the writer
+ *     hasn't said so yet. So the HELLO isn't acted on until the old writer has
+ *     reported every message it was given as written (numbering it as usual) or
+ *     failed; otherwise such a message would be sent again and shown twice.
+ * <p>
+ *     Each message's SendCallback reports delivery: onSent() once the remote device has
+ *     acknowledged it, onFailed() if the channel is closed first. Callbacks are never
+ *     called with the channel's lock held.
+ */
+public class ReliableChannel
+{
+    /** Default limit on the number of unacknowledged messages. */
+    public static final int DEFAULT_WINDOW = 32;
+
+    /** Size of a TYPE_HELLO payload: two stream ids and a count. */
+    static final int HELLO_SIZE = 24;
+
+    /** Size of a TYPE_ACK payload: a count. */
+    static final int ACK_SIZE = 8;
+
+    /** Message states. */
+    private static final int UNSENT  = 0;
+    private static final int QUEUED  = 1;
+    private static final int WRITTEN = 2;
+    private static final int FAILED  = 3;
+
+    /** An outstanding message. */
+    private static class Pending {
+        final byte[] message;
+        final int off;
+        final int len;
+        final EncodedFrame frame;
+        final FrameWriter.SendCallback callback;
+
+        int state = UNSENT;
+
+        /** The connection it was last queued on. */
+        int epoch = 0;
+
+        /** Sequence number; assigned when the message is written. */
+        long seq = 0;
+
+        Pending(byte[] _message, int _off, int _len, EncodedFrame _frame,
+                FrameWriter.SendCallback _callback) {
+            message = _message;
+            off = _off;
+            len = _len;
+            frame = _frame;
+            callback = _callback;
+        }
+    }
+
+    /**
+     * Writer callback for one attempt at sending a message. The epoch identifies the
+     * connection it was queued on.
+     */
+    private class Attempt implements FrameWriter.SendCallback {
+        final Pending pending;
+        final int epoch;
+
+        Attempt(Pending _pending, int _epoch) {
+            pending = _pending;
+            epoch = _epoch;
+        }
+
+        @Override
+        public void onSent() {
+            onWritten(pending, epoch);
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            // The connection is going down; the message is resent after attach().
+            onWriteFailed(pending, epoch);
+        }
+    }
+
+    private final int window;
+
+    /** Id of the stream of messages sent by this channel; never 0. */
+    private final long outStreamId;
+
+    /** Outstanding messages in the order they were sent; at most "window" of them. */
+    private final ArrayList<Pending> outstanding = new ArrayList<>();
+
+    /** Writer for the current connection; null while disconnected. */
+    private FrameWriter writer = null;
+
+    /** Incremented on every attach(). */
+    private int epoch = 0;
+
+    /** Set once the remote device's HELLO has arrived on the current connection. */
+    private boolean handshaken = false;
+
+    /**
+     * A HELLO which arrived while an earlier connection's writer still had messages
+     * (its stream ids and count), and the connection it arrived on; null if none.
+     */
+    private long[] heldHello = null;
+    private Connection heldHelloConnection = null;
+
+    /** Sequence number for the next message written. */
+    private long nextSeq = 1;
+
+    /**
+     * Highest sequence number the remote device has acknowledged. An ACK can arrive
+     * before the writer has reported the message written, so this is checked then too.
+     */
+    private long ackedSeq = 0;
+
+    /** Id of the remote device's stream, as given in its HELLO; 0 if unknown. */
+    private long inStreamId = 0;
+
+    /** Number of messages received on inStreamId. */
+    private long received = 0;
+
+    /** Value of "received" in the last ACK or HELLO sent. */
+    private long receivedAcked = 0;
+
+    /** Set by close(). */
+    private IOException closedCause = null;
+
+    /** Statistics. */
+    private long delivered = 0;
+    private long retransmitted = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param _window maximum number of unacknowledged messages.
+     */
+    public ReliableChannel(int _window) {
+        window = _window;
+        Random random = new Random();
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        outStreamId = id;
+    }
+
+    /**
+     * Queue a chat message for reliable delivery. Never blocks.
+     * <p>
+     *     The message is not copied: the caller must not modify it until the callback
+     *     has been called.
+     *
+     * @param message  buffer holding the message.
+     * @param off      offset of the message in the buffer.
+     * @param len      length of the message.
+     * @param callback delivery callback; may be null.
+     * @return false if the window is full and the message was not queued. If the
+     *         channel has been closed, the callback's onFailed() is called and true
+     *         is returned.
+     */
+    public boolean send(byte[] message, int off, int len, FrameWriter.SendCallback callback) {
+        return add(new Pending(message, off, len, null, callback));
+    }
+
+    /**
+     * Queue a chat message which has already been encoded as a single TYPE_CHAT frame,
+     * e.g., because the same frame is being sent to several devices. Never blocks.
+     *
+     * @param frame    the encoded frame; may be shared with other channels.
+     * @param callback delivery callback; may be null.
+     * @return as for send().
+     */
+    public boolean sendEncoded(EncodedFrame frame, FrameWriter.SendCallback callback) {
+        return add(new Pending(null, 0, 0, frame, callback));
+    }
+
+    private boolean add(Pending pending) {
+        IOException cause;
+        synchronized (this) {
+            cause = closedCause;
+            if (cause == null) {
+                if (outstanding.size() >= window) {
+                    return false;
+                }
+                outstanding.add(pending);
+                pump();
+                return true;
+            }
+        }
+        if (pending.callback != null) {
+            pending.callback.onFailed(cause);
+        }
+        return true;
+    }
+
+    /**
+     * One connection to the remote device, as seen by the channel. Everything the
+     * connection's reader thread tells the channel goes through here, so that a reader
+     * which is still draining a connection the channel has moved on from can't upset
+     * the counts.
+     */
+    public class Connection
+    {
+        private final FrameWriter connWriter;
+        private final int connEpoch;
+
+        private Connection(FrameWriter _connWriter, int _connEpoch) {
+            connWriter = _connWriter;
+            connEpoch = _connEpoch;
+        }
+
+        /**
+         * Handle a TYPE_ACK or TYPE_HELLO frame.
+         *
+         * @param type    frame type.
+         * @param payload frame payload.
+         * @param length  payload length.
+         * @return false if the frame isn't one of the channel's.
+         * @throws IOException if the frame is malformed.
+         */
+        public boolean onFrame(int type, byte[] payload, int length) throws IOException {
+            if (type == Frames.TYPE_ACK) {
+                checkLength(type, length, ACK_SIZE);
+                onAck(this, Frames.getLong(payload, 0));
+                return true;
+            }
+            if (type == Frames.TYPE_HELLO) {
+                checkLength(type, length, HELLO_SIZE);
+                onHello(this, Frames.getLong(payload, 0), Frames.getLong(payload, 8),
+                        Frames.getLong(payload, 16));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Record that a chat message has arrived from the remote device, whether or
+         * not it could be used.
+         */
+        public void onMessageReceived() {
+            synchronized (ReliableChannel.this) {
+                if (isCurrent(this)) {
+                    received++;
+                }
+            }
+        }
+
+        /**
+         * Acknowledge any messages received since the last acknowledgement. Called
+         * after each read, so that a burst of messages is acknowledged once.
+         */
+        public void flushAck() {
+            synchronized (ReliableChannel.this) {
+                if (!isCurrent(this) || !handshaken) {
+                    return;
+                }
+                if (received != receivedAcked) {
+                    byte[] ack = new byte[ACK_SIZE];
+                    Frames.putLong(ack, 0, received);
+                    if (writer.send(Frames.TYPE_ACK, 0, ack, 0, ack.length, null)) {
+                        receivedAcked = received;
+                    }
+                }
+                // The writer may have been too full to take everything last time.
+                pump();
+            }
+        }
+
+        /**
+         * The connection has gone down. Outstanding messages are kept for the next
+         * connection. Ignored if the channel has already moved on to another one.
+         */
+        public void detach() {
+            synchronized (ReliableChannel.this) {
+                if (isCurrent(this)) {
+                    writer = null;
+                    handshaken = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start using a new connection to the remote device, in place of any earlier one.
+     * Sends a HELLO; outstanding and new messages are held back until the remote
+     * device's HELLO arrives.
+     *
+     * @param _writer writer for the new connection; already started.
+     * @return the connection, for the connection's reader thread to report to.
+     */
+    public synchronized Connection attach(FrameWriter _writer) {
+        writer = _writer;
+        epoch++;
+        handshaken = false;
+        heldHello = null;
+        heldHelloConnection = null;
+        byte[] hello = new byte[HELLO_SIZE];
+        Frames.putLong(hello, 0, outStreamId);
+        Frames.putLong(hello, 8, inStreamId);
+        Frames.putLong(hello, 16, received);
+        receivedAcked = received;
+        writer.send(Frames.TYPE_HELLO, 0, hello, 0, hello.length, null);
+        return new Connection(_writer, epoch);
+    }
+
+    private boolean isCurrent(Connection connection) {
+        return (connection.connEpoch == epoch) && (writer == connection.connWriter);
+    }
+
+    /**
+     * Close the channel for good. Every outstanding message fails.
+     *
+     * @param cause reported to the callbacks.
+     */
+    public void close(IOException cause) {
+        ArrayList<Pending> failed;
+        synchronized (this) {
+            if (closedCause != null) {
+                return;
+            }
+            closedCause = cause;
+            writer = null;
+            failed = new ArrayList<>(outstanding);
+            outstanding.clear();
+        }
+        for (int i = 0; i < failed.size(); i++) {
+            FrameWriter.SendCallback callback = failed.get(i).callback;
+            if (callback != null) {
+                callback.onFailed(cause);
+            }
+        }
+    }
+
+    /** Number of messages sent but not yet acknowledged. */
+    public synchronized int backlog() { return outstanding.size(); }
+
+    /** Number of messages acknowledged by the remote device. */
+    public synchronized long getDelivered() { return delivered; }
+
+    /** Number of messages sent again after a reconnection. */
+    public synchronized long getRetransmitted() { return retransmitted; }
+
+    /** Number of messages received on the remote device's current stream. */
+    public synchronized long getReceived() { return received; }
+
+    /** True once close() has been called. */
+    public synchronized boolean isClosed() { return closedCause != null; }
+
+    private void onAck(Connection connection, long count) {
+        ArrayList<Pending> acked;
+        synchronized (this) {
+            if (!isCurrent(connection)) {
+                return;
+            }
+            if (count > ackedSeq) {
+                ackedSeq = count;
+            }
+            acked = release(count);
+        }
+        deliver(acked);
+    }
+
+    private void onHello(Connection connection,
+                         long peerOutStreamId, long peerInStreamId, long peerReceived) {
+        ArrayList<Pending> acked;
+        synchronized (this) {
+            if (!isCurrent(connection)) {
+                return;
+            }
+            if (awaitingOldWriter()) {
+                heldHello = new long[] { peerOutStreamId, peerInStreamId, peerReceived };
+                heldHelloConnection = connection;
+                return;
+            }
+            acked = handshake(peerOutStreamId, peerInStreamId, peerReceived);
+        }
+        deliver(acked);
+    }
+
+    /**
+     * True if a message queued on an earlier connection hasn't yet been reported
+     * written or failed. Only messages queued on earlier connections can be QUEUED
+     * before the current connection's HELLO.
+     */
+    private boolean awaitingOldWriter() {
+        for (int i = 0; i < outstanding.size(); i++) {
+            if (outstanding.get(i).state == QUEUED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Act on a HELLO held back by onHello(), if the earlier connection's writer has now
+     * reported on all of its messages. Called with the lock held.
+     *
+     * @return messages the HELLO acknowledged, if it was acted on.
+     */
+    private ArrayList<Pending> releaseHeldHello() {
+        if ((heldHello == null) || awaitingOldWriter()) {
+            return null;
+        }
+        long[] hello = heldHello;
+        Connection connection = heldHelloConnection;
+        heldHello = null;
+        heldHelloConnection = null;
+        if (!isCurrent(connection)) {
+            return null;
+        }
+        return handshake(hello[0], hello[1], hello[2]);
+    }
+
+    /**
+     * Act on the remote device's HELLO: release what it has received and resend the
+     * rest. Called with the lock held.
+     *
+     * @return messages the HELLO acknowledged; may be null.
+     */
+    private ArrayList<Pending> handshake(long peerOutStreamId, long peerInStreamId,
+                                         long peerReceived) {
+        ArrayList<Pending> acked = null;
+        if (peerOutStreamId != inStreamId) {
+            // A new stream from the remote device: start counting again.
+            inStreamId = peerOutStreamId;
+            received = 0;
+            receivedAcked = 0;
+        }
+        if (peerInStreamId == outStreamId) {
+            acked = release(peerReceived);
+            nextSeq = peerReceived + 1;
+        }
+        else {
+            // The remote device doesn't know this stream; it counts from zero.
+            nextSeq = 1;
+        }
+        ackedSeq = nextSeq - 1;
+        for (int i = 0; i < outstanding.size(); i++) {
+            Pending pending = outstanding.get(i);
+            if (pending.state == WRITTEN) {
+                retransmitted++;
+            }
+            pending.state = UNSENT;
+            pending.seq = 0;
+        }
+        handshaken = true;
+        pump();
+        return acked;
+    }
+
+    /** Remove and return the written messages with sequence numbers up to "count". */
+    private ArrayList<Pending> release(long count) {
+        ArrayList<Pending> acked = null;
+        for (int i = 0; i < outstanding.size(); ) {
+            Pending pending = outstanding.get(i);
+            if ((pending.state == WRITTEN) && (pending.seq <= count)) {
+                outstanding.remove(i);
+                if (acked == null) {
+                    acked = new ArrayList<>();
+                }
+                acked.add(pending);
+                delivered++;
+            }
+            else {
+                i++;
+            }
+        }
+        if (acked != null) {
+            pump();
+        }
+        return acked;
+    }
+
+    private static void deliver(ArrayList<Pending> acked) {
+        if (acked == null) {
+            return;
+        }
+        for (int i = 0; i < acked.size(); i++) {
+            FrameWriter.SendCallback callback = acked.get(i).callback;
+            if (callback != null) {
+                callback.onSent();
+            }
+        }
+    }
+
+    /**
+     * A message has been written to the socket: it now has a sequence number. This
+     * holds even if the channel has since moved on to another connection, as the
+     * remote device will have counted it.
+     */
+    private void onWritten(Pending pending, int _epoch) {
+        ArrayList<Pending> acked = null;
+        ArrayList<Pending> helloAcked;
+        synchronized (this) {
+            if ((pending.epoch != _epoch) || (pending.state != QUEUED)) {
+                return;
+            }
+            pending.state = WRITTEN;
+            pending.seq = nextSeq++;
+            if (pending.seq <= ackedSeq) {
+                acked = release(ackedSeq);
+            }
+            pump();
+            helloAcked = releaseHeldHello();
+        }
+        deliver(acked);
+        deliver(helloAcked);
+    }
+
+    /** A message couldn't be written; it is sent again after the next HELLO. */
+    private void onWriteFailed(Pending pending, int _epoch) {
+        ArrayList<Pending> helloAcked;
+        synchronized (this) {
+            if ((pending.epoch != _epoch) || (pending.state != QUEUED)) {
+                return;
+            }
+            pending.state = FAILED;
+            helloAcked = releaseHeldHello();
+        }
+        deliver(helloAcked);
+    }
+
+    /** Queue unsent messages on the writer, in order, until it is full. */
+    private void pump() {
+        if (!handshaken || (writer == null)) {
+            return;
+        }
+        for (int i = 0; i < outstanding.size(); i++) {
+            Pending pending = outstanding.get(i);
+            if (pending.state != UNSENT) {
+                continue;
+            }
+            Attempt attempt = new Attempt(pending, epoch);
+            boolean queued;
+            if (pending.frame != null) {
+                queued = writer.sendEncoded(pending.frame, attempt);
+            }
+            else if (pending.len <= Frames.MAX_PAYLOAD) {
+                queued = writer.send(Frames.TYPE_CHAT, 0,
+                        pending.message, pending.off, pending.len, attempt);
+            }
+            else {
+                queued = writer.sendChunked(pending.message, pending.off, pending.len, attempt);
+            }
+            if (!queued) {
+                return;
+            }
+            pending.state = QUEUED;
+            pending.epoch = epoch;
+        }
+    }
+
+    private static void checkLength(int type, int length, int expected)
+            throws ProtocolException {
+        if (length != expected) {
+            throw new ProtocolException(String.format(Locale.US,
+                    "Frame of type %d has length %d; expected %d.", type, length, expected));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+/**
+ * Smoothed round trip time and jitter, computed as in RFC 6298 (the TCP
+ * retransmission timer): SRTT is an exponentially weighted moving average of the
+ * samples with gain 1/8, and RTTVAR is the moving average of their deviation from
+ * SRTT with gain 1/4.
+ * <p>
+ *     Thread safe.
+ */
+public class RttEstimator
+{
+    private long srttNanos = 0;
+    private long rttvarNanos = 0;
+    private long lastNanos = 0;
+    private long samples = 0;
+
+    /**
+     * Add a round trip time measurement.
+     *
+     * @param rttNanos the measured round trip time, in nanoseconds.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (samples == 0) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+        }
+        else {
+            long deviation = Math.abs(srttNanos - rttNanos);
+            rttvarNanos += (deviation - rttvarNanos) / 4;
+            srttNanos += (rttNanos - srttNanos) / 8;
+        }
+        lastNanos = rttNanos;
+        samples++;
+    }
+
+    /** Smoothed round trip time in nanoseconds; 0 until the first sample. */
+    public synchronized long getSmoothedRttNanos() { return srttNanos; }
+
+    /** Round trip time variation (jitter) in nanoseconds; 0 until the first sample. */
+    public synchronized long getRttVarNanos() { return rttvarNanos; }
+
+    /** Most recent sample in nanoseconds; 0 until the first sample. */
+    public synchronized long getLastRttNanos() { return lastNanos; }
+
+    /** Number of samples taken. */
+    public synchronized long getSampleCount() { return samples; }
+}
@@ -0,0 +1,103 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ *     A ring buffer indexed by two ever-increasing counters: the producer only ever
+ *     writes "tail" and the consumer only ever writes "head", so neither needs a lock
+ *     or a compare-and-set. Each side publishes its counter with an ordered write
+ *     (lazySet) after filling or emptying a slot, which is all the other side needs to
+ *     see the slot's contents. Nothing is allocated after construction.
+ * <p>
+ *     offer() must only be called from the producer thread and poll() only from the
+ *     consumer thread; size() and isEmpty() may be called from either.
+ *
+ * @param <E> element type.
+ */
+public class SpscQueue<E>
+{
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+
+    /** Index of the next element to poll; only written by the consumer. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Index of the next slot to fill; only written by the producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity largest number of elements the queue can hold; rounded up to a
+     *                 power of two.
+     */
+    public SpscQueue(int capacity) {
+        if ((capacity <= 0) || (capacity > (1 << 30))) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid capacity: %d.", capacity));
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element. Producer thread only; never blocks.
+     *
+     * @param e the element; must not be null.
+     * @return false if the queue is full.
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("Null element.");
+        }
+        long t = tail.get();
+        if (t - head.get() >= slots.length()) {
+            return false;
+        }
+        slots.lazySet((int) t & mask, e);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element. Consumer thread only; never blocks.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    public E poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E e = slots.get(index);
+        slots.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /** Number of elements in the queue; only a snapshot if the other side is active. */
+    public int size() {
+        // Read head first: tail can only have moved further on since.
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    /** True if the queue is empty; only a snapshot if the other side is active. */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Largest number of elements the queue can hold. */
+    public int capacity() {
+        return slots.length();
+    }
+}
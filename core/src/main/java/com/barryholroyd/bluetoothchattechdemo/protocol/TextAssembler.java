@@ -0,0 +1,147 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Locale;
+
+/**
+ * Reassemble chunked text messages from TYPE_CHUNK frames, decoding as they arrive.
+ * <p>
+ *     Each chunk is decoded from UTF-8 by a {@link TextDecoder} as soon as it arrives,
+ *     rather than the bytes being collected and decoded in one go at the end, so a
+ *     large message is built up incrementally. Chunk boundaries fall wherever the
+ *     sender's writer cut the message, often in the middle of a multi-byte character;
+ *     the decoder carries the partial character over to the next chunk. The buffer
+ *     grows by doubling.
+ * <p>
+ *     The limit on message size is in bytes, as sent. UTF-8 never decodes to more
+ *     chars than bytes, so the buffer never holds more than the limit in chars, which
+ *     is up to twice the limit in bytes of memory. A message which would exceed the
+ *     limit is dropped (its remaining chunks are skipped) and reported to the listener
+ *     instead. A completed message is handed to the listener along with ownership of
+ *     the CharBuffer holding it; the assembler starts a fresh buffer for the next
+ *     message.
+ */
+public class TextAssembler
+{
+    /** Default limit on the size of a message, in bytes. */
+    public static final int DEFAULT_MAX_MESSAGE = 8 * 1024 * 1024;
+
+    /** Initial size of the reassembly buffer, in chars. */
+    private static final int INITIAL_SIZE = 4 * Frames.MAX_PAYLOAD;
+
+    /**
+     * Receives reassembled messages.
+     */
+    public interface TextListener {
+        /**
+         * A complete message has been reassembled.
+         *
+         * @param text the message, ready to be read; the listener now owns it.
+         * @throws IOException if the listener can't process the message.
+         */
+        void onText(CharBuffer text) throws IOException;
+
+        /**
+         * A message was dropped because it exceeded the size limit.
+         *
+         * @param length number of bytes received before the message was dropped.
+         */
+        void onMessageTooLarge(long length);
+    }
+
+    private final TextListener listener;
+    private final int maxMessage;
+    private final TextDecoder decoder = new TextDecoder();
+
+    /** Message being reassembled; null between messages. */
+    private CharBuffer text = null;
+
+    /** Bytes received for the message being reassembled. */
+    private long received = 0;
+
+    /** Set while skipping the rest of an oversized message. */
+    private boolean discarding = false;
+
+    /**
+     * Constructor.
+     *
+     * @param _listener   callback for reassembled messages.
+     * @param _maxMessage largest message that will be reassembled, in bytes.
+     */
+    public TextAssembler(TextListener _listener, int _maxMessage) {
+        if (_maxMessage <= 0) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid message limit: %d.", _maxMessage));
+        }
+        listener = _listener;
+        maxMessage = _maxMessage;
+    }
+
+    /**
+     * Add a TYPE_CHUNK frame's payload to the message being reassembled.
+     *
+     * @param flags   frame flags; FLAG_LAST completes the message.
+     * @param payload buffer holding the chunk.
+     * @param len     length of the chunk, starting at offset 0.
+     * @throws IOException if the listener fails.
+     */
+    public void onChunk(int flags, byte[] payload, int len) throws IOException {
+        boolean last = (flags & Frames.FLAG_LAST) != 0;
+
+        if (!discarding && (received + len > maxMessage)) {
+            discarding = true;
+            text = null;
+            decoder.reset();
+        }
+        received += len;
+        if (discarding) {
+            if (last) {
+                long dropped = received;
+                reset();
+                listener.onMessageTooLarge(dropped);
+            }
+            return;
+        }
+
+        ensureCapacity(decoder.maxChars(len));
+        decoder.decode(payload, 0, len, text);
+        if (last) {
+            decoder.finish(text);
+            CharBuffer message = text;
+            text = null;
+            received = 0;
+            message.flip();
+            listener.onText(message);
+        }
+    }
+
+    /** Largest message that will be reassembled, in bytes. */
+    public int getMaxMessage() { return maxMessage; }
+
+    /** Discard any partially reassembled message (e.g., when the connection drops). */
+    public void reset() {
+        text = null;
+        received = 0;
+        discarding = false;
+        decoder.reset();
+    }
+
+    /** Make sure there is room for "more" chars after those already decoded. */
+    private void ensureCapacity(int more) {
+        if (text == null) {
+            text = CharBuffer.allocate(Math.min(Math.max(INITIAL_SIZE, more), maxMessage));
+        }
+        else if (more > text.remaining()) {
+            long needed = (long) text.position() + more;
+            long size = text.capacity();
+            while (size < needed) {
+                size *= 2;
+            }
+            CharBuffer larger = CharBuffer.allocate((int) Math.min(size, maxMessage));
+            text.flip();
+            larger.put(text);
+            text = larger;
+        }
+    }
+}
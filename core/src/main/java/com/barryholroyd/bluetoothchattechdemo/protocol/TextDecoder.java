@@ -0,0 +1,113 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+
+/**
+ * Streaming UTF-8 decoder for text which arrives in pieces.
+ * <p>
+ *     Text is decoded straight into the caller's CharBuffer, with no intermediate
+ *     String. A multi-byte character split between two pieces is not corrupted: the
+ *     bytes at the end of one piece which don't yet make a whole character are kept
+ *     and completed from the start of the next. finish() marks the end of a message;
+ *     anything still incomplete at that point is malformed and, like any other
+ *     malformed input, decodes to U+FFFD.
+ * <p>
+ *     Decoding does not allocate as long as successive pieces come from the same array
+ *     (e.g., FrameDecoder's payload buffer). Not thread safe; each reader thread should
+ *     have its own.
+ */
+public class TextDecoder
+{
+    /** Longest UTF-8 sequence, in bytes. */
+    private static final int MAX_SEQUENCE = 4;
+
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** Start of a character left over from the last piece; in write mode. */
+    private final ByteBuffer carry = ByteBuffer.allocate(MAX_SEQUENCE);
+
+    /** Wraps the array of the last piece decoded, so it needn't be wrapped again. */
+    private ByteBuffer in = null;
+
+    /**
+     * Largest number of chars the next decode() can produce. UTF-8 never takes fewer
+     * bytes than chars.
+     *
+     * @param len number of bytes to be decoded; 0 for finish().
+     */
+    public int maxChars(int len) {
+        return carry.position() + len;
+    }
+
+    /** Number of bytes held over from the last piece. */
+    public int pending() {
+        return carry.position();
+    }
+
+    /**
+     * Decode the next piece of a message.
+     *
+     * @param src buffer holding the piece.
+     * @param off offset of the piece in the buffer.
+     * @param len length of the piece.
+     * @param out buffer the decoded characters are appended to; must have room for
+     *            at least maxChars(len).
+     */
+    public void decode(byte[] src, int off, int len, CharBuffer out) {
+        checkRoom(out, len);
+        int end = off + len;
+
+        // Complete a character left over from the last piece, a byte at a time.
+        while ((carry.position() > 0) && (off < end)) {
+            carry.put(src[off++]);
+            carry.flip();
+            decoder.decode(carry, out, false);
+            carry.compact();
+        }
+
+        if ((in == null) || (in.array() != src)) {
+            in = ByteBuffer.wrap(src);
+        }
+        in.clear();
+        in.position(off);
+        in.limit(end);
+        decoder.decode(in, out, false);
+        // Whatever is left is the start of a character which continues in the next piece.
+        carry.put(in);
+    }
+
+    /**
+     * End the current message, flushing anything held over into "out".
+     *
+     * @param out buffer the decoded characters are appended to; must have room for
+     *            at least maxChars(0).
+     */
+    public void finish(CharBuffer out) {
+        checkRoom(out, 0);
+        carry.flip();
+        decoder.decode(carry, out, true);
+        decoder.flush(out);
+        reset();
+    }
+
+    /** Discard anything held over, e.g. when the connection drops mid-message. */
+    public void reset() {
+        decoder.reset();
+        carry.clear();
+    }
+
+    private void checkRoom(CharBuffer out, int len) {
+        if (out.remaining() < maxChars(len)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Output has room for %d chars; up to %d needed.",
+                    out.remaining(), maxChars(len)));
+        }
+    }
+}
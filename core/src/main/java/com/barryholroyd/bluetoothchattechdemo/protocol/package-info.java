@@ -0,0 +1,9 @@
+/**
+ * Wire protocol used between two instances of the app.
+ * <p>
+ *     Everything sent over the Bluetooth connection is wrapped in a length-prefixed
+ *     frame (see {@link com.barryholroyd.bluetoothchattechdemo.protocol.Frames}).
+ *     The classes in this package have no Android dependencies so that they can be
+ *     unit tested on the development machine.
+ */
+package com.barryholroyd.bluetoothchattechdemo.protocol;
@@ -0,0 +1,526 @@
+package com.barryholroyd.bluetoothchattechdemo.session;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Gauge;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MeteredOutputStream;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.TraceEvent;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Tracer;
+import com.barryholroyd.bluetoothchattechdemo.protocol.CharBufferPool;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FileReceiver;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FileSender;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FileTransferListener;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameDecoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameWriter;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Frames;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Heartbeat;
+import com.barryholroyd.bluetoothchattechdemo.protocol.ReliableChannel;
+import com.barryholroyd.bluetoothchattechdemo.protocol.RttEstimator;
+import com.barryholroyd.bluetoothchattechdemo.protocol.TextAssembler;
+import com.barryholroyd.bluetoothchattechdemo.protocol.TextDecoder;
+import com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One chat session with one remote device over a {@link Transport}: the protocol
+ * engine, with no Android dependencies.
+ * <p>
+ *     start() runs the read loop on this thread: whatever each read() returns is fed
+ *     into a {@link FrameDecoder}, so messages that are split across reads, or several
+ *     messages arriving in a single read, are delivered intact. Outgoing frames are
+ *     written by a separate {@link FrameWriter} thread, so a slow or stalled link never
+ *     blocks the caller.
+ * <p>
+ *     Text is decoded from UTF-8 on the reader thread by a {@link TextDecoder}, and the
+ *     receive path does not allocate per message: each message is decoded straight
+ *     into a char buffer from a fixed {@link CharBufferPool} and handed to the
+ *     {@link Listener}, which releases the buffer once it is done with it. If the
+ *     listener falls behind, the read loop waits for a free buffer. Messages larger than
+ *     a single frame are sent as a series of chunks, which a {@link TextAssembler}
+ *     decodes as they arrive into one char buffer of up to MAX_MESSAGE chars, i.e., up
+ *     to twice MAX_MESSAGE bytes of memory. Such a message is also encoded back into
+ *     UTF-8, another MAX_MESSAGE bytes at most, to be recorded in the transcript.
+ * <p>
+ *     Chat messages are sent through the session's {@link ReliableChannel}, which
+ *     numbers and acknowledges them and resends whatever hadn't been acknowledged when
+ *     the connection dropped once the remote device reconnects. The channel belongs to
+ *     the caller and outlives the session.
+ * <p>
+ *     A {@link Heartbeat} pings the remote device every second to measure the round
+ *     trip time, and closes the transport if nothing has been heard from the device for
+ *     several seconds rather than waiting for a read to fail.
+ * <p>
+ *     Every chat message sent or received is appended to the device's
+ *     {@link TranscriptStore}, and files are streamed over the same connection by a
+ *     {@link FileSender} and {@link FileReceiver}.
+ * <p>
+ *     Each session keeps metrics in the default {@link MetricsRegistry} under
+ *     metricsPrefix(): reads, writes and bytes each way, read sizes, write times,
+ *     messages each way, time for a message to be acknowledged, RTT samples and the
+ *     channel's unacknowledged backlog. They are looked up by the device's address, so
+ *     they carry on across reconnects.
+ */
+public class ChatSession extends Thread
+{
+    /** Size of the buffer used for each read from the input stream. */
+    public static final int BUFSIZE = 1024;
+
+    /** Largest chat message that can be sent or received, in bytes. */
+    public static final int MAX_MESSAGE = TextAssembler.DEFAULT_MAX_MESSAGE;
+
+    /** Number of receive buffers which can be held by the listener at once. */
+    public static final int RECEIVE_BUFFERS = 16;
+
+    /**
+     * Callbacks from a session. All but the file transfer callbacks are called on the
+     * session's reader thread; those are called on whichever thread drives the transfer.
+     */
+    public interface Listener extends FileTransferListener {
+        /**
+         * A chat message has arrived.
+         *
+         * @param message the decoded text; the listener owns it and must release it.
+         * @throws IOException if the message can't be handed on, e.g., because the
+         *                     thread was interrupted while waiting to do so; this
+         *                     closes the connection.
+         */
+        void onMessage(CharBufferPool.PooledChars message) throws IOException;
+
+        /**
+         * A chat message longer than MAX_MESSAGE has arrived and been dropped.
+         *
+         * @param length its length in bytes.
+         */
+        void onMessageTooLarge(long length);
+
+        /**
+         * A new round trip time sample has been taken.
+         *
+         * @param estimator the session's estimates, including the new sample.
+         */
+        void onRtt(RttEstimator estimator);
+
+        /** The connection has closed and the reader thread is about to exit. */
+        void onEnded();
+    }
+
+    /** Connection to the remote device. */
+    private final Transport transport;
+
+    private final Listener listener;
+
+    /** Input stream from the transport. */
+    private final InputStream in;
+
+    /** Set when the remote device has said that its user ended the chat. */
+    private volatile boolean closedByRemote = false;
+
+    /** Buffer for reads from in; only used by the reader thread. */
+    private final byte[] readBuffer = new byte[BUFSIZE];
+
+    /**
+     * Buffers for decoded incoming messages, handed to the listener and released by it.
+     * A frame's payload never decodes to more chars than it has bytes.
+     */
+    private final CharBufferPool receiveBuffers =
+            new CharBufferPool(RECEIVE_BUFFERS, Frames.MAX_PAYLOAD);
+
+    /** Decodes single-frame chat messages; only used by the reader thread. */
+    private final TextDecoder textDecoder = new TextDecoder();
+
+    /** Reassembles and decodes chunked messages; only used by the reader thread. */
+    private final TextAssembler assembler =
+            new TextAssembler(new ChatMessageListener(), MAX_MESSAGE);
+
+    /** Reassembles frames from in; only used by the reader thread. */
+    private final FrameDecoder decoder = new FrameDecoder(new ChatFrameListener());
+
+    /** Writer thread for outgoing frames. */
+    private final FrameWriter writer;
+
+    /** Reliable delivery of chat messages; shared with earlier connections to the device. */
+    private final ReliableChannel channel;
+
+    /** This connection as seen by the channel; set when the reader thread starts. */
+    private ReliableChannel.Connection connection = null;
+
+    /** Measures RTT and detects a dead link. */
+    private final Heartbeat heartbeat;
+
+    /** Stores incoming files; only used by the reader thread. */
+    private final FileReceiver fileReceiver;
+
+    /** Outgoing file transfer, if any. */
+    private volatile FileSender fileSender = null;
+
+    /** Persistent history of the messages exchanged with the device; may be null. */
+    private final TranscriptStore transcript;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Session metrics; see metricsPrefix(). */
+    private final Counter reads;
+    private final Counter bytesIn;
+    private final Histogram readSize;
+    private final Counter messagesIn;
+    private final Counter messagesOut;
+    private final Histogram ackTime;
+    private final Histogram rtt;
+    private final Gauge backlog;
+
+    /**
+     * Constructor. The session is responsible for closing the transport when done.
+     *
+     * @param _transport  connection to the remote device.
+     * @param _channel    reliable channel for chat messages to the remote device.
+     * @param _transcript transcript to record the session's messages in; or null.
+     * @param filesDir    directory in which to store received files.
+     * @param _listener   told about incoming messages and the state of the session.
+     * @throws IOException if the transport's streams can't be opened.
+     */
+    public ChatSession(Transport _transport, ReliableChannel _channel,
+                       TranscriptStore _transcript, File filesDir, Listener _listener)
+            throws IOException {
+        super("ChatSession");
+        transport = _transport;
+        channel = _channel;
+        transcript = _transcript;
+        listener = _listener;
+
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        String prefix = metricsPrefix(transport.getRemoteAddress());
+        reads = registry.counter(prefix + "reads");
+        bytesIn = registry.counter(prefix + "bytes.in");
+        readSize = registry.histogram(prefix + "read.size", Histogram.SIZE_BYTES);
+        messagesIn = registry.counter(prefix + "messages.in");
+        messagesOut = registry.counter(prefix + "messages.out");
+        ackTime = registry.histogram(prefix + "ack.time");
+        rtt = registry.histogram(prefix + "rtt");
+        backlog = registry.gauge(prefix + "send.backlog");
+
+        in = transport.getInputStream();
+        OutputStream out = new MeteredOutputStream(transport.getOutputStream(),
+                registry.counter(prefix + "writes"),
+                registry.counter(prefix + "bytes.out"),
+                registry.histogram(prefix + "write.time"));
+        writer = new FrameWriter(out, FrameWriter.DEFAULT_QUEUE_SIZE);
+        fileReceiver = new FileReceiver(filesDir, writer, listener);
+        heartbeat = new Heartbeat(writer, new LinkListener(),
+                Heartbeat.DEFAULT_INTERVAL_MS, Heartbeat.DEFAULT_MISSED_BEATS);
+    }
+
+    /**
+     * Prefix of the names of a session's metrics in the default registry.
+     *
+     * @param address address of the remote device.
+     * @return the prefix, ending in '.'.
+     */
+    public static String metricsPrefix(String address) {
+        return "session." + address + ".";
+    }
+
+    /** Address of the remote device. */
+    public String getRemoteAddress() { return transport.getRemoteAddress(); }
+
+    /** True if the connection ended because the remote device's user ended the chat. */
+    public boolean isClosedByRemote() { return closedByRemote; }
+
+    /** Round trip time estimates for this session's connection. */
+    public RttEstimator getRttEstimator() { return heartbeat.getEstimator(); }
+
+    /** Transcript of the session's messages, or null if there isn't one. */
+    public TranscriptStore getTranscript() { return transcript; }
+
+    /** The session's reliable channel for chat messages. */
+    public ReliableChannel getChannel() { return channel; }
+
+    /**
+     * Run the read loop until the connection closes, then tidy up and call
+     * Listener.onEnded().
+     *
+     * @see #stopSession()
+     */
+    @Override
+    public void run() {
+        writer.start();
+        heartbeat.start();
+        connection = channel.attach(writer);
+        Tracer.event(TraceEvent.SESSION_STARTED);
+        while (true) {
+            int count;
+            try {
+                count = decoder.readFrom(in, readBuffer);
+                if (count >= 0) {
+                    reads.inc();
+                    bytesIn.add(count);
+                    readSize.record(count);
+                    Tracer.event(TraceEvent.READ, count);
+                    heartbeat.onReceived(System.nanoTime());
+                    connection.flushAck();
+                }
+            }
+            catch (IOException ioe) {
+                /*
+                 * This can be caused by either the connection going down (e.g., if the other
+                 * end closed it), by a call to stopSession() (which closes the input stream
+                 * to force this exception to be generated) or by the remote end sending data
+                 * which isn't a valid frame stream.
+                 */
+                Tracer.event(TraceEvent.READ_FAILED);
+                count = -1;
+            }
+            if (count < 0) {
+                connection.detach();
+                heartbeat.close();
+                writer.close();
+                assembler.reset();
+                fileReceiver.abandon(new IOException("Connection closed."));
+                FileSender sender = fileSender;
+                if (sender != null) {
+                    sender.cancel();
+                }
+                closeTransport();
+                listener.onEnded();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatch frames decoded by the reader thread.
+     * <p>
+     *     The decoder reuses its payload buffer, so chat text is decoded into a pooled
+     *     buffer before being handed to the listener; nothing is allocated here in
+     *     steady state.
+     */
+    private class ChatFrameListener implements FrameDecoder.FrameListener {
+        @Override
+        public void onFrame(int type, int flags, byte[] payload, int length)
+                throws IOException {
+            switch (type) {
+                case Frames.TYPE_CHAT:
+                    if (transcript != null) {
+                        transcript.append(TranscriptStore.RECEIVED,
+                                System.currentTimeMillis(), payload, 0, length);
+                    }
+                    CharBufferPool.PooledChars buffer = receiveBuffers.acquire();
+                    CharBuffer text = buffer.getCharBuffer();
+                    textDecoder.decode(payload, 0, length, text);
+                    textDecoder.finish(text);
+                    text.flip();
+                    listener.onMessage(buffer);
+                    messagesIn.inc();
+                    connection.onMessageReceived();
+                    break;
+                case Frames.TYPE_CHUNK:
+                    assembler.onChunk(flags, payload, length);
+                    break;
+                case Frames.TYPE_FILE_OFFER:
+                    fileReceiver.onOffer(payload, length);
+                    break;
+                case Frames.TYPE_FILE_DATA:
+                    fileReceiver.onData(flags, payload, length);
+                    break;
+                case Frames.TYPE_FILE_ACCEPT:
+                case Frames.TYPE_FILE_ACK:
+                    FileSender sender = fileSender;
+                    if ((sender != null) && (length >= 16)) {
+                        long id = Frames.getLong(payload, 0);
+                        long offset = Frames.getLong(payload, 8);
+                        if (type == Frames.TYPE_FILE_ACCEPT) {
+                            sender.onAccept(id, offset);
+                        }
+                        else {
+                            sender.onAck(id, offset);
+                        }
+                    }
+                    break;
+                case Frames.TYPE_ACK:
+                case Frames.TYPE_HELLO:
+                    connection.onFrame(type, payload, length);
+                    break;
+                case Frames.TYPE_PING:
+                case Frames.TYPE_PONG:
+                    heartbeat.onFrame(type, payload, length);
+                    break;
+                case Frames.TYPE_BYE:
+                    Tracer.event(TraceEvent.BYE_RECEIVED);
+                    closedByRemote = true;
+                    break;
+                default:
+                    Tracer.event(TraceEvent.FRAME_IGNORED, type);
+            }
+        }
+    }
+
+    /**
+     * Deliver reassembled chunked messages to the listener. The assembler hands over
+     * ownership of each message buffer, so it can be passed on without copying.
+     */
+    private class ChatMessageListener implements TextAssembler.TextListener {
+        @Override
+        public void onText(CharBuffer text) throws IOException {
+            if (transcript != null) {
+                // The chunks themselves are gone; re-encoding is rare enough to allocate.
+                transcript.append(TranscriptStore.RECEIVED, System.currentTimeMillis(),
+                        UTF8.encode(text.duplicate()));
+            }
+            listener.onMessage(CharBufferPool.wrap(text));
+            messagesIn.inc();
+            connection.onMessageReceived();
+        }
+
+        @Override
+        public void onMessageTooLarge(long length) {
+            // Still counts as received, or the remote device would send it again.
+            connection.onMessageReceived();
+            listener.onMessageTooLarge(length);
+        }
+    }
+
+    /**
+     * Pass RTT samples to the listener, and close the transport when the heartbeat
+     * declares the link dead. That makes the blocked read in run() fail; the
+     * ReliableChannel keeps whatever the device hasn't acknowledged until it comes back.
+     */
+    private class LinkListener implements Heartbeat.Listener {
+        @Override
+        public void onRtt(RttEstimator estimator) {
+            rtt.record(estimator.getLastRttNanos());
+            backlog.set(channel.backlog());
+            listener.onRtt(estimator);
+        }
+
+        @Override
+        public void onLinkDead(long silentNanos) {
+            Tracer.event(TraceEvent.LINK_DEAD, TimeUnit.NANOSECONDS.toMillis(silentNanos));
+            closeTransport();
+        }
+    }
+
+    /**
+     * Start sending a file. Returns immediately; the listener is told about progress
+     * as the transfer proceeds.
+     *
+     * @param fileChannel channel to read the file from; closed when the transfer ends.
+     * @param name        name of the file, as presented to the receiver.
+     * @param size        size of the file.
+     * @return false if a file is already being sent.
+     */
+    public boolean sendFile(FileChannel fileChannel, String name, long size) {
+        FileSender sender = fileSender;
+        if ((sender != null) && sender.isAlive()) {
+            return false;
+        }
+        sender = new FileSender(writer, fileChannel, name, size, listener);
+        fileSender = sender;
+        sender.start();
+        return true;
+    }
+
+    /**
+     * Queue the chat message for sending and record it in the transcript.
+     * <p>
+     *     Returns immediately. The message is limited to MAX_MESSAGE bytes. A message
+     *     which fits in a single frame is sent as a TYPE_CHAT frame; anything larger is
+     *     split into TYPE_CHUNK frames, which the writer interleaves with other traffic.
+     *
+     * @param bytes    the buffer of bytes to write out; must not be modified afterwards.
+     * @param callback called once the remote device has acknowledged the message, or
+     *                 when the channel is closed without it having done so; may be null.
+     * @return false if the window of unacknowledged messages is full and the message
+     *         was not queued.
+     */
+    public boolean writeChat(byte[] bytes, FrameWriter.SendCallback callback) {
+        if (!channel.send(bytes, 0, bytes.length, new TimedCallback(callback))) {
+            return false;
+        }
+        recordSent(bytes);
+        backlog.set(channel.backlog());
+        return true;
+    }
+
+    /** Records how long a message took to be acknowledged, then passes the result on. */
+    private class TimedCallback implements FrameWriter.SendCallback {
+        private final FrameWriter.SendCallback callback;
+        private final long queuedAt = System.nanoTime();
+
+        TimedCallback(FrameWriter.SendCallback _callback) {
+            callback = _callback;
+        }
+
+        @Override
+        public void onSent() {
+            ackTime.record(System.nanoTime() - queuedAt);
+            if (callback != null) {
+                callback.onSent();
+            }
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            if (callback != null) {
+                callback.onFailed(ioe);
+            }
+        }
+    }
+
+    /**
+     * Record an outgoing chat message in the transcript, for messages sent on the
+     * channel by someone else (e.g., a broadcast to several sessions).
+     *
+     * @param bytes the message, in UTF-8.
+     */
+    public void recordSent(byte[] bytes) {
+        messagesOut.inc();
+        if (transcript != null) {
+            transcript.append(TranscriptStore.SENT, System.currentTimeMillis(),
+                    bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Tell the remote device that the user has ended the chat, so that it doesn't try
+     * to reconnect. The caller stops the session once the frame has been written.
+     *
+     * @param callback called once TYPE_BYE has been written, or has failed to be.
+     * @return false if the frame could not be queued (e.g., the writer has closed).
+     */
+    public boolean sendBye(FrameWriter.SendCallback callback) {
+        return writer.send(Frames.TYPE_BYE, 0, new byte[0], 0, 0, callback);
+    }
+
+    /**
+     * Stop the session. Interrupting the reader thread has no effect on a blocked
+     * read, so the input stream is closed instead; the read fails and run() tidies up.
+     */
+    public void stopSession() {
+        Tracer.event(TraceEvent.SESSION_STOPPING);
+        heartbeat.close();
+        writer.close();
+        try {
+            in.close();
+        }
+        catch (IOException ioe) {
+            Tracer.event(TraceEvent.CLOSE_FAILED);
+        }
+    }
+
+    private void closeTransport() {
+        try {
+            transport.close();
+        }
+        catch (IOException ioe) {
+            Tracer.event(TraceEvent.CLOSE_FAILED);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.barryholroyd.bluetoothchattechdemo.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connected byte stream to a remote device, over which a {@link ChatSession} runs.
+ * <p>
+ *     The app supplies one backed by a Bluetooth socket; tests and benchmarks can use
+ *     anything else, e.g., a pair of pipes. close() must make a read blocked on the
+ *     input stream fail, so that the session's reader thread can exit.
+ */
+public interface Transport extends Closeable
+{
+    /** Stream of bytes from the remote device. */
+    InputStream getInputStream() throws IOException;
+
+    /** Stream of bytes to the remote device. */
+    OutputStream getOutputStream() throws IOException;
+
+    /** Address of the remote device (its MAC address, for Bluetooth). */
+    String getRemoteAddress();
+}
@@ -0,0 +1,10 @@
+/**
+ * Chat sessions, independent of how the bytes get to the remote device.
+ * <p>
+ *     A {@link com.barryholroyd.bluetoothchattechdemo.session.ChatSession} runs the
+ *     protocol over any {@link com.barryholroyd.bluetoothchattechdemo.session.Transport};
+ *     the app supplies one backed by a Bluetooth socket. Like the protocol package,
+ *     this package has no Android dependencies so that the whole engine can be unit
+ *     tested and benchmarked on the development machine.
+ */
+package com.barryholroyd.bluetoothchattechdemo.session;
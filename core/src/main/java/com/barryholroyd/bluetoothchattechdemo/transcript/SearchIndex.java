@@ -0,0 +1,586 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Full-text index over a {@link TranscriptStore}: which messages contain which words.
+ * <p>
+ *     Words ("terms") are runs of letters and digits, lower-cased, so "SN-4471B" is
+ *     indexed as "sn" and "4471b". Each term maps to the sorted list of sequence numbers
+ *     of the messages containing it, and terms are kept in a sorted map, so a term query
+ *     is one lookup and a prefix query is one range of the map. A query with several
+ *     words finds the messages containing all of them, starting from the word with
+ *     the fewest messages and checking the others by binary search.
+ * <p>
+ *     The index follows the store as a CommitListener. It never does any work on the
+ *     thread appending to the store, nor even on the store's writer thread: new
+ *     messages are read back from the store by the index's own thread, INDEX_BATCH at a
+ *     time, and each batch is tokenized before the index is locked, so a query is
+ *     never held up for longer than it takes to add one small batch.
+ * <p>
+ *     The index is saved to a file next to the transcript every SAVE_INTERVAL messages
+ *     and when it is closed, and loaded again when it is opened, after which only the
+ *     messages written since it was saved need indexing. Saves are made on the index's
+ *     thread, which is the only thread that changes the index, so the file is written
+ *     straight from the index without locking it and queries go on while it is
+ *     written. Messages which the store has deleted are left out of the file, dropped
+ *     from the index once it is written (the only part of a save which holds the
+ *     lock, and only for the terms which had any) and are never returned by queries.
+ *     A missing or unreadable index file just means indexing the whole transcript
+ *     again.
+ */
+public class SearchIndex
+{
+    /** Name of the index file in the transcript's directory. */
+    public static final String FILE_NAME = "search.idx";
+
+    /** Number of messages indexed at a time. */
+    static final int INDEX_BATCH = 64;
+
+    /** Number of messages indexed between saves. */
+    static final int SAVE_INTERVAL = 10000;
+
+    /** Longest term indexed; longer runs are cut off. */
+    static final int MAX_TERM = 32;
+
+    /** Start of an index file; the last byte is the format version. */
+    private static final int MAGIC = 0x53494401;
+
+    /**
+     * Sorted sequence numbers of the messages containing one term. Only changed by the
+     * index's thread, with the lock held, so that thread can read them without it.
+     */
+    private static class Postings
+    {
+        long[] seqs = new long[2];
+        int size = 0;
+
+        void add(long seq) {
+            // Messages are indexed in order and each term is added once per message.
+            if ((size > 0) && (seqs[size - 1] >= seq)) {
+                return;
+            }
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            seqs[size++] = seq;
+        }
+
+        /** Position of the first entry at or after "seq". */
+        int find(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            return (i < 0) ? -i - 1 : i;
+        }
+    }
+
+    private final TranscriptStore store;
+    private final File file;
+
+    /** Terms and their postings; guarded by "this". */
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+
+    /**
+     * Every message before this one has been indexed; guarded by "this", but only
+     * changed by the index's thread, which can read it without the lock.
+     */
+    private long indexedSeq;
+
+    /** Messages indexed since the last save; only used by the indexer thread. */
+    private int unsaved = 0;
+
+    /** Runs catchUp() and save(); one thread, so indexing is always in order. */
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SearchIndexer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Set while a catchUp() is queued. */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final Runnable catchUp = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            catchUp();
+        }
+    };
+
+    private final TranscriptStore.CommitListener commitListener =
+            new TranscriptStore.CommitListener() {
+                @Override
+                public void onCommitted(long nextSeq) {
+                    schedule();
+                }
+            };
+
+    /**
+     * Open the index for a transcript, loading it from the transcript's directory if
+     * it has been saved there, and start indexing whatever it hasn't seen yet.
+     *
+     * @param _store the transcript.
+     */
+    public SearchIndex(TranscriptStore _store) {
+        store = _store;
+        file = new File(store.getDir(), FILE_NAME);
+        indexedSeq = store.getFirstSeq();
+        if (file.exists() && !load()) {
+            terms.clear();
+            indexedSeq = store.getFirstSeq();
+        }
+        store.addCommitListener(commitListener);
+        schedule();
+    }
+
+    /**
+     * Find the messages containing a term.
+     *
+     * @param term the term; matched without regard to case.
+     * @param max  most results to return.
+     * @return sequence numbers of the messages, newest first.
+     */
+    public long[] findTerm(String term, int max) {
+        return match(Collections.singletonList(term.toLowerCase(Locale.US)), max);
+    }
+
+    /**
+     * Find the messages containing a term starting with a prefix.
+     *
+     * @param prefix the prefix; matched without regard to case.
+     * @param max    most results to return.
+     * @return sequence numbers of the messages, newest first.
+     */
+    public long[] findPrefix(String prefix, int max) {
+        return match(Collections.singletonList(prefix.toLowerCase(Locale.US) + "*"), max);
+    }
+
+    /**
+     * Find the messages containing every word of a query. A word ending in '*' matches
+     * any term starting with it.
+     *
+     * @param query the query, e.g., "error 40*".
+     * @param max   most results to return.
+     * @return sequence numbers of the messages, newest first; empty if the query has no
+     * words.
+     */
+    public long[] search(String query, int max) {
+        List<String> words = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char c = (i < query.length()) ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (sb.length() < MAX_TERM) {
+                    sb.append(Character.toLowerCase(c));
+                }
+            }
+            else if ((c == '*') && (sb.length() > 0)) {
+                sb.append('*');
+                words.add(sb.toString());
+                sb.setLength(0);
+            }
+            else if (sb.length() > 0) {
+                words.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        return match(words, max);
+    }
+
+    /**
+     * Find the messages matching every word of a query.
+     *
+     * @param words lower-case terms; a trailing '*' makes a word a prefix.
+     * @param max   most results to return.
+     * @return sequence numbers of the messages, newest first.
+     */
+    private long[] match(List<String> words, int max) {
+        if (words.isEmpty()) {
+            return new long[0];
+        }
+
+        long first = store.getFirstSeq();
+        synchronized (this) {
+            // The postings each word can match, and the word matching fewest messages.
+            List<List<Postings>> sources = new ArrayList<>(words.size());
+            int driver = 0;
+            int fewest = Integer.MAX_VALUE;
+            for (String word : words) {
+                List<Postings> postings = lookUp(word);
+                int total = 0;
+                for (Postings p : postings) {
+                    total += p.size;
+                }
+                if (total == 0) {
+                    return new long[0];
+                }
+                if (total < fewest) {
+                    fewest = total;
+                    driver = sources.size();
+                }
+                sources.add(postings);
+            }
+
+            /*
+             * Walk the most selective word's messages newest first and keep those which
+             * every other word matches too, until there are enough: the cost depends on
+             * the rarest word and on "max", not on how common the other words are.
+             */
+            long[] candidates = union(sources.get(driver), first);
+            long[] found = new long[Math.min(max, candidates.length)];
+            int n = 0;
+            for (int i = candidates.length - 1; (i >= 0) && (n < found.length); i--) {
+                boolean all = true;
+                for (int w = 0; all && (w < sources.size()); w++) {
+                    all = (w == driver) || contains(sources.get(w), candidates[i]);
+                }
+                if (all) {
+                    found[n++] = candidates[i];
+                }
+            }
+            return Arrays.copyOf(found, n);
+        }
+    }
+
+    /** Every message before this one has been indexed. */
+    public synchronized long getIndexedSeq() { return indexedSeq; }
+
+    /** Number of distinct terms in the index. */
+    public synchronized int getTermCount() { return terms.size(); }
+
+    /**
+     * Stop following the store and save the index. Call before closing the store;
+     * anything not yet indexed is picked up when the index is next opened.
+     * <p>
+     *     Waits up to 10 seconds for the batch being indexed and for the index file to
+     *     be written, so don't call it on the UI thread. If that takes longer, the file
+     *     is still written, after close() has returned.
+     */
+    public void close() throws IOException {
+        store.removeCommitListener(commitListener);
+        Future<Void> saved;
+        try {
+            saved = indexer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    save();
+                    return null;
+                }
+            });
+        }
+        catch (RejectedExecutionException ree) {
+            // Already closed.
+            return;
+        }
+        indexer.shutdown();
+        try {
+            saved.get(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (TimeoutException te) {
+            // Still indexing; the save follows.
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof IOException)
+                    ? (IOException) cause : new IOException("Could not save search index", cause);
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                indexer.execute(catchUp);
+            }
+            catch (RejectedExecutionException ree) {
+                // Closed.
+            }
+        }
+    }
+
+    /** Index everything the store has written since the last call; indexer thread only. */
+    private void catchUp() {
+        try {
+            long next;
+            while ((next = getIndexedSeq()) < store.getNextSeq()) {
+                long from = Math.max(next, store.getFirstSeq());
+                long to = Math.min(from + INDEX_BATCH, store.getNextSeq());
+                List<String[]> batch = new ArrayList<>((int) (to - from));
+                for (long seq = from; seq < to; seq++) {
+                    TranscriptEntry entry = store.read(seq);
+                    batch.add((entry == null) ? new String[0] : tokenize(entry.getText()));
+                }
+                synchronized (this) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        for (String term : batch.get(i)) {
+                            Postings postings = terms.get(term);
+                            if (postings == null) {
+                                postings = new Postings();
+                                terms.put(term, postings);
+                            }
+                            postings.add(from + i);
+                        }
+                    }
+                    indexedSeq = to;
+                }
+                unsaved += batch.size();
+                if (unsaved >= SAVE_INTERVAL) {
+                    save();
+                }
+            }
+        }
+        catch (IOException ioe) {
+            // The store has been closed or can't be read; whatever is missing is
+            // indexed the next time the index is opened.
+        }
+    }
+
+    /** Distinct terms of a message. */
+    static String[] tokenize(String text) {
+        Set<String> found = new HashSet<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = (i < text.length()) ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (sb.length() < MAX_TERM) {
+                    sb.append(Character.toLowerCase(c));
+                }
+            }
+            else if (sb.length() > 0) {
+                found.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        return found.toArray(new String[found.size()]);
+    }
+
+    /**
+     * Postings matched by one query word. Called with the lock held.
+     *
+     * @param word a term, or a prefix followed by '*'.
+     */
+    private List<Postings> lookUp(String word) {
+        if (word.endsWith("*")) {
+            String prefix = word.substring(0, word.length() - 1);
+            return new ArrayList<>(terms.subMap(prefix, prefix + Character.MAX_VALUE).values());
+        }
+        Postings postings = terms.get(word);
+        return (postings == null)
+                ? Collections.<Postings>emptyList()
+                : Collections.singletonList(postings);
+    }
+
+    /** Sorted, distinct sequence numbers from "first" on in any of the postings. */
+    private static long[] union(List<Postings> sources, long first) {
+        if (sources.size() == 1) {
+            Postings postings = sources.get(0);
+            int start = Arrays.binarySearch(postings.seqs, 0, postings.size, first);
+            if (start < 0) {
+                start = -start - 1;
+            }
+            return Arrays.copyOfRange(postings.seqs, start, postings.size);
+        }
+        int total = 0;
+        for (Postings postings : sources) {
+            total += postings.size;
+        }
+        long[] all = new long[total];
+        int n = 0;
+        for (Postings postings : sources) {
+            System.arraycopy(postings.seqs, 0, all, n, postings.size);
+            n += postings.size;
+        }
+        Arrays.sort(all);
+        // A message can contain several of the terms.
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if ((all[i] >= first) && ((unique == 0) || (all[unique - 1] != all[i]))) {
+                all[unique++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, unique);
+    }
+
+    private static boolean contains(List<Postings> sources, long seq) {
+        for (Postings postings : sources) {
+            if (Arrays.binarySearch(postings.seqs, 0, postings.size, seq) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the index to its file, leaving out messages the store has deleted, and then
+     * drop them from the index. Written to a temporary file first, so that a crash part
+     * way through leaves the last save. Index thread only.
+     */
+    private void save() throws IOException {
+        long first = store.getFirstSeq();
+
+        // This thread is the only one which changes the index, so it can read it
+        // without the lock; queries only read it, so they can go on meanwhile.
+        int count = 0;
+        for (Postings postings : terms.values()) {
+            if (postings.find(first) < postings.size) {
+                count++;
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(indexedSeq);
+            out.writeInt(count);
+            for (Map.Entry<String, Postings> e : terms.entrySet()) {
+                Postings postings = e.getValue();
+                int from = postings.find(first);
+                if (from == postings.size) {
+                    continue;
+                }
+                out.writeUTF(e.getKey());
+                out.writeInt(postings.size - from);
+                long previous = 0;
+                for (int i = from; i < postings.size; i++) {
+                    writeVarLong(out, postings.seqs[i] - previous);
+                    previous = postings.seqs[i];
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not save search index: " + file);
+        }
+        unsaved = 0;
+        prune(first);
+    }
+
+    /** Drop messages before "first", which the store has deleted. Index thread only. */
+    private void prune(long first) {
+        // Usually only a few terms have any, so look for them without the lock.
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Postings> e : terms.entrySet()) {
+            if (e.getValue().find(first) > 0) {
+                stale.add(e.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (String term : stale) {
+                Postings postings = terms.get(term);
+                int from = postings.find(first);
+                if (from == postings.size) {
+                    terms.remove(term);
+                }
+                else {
+                    System.arraycopy(postings.seqs, from, postings.seqs, 0, postings.size - from);
+                    postings.size -= from;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the index from its file.
+     *
+     * @return false if the file is damaged or doesn't match the store.
+     */
+    private boolean load() {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return false;
+                }
+                long seq = in.readLong();
+                if (seq > store.getNextSeq()) {
+                    // The transcript has lost messages the index has seen.
+                    return false;
+                }
+                int count = in.readInt();
+                for (int t = 0; t < count; t++) {
+                    String term = in.readUTF();
+                    int size = in.readInt();
+                    if (size <= 0) {
+                        return false;
+                    }
+                    Postings postings = new Postings();
+                    postings.seqs = new long[size];
+                    long previous = 0;
+                    for (int i = 0; i < size; i++) {
+                        previous += readVarLong(in);
+                        postings.seqs[i] = previous;
+                    }
+                    postings.size = size;
+                    terms.put(term, postings);
+                }
+                indexedSeq = Math.max(seq, store.getFirstSeq());
+                return true;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Bad variable-length number.");
+    }
+}
@@ -0,0 +1,192 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a {@link TranscriptStore}: a run of consecutive records, starting with
+ * record number baseSeq.
+ * <p>
+ *     Each record is [length:4][direction:1][time:8][crc:4][UTF-8 text], big-endian,
+ *     where length is the length of the text and the CRC covers everything after it.
+ *     The segment keeps a sparse index of the offset of every INDEX_INTERVAL'th record,
+ *     so finding a record means one lookup and a scan over at most INDEX_INTERVAL - 1
+ *     records. Reads go through a read-only memory mapping of the file, which is
+ *     extended as the segment grows.
+ * <p>
+ *     size, count and the index are written by the store's writer thread and read by
+ *     readers. size and count only change with the store's segment lock held; index
+ *     entries are added ahead of them, but readers only look at entries below count.
+ */
+class Segment
+{
+    /** Size of a record's header, in bytes. */
+    static final int HEADER_SIZE = 17;
+
+    /** Offset of the CRC within a record. */
+    static final int OFFSET_CRC = 13;
+
+    /** One index entry is kept for every INDEX_INTERVAL records. */
+    static final int INDEX_INTERVAL = 64;
+
+    /** Size of the buffer the text of a record is copied through to checksum it. */
+    private static final int CRC_CHUNK = 4096;
+
+    /** Extension of segment files; the name is the base sequence number. */
+    static final String SUFFIX = ".log";
+
+    final long baseSeq;
+    final File file;
+    private final RandomAccessFile raf;
+    final FileChannel channel;
+
+    /** Bytes of complete records. */
+    int size = 0;
+
+    /** Number of records. */
+    int count = 0;
+
+    /** Offset of record i * INDEX_INTERVAL is index[i]. */
+    private int[] index = new int[16];
+
+    /** Mapping of the first mappedSize bytes of the file; null until first read. */
+    private MappedByteBuffer map = null;
+    private int mappedSize = 0;
+
+    private Segment(long _baseSeq, File _file) throws IOException {
+        baseSeq = _baseSeq;
+        file = _file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    /** Create a new, empty segment in "dir". */
+    static Segment create(File dir, long baseSeq) throws IOException {
+        return new Segment(baseSeq, new File(dir, fileName(baseSeq)));
+    }
+
+    /**
+     * Open an existing segment, rebuilding its index. Anything after the last complete,
+     * undamaged record (e.g., a record torn by a crash) is cut off.
+     */
+    static Segment open(File file, long baseSeq) throws IOException {
+        Segment segment = new Segment(baseSeq, file);
+        segment.recover();
+        return segment;
+    }
+
+    /** Name of the file for a segment starting at baseSeq. */
+    static String fileName(long baseSeq) {
+        return String.format(Locale.US, "%020d%s", baseSeq, SUFFIX);
+    }
+
+    /**
+     * Parse a segment file name.
+     *
+     * @return the base sequence number, or -1 if it isn't a segment file's name.
+     */
+    static long parseFileName(String name) {
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /** Sequence number the next record appended to this segment will have. */
+    long nextSeq() {
+        return baseSeq + count;
+    }
+
+    /** Note that a record is being appended at "offset"; it is the segment's nth. */
+    void addRecord(int n, int offset) {
+        if ((n % INDEX_INTERVAL) == 0) {
+            int slot = n / INDEX_INTERVAL;
+            if (slot == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[slot] = offset;
+        }
+    }
+
+    /**
+     * Offset of a record.
+     *
+     * @param n the record's number within the segment; less than count.
+     */
+    int offsetOf(int n) throws IOException {
+        ByteBuffer view = view();
+        int offset = index[n / INDEX_INTERVAL];
+        for (int i = n % INDEX_INTERVAL; i > 0; i--) {
+            offset += HEADER_SIZE + view.getInt(offset);
+        }
+        return offset;
+    }
+
+    /** Read-only view of the segment's records, mapped on first use. */
+    ByteBuffer view() throws IOException {
+        if ((map == null) || (mappedSize < size)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mappedSize = size;
+        }
+        return map.duplicate();
+    }
+
+    /** Close the file. Views already handed out stay valid. */
+    void close() throws IOException {
+        raf.close();
+    }
+
+    /** Scan the file, rebuilding the index and cutting off a damaged tail. */
+    private void recover() throws IOException {
+        long length = channel.size();
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[HEADER_SIZE];
+        byte[] chunk = new byte[CRC_CHUNK];
+        int offset = 0;
+        while (length - offset >= HEADER_SIZE) {
+            int len = all.getInt(offset);
+            if ((len < 0) || (len > length - offset - HEADER_SIZE)) {
+                break;
+            }
+            all.position(offset);
+            all.get(scratch, 0, HEADER_SIZE);
+            crc.reset();
+            crc.update(scratch, 4, OFFSET_CRC - 4);
+            // CRC32.update(ByteBuffer) is Java 8 (Android API 26), so copy the text
+            // out of the mapping a chunk at a time.
+            all.position(offset + HEADER_SIZE);
+            for (int left = len; left > 0; ) {
+                int n = Math.min(left, chunk.length);
+                all.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                left -= n;
+            }
+            if ((int) crc.getValue() != all.getInt(offset + OFFSET_CRC)) {
+                break;
+            }
+            addRecord(count, offset);
+            count++;
+            offset += HEADER_SIZE + len;
+        }
+        size = offset;
+        if (size < length) {
+            channel.truncate(size);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One message read back from a {@link TranscriptStore}.
+ * <p>
+ *     The text is a read-only view straight into the store's memory-mapped segment,
+ *     so reading an entry doesn't copy it; getText() decodes it when a String is
+ *     actually needed.
+ */
+public class TranscriptEntry
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long seq;
+    private final int direction;
+    private final long timeMillis;
+    private final ByteBuffer payload;
+
+    TranscriptEntry(long _seq, int _direction, long _timeMillis, ByteBuffer _payload) {
+        seq = _seq;
+        direction = _direction;
+        timeMillis = _timeMillis;
+        payload = _payload;
+    }
+
+    /** Sequence number of the entry within its transcript. */
+    public long getSeq() { return seq; }
+
+    /** TranscriptStore.RECEIVED or TranscriptStore.SENT. */
+    public int getDirection() { return direction; }
+
+    /** When the message was sent or received (System.currentTimeMillis()). */
+    public long getTimeMillis() { return timeMillis; }
+
+    /** The message in UTF-8, as a read-only buffer positioned at its start. */
+    public ByteBuffer getPayload() { return payload.duplicate(); }
+
+    /** The message, decoded. */
+    public String getText() {
+        return UTF8.decode(payload.duplicate()).toString();
+    }
+}
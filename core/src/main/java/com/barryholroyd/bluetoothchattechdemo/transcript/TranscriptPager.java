@@ -0,0 +1,217 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Pages a {@link TranscriptStore} into memory for display, a fixed number of entries at
+ * a time, keeping only the most recently used pages.
+ * <p>
+ *     get() never touches the store: it returns the row if its page is in memory and
+ *     otherwise asks the loader Executor for the page and returns null, and the
+ *     Listener is told once the page has arrived. Pages are turned into rows by a
+ *     RowFormatter on the loader thread, so whatever it costs to prepare a row for
+ *     display (formatting, measuring) is kept off the calling thread. The pages either
+ *     side of a requested one are loaded too, so that scrolling at a normal pace finds
+ *     its rows already there.
+ * <p>
+ *     The last page of the transcript may have been loaded before the store had all of
+ *     its entries; it is loaded again when one of the missing entries is asked for.
+ *     Entries which the store has since deleted (see TranscriptStore's retention size)
+ *     are returned as null for good.
+ * <p>
+ *     All methods may be called from any thread, though get() is meant for the UI
+ *     thread.
+ *
+ * @param <R> row type.
+ */
+public class TranscriptPager<R>
+{
+    /** Turns transcript entries into rows; called on the loader thread. */
+    public interface RowFormatter<R> {
+        /**
+         * Prepare an entry for display.
+         *
+         * @param entry the entry; its payload is only valid until the store is closed.
+         * @return the row.
+         */
+        R format(TranscriptEntry entry);
+    }
+
+    /** Told about pages as they are loaded; called on the loader thread. */
+    public interface Listener {
+        /**
+         * Rows have been loaded.
+         *
+         * @param firstSeq sequence number of the first row loaded.
+         * @param count    number of rows loaded.
+         */
+        void onPageLoaded(long firstSeq, int count);
+
+        /**
+         * A page could not be loaded.
+         *
+         * @param ioe the reason.
+         */
+        void onLoadFailed(IOException ioe);
+    }
+
+    /** Default number of entries per page. */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /** Default number of pages kept in memory. */
+    public static final int DEFAULT_MAX_PAGES = 8;
+
+    private final TranscriptStore store;
+    private final int pageSize;
+    private final Executor loader;
+    private final RowFormatter<R> formatter;
+    private final Listener listener;
+
+    /** Loaded pages by page number, least recently used first; guarded by "this". */
+    private final LinkedHashMap<Long, Object[]> pages;
+
+    /** Page numbers waiting for or being loaded; guarded by "this". */
+    private final Set<Long> loading = new HashSet<>();
+
+    /** Set by close(); loads still queued do nothing. */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param _store     the transcript.
+     * @param _pageSize  number of entries per page.
+     * @param maxPages   number of pages kept in memory; at least 3, the requested page
+     *                   and its neighbours.
+     * @param _loader    runs page loads, e.g., a single background thread.
+     * @param _formatter turns entries into rows.
+     * @param _listener  told when pages arrive.
+     */
+    public TranscriptPager(TranscriptStore _store, int _pageSize, final int maxPages,
+                           Executor _loader, RowFormatter<R> _formatter,
+                           Listener _listener) {
+        if ((_pageSize <= 0) || (maxPages < 3)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid page size %d or page count %d.", _pageSize, maxPages));
+        }
+        store = _store;
+        pageSize = _pageSize;
+        loader = _loader;
+        formatter = _formatter;
+        listener = _listener;
+        pages = new LinkedHashMap<Long, Object[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * Get a row, loading its page (and the neighbouring pages) if necessary.
+     *
+     * @param seq the entry's sequence number.
+     * @return the row, or null if it is being loaded or no longer exists.
+     */
+    public R get(long seq) {
+        long page = seq / pageSize;
+        R row;
+        boolean missing;
+        synchronized (this) {
+            Object[] rows = pages.get(page);
+            int n = (int) (seq - page * pageSize);
+            if ((rows != null) && (n < rows.length)) {
+                @SuppressWarnings("unchecked")
+                R r = (R) rows[n];
+                return r;
+            }
+            row = null;
+            // Either not loaded, or loaded before this entry was written.
+            missing = (rows == null) || (seq < store.getNextSeq());
+        }
+        if (missing) {
+            request(page);
+        }
+        if (page > 0) {
+            request(page - 1);
+        }
+        request(page + 1);
+        return row;
+    }
+
+    /** Number of pages in memory. */
+    public synchronized int getPageCount() { return pages.size(); }
+
+    /** Drop every page and ignore any loads still queued. */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            pages.clear();
+        }
+    }
+
+    /**
+     * Load a page unless it's already in memory with all of its rows or on its way.
+     *
+     * @param page page number.
+     */
+    private void request(final long page) {
+        long first = page * pageSize;
+        if (first >= store.getNextSeq()) {
+            return;
+        }
+        synchronized (this) {
+            Object[] rows = pages.get(page);
+            if ((rows != null)
+                    && ((rows.length == pageSize) || (first + rows.length >= store.getNextSeq()))) {
+                return;
+            }
+            if (!loading.add(page)) {
+                return;
+            }
+        }
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(page);
+            }
+        });
+    }
+
+    /** Read and format a page; runs on the loader thread. */
+    private void load(long page) {
+        long first = page * pageSize;
+        try {
+            if (closed) {
+                return;
+            }
+            long end = Math.min(first + pageSize, store.getNextSeq());
+            Object[] rows = new Object[(int) Math.max(0, end - first)];
+            for (int i = 0; i < rows.length; i++) {
+                TranscriptEntry entry = store.read(first + i);
+                rows[i] = (entry == null) ? null : formatter.format(entry);
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                pages.put(page, rows);
+            }
+            listener.onPageLoaded(first, rows.length);
+        }
+        catch (IOException ioe) {
+            listener.onLoadFailed(ioe);
+        }
+        finally {
+            synchronized (this) {
+                loading.remove(page);
+            }
+        }
+    }
+}
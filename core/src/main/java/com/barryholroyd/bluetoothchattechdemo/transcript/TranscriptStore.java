@@ -0,0 +1,507 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented log of the messages sent and received in chat sessions with
+ * one remote device.
+ * <p>
+ *     append() only copies the message into an in-memory batch and returns its sequence
+ *     number, so the thread reading from the socket never waits for storage. A writer
+ *     thread takes whole batches at a time, checksums them, writes them out and syncs
+ *     them with a single fsync ("group commit"): the more messages arrive at once, the
+ *     larger the batches get, and the cost of the fsync is shared between them. flush()
+ *     waits for everything appended so far to be on disk.
+ * <p>
+ *     The log is split into segment files of about segmentBytes each, named after the
+ *     sequence number of their first record. When a segment fills up the writer starts
+ *     a new one and, if the transcript has grown past retentionBytes, deletes the oldest
+ *     segments until it fits again. Segments are read through read-only memory mappings
+ *     and a sparse per-segment offset index (see {@link Segment}), so read() costs an
+ *     index lookup and a short scan rather than a file read.
+ * <p>
+ *     CommitListeners are told each time a batch has been written, e.g., so that a view
+ *     of the transcript can show the new entries.
+ * <p>
+ *     Opening a store recovers it: a record torn by a crash at the end of the last
+ *     segment is detected by its checksum and cut off.
+ */
+public class TranscriptStore
+{
+    /** Told when appended messages have been written and can be read. */
+    public interface CommitListener {
+        /**
+         * A batch has been written. Called on the store's writer thread; keep it short.
+         *
+         * @param nextSeq every message before this one can now be read.
+         */
+        void onCommitted(long nextSeq);
+    }
+
+    /** Direction of a message which was received from the remote device. */
+    public static final int RECEIVED = 0;
+
+    /** Direction of a message which was sent to the remote device. */
+    public static final int SENT = 1;
+
+    /** Default size at which a segment is rolled. */
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    /** Default amount of history kept. */
+    public static final long DEFAULT_RETENTION_BYTES = 16L * 1024 * 1024;
+
+    /** Initial size of each of the two batch buffers. */
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+
+    /** Segments by base sequence number. Guards itself and the segments' counts. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /** Total size of all segments; guarded by "segments". */
+    private long totalBytes = 0;
+
+    /** Segment currently being appended to; only used by the writer thread. */
+    private Segment active;
+
+    /** Guards everything below up to "committed", and is waited on by all sides. */
+    private final Object lock = new Object();
+
+    /** Batch being filled by append(). */
+    private ByteBuffer filling = ByteBuffer.allocate(BATCH_BYTES);
+
+    /** Batch being written by the writer thread. */
+    private ByteBuffer draining = ByteBuffer.allocate(BATCH_BYTES);
+
+    /** Sequence number of the next record to be appended. */
+    private long nextSeq;
+
+    private boolean closed = false;
+
+    /** Set if the writer thread fails; the store accepts nothing after that. */
+    private IOException failure = null;
+
+    /** Every record before this one is on disk and readable. */
+    private volatile long committed;
+
+    private final Thread writer;
+
+    private final CopyOnWriteArrayList<CommitListener> listeners =
+            new CopyOnWriteArrayList<>();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong fsyncTotalNs = new AtomicLong();
+    private final AtomicLong fsyncMaxNs = new AtomicLong();
+
+    /**
+     * Open a store with the default segment and retention sizes.
+     *
+     * @param dir directory holding the store's segments; created if necessary.
+     */
+    public TranscriptStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES);
+    }
+
+    /**
+     * Open a store, creating it if it doesn't exist yet.
+     *
+     * @param _dir            directory holding the store's segments; created if
+     *                        necessary.
+     * @param _segmentBytes   size at which a segment is rolled. A single message larger
+     *                        than this gets a segment of its own.
+     * @param _retentionBytes once the store is larger than this, the oldest segments
+     *                        are deleted. The current segment is always kept.
+     */
+    public TranscriptStore(File _dir, int _segmentBytes, long _retentionBytes)
+            throws IOException {
+        if ((_segmentBytes <= Segment.HEADER_SIZE) || (_retentionBytes < _segmentBytes)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid sizes: segment %d, retention %d.",
+                    _segmentBytes, _retentionBytes));
+        }
+        dir = _dir;
+        segmentBytes = _segmentBytes;
+        retentionBytes = _retentionBytes;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create transcript directory: " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long base = Segment.parseFileName(file.getName());
+                if (base >= 0) {
+                    Segment segment = Segment.open(file, base);
+                    segments.put(base, segment);
+                    totalBytes += segment.size;
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            active = Segment.create(dir, 0);
+            segments.put(0L, active);
+        }
+        else {
+            active = segments.lastEntry().getValue();
+        }
+        nextSeq = active.nextSeq();
+        committed = nextSeq;
+
+        writer = new Thread("TranscriptWriter") {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param direction  RECEIVED or SENT.
+     * @param timeMillis when it was sent or received.
+     * @param text       the message in UTF-8.
+     * @param off        offset of the message in "text".
+     * @param len        length of the message.
+     * @return the message's sequence number, or -1 if the store is closed or has failed.
+     */
+    public long append(int direction, long timeMillis, byte[] text, int off, int len) {
+        return append(direction, timeMillis, ByteBuffer.wrap(text, off, len));
+    }
+
+    /**
+     * Append a message. Returns as soon as the message has been copied; it reaches the
+     * disk with the next batch. Waits only if the writer has fallen a whole batch
+     * behind.
+     *
+     * @param direction  RECEIVED or SENT.
+     * @param timeMillis when it was sent or received.
+     * @param text       the message in UTF-8, from its position to its limit. The
+     *                   buffer's position isn't changed.
+     * @return the message's sequence number, or -1 if the store is closed or has failed.
+     */
+    public long append(int direction, long timeMillis, ByteBuffer text) {
+        int recordSize = Segment.HEADER_SIZE + text.remaining();
+        synchronized (lock) {
+            while (true) {
+                if (closed || (failure != null)) {
+                    return -1;
+                }
+                if ((filling.position() == 0) && (filling.capacity() < recordSize)) {
+                    filling = ByteBuffer.allocate(recordSize);
+                }
+                if (filling.remaining() >= recordSize) {
+                    break;
+                }
+                try {
+                    lock.wait();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            boolean wasEmpty = filling.position() == 0;
+            filling.putInt(text.remaining());
+            filling.put((byte) direction);
+            filling.putLong(timeMillis);
+            filling.putInt(0);                  // CRC, filled in by the writer.
+            filling.put(text.duplicate());
+            if (wasEmpty) {
+                lock.notifyAll();
+            }
+            return nextSeq++;
+        }
+    }
+
+    /**
+     * Wait until everything appended so far is on disk.
+     *
+     * @throws IOException if the writer thread failed.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            long target = nextSeq;
+            while ((committed < target) && (failure == null) && !closed) {
+                try {
+                    lock.wait();
+                }
+                catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted flushing transcript.");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Write out everything appended so far and close the store. Later appends are
+     * ignored and return -1. Entries already read stay valid.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (segments) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Read back a message.
+     *
+     * @param seq the message's sequence number.
+     * @return the message, or null if there is no such message on disk: it hasn't been
+     * written yet, or it has been deleted to keep the store within its retention size.
+     */
+    public TranscriptEntry read(long seq) throws IOException {
+        synchronized (segments) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(seq);
+            if (e == null) {
+                return null;
+            }
+            Segment segment = e.getValue();
+            long n = seq - segment.baseSeq;
+            if (n >= segment.count) {
+                return null;
+            }
+            int offset = segment.offsetOf((int) n);
+            ByteBuffer view = segment.view();
+            int len = view.getInt(offset);
+            int direction = view.get(offset + 4);
+            long timeMillis = view.getLong(offset + 5);
+            view.position(offset + Segment.HEADER_SIZE);
+            view.limit(offset + Segment.HEADER_SIZE + len);
+            return new TranscriptEntry(seq, direction, timeMillis, view.slice());
+        }
+    }
+
+    /** Add a listener to be told about every batch written from now on. */
+    public void addCommitListener(CommitListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Remove a listener added by addCommitListener(). */
+    public void removeCommitListener(CommitListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Sequence number of the oldest message still kept. */
+    public long getFirstSeq() {
+        synchronized (segments) {
+            for (Segment segment : segments.values()) {
+                if (segment.count > 0) {
+                    return segment.baseSeq;
+                }
+            }
+            return committed;
+        }
+    }
+
+    /** Sequence number after the newest message which is on disk and can be read. */
+    public long getNextSeq() { return committed; }
+
+    /** Directory holding the store's segments. */
+    public File getDir() { return dir; }
+
+    /** Number of batches written, i.e., of fsyncs. */
+    public long getBatchCount() { return batches.get(); }
+
+    /** Number of messages written. */
+    public long getRecordCount() { return records.get(); }
+
+    /** Number of bytes written, headers included. */
+    public long getByteCount() { return bytes.get(); }
+
+    /** Mean fsync time in nanoseconds, or 0 if nothing has been written yet. */
+    public long getMeanFsyncNs() {
+        long n = batches.get();
+        return (n == 0) ? 0 : fsyncTotalNs.get() / n;
+    }
+
+    /** Longest fsync seen, in nanoseconds. */
+    public long getMaxFsyncNs() { return fsyncMaxNs.get(); }
+
+    /** Writer thread: take whole batches and write them out until closed. */
+    private void writeBatches() {
+        CRC32 crc = new CRC32();
+        while (true) {
+            long batchEnd;
+            synchronized (lock) {
+                while ((filling.position() == 0) && !closed) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException ie) {
+                        // Only close() stops the writer.
+                    }
+                }
+                if (filling.position() == 0) {
+                    return;
+                }
+                ByteBuffer full = filling;
+                filling = draining;
+                draining = full;
+                batchEnd = nextSeq;
+                // Appenders waiting for room can go ahead.
+                lock.notifyAll();
+            }
+
+            try {
+                draining.flip();
+                writeBatch(draining, crc);
+                draining.clear();
+            }
+            catch (IOException ioe) {
+                synchronized (lock) {
+                    failure = ioe;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                committed = batchEnd;
+                lock.notifyAll();
+            }
+            for (CommitListener listener : listeners) {
+                listener.onCommitted(batchEnd);
+            }
+        }
+    }
+
+    /**
+     * Checksum and write out one batch, rolling segments as they fill up, and sync it.
+     *
+     * @param batch the batch, from position 0 to its limit.
+     */
+    private void writeBatch(ByteBuffer batch, CRC32 crc) throws IOException {
+        int start = 0;              // Start of the part not yet written.
+        int pendingCount = 0;       // Records in that part.
+        int recordCount = 0;
+        int pos = 0;
+        while (pos < batch.limit()) {
+            int recordSize = Segment.HEADER_SIZE + batch.getInt(pos);
+            int pendingBytes = pos - start;
+            if ((active.count + pendingCount > 0)
+                    && (active.size + pendingBytes + recordSize > segmentBytes)) {
+                writeRange(batch, start, pos, pendingCount);
+                roll();
+                start = pos;
+                pendingCount = 0;
+                pendingBytes = 0;
+            }
+
+            // The batches are heap buffers, so the CRC can read their arrays directly.
+            crc.reset();
+            byte[] array = batch.array();
+            int base = batch.arrayOffset();
+            crc.update(array, base + pos + 4, Segment.OFFSET_CRC - 4);
+            crc.update(array, base + pos + Segment.HEADER_SIZE,
+                    recordSize - Segment.HEADER_SIZE);
+            batch.putInt(pos + Segment.OFFSET_CRC, (int) crc.getValue());
+
+            active.addRecord(active.count + pendingCount, active.size + pendingBytes);
+            pendingCount++;
+            recordCount++;
+            pos += recordSize;
+        }
+        writeRange(batch, start, pos, pendingCount);
+
+        batches.incrementAndGet();
+        records.addAndGet(recordCount);
+        bytes.addAndGet(batch.limit());
+    }
+
+    /** Write, sync and publish records [from, to) of a batch to the active segment. */
+    private void writeRange(ByteBuffer batch, int from, int to, int count)
+            throws IOException {
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer range = batch.duplicate();
+        range.limit(to);
+        range.position(from);
+        long position = active.size;
+        while (range.hasRemaining()) {
+            position += active.channel.write(range, position);
+        }
+
+        long startedAt = System.nanoTime();
+        active.channel.force(false);
+        long elapsed = System.nanoTime() - startedAt;
+        fsyncTotalNs.addAndGet(elapsed);
+        updateMax(fsyncMaxNs, elapsed);
+
+        synchronized (segments) {
+            active.size += to - from;
+            active.count += count;
+            totalBytes += to - from;
+        }
+    }
+
+    /** Start a new segment and delete old ones beyond the retention size. */
+    private void roll() throws IOException {
+        Segment next = Segment.create(dir, active.nextSeq());
+        synchronized (segments) {
+            segments.put(next.baseSeq, next);
+            active = next;
+
+            Iterator<Segment> it = segments.values().iterator();
+            while ((totalBytes > retentionBytes) && (segments.size() > 1)) {
+                Segment oldest = it.next();
+                it.remove();
+                totalBytes -= oldest.size;
+                oldest.close();
+                if (!oldest.file.delete()) {
+                    throw new IOException("Could not delete transcript segment: "
+                            + oldest.file);
+                }
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                break;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * Persistent chat transcripts.
+ * <p>
+ *     Every message sent or received is appended to a per-device log on local storage
+ *     (see {@link com.barryholroyd.bluetoothchattechdemo.transcript.TranscriptStore}).
+ *     Like the protocol package, this package has no Android dependencies so that it
+ *     can be unit tested on the development machine.
+ */
+package com.barryholroyd.bluetoothchattechdemo.transcript;
@@ -0,0 +1,135 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DeviceCache.
+ */
+public class DeviceCacheTest {
+    private static final long TTL = 1000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("devices", ".cache");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void load_missingFile_isEmpty() throws Exception {
+        DeviceCache cache = new DeviceCache(file, TTL);
+        assertTrue(cache.load(0).isEmpty());
+    }
+
+    @Test
+    public void saveAndLoad_roundTrips() throws Exception {
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:CC", "Phone \u00e9", (short) -60, false, 100);
+        cache.seen("00:11:22:AA:BB:CD", null, DeviceCache.NO_RSSI, true, 200);
+        cache.save();
+
+        List<DeviceCache.Entry> entries = new DeviceCache(file, TTL).load(300);
+
+        assertEquals(2, entries.size());
+        DeviceCache.Entry e = entries.get(0);
+        assertEquals("00:11:22:AA:BB:CD", e.getMac());
+        assertNull(e.getName());
+        assertEquals(DeviceCache.NO_RSSI, e.getRssi());
+        assertTrue(e.isPaired());
+        assertEquals(200, e.getLastSeen());
+        e = entries.get(1);
+        assertEquals("00:11:22:AA:BB:CC", e.getMac());
+        assertEquals("Phone \u00e9", e.getName());
+        assertEquals(-60, e.getRssi());
+        assertFalse(e.isPaired());
+    }
+
+    @Test
+    public void seen_keepsWhatIsntKnownThisTime() throws Exception {
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:CC", "Phone", (short) -60, false, 100);
+        cache.seen("00:11:22:AA:BB:CC", null, DeviceCache.NO_RSSI, false, 200);
+
+        DeviceCache.Entry e = cache.get("00:11:22:AA:BB:CC");
+        assertEquals("Phone", e.getName());
+        assertEquals(-60, e.getRssi());
+        assertEquals(200, e.getLastSeen());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void load_evictsStaleDevices() throws Exception {
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:01", "old", (short) -60, false, 100);
+        cache.seen("00:11:22:AA:BB:02", "new", (short) -60, false, 900);
+        cache.save();
+
+        List<DeviceCache.Entry> entries = new DeviceCache(file, TTL).load(1500);
+
+        assertEquals(1, entries.size());
+        assertEquals("new", entries.get(0).getName());
+    }
+
+    @Test
+    public void load_keepsDevicesSeenSinceTheFileWasWritten() throws Exception {
+        DeviceCache writer = new DeviceCache(file, TTL);
+        writer.seen("00:11:22:AA:BB:01", "cached", (short) -60, false, 100);
+        writer.seen("00:11:22:AA:BB:02", "other", (short) -60, false, 150);
+        writer.save();
+
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:01", "live", (short) -40, false, 200);
+        List<DeviceCache.Entry> entries = cache.load(300);
+
+        assertEquals(2, entries.size());
+        assertEquals("live", entries.get(0).getName());
+        assertEquals("other", entries.get(1).getName());
+    }
+
+    @Test
+    public void load_corruptFile_keepsWhatIsInMemory() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        out.close();
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:01", "live", (short) -40, false, 200);
+
+        try {
+            cache.load(300);
+            fail("expected an IOException");
+        }
+        catch (IOException expected) {
+            // expected
+        }
+        assertEquals(1, cache.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void load_truncatedFile_fails() throws Exception {
+        DeviceCache cache = new DeviceCache(file, TTL);
+        cache.seen("00:11:22:AA:BB:01", "a device", (short) -40, false, 200);
+        cache.save();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        new DeviceCache(file, TTL).load(300);
+    }
+}
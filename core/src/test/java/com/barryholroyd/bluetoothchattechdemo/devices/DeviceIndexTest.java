@@ -0,0 +1,158 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DeviceIndex.
+ */
+public class DeviceIndexTest {
+    /** Records notifications as strings, e.g., "insert 0". */
+    private static class Recorder implements DeviceIndex.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("insert " + position + " " + count);
+        }
+
+        @Override
+        public void onChanged(int position) { events.add("change " + position); }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("remove " + position + " " + count);
+        }
+    }
+
+    private final DeviceIndex<String> index = new DeviceIndex<>();
+    private final Recorder recorder = new Recorder();
+
+    @Before
+    public void setUp() {
+        index.setListener(recorder);
+    }
+
+    private static String mac(int i) {
+        return String.format(Locale.US, "00:1A:7D:DA:00:%02X", i);
+    }
+
+    private void addAll(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(index.put(mac(i), "device " + i));
+        }
+        recorder.events.clear();
+    }
+
+    @Test
+    public void put_new_insertsAtEnd() throws Exception {
+        assertTrue(index.put(mac(0), "a"));
+        assertTrue(index.put(mac(1), "b"));
+
+        assertEquals(Arrays.asList("insert 0 1", "insert 1 1"), recorder.events);
+        assertEquals(2, index.size());
+        assertEquals("b", index.get(1));
+        assertEquals("b", index.get(mac(1)));
+        assertEquals(1, index.indexOf(mac(1)));
+        assertNull(index.get(mac(2)));
+        assertEquals(-1, index.indexOf(mac(2)));
+    }
+
+    @Test
+    public void put_duplicate_onlyNotifiesWhenDifferent() throws Exception {
+        addAll(3);
+
+        assertFalse(index.put(mac(1), "device 1"));
+        assertTrue(recorder.events.isEmpty());
+
+        assertFalse(index.put(mac(1), "renamed"));
+        assertEquals(Arrays.asList("change 1"), recorder.events);
+        assertEquals("renamed", index.get(1));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void putAll_reportsNewDevicesAsOneInsertion() throws Exception {
+        addAll(3);
+        Map<String, String> batch = new LinkedHashMap<>();
+        batch.put(mac(5), "device 5");
+        batch.put(mac(1), "renamed");
+        batch.put(mac(0), "device 0");
+        batch.put(mac(4), "device 4");
+
+        assertEquals(2, index.putAll(batch));
+
+        assertEquals(Arrays.asList("change 1", "insert 3 2"), recorder.events);
+        assertEquals(3, index.indexOf(mac(5)));
+        assertEquals(4, index.indexOf(mac(4)));
+        assertEquals("renamed", index.get(mac(1)));
+    }
+
+    @Test
+    public void remove_shiftsLaterPositions() throws Exception {
+        addAll(4);
+
+        assertTrue(index.remove(mac(1)));
+        assertFalse(index.remove(mac(1)));
+
+        assertEquals(Arrays.asList("remove 1 1"), recorder.events);
+        assertEquals(3, index.size());
+        assertEquals(1, index.indexOf(mac(2)));
+        assertEquals(2, index.indexOf(mac(3)));
+
+        // The entry's recorded position has moved with it.
+        index.put(mac(3), "changed");
+        assertEquals("change 2", recorder.events.get(1));
+    }
+
+    @Test
+    public void retainAll_reportsRunsFromTheEnd() throws Exception {
+        addAll(8);
+
+        index.retainAll(Arrays.asList(mac(0), mac(3), mac(4), mac(7)));
+
+        // Removed runs are 1-2 and 5-6; the later one is reported first.
+        assertEquals(Arrays.asList("remove 5 2", "remove 1 2"), recorder.events);
+        assertEquals(4, index.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(i, index.indexOf(index.getMac(i)));
+        }
+        assertEquals("device 7", index.get(3));
+        assertNull(index.get(mac(5)));
+    }
+
+    @Test
+    public void clear_removesEverythingAtOnce() throws Exception {
+        addAll(5);
+
+        index.clear();
+        index.clear();
+
+        assertEquals(Arrays.asList("remove 0 5"), recorder.events);
+        assertEquals(0, index.size());
+        assertFalse(index.contains(mac(0)));
+    }
+
+    @Test
+    public void getId_isTheMacAndStaysTheSame() throws Exception {
+        index.put("00:11:22:AA:BB:CC", "a");
+        index.put("not a mac", "b");
+        long id = index.getId(0);
+        assertEquals(0x001122AABBCCL, id);
+        assertTrue(index.getId(1) > 0xFFFFFFFFFFFFL);
+
+        index.clear();
+        index.put("00:11:22:33:44:55", "c");
+        index.put("00:11:22:AA:BB:CC", "a");
+        assertEquals(id, index.getId(1));
+    }
+}
@@ -0,0 +1,72 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DeviceRow.
+ */
+public class DeviceRowTest {
+    private static final String MAC = "00:11:22:AA:BB:CC";
+
+    @Test
+    public void label_usesTheNameOrUnknown() throws Exception {
+        assertEquals("Phone: " + MAC, new DeviceRow<>("d", MAC, "Phone").getLabel());
+        assertEquals("<unknown>: " + MAC, new DeviceRow<>("d", MAC, null).getLabel());
+    }
+
+    @Test
+    public void getLabel_isBuiltOnce() throws Exception {
+        DeviceRow<String> row = new DeviceRow<>("d", MAC, "Phone");
+        assertSame(row.getLabel(), row.getLabel());
+    }
+
+    @Test
+    public void withName_keepsAKnownName() throws Exception {
+        DeviceRow<String> row = new DeviceRow<>("d", MAC, "Phone");
+
+        assertSame(row, row.withName(null));
+        assertSame(row, row.withName("Phone"));
+        DeviceRow<String> renamed = row.withName("Tablet");
+        assertEquals("Tablet", renamed.getName());
+        assertEquals("Tablet: " + MAC, renamed.getLabel());
+        assertEquals("d", renamed.getDevice());
+    }
+
+    @Test
+    public void equals_comparesWhatIsDisplayed() throws Exception {
+        assertEquals(new DeviceRow<>("a", MAC, "Phone"), new DeviceRow<>("b", MAC, "Phone"));
+        assertEquals(new DeviceRow<>("a", MAC, null), new DeviceRow<>("a", MAC, null));
+        assertEquals(new DeviceRow<>("a", MAC, "Phone").hashCode(),
+                new DeviceRow<>("b", MAC, "Phone").hashCode());
+        assertFalse(new DeviceRow<>("a", MAC, "Phone").equals(new DeviceRow<>("a", MAC, null)));
+        assertFalse(new DeviceRow<>("a", MAC, "Phone")
+                .equals(new DeviceRow<>("a", "00:11:22:AA:BB:CD", "Phone")));
+    }
+
+    @Test
+    public void deviceIndex_onlyReportsRowsWhichLookDifferent() throws Exception {
+        final List<Integer> changed = new ArrayList<>();
+        DeviceIndex<DeviceRow<String>> index = new DeviceIndex<>();
+        index.put(MAC, new DeviceRow<>("d", MAC, null));
+        index.setListener(new DeviceIndex.Listener() {
+            @Override
+            public void onInserted(int position, int count) {}
+
+            @Override
+            public void onChanged(int position) { changed.add(position); }
+
+            @Override
+            public void onRemoved(int position, int count) {}
+        });
+
+        index.put(MAC, new DeviceRow<>("d", MAC, null));
+        assertTrue(changed.isEmpty());
+        index.put(MAC, index.get(MAC).withName("Phone"));
+        assertEquals(1, changed.size());
+    }
+}
@@ -0,0 +1,116 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DiscoveryBatcher.
+ */
+public class DiscoveryBatcherTest {
+    /** Records insertions and changes as strings, e.g., "insert 0 2". */
+    private static class Recorder implements DeviceIndex.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("insert " + position + " " + count);
+        }
+
+        @Override
+        public void onChanged(int position) { events.add("change " + position); }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("remove " + position + " " + count);
+        }
+    }
+
+    private final DiscoveryBatcher<String> batcher = new DiscoveryBatcher<>(100);
+    private final DeviceIndex<String> target = new DeviceIndex<>();
+    private final Recorder recorder = new Recorder();
+
+    @Before
+    public void setUp() {
+        target.setListener(recorder);
+    }
+
+    @Test
+    public void add_onlyTheFirstStartsAWindow() throws Exception {
+        assertTrue(batcher.add("00:00:00:00:00:01", "a"));
+        assertFalse(batcher.add("00:00:00:00:00:02", "b"));
+        assertFalse(batcher.add("00:00:00:00:00:01", "a"));
+        assertEquals(2, batcher.pending());
+        assertEquals("b", batcher.get("00:00:00:00:00:02"));
+        assertNull(batcher.get("00:00:00:00:00:03"));
+
+        batcher.flush(target, null);
+        assertTrue(batcher.add("00:00:00:00:00:03", "c"));
+    }
+
+    @Test
+    public void flush_mergesRepeatsIntoOneInsertion() throws Exception {
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.add("00:00:00:00:00:02", "b");
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.add("00:00:00:00:00:03", "c");
+        batcher.add("00:00:00:00:00:02", "b");
+
+        assertEquals(3, batcher.flush(target, null));
+
+        assertEquals(Arrays.asList("insert 0 3"), recorder.events);
+        assertEquals(2, batcher.getLastMerged());
+        assertEquals(0, batcher.pending());
+        assertEquals("a", target.get(0));
+        assertEquals("c", target.get(2));
+    }
+
+    @Test
+    public void flush_skipsExcludedAndKnownDevices() throws Exception {
+        DeviceIndex<String> paired = new DeviceIndex<>();
+        paired.put("00:00:00:00:00:09", "paired");
+        target.put("00:00:00:00:00:01", "a");
+        recorder.events.clear();
+
+        batcher.add("00:00:00:00:00:09", "paired");
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.add("00:00:00:00:00:02", "b");
+
+        assertEquals(1, batcher.flush(target, paired));
+        assertEquals(Arrays.asList("insert 1 1"), recorder.events);
+        assertFalse(target.contains("00:00:00:00:00:09"));
+    }
+
+    @Test
+    public void flush_recordsBatchMetrics() throws Exception {
+        Histogram merged = MetricsRegistry.getDefault()
+                .histogram("discovery.batch.merged", Histogram.COUNTS);
+        long before = merged.getCount();
+
+        assertEquals(0, batcher.flush(target, null));
+        assertEquals(before, merged.getCount());
+
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.flush(target, null);
+        assertEquals(before + 1, merged.getCount());
+    }
+
+    @Test
+    public void discard_dropsTheWindow() throws Exception {
+        batcher.add("00:00:00:00:00:01", "a");
+        batcher.discard();
+
+        assertEquals(0, batcher.flush(target, null));
+        assertTrue(recorder.events.isEmpty());
+        assertTrue(batcher.add("00:00:00:00:00:02", "b"));
+    }
+}
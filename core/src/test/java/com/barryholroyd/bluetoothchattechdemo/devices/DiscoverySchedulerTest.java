@@ -0,0 +1,210 @@
+package com.barryholroyd.bluetoothchattechdemo.devices;
+
+import com.barryholroyd.bluetoothchattechdemo.metrics.Counter;
+import com.barryholroyd.bluetoothchattechdemo.metrics.Histogram;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsRegistry;
+import com.barryholroyd.bluetoothchattechdemo.metrics.MetricsSnapshot;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Backoff;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DiscoveryScheduler.
+ */
+public class DiscoverySchedulerTest {
+    private static final long INITIAL = 1000;
+    private static final long MAX = 8000;
+    private static final long BUSY = 1000;
+    private static final long IDLE = 3000;
+
+    /** Radio whose discovery only ends when the test says so. */
+    private static class FakeRadio implements DiscoveryScheduler.Radio {
+        boolean discovering = false;
+        int starts = 0;
+        int cancels = 0;
+
+        @Override
+        public boolean isDiscovering() { return discovering; }
+
+        @Override
+        public boolean startDiscovery() {
+            starts++;
+            discovering = true;
+            return true;
+        }
+
+        @Override
+        public void cancelDiscovery() {
+            cancels++;
+            discovering = false;
+        }
+    }
+
+    private final FakeRadio radio = new FakeRadio();
+    private DiscoveryScheduler scheduler;
+
+    /** Session bytes so far. */
+    private long bytes = 0;
+
+    @Before
+    public void setUp() {
+        scheduler = new DiscoveryScheduler(radio,
+                new Backoff(INITIAL, MAX, Integer.MAX_VALUE, new Random(1)), BUSY, IDLE);
+        scheduler.setPeriodic(true);
+    }
+
+    @Test
+    public void tick_startsARunWhenIdle() throws Exception {
+        scheduler.tick(0, bytes);
+        assertEquals(1, radio.starts);
+
+        scheduler.tick(1000, bytes);
+        assertEquals(1, radio.starts);
+    }
+
+    @Test
+    public void tick_notPeriodic_neverStarts() throws Exception {
+        scheduler.setPeriodic(false);
+        for (long t = 0; t < 20000; t += 1000) {
+            scheduler.tick(t, bytes);
+        }
+        assertEquals(0, radio.starts);
+    }
+
+    @Test
+    public void finishedRun_waitsForTheBackoffDelay() throws Exception {
+        scheduler.tick(0, bytes);
+        radio.discovering = false;
+        scheduler.tick(1000, bytes);
+
+        long next = scheduler.getNextScanAt();
+        assertTrue(next >= 1000 + INITIAL / 2);
+        assertTrue(next <= 1000 + INITIAL);
+        scheduler.tick(next - 1, bytes);
+        assertEquals(1, radio.starts);
+        scheduler.tick(next, bytes);
+        assertEquals(2, radio.starts);
+    }
+
+    @Test
+    public void emptyRuns_backOffAndNewDevicesReset() throws Exception {
+        long t = 0;
+        long last = 0;
+        for (int i = 0; i < 4; i++) {
+            scheduler.tick(t, bytes);
+            radio.discovering = false;
+            t += 1000;
+            scheduler.tick(t, bytes);
+            last = scheduler.getNextScanAt() - t;
+            t = scheduler.getNextScanAt();
+        }
+        // Four empty runs: the delay has doubled up to the cap.
+        assertTrue(last >= MAX / 2);
+
+        scheduler.tick(t, bytes);
+        scheduler.onDevicesFound(2);
+        radio.discovering = false;
+        t += 1000;
+        scheduler.tick(t, bytes);
+        assertTrue(scheduler.getNextScanAt() - t <= INITIAL);
+    }
+
+    @Test
+    public void busySession_cancelsDiscoveryAndRetriesOnceIdle() throws Exception {
+        Counter cancelled = MetricsRegistry.getDefault().counter("discovery.cancelled");
+        long before = cancelled.get();
+
+        scheduler.tick(0, bytes);
+        bytes += 5000;
+        scheduler.tick(1000, bytes);
+
+        assertTrue(scheduler.isBusy());
+        assertEquals(1, radio.cancels);
+        assertEquals(before + 1, cancelled.get());
+
+        // Still busy, then quiet: nothing starts until the sessions have been idle for IDLE.
+        bytes += 5000;
+        scheduler.tick(2000, bytes);
+        scheduler.tick(3000, bytes);
+        scheduler.tick(4000, bytes);
+        assertEquals(1, radio.starts);
+        scheduler.tick(5000, bytes);
+        assertEquals(2, radio.starts);
+    }
+
+    @Test
+    public void busySession_cancelsDiscoveryStartedElsewhere() throws Exception {
+        scheduler.setPeriodic(false);
+        scheduler.tick(0, bytes);
+        radio.discovering = true;
+        bytes += 2000;
+        scheduler.tick(1000, bytes);
+
+        assertEquals(1, radio.cancels);
+        assertFalse(radio.discovering);
+    }
+
+    @Test
+    public void lightTraffic_isntBusy() throws Exception {
+        scheduler.tick(0, bytes);
+        bytes += 500;
+        scheduler.tick(1000, bytes);
+
+        assertFalse(scheduler.isBusy());
+        assertEquals(0, radio.cancels);
+    }
+
+    @Test
+    public void fallingTotal_isntTraffic() throws Exception {
+        bytes = 100000;
+        scheduler.tick(0, bytes);
+        scheduler.tick(1000, 0);
+
+        assertFalse(scheduler.isBusy());
+    }
+
+    @Test
+    public void recoveredRate_comparesTicksWithAndWithoutDiscovery() throws Exception {
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        Histogram scanning = registry.histogram("discovery.session.rate.scanning",
+                Histogram.SIZE_BYTES);
+        Histogram clear = registry.histogram("discovery.session.rate.clear",
+                Histogram.SIZE_BYTES);
+        long scanningBefore = scanning.getCount();
+        long clearBefore = clear.getCount();
+
+        // Busy while discovery was running, which is then cancelled.
+        scheduler.tick(0, bytes);
+        bytes += 2000;
+        scheduler.tick(1000, bytes);
+        assertEquals(scanningBefore + 1, scanning.getCount());
+        assertEquals(clearBefore, clear.getCount());
+
+        // Busy with discovery held off.
+        bytes += 6000;
+        scheduler.tick(2000, bytes);
+        assertEquals(scanningBefore + 1, scanning.getCount());
+        assertEquals(clearBefore + 1, clear.getCount());
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(clear.snapshot().getMean() - scanning.snapshot().getMean(),
+                snapshot.getGauge("discovery.session.rate.recovered"));
+    }
+
+    @Test
+    public void scanSoon_bringsTheNextRunForward() throws Exception {
+        scheduler.tick(0, bytes);
+        radio.discovering = false;
+        scheduler.tick(1000, bytes);
+        assertTrue(scheduler.getNextScanAt() > 1000);
+
+        scheduler.scanSoon(1200);
+        scheduler.tick(1200, bytes);
+        assertEquals(2, radio.starts);
+    }
+}
@@ -0,0 +1,78 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Histogram.
+ */
+public class HistogramTest {
+    @Test
+    public void percentiles_reportTheirBucketsUpperBound() throws Exception {
+        Histogram h = new Histogram(new long[] { 10, 20, 40, 80 });
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(100, s.getMax());
+        assertEquals(50, s.getMean());
+        assertEquals(10, s.getPercentile(10));
+        assertEquals(80, s.getPercentile(50));
+        // Above the last bound: reported as the largest value.
+        assertEquals(100, s.getPercentile(99));
+    }
+
+    @Test
+    public void percentile_isNeverAboveTheLargestValue() throws Exception {
+        Histogram h = new Histogram(Histogram.LATENCY_NS);
+        h.record(1500);
+        assertEquals(1500, h.snapshot().getPercentile(50));
+    }
+
+    @Test
+    public void negativeValues_areCountedAsZero() throws Exception {
+        Histogram h = new Histogram(new long[] { 10 });
+        h.record(-5);
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(1, s.getCount());
+        assertEquals(0, s.getMax());
+        assertEquals(0, s.getPercentile(100));
+    }
+
+    @Test
+    public void empty_reportsZero() throws Exception {
+        Histogram.Snapshot s = new Histogram(Histogram.SIZE_BYTES).snapshot();
+        assertEquals(0, s.getCount());
+        assertEquals(0, s.getMean());
+        assertEquals(0, s.getPercentile(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsortedBounds_areRejected() throws Exception {
+        new Histogram(new long[] { 10, 5 });
+    }
+
+    @Test
+    public void concurrentRecords_areAllCounted() throws Exception {
+        final Histogram h = new Histogram(Histogram.LATENCY_NS);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        h.record(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, h.snapshot().getCount());
+        assertEquals(9999, h.snapshot().getMax());
+    }
+}
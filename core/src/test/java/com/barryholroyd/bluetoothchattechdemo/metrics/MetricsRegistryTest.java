@@ -0,0 +1,92 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MetricsRegistry.
+ */
+public class MetricsRegistryTest {
+    @Test
+    public void sameName_returnsTheSameMetric() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        assertSame(r.counter("a"), r.counter("a"));
+        assertSame(r.gauge("b"), r.gauge("b"));
+        assertSame(r.histogram("c"), r.histogram("c"));
+        assertNotSame(r.counter("a"), r.counter("d"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameNameOtherType_isRejected() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("a");
+        r.gauge("a");
+    }
+
+    @Test
+    public void snapshot_copiesEveryMetric() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("messages").add(3);
+        Gauge g = r.gauge("backlog");
+        g.set(7);
+        g.set(2);
+        r.histogram("size", Histogram.SIZE_BYTES).record(100);
+
+        MetricsSnapshot s = r.snapshot();
+        r.counter("messages").inc();
+        assertEquals(3, s.getCounter("messages"));
+        assertEquals(2, s.getGauge("backlog"));
+        assertEquals(7, s.getGaugeMax("backlog"));
+        assertEquals(1, s.getHistogram("size").getCount());
+        assertNull(s.getHistogram("messages"));
+        assertEquals(0, s.getCounter("missing"));
+    }
+
+    @Test
+    public void format_listsMatchingMetricsInOrder() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("session.b.reads").add(2);
+        r.counter("session.a.reads").inc();
+        r.counter("listener.accepted").inc();
+
+        MetricsSnapshot s = r.snapshot();
+        String nl = System.getProperty("line.separator");
+        assertEquals("session.a.reads 1" + nl + "session.b.reads 2" + nl,
+                s.format("session."));
+        assertEquals("listener.accepted 1" + nl, s.format("listener"));
+    }
+
+    @Test
+    public void removeAll_removesThePrefix() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("session.a.reads");
+        r.counter("session.b.reads");
+        r.removeAll("session.a.");
+        assertEquals(1, r.snapshot().getNames().size());
+        assertTrue(r.snapshot().getNames().contains("session.b.reads"));
+    }
+
+    @Test
+    public void dump_writesOneLinePerMetric() throws Exception {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("a").inc();
+        r.histogram("b").record(5000);
+        File file = File.createTempFile("metrics", ".txt");
+        try {
+            r.dump(file);
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            assertEquals("a 1", in.readLine());
+            assertTrue(in.readLine().startsWith("b n=1 "));
+            assertNull(in.readLine());
+            in.close();
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.barryholroyd.bluetoothchattechdemo.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TraceBuffer.
+ */
+public class TraceBufferTest {
+    @Test
+    public void dump_formatsEventsOldestFirst() throws Exception {
+        TraceBuffer buffer = new TraceBuffer(8);
+        buffer.record(TraceEvent.READ, 42, 0, 0);
+        buffer.record(TraceEvent.SESSION_ENDED, 0x001122aabbccL, 0, 0);
+        buffer.record(TraceEvent.BROADCAST_DONE, 3, 1, 2);
+
+        String[] lines = dump(buffer, 3);
+        assertTrue(lines[0].endsWith("server: read 42 bytes"));
+        assertTrue(lines[1].endsWith("sessions: session with 001122aabbcc ended"));
+        assertTrue(lines[2].endsWith("chat: broadcast sent=3 failed=1 skipped=2"));
+        assertTrue(lines[0].trim().startsWith("0.000 ["));
+    }
+
+    @Test
+    public void full_keepsTheNewestEvents() throws Exception {
+        TraceBuffer buffer = new TraceBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.record(TraceEvent.READ, i, 0, 0);
+        }
+        assertEquals(10, buffer.getCount());
+        String[] lines = dump(buffer, 4);
+        assertTrue(lines[0].endsWith("read 6 bytes"));
+        assertTrue(lines[3].endsWith("read 9 bytes"));
+    }
+
+    @Test
+    public void concurrentRecords_dumpWholeEvents() throws Exception {
+        final TraceBuffer buffer = new TraceBuffer(64);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        buffer.record(TraceEvent.BROADCAST_QUEUED, i, i, 0);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, buffer.getCount());
+        for (String line : dump(buffer, 64)) {
+            String[] words = line.trim().split(" ");
+            // "... broadcast N bytes to N devices": both arguments from the same call.
+            assertEquals(words[4], words[7]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBeAPowerOfTwo() throws Exception {
+        new TraceBuffer(12);
+    }
+
+    @Test
+    public void mac_isPackedIntoALong() throws Exception {
+        assertEquals(0x001122aabbccL, Tracer.mac("00:11:22:AA:BB:CC"));
+        assertEquals(-1, Tracer.mac("00:11:22"));
+        assertEquals(-1, Tracer.mac("00-11-22-AA-BB-CC"));
+    }
+
+    private static String[] dump(TraceBuffer buffer, int expected) throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(expected, buffer.dump(out));
+        String[] lines = out.toString().split(System.getProperty("line.separator"));
+        assertEquals(expected, lines.length);
+        return lines;
+    }
+}
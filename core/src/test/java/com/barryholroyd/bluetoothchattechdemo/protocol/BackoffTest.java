@@ -0,0 +1,69 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Backoff.
+ */
+public class BackoffTest {
+    /** Random source which always returns the same value. */
+    private static class FixedRandom extends Random {
+        private final double value;
+
+        FixedRandom(double _value) {
+            value = _value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    @Test
+    public void delays_doubleUpToTheCap() throws Exception {
+        // Jitter at its top end gives the ceiling itself.
+        Backoff backoff = new Backoff(100, 1000, 8, new FixedRandom(0.999999));
+        long[] expected = { 100, 200, 400, 800, 1000, 1000, 1000, 1000 };
+        for (long e : expected) {
+            assertEquals(e, backoff.nextDelayMs());
+        }
+        assertEquals(-1, backoff.nextDelayMs());
+        assertEquals(8, backoff.getAttempts());
+    }
+
+    @Test
+    public void jitter_staysInTheUpperHalf() throws Exception {
+        Backoff low = new Backoff(100, 1000, 5, new FixedRandom(0));
+        assertEquals(50, low.nextDelayMs());
+        assertEquals(100, low.nextDelayMs());
+        assertEquals(200, low.nextDelayMs());
+
+        Backoff random = new Backoff(100, 1000, 1000, new Random(1));
+        for (int i = 0; i < 1000; i++) {
+            long ceiling = Math.min(1000, 100L << Math.min(i, 30));
+            long delay = random.nextDelayMs();
+            assertTrue("delay " + delay, (delay >= ceiling / 2) && (delay <= ceiling));
+        }
+    }
+
+    @Test
+    public void reset_startsAgain() throws Exception {
+        Backoff backoff = new Backoff(100, 1000, 2, new FixedRandom(0.999999));
+        backoff.nextDelayMs();
+        backoff.nextDelayMs();
+        assertEquals(-1, backoff.nextDelayMs());
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertEquals(100, backoff.nextDelayMs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsCapBelowInitialDelay() throws Exception {
+        new Backoff(1000, 100, 3, new Random());
+    }
+}
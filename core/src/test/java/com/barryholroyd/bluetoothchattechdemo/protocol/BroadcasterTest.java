@@ -0,0 +1,227 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Broadcaster and FrameWriter.sendEncoded(). The remote devices'
+ * HELLOs and acknowledgements are simulated.
+ */
+public class BroadcasterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Output stream which records what is written and can be held closed by a latch. */
+    private static class PeerStream extends OutputStream {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                gate.await();
+            }
+            catch (InterruptedException ie) {
+                throw new IOException("interrupted");
+            }
+            synchronized (data) {
+                data.write(b, off, len);
+            }
+        }
+
+        byte[] bytes() {
+            synchronized (data) {
+                return data.toByteArray();
+            }
+        }
+    }
+
+    /** Records the outcome of each broadcast. */
+    private static class Outcome implements Broadcaster.BroadcastCallback {
+        final CountDownLatch done;
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+
+        Outcome(int broadcasts) {
+            done = new CountDownLatch(broadcasts);
+        }
+
+        @Override
+        public void onComplete(int _sent, int _failed, int _skipped) {
+            calls.incrementAndGet();
+            sent.addAndGet(_sent);
+            failed.addAndGet(_failed);
+            skipped.addAndGet(_skipped);
+            done.countDown();
+        }
+    }
+
+    private final List<FrameWriter> writers = new ArrayList<>();
+    private final List<ReliableChannel> channels = new ArrayList<>();
+    private final List<ReliableChannel.Connection> connections = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (FrameWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    /** Create a channel writing to "out", as if the remote device had said HELLO. */
+    private ReliableChannel newChannel(OutputStream out) throws IOException {
+        FrameWriter writer = new FrameWriter(out, FrameWriter.DEFAULT_QUEUE_SIZE);
+        writers.add(writer);
+        writer.start();
+        ReliableChannel channel = new ReliableChannel(ReliableChannel.DEFAULT_WINDOW);
+        channels.add(channel);
+        ReliableChannel.Connection connection = channel.attach(writer);
+        connections.add(connection);
+        byte[] hello = new byte[ReliableChannel.HELLO_SIZE];
+        Frames.putLong(hello, 0, 1 + channels.size());
+        connection.onFrame(Frames.TYPE_HELLO, hello, hello.length);
+        return channel;
+    }
+
+    /** Acknowledge everything the remote device has received so far. */
+    private void ack(ReliableChannel channel, int received) throws IOException {
+        byte[] ack = new byte[ReliableChannel.ACK_SIZE];
+        Frames.putLong(ack, 0, received);
+        connections.get(channels.indexOf(channel)).onFrame(Frames.TYPE_ACK, ack, ack.length);
+    }
+
+    /** Decode a peer's stream, reassembling chunked messages. */
+    private static List<byte[]> decode(byte[] wire) throws IOException {
+        final List<byte[]> messages = new ArrayList<>();
+        final TextAssembler assembler = new TextAssembler(
+                new TextAssembler.TextListener() {
+                    @Override
+                    public void onText(CharBuffer text) {
+                        ByteBuffer bytes = UTF8.encode(text);
+                        messages.add(Arrays.copyOf(bytes.array(), bytes.limit()));
+                    }
+
+                    @Override
+                    public void onMessageTooLarge(long length) {
+                        fail("message too large: " + length);
+                    }
+                }, TextAssembler.DEFAULT_MAX_MESSAGE);
+        new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] payload, int length)
+                    throws IOException {
+                if (type == Frames.TYPE_CHUNK) {
+                    assembler.onChunk(flags, payload, length);
+                }
+                else if (type != Frames.TYPE_HELLO) {
+                    assertEquals(Frames.TYPE_CHAT, type);
+                    messages.add(Arrays.copyOf(payload, length));
+                }
+            }
+        }).decode(wire, 0, wire.length);
+        return messages;
+    }
+
+    @Test
+    public void messagesOfEverySize_reachEveryPeer() throws Exception {
+        PeerStream[] peers = new PeerStream[4];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new PeerStream();
+            peers[i].gate.countDown();
+            newChannel(peers[i]);
+        }
+        byte[][] messages = {
+                "hello, everyone".getBytes("UTF-8"),      // copied into the batch
+                new byte[4000],                           // written directly
+                new byte[3 * Frames.MAX_PAYLOAD + 17],    // chunked
+        };
+        for (int i = 0; i < messages.length; i++) {
+            Arrays.fill(messages[i], 1, messages[i].length, (byte) ('a' + i));
+        }
+
+        Broadcaster broadcaster = new Broadcaster(Broadcaster.DEFAULT_PEER_QUEUE_LIMIT);
+        Outcome outcome = new Outcome(messages.length);
+        for (byte[] m : messages) {
+            assertEquals(peers.length, broadcaster.broadcast(channels, m, 0, m.length, outcome));
+        }
+
+        for (int p = 0; p < peers.length; p++) {
+            List<byte[]> received = decode(peers[p].bytes());
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((received.size() < messages.length)
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(1);
+                received = decode(peers[p].bytes());
+            }
+            assertEquals(messages.length, received.size());
+            for (int i = 0; i < messages.length; i++) {
+                assertArrayEquals(messages[i], received.get(i));
+            }
+            ack(channels.get(p), received.size());
+        }
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertEquals(messages.length, outcome.calls.get());
+        assertEquals(messages.length * peers.length, outcome.sent.get());
+    }
+
+    @Test
+    public void slowPeer_isSkippedWithoutHoldingBackOthers() throws Exception {
+        PeerStream fast = new PeerStream();
+        fast.gate.countDown();
+        PeerStream slow = new PeerStream();
+        ReliableChannel fastChannel = newChannel(fast);
+        ReliableChannel slowChannel = newChannel(slow);
+
+        int limit = 4;
+        int count = 20;
+        Broadcaster broadcaster = new Broadcaster(limit);
+        Outcome outcome = new Outcome(count);
+        for (int i = 0; i < count; i++) {
+            byte[] m = ("message " + i).getBytes("UTF-8");
+            broadcaster.broadcast(channels, m, 0, m.length, outcome);
+            // The fast device keeps up; the slow one acknowledges nothing.
+            Thread.sleep(5);
+            ack(fastChannel, decode(fast.bytes()).size());
+        }
+        assertEquals(limit, slowChannel.backlog());
+
+        slow.gate.countDown();
+        Thread.sleep(50);
+        int slowReceived = decode(slow.bytes()).size();
+        assertEquals(limit, slowReceived);
+        ack(slowChannel, slowReceived);
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertEquals(count, decode(fast.bytes()).size());
+        assertEquals(count + slowReceived, outcome.sent.get());
+        assertEquals(count - slowReceived, outcome.skipped.get());
+        assertEquals(0, outcome.failed.get());
+    }
+
+    @Test
+    public void noPeers_completesImmediately() throws Exception {
+        Outcome outcome = new Outcome(1);
+        byte[] m = "anyone?".getBytes("UTF-8");
+        assertEquals(0, new Broadcaster(1).broadcast(channels, m, 0, m.length, outcome));
+        assertEquals(1, outcome.calls.get());
+    }
+}
@@ -0,0 +1,63 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BufferPool.
+ */
+public class BufferPoolTest {
+    @Test
+    public void acquireAndRelease_reuseTheSameBuffers() throws Exception {
+        BufferPool pool = new BufferPool(2, 16);
+        BufferPool.PooledBuffer a = pool.acquire();
+        BufferPool.PooledBuffer b = pool.acquire();
+        assertEquals(0, pool.available());
+        assertNotSame(a, b);
+
+        a.release();
+        assertEquals(1, pool.available());
+        assertSame(a, pool.acquire());
+        b.release();
+    }
+
+    @Test
+    public void put_copiesContentsAndLength() throws Exception {
+        BufferPool pool = new BufferPool(1, 8);
+        BufferPool.PooledBuffer buffer = pool.acquire();
+        buffer.put(new byte[] { 9, 1, 2, 3 }, 1, 3);
+        assertEquals(3, buffer.getLength());
+        assertEquals(1, buffer.getBytes()[0]);
+        assertEquals(3, buffer.getBytes()[2]);
+
+        buffer.release();
+        assertEquals(0, pool.acquire().getLength());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void put_rejectsOversizedData() throws Exception {
+        new BufferPool(1, 4).acquire().put(new byte[5], 0, 5);
+    }
+
+    @Test
+    public void acquire_blocksUntilRelease() throws Exception {
+        final BufferPool pool = new BufferPool(1, 4);
+        final BufferPool.PooledBuffer held = pool.acquire();
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+                held.release();
+            }
+        };
+        releaser.start();
+        assertSame(held, pool.acquire());
+        releaser.join();
+    }
+}
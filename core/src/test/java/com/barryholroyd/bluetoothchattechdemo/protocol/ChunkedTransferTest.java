@@ -0,0 +1,218 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for chunked messages: FrameWriter.sendChunked() on one end of an in-memory
+ * stream pair and FrameDecoder plus TextAssembler, as ChatSession uses them, on the
+ * other.
+ */
+public class ChunkedTransferTest {
+    /** Records everything which arrives, in order. */
+    private static class Receiver implements FrameDecoder.FrameListener,
+            TextAssembler.TextListener {
+        final TextAssembler assembler;
+        final List<String> events = new ArrayList<>();
+        String large = null;
+        long tooLarge = -1;
+
+        Receiver(int maxMessage) {
+            assembler = new TextAssembler(this, maxMessage);
+        }
+
+        @Override
+        public void onFrame(int type, int flags, byte[] payload, int length)
+                throws IOException {
+            if (type == Frames.TYPE_CHUNK) {
+                assembler.onChunk(flags, payload, length);
+            }
+            else {
+                events.add(new String(payload, 0, length, "UTF-8"));
+            }
+        }
+
+        @Override
+        public void onText(CharBuffer text) {
+            large = text.toString();
+            events.add("<large>");
+        }
+
+        @Override
+        public void onMessageTooLarge(long length) {
+            tooLarge = length;
+            events.add("<too large>");
+        }
+    }
+
+    /** Counts down once per successful send. */
+    private static class Latch implements FrameWriter.SendCallback {
+        final CountDownLatch done;
+
+        Latch(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onSent() {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    /** About "size" bytes of log text; the degree signs are split across chunks. */
+    private static String text(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        int line = 0;
+        while (sb.length() < size) {
+            sb.append(String.format(Locale.US,
+                    "%08d log line, temp 21\u00b0C, some config = value\n", line++));
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /** Read and decode until the writer side closes the pipe. */
+    private static void drain(PipedInputStream in, Receiver receiver) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(receiver);
+        byte[] buf = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while (decoder.readFrom(in, buf) >= 0) {
+        }
+    }
+
+    @Test
+    public void multiMegabyteMessage_isReassembled() throws Exception {
+        final String text = text(4 * 1024 * 1024);
+        final byte[] message = text.getBytes("UTF-8");
+        final PipedInputStream in = new PipedInputStream(64 * 1024);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        final FrameWriter writer = new FrameWriter(out, FrameWriter.DEFAULT_QUEUE_SIZE);
+        final Latch sent = new Latch(1);
+        writer.start();
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sent.done.await();
+                    writer.close();
+                    writer.join();
+                    out.close();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        closer.start();
+
+        Receiver receiver = new Receiver(TextAssembler.DEFAULT_MAX_MESSAGE);
+        assertTrue(writer.sendChunked(message, 0, message.length, sent));
+        drain(in, receiver);
+        closer.join();
+
+        assertEquals(text, receiver.large);
+    }
+
+    @Test
+    public void smallMessages_overtakeALargeOne() throws Exception {
+        final String text = text(2 * 1024 * 1024);
+        final byte[] message = text.getBytes("UTF-8");
+        final PipedInputStream in = new PipedInputStream(4 * 1024);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        final FrameWriter writer = new FrameWriter(out, FrameWriter.DEFAULT_QUEUE_SIZE);
+        final Latch sent = new Latch(2);
+        writer.start();
+
+        // The small pipe keeps the writer busy with the large message while we queue.
+        assertTrue(writer.sendChunked(message, 0, message.length, sent));
+        byte[] small = "quick question".getBytes("UTF-8");
+        assertTrue(writer.send(Frames.TYPE_CHAT, 0, small, 0, small.length, sent));
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sent.done.await();
+                    writer.close();
+                    writer.join();
+                    out.close();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        closer.start();
+
+        Receiver receiver = new Receiver(TextAssembler.DEFAULT_MAX_MESSAGE);
+        drain(in, receiver);
+        closer.join();
+
+        assertEquals(Arrays.asList("quick question", "<large>"), receiver.events);
+        assertEquals(text, receiver.large);
+    }
+
+    @Test
+    public void messageOverLimit_isDroppedAndReported() throws Exception {
+        Receiver receiver = new Receiver(10);
+        byte[] chunk = new byte[6];
+        receiver.assembler.onChunk(0, chunk, 6);
+        receiver.assembler.onChunk(0, chunk, 6);
+        receiver.assembler.onChunk(Frames.FLAG_LAST, chunk, 3);
+        assertEquals(15, receiver.tooLarge);
+
+        // The next message is unaffected.
+        receiver.assembler.onChunk(0, "abc".getBytes("UTF-8"), 3);
+        receiver.assembler.onChunk(Frames.FLAG_LAST, "de".getBytes("UTF-8"), 2);
+        assertEquals("abcde", receiver.large);
+        assertEquals(Arrays.asList("<too large>", "<large>"), receiver.events);
+    }
+
+    @Test
+    public void messageAtLimit_isDelivered() throws Exception {
+        Receiver receiver = new Receiver(8);
+        byte[] chunk = "abcd".getBytes("UTF-8");
+        receiver.assembler.onChunk(0, chunk, 4);
+        receiver.assembler.onChunk(Frames.FLAG_LAST, chunk, 4);
+        assertEquals("abcdabcd", receiver.large);
+    }
+
+    @Test
+    public void closedWriter_failsChunkedMessage() throws Exception {
+        FrameWriter writer = new FrameWriter(new PipedOutputStream(new PipedInputStream()), 4);
+        writer.start();
+        writer.close();
+        writer.join();
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        writer.sendChunked(new byte[100000], 0, 100000, new FrameWriter.SendCallback() {
+            @Override
+            public void onSent() {
+            }
+
+            @Override
+            public void onFailed(IOException ioe) {
+                failed.countDown();
+            }
+        });
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+    }
+}
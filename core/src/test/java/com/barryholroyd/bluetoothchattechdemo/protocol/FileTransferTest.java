@@ -0,0 +1,313 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for FileSender and FileReceiver over a pair of in-memory pipes.
+ */
+public class FileTransferTest {
+    private File root;
+    private File source;
+    private File inbox;
+
+    /** Records the outcome of a transfer. */
+    private static class Status implements FileTransferListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicLong progress = new AtomicLong(-1);
+        final AtomicLong firstProgress = new AtomicLong(-1);
+        volatile File file = null;
+        volatile IOException failure = null;
+
+        @Override
+        public void onProgress(String name, long confirmed, long size) {
+            firstProgress.compareAndSet(-1, confirmed);
+            progress.set(confirmed);
+        }
+
+        @Override
+        public void onComplete(String name, File _file) {
+            file = _file;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(String name, IOException ioe) {
+            failure = ioe;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Two ends of a connection. The sending end's writer feeds the receiving end's
+     * decoder and vice versa; "dropAfter" makes the receiving end stop reading once
+     * it has seen that many bytes of file data, simulating a dropped link.
+     */
+    private static class Link {
+        final FrameWriter senderWriter;
+        final FrameWriter receiverWriter;
+        final Thread senderReader;
+        final Thread receiverReader;
+        volatile FileSender sender;
+
+        Link(final FileReceiver[] receiver, final long dropAfter, File inbox,
+             final Status receiverStatus) throws IOException {
+            PipedInputStream toReceiver = new PipedInputStream(64 * 1024);
+            PipedInputStream toSender = new PipedInputStream(4 * 1024);
+            senderWriter = new FrameWriter(new PipedOutputStream(toReceiver), 16);
+            receiverWriter = new FrameWriter(new PipedOutputStream(toSender), 16);
+            receiver[0] = new FileReceiver(inbox, receiverWriter, receiverStatus);
+
+            final FrameDecoder receiverDecoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+                long seen = 0;
+
+                @Override
+                public void onFrame(int type, int flags, byte[] payload, int length)
+                        throws IOException {
+                    if (type == Frames.TYPE_FILE_OFFER) {
+                        receiver[0].onOffer(payload, length);
+                    }
+                    else if (type == Frames.TYPE_FILE_DATA) {
+                        seen += length - FileSender.DATA_HEADER;
+                        if ((dropAfter > 0) && (seen > dropAfter)) {
+                            throw new IOException("link dropped");
+                        }
+                        receiver[0].onData(flags, payload, length);
+                    }
+                }
+            });
+            final FrameDecoder senderDecoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+                @Override
+                public void onFrame(int type, int flags, byte[] payload, int length) {
+                    long id = Frames.getLong(payload, 0);
+                    long offset = Frames.getLong(payload, 8);
+                    if (type == Frames.TYPE_FILE_ACCEPT) {
+                        sender.onAccept(id, offset);
+                    }
+                    else if (type == Frames.TYPE_FILE_ACK) {
+                        sender.onAck(id, offset);
+                    }
+                }
+            });
+            receiverReader = reader(receiverDecoder, toReceiver, receiver[0]);
+            senderReader = reader(senderDecoder, toSender, null);
+            senderWriter.start();
+            receiverWriter.start();
+        }
+
+        private Thread reader(final FrameDecoder decoder, final PipedInputStream in,
+                              final FileReceiver receiver) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[1024];
+                    try {
+                        //noinspection StatementWithEmptyBody
+                        while (decoder.readFrom(in, buf) >= 0) {
+                        }
+                    }
+                    catch (IOException ioe) {
+                        if (receiver != null) {
+                            receiver.abandon(ioe);
+                        }
+                        // Breaks the pipe so the sending end fails too.
+                        try {
+                            in.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            return t;
+        }
+
+        Status send(File file) throws IOException {
+            Status status = new Status();
+            FileChannel channel = new FileInputStream(file).getChannel();
+            sender = new FileSender(senderWriter, channel, file.getName(), file.length(), status);
+            sender.start();
+            return status;
+        }
+
+        void close() {
+            senderWriter.close();
+            receiverWriter.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("filetransfer", "");
+        assertTrue(root.delete() && root.mkdir());
+        inbox = new File(root, "inbox");
+        assertTrue(inbox.mkdir());
+        source = new File(root, "dump.bin");
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(root);
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        int off = 0;
+        while (off < data.length) {
+            off += in.read(data, off, data.length - off);
+        }
+        in.close();
+        return data;
+    }
+
+    @Test
+    public void file_isTransferredIntact() throws Exception {
+        FileReceiver[] receiver = new FileReceiver[1];
+        Status received = new Status();
+        Link link = new Link(receiver, 0, inbox, received);
+        Status sent = link.send(source);
+
+        assertTrue(sent.done.await(10, TimeUnit.SECONDS));
+        assertTrue(received.done.await(10, TimeUnit.SECONDS));
+        link.close();
+
+        assertNull(sent.failure);
+        assertNull(received.failure);
+        assertEquals(new File(inbox, "dump.bin"), received.file);
+        assertTrue(Arrays.equals(read(source), read(received.file)));
+        assertFalse(new File(inbox, "dump.bin.part").exists());
+        assertFalse(new File(inbox, "dump.bin.part.offset").exists());
+    }
+
+    @Test
+    public void droppedTransfer_resumesFromConfirmedOffset() throws Exception {
+        // First attempt: the link drops a little over a megabyte in.
+        FileReceiver[] receiver = new FileReceiver[1];
+        Status firstReceived = new Status();
+        Link first = new Link(receiver, 1024 * 1024 + 5000, inbox, firstReceived);
+        Status firstSent = first.send(source);
+        assertTrue(firstReceived.done.await(10, TimeUnit.SECONDS));
+        assertTrue(firstSent.done.await(10, TimeUnit.SECONDS));
+        first.close();
+        assertNotNull(firstReceived.failure);
+        assertNotNull(firstSent.failure);
+        assertTrue(new File(inbox, "dump.bin.part").exists());
+
+        // Second attempt over a new link: the receiver accepts at the confirmed offset.
+        Status secondReceived = new Status();
+        Link second = new Link(receiver, 0, inbox, secondReceived);
+        Status secondSent = second.send(source);
+        assertTrue(secondSent.done.await(10, TimeUnit.SECONDS));
+        assertTrue(secondReceived.done.await(10, TimeUnit.SECONDS));
+        second.close();
+
+        assertNull(secondReceived.failure);
+        assertTrue("resumed at " + secondSent.firstProgress.get(),
+                secondSent.firstProgress.get() >= FileReceiver.ACK_INTERVAL);
+        assertTrue(Arrays.equals(read(source), read(new File(inbox, "dump.bin"))));
+    }
+
+    @Test
+    public void differentFileWithSameNameAndSize_startsOver() throws Exception {
+        FileReceiver[] receiver = new FileReceiver[1];
+        Status firstReceived = new Status();
+        Link first = new Link(receiver, 1024 * 1024 + 5000, inbox, firstReceived);
+        Status firstSent = first.send(source);
+        assertTrue(firstReceived.done.await(10, TimeUnit.SECONDS));
+        assertTrue(firstSent.done.await(10, TimeUnit.SECONDS));
+        first.close();
+        assertNotNull(firstReceived.failure);
+
+        // Regenerated: same name and size, different contents.
+        byte[] data = new byte[(int) source.length()];
+        new Random(7).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(data);
+        out.close();
+
+        Status secondReceived = new Status();
+        Link second = new Link(receiver, 0, inbox, secondReceived);
+        Status secondSent = second.send(source);
+        assertTrue(secondSent.done.await(10, TimeUnit.SECONDS));
+        assertTrue(secondReceived.done.await(10, TimeUnit.SECONDS));
+        second.close();
+
+        assertNull(secondReceived.failure);
+        assertEquals(0, secondSent.firstProgress.get());
+        assertTrue(Arrays.equals(data, read(new File(inbox, "dump.bin"))));
+    }
+
+    @Test
+    public void lastChunkBeforeTheEnd_failsTheTransfer() throws Exception {
+        Status status = new Status();
+        FrameWriter writer = new FrameWriter(new PipedOutputStream(new PipedInputStream()), 4);
+        FileReceiver receiver = new FileReceiver(inbox, writer, status);
+        byte[] name = "short.txt".getBytes("UTF-8");
+        byte[] offer = new byte[FileSender.DATA_HEADER + name.length];
+        Frames.putLong(offer, 0, 1);
+        Frames.putLong(offer, 8, 10);
+        System.arraycopy(name, 0, offer, FileSender.DATA_HEADER, name.length);
+        receiver.onOffer(offer, offer.length);
+
+        byte[] data = new byte[FileSender.DATA_HEADER + 4];
+        Frames.putLong(data, 0, 1);
+        Frames.putLong(data, 8, 0);
+        receiver.onData(Frames.FLAG_LAST, data, data.length);
+
+        assertNotNull(status.failure);
+        assertNull(status.file);
+        assertFalse(new File(inbox, "short.txt").exists());
+    }
+
+    @Test
+    public void offerWithPath_isConfinedToInbox() throws Exception {
+        final Status status = new Status();
+        FrameWriter writer = new FrameWriter(new PipedOutputStream(new PipedInputStream()), 4);
+        FileReceiver receiver = new FileReceiver(inbox, writer, status);
+        byte[] name = "../../escape.txt".getBytes("UTF-8");
+        byte[] payload = new byte[FileSender.DATA_HEADER + name.length];
+        Frames.putLong(payload, 0, 1);
+        Frames.putLong(payload, 8, 10);
+        System.arraycopy(name, 0, payload, FileSender.DATA_HEADER, name.length);
+        receiver.onOffer(payload, payload.length);
+
+        assertTrue(new File(inbox, "escape.txt.part").exists());
+        assertFalse(new File(root, "escape.txt.part").exists());
+        receiver.abandon(new IOException("done"));
+    }
+}
@@ -0,0 +1,161 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FrameDecoder, driven through FrameEncoder and piped streams.
+ */
+public class FrameDecoderTest {
+    /** Collects decoded frames; the decoder reuses its payload buffer so we copy. */
+    private static class Collector implements FrameDecoder.FrameListener {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Integer> types = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+
+        @Override
+        public void onFrame(int type, int _flags, byte[] payload, int length) {
+            types.add(type);
+            flags.add(_flags);
+            payloads.add(Arrays.copyOf(payload, length));
+        }
+    }
+
+    private static byte[] encode(byte[]... payloads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        for (byte[] p : payloads) {
+            encoder.write(out, Frames.TYPE_CHAT, 0, p, 0, p.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void singleFrame_isDecoded() throws Exception {
+        Collector c = new Collector();
+        byte[] wire = encode("hello".getBytes("UTF-8"));
+        new FrameDecoder(c).decode(wire, 0, wire.length);
+
+        assertEquals(1, c.payloads.size());
+        assertEquals(Frames.TYPE_CHAT, (int) c.types.get(0));
+        assertEquals(0, (int) c.flags.get(0));
+        assertArrayEquals("hello".getBytes("UTF-8"), c.payloads.get(0));
+    }
+
+    @Test
+    public void severalFramesInOneRead_areAllDecoded() throws Exception {
+        Collector c = new Collector();
+        byte[] wire = encode("a".getBytes("UTF-8"), new byte[0], "ccc".getBytes("UTF-8"));
+        new FrameDecoder(c).decode(wire, 0, wire.length);
+
+        assertEquals(3, c.payloads.size());
+        assertArrayEquals("a".getBytes("UTF-8"), c.payloads.get(0));
+        assertArrayEquals(new byte[0], c.payloads.get(1));
+        assertArrayEquals("ccc".getBytes("UTF-8"), c.payloads.get(2));
+    }
+
+    @Test
+    public void frameSplitAtEveryByte_isDecoded() throws Exception {
+        Collector c = new Collector();
+        FrameDecoder decoder = new FrameDecoder(c);
+        byte[] wire = encode("split me".getBytes("UTF-8"), "again".getBytes("UTF-8"));
+        for (int i = 0; i < wire.length; i++) {
+            decoder.decode(wire, i, 1);
+        }
+
+        assertEquals(2, c.payloads.size());
+        assertArrayEquals("split me".getBytes("UTF-8"), c.payloads.get(0));
+        assertArrayEquals("again".getBytes("UTF-8"), c.payloads.get(1));
+    }
+
+    @Test
+    public void maximumPayload_isDecoded() throws Exception {
+        Collector c = new Collector();
+        byte[] big = new byte[Frames.MAX_PAYLOAD];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        byte[] wire = encode(big);
+        new FrameDecoder(c).decode(wire, 0, wire.length);
+
+        assertEquals(1, c.payloads.size());
+        assertArrayEquals(big, c.payloads.get(0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedLength_isRejected() throws Exception {
+        byte[] header = new byte[Frames.HEADER_SIZE];
+        Frames.putHeader(header, 0, Frames.TYPE_CHAT, 0, Frames.MAX_PAYLOAD + 1);
+        new FrameDecoder(new Collector()).decode(header, 0, header.length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unknownType_isRejected() throws Exception {
+        byte[] header = new byte[Frames.HEADER_SIZE];
+        Frames.putHeader(header, 0, 0x7f, 0, 0);
+        new FrameDecoder(new Collector()).decode(header, 0, header.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedPayload_isRejectedByEncoder() throws Exception {
+        encode(new byte[Frames.MAX_PAYLOAD + 1]);
+    }
+
+    /**
+     * Many small frames written through a pipe by a separate thread, in uneven
+     * write sizes, and read back with a small read buffer: reads will both split
+     * frames and contain several frames at once.
+     */
+    @Test
+    public void manyFramesThroughPipe_arriveInOrderAndIntact() throws Exception {
+        final int count = 2000;
+        final PipedInputStream in = new PipedInputStream(4096);
+        final PipedOutputStream out = new PipedOutputStream(in);
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    FrameEncoder encoder = new FrameEncoder();
+                    byte[] frame = new byte[Frames.MAX_FRAME];
+                    for (int i = 0; i < count; i++) {
+                        byte[] p = ("message " + i).getBytes("UTF-8");
+                        int size = FrameEncoder.encode(Frames.TYPE_CHAT, 0, p, 0, p.length, frame, 0);
+                        // Dribble each frame out in two uneven pieces.
+                        int cut = i % size;
+                        out.write(frame, 0, cut);
+                        out.write(frame, cut, size - cut);
+                    }
+                    out.close();
+                }
+                catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        };
+        writer.start();
+
+        Collector c = new Collector();
+        FrameDecoder decoder = new FrameDecoder(c);
+        byte[] buf = new byte[37];
+        //noinspection StatementWithEmptyBody
+        while (decoder.readFrom(in, buf) >= 0) {
+        }
+        writer.join();
+
+        assertEquals(count, c.payloads.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, new String(c.payloads.get(i), "UTF-8"));
+        }
+    }
+}
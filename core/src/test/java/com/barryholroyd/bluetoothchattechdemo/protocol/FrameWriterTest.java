@@ -0,0 +1,176 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FrameWriter.
+ */
+public class FrameWriterTest {
+    /** Output stream which counts write() calls and can be held closed by a latch. */
+    private static class GatedStream extends OutputStream {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+        volatile boolean broken = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                gate.await();
+            }
+            catch (InterruptedException ie) {
+                throw new IOException("interrupted");
+            }
+            if (broken) {
+                throw new IOException("link down");
+            }
+            writes.incrementAndGet();
+            synchronized (data) {
+                data.write(b, off, len);
+            }
+        }
+    }
+
+    /** Counts callbacks and lets the test wait for all of them. */
+    private static class Results implements FrameWriter.SendCallback {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done;
+
+        Results(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSent() {
+            sent.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private static List<String> decode(byte[] wire) throws IOException {
+        final List<String> messages = new ArrayList<>();
+        new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] payload, int length)
+                    throws IOException {
+                messages.add(new String(payload, 0, length, "UTF-8"));
+            }
+        }).decode(wire, 0, wire.length);
+        return messages;
+    }
+
+    @Test
+    public void burstOfMessages_isCoalescedIntoFewWrites() throws Exception {
+        int count = 50;
+        GatedStream out = new GatedStream();
+        FrameWriter writer = new FrameWriter(out, count);
+        Results results = new Results(count);
+        writer.start();
+
+        // The first frame is taken by the writer and blocks in write(); the rest queue up.
+        for (int i = 0; i < count; i++) {
+            byte[] p = ("burst " + i).getBytes("UTF-8");
+            assertTrue(writer.send(Frames.TYPE_CHAT, 0, p, 0, p.length, results));
+        }
+        out.gate.countDown();
+        assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        assertEquals(count, results.sent.get());
+        assertTrue("writes: " + out.writes.get(), out.writes.get() <= 3);
+        List<String> messages = decode(out.data.toByteArray());
+        assertEquals(count, messages.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("burst " + i, messages.get(i));
+        }
+    }
+
+    @Test
+    public void largeFrames_areSplitAcrossSeveralWrites() throws Exception {
+        GatedStream out = new GatedStream();
+        out.gate.countDown();
+        FrameWriter writer = new FrameWriter(out, 8);
+        Results results = new Results(5);
+        byte[] big = new byte[Frames.MAX_PAYLOAD];
+        Arrays.fill(big, (byte) 'x');
+        for (int i = 0; i < 5; i++) {
+            writer.send(Frames.TYPE_CHAT, 0, big, 0, big.length, results);
+        }
+        writer.start();
+        assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        assertEquals(5, results.sent.get());
+        assertEquals(5, decode(out.data.toByteArray()).size());
+    }
+
+    @Test
+    public void fullQueue_rejectsWithoutBlocking() throws Exception {
+        FrameWriter writer = new FrameWriter(new GatedStream(), 2);
+        byte[] p = new byte[1];
+        assertTrue(writer.send(Frames.TYPE_CHAT, 0, p, 0, 1, null));
+        assertTrue(writer.send(Frames.TYPE_CHAT, 0, p, 0, 1, null));
+        assertFalse(writer.send(Frames.TYPE_CHAT, 0, p, 0, 1, null));
+        assertEquals(2, writer.queued());
+    }
+
+    @Test
+    public void writeFailure_failsEveryPendingAndLaterMessage() throws Exception {
+        GatedStream out = new GatedStream();
+        out.broken = true;
+        FrameWriter writer = new FrameWriter(out, 16);
+        Results results = new Results(11);
+        byte[] p = "doomed".getBytes("UTF-8");
+        for (int i = 0; i < 10; i++) {
+            writer.send(Frames.TYPE_CHAT, 0, p, 0, p.length, results);
+        }
+        writer.start();
+        out.gate.countDown();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+
+        writer.send(Frames.TYPE_CHAT, 0, p, 0, p.length, results);
+        assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, results.sent.get());
+        assertEquals(11, results.failed.get());
+    }
+
+    @Test
+    public void close_failsQueuedMessages() throws Exception {
+        GatedStream out = new GatedStream();
+        FrameWriter writer = new FrameWriter(out, 16);
+        Results results = new Results(3);
+        byte[] p = "late".getBytes("UTF-8");
+        for (int i = 0; i < 3; i++) {
+            writer.send(Frames.TYPE_CHAT, 0, p, 0, p.length, results);
+        }
+        writer.start();
+        writer.close();
+        assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, results.failed.get());
+    }
+}
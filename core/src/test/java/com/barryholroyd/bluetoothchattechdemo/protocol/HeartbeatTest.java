@@ -0,0 +1,161 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Heartbeat and RttEstimator.
+ */
+public class HeartbeatTest {
+    /** Records RTT samples and link failure. */
+    private static class Events implements Heartbeat.Listener {
+        final CountDownLatch rtt = new CountDownLatch(3);
+        final CountDownLatch dead = new CountDownLatch(1);
+        final AtomicLong silentNanos = new AtomicLong();
+
+        @Override
+        public void onRtt(RttEstimator estimator) {
+            rtt.countDown();
+        }
+
+        @Override
+        public void onLinkDead(long _silentNanos) {
+            silentNanos.set(_silentNanos);
+            dead.countDown();
+        }
+    }
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Thread t : threads) {
+            if (t instanceof Heartbeat) {
+                ((Heartbeat) t).close();
+            }
+            else if (t instanceof FrameWriter) {
+                ((FrameWriter) t).close();
+            }
+            else {
+                t.interrupt();
+            }
+        }
+    }
+
+    private <T extends Thread> T started(T t) {
+        threads.add(t);
+        t.start();
+        return t;
+    }
+
+    /** Read frames from "in", passing them and every read to the heartbeat. */
+    private void startReader(final InputStream in, final Heartbeat heartbeat) {
+        final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] payload, int length)
+                    throws IOException {
+                assertTrue(heartbeat.onFrame(type, payload, length));
+            }
+        });
+        started(new Thread() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[256];
+                try {
+                    while (decoder.readFrom(in, buf) >= 0) {
+                        heartbeat.onReceived(System.nanoTime());
+                    }
+                }
+                catch (IOException ioe) {
+                    // Closed.
+                }
+            }
+        });
+    }
+
+    @Test
+    public void estimator_followsRfc6298() throws Exception {
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(100);
+        assertEquals(100, estimator.getSmoothedRttNanos());
+        assertEquals(50, estimator.getRttVarNanos());
+        estimator.sample(200);
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|; SRTT = 7/8 * 100 + 1/8 * 200.
+        assertEquals(62, estimator.getRttVarNanos());
+        assertEquals(112, estimator.getSmoothedRttNanos());
+        assertEquals(200, estimator.getLastRttNanos());
+        assertEquals(2, estimator.getSampleCount());
+    }
+
+    @Test
+    public void pings_areAnsweredAndMeasured() throws Exception {
+        PipedInputStream aIn = new PipedInputStream();
+        PipedInputStream bIn = new PipedInputStream();
+        FrameWriter aOut = started(new FrameWriter(new PipedOutputStream(bIn), 16));
+        FrameWriter bOut = started(new FrameWriter(new PipedOutputStream(aIn), 16));
+        Events aEvents = new Events();
+        Events bEvents = new Events();
+        Heartbeat a = new Heartbeat(aOut, aEvents, 20, 5);
+        Heartbeat b = new Heartbeat(bOut, bEvents, 20, 5);
+        startReader(aIn, a);
+        startReader(bIn, b);
+        started(a);
+        started(b);
+
+        assertTrue(aEvents.rtt.await(5, TimeUnit.SECONDS));
+        assertTrue(bEvents.rtt.await(5, TimeUnit.SECONDS));
+        assertTrue(a.getEstimator().getSmoothedRttNanos() > 0);
+        // Both sides keep hearing from each other, so neither declares the link dead.
+        assertFalse(aEvents.dead.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, bEvents.dead.getCount());
+    }
+
+    @Test
+    public void silentPeer_isDeclaredDeadAfterMissedBeats() throws Exception {
+        FrameWriter out = started(new FrameWriter(new ByteArrayOutputStream(), 16));
+        Events events = new Events();
+        Heartbeat heartbeat = new Heartbeat(out, events, 20, 3);
+        long start = System.nanoTime();
+        started(heartbeat);
+
+        assertTrue(events.dead.await(5, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("detected after " + elapsedMs + " ms", elapsedMs >= 60);
+        assertTrue("detected after " + elapsedMs + " ms", elapsedMs < 1000);
+        assertTrue(events.silentNanos.get() >= TimeUnit.MILLISECONDS.toNanos(60));
+        heartbeat.join(1000);
+        assertFalse(heartbeat.isAlive());
+    }
+
+    @Test
+    public void tick_deadlineMovesWithReceivedData() throws Exception {
+        FrameWriter out = new FrameWriter(new ByteArrayOutputStream(), 16);
+        Events events = new Events();
+        Heartbeat heartbeat = new Heartbeat(out, events, 1000, 3);
+        long t0 = System.nanoTime();
+        long second = TimeUnit.SECONDS.toNanos(1);
+
+        heartbeat.onReceived(t0);
+        assertTrue(heartbeat.tick(t0 + 2 * second));
+        heartbeat.onReceived(t0 + 2 * second);
+        assertTrue(heartbeat.tick(t0 + 4 * second));
+        assertFalse(heartbeat.tick(t0 + 5 * second));
+        assertEquals(0, events.dead.getCount());
+        assertEquals(3 * second, events.silentNanos.get());
+        // One ping per live tick.
+        assertEquals(2, out.queued());
+    }
+}
@@ -0,0 +1,25 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MacAddress.
+ */
+public class MacAddressTest {
+    @Test
+    public void parse_validAddress() throws Exception {
+        assertEquals(0x001122aabbccL, MacAddress.parse("00:11:22:AA:BB:CC"));
+        assertEquals(0x001122aabbccL, MacAddress.parse("00:11:22:aa:bb:cc"));
+        assertEquals(0xffffffffffffL, MacAddress.parse("FF:FF:FF:FF:FF:FF"));
+    }
+
+    @Test
+    public void parse_invalidAddress() throws Exception {
+        assertEquals(-1, MacAddress.parse(""));
+        assertEquals(-1, MacAddress.parse("00:11:22"));
+        assertEquals(-1, MacAddress.parse("00:11:22:AA:BB:CC:DD"));
+        assertEquals(-1, MacAddress.parse("00-11-22-AA-BB-CC"));
+    }
+}
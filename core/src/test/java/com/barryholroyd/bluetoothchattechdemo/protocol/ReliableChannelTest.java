@@ -0,0 +1,361 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ReliableChannel: two channels talking over piped streams, with
+ * connections that can lose data and be replaced.
+ */
+public class ReliableChannelTest {
+    /**
+     * Output stream which silently discards everything while "dropping" is set, and
+     * which, while "hold" is set, passes each write on but doesn't return until it is
+     * counted down.
+     */
+    private static class LossyStream extends FilterOutputStream {
+        volatile boolean dropping = false;
+        volatile CountDownLatch hold = null;
+
+        LossyStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!dropping) {
+                out.write(b, off, len);
+            }
+            CountDownLatch h = hold;
+            if (h != null) {
+                try {
+                    h.await();
+                }
+                catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!dropping) {
+                out.flush();
+            }
+        }
+    }
+
+    /** One end of the conversation: a channel plus the reader for its connection. */
+    private static class Endpoint {
+        final ReliableChannel channel;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        FrameWriter writer;
+        Thread reader;
+
+        Endpoint(int window) {
+            channel = new ReliableChannel(window);
+        }
+
+        void connect(final InputStream in, OutputStream out) {
+            final FrameWriter w = new FrameWriter(out, FrameWriter.DEFAULT_QUEUE_SIZE);
+            writer = w;
+            w.start();
+            final ReliableChannel.Connection connection = channel.attach(w);
+            final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+                @Override
+                public void onFrame(int type, int flags, byte[] payload, int length)
+                        throws IOException {
+                    if (type == Frames.TYPE_CHAT) {
+                        received.add(new String(payload, 0, length, "UTF-8"));
+                        connection.onMessageReceived();
+                    }
+                    else if (!connection.onFrame(type, payload, length)) {
+                        fail("unexpected frame type " + type);
+                    }
+                }
+            });
+            reader = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[1024];
+                    try {
+                        while (decoder.readFrom(in, buf) >= 0) {
+                            connection.flushAck();
+                        }
+                    }
+                    catch (IOException ioe) {
+                        // Connection closed.
+                    }
+                    connection.detach();
+                    w.close();
+                }
+            };
+            reader.start();
+        }
+
+        void disconnect() throws InterruptedException {
+            writer.close();
+            writer.join(5000);
+        }
+    }
+
+    /** A connection between two endpoints, made of two pipes. */
+    private static class Link {
+        final LossyStream aToB;
+        final LossyStream bToA;
+        final PipedInputStream aIn;
+        final PipedInputStream bIn;
+
+        Link(Endpoint a, Endpoint b) throws IOException {
+            aIn = new PipedInputStream(64 * 1024);
+            bIn = new PipedInputStream(64 * 1024);
+            aToB = new LossyStream(new PipedOutputStream(bIn));
+            bToA = new LossyStream(new PipedOutputStream(aIn));
+            a.connect(aIn, aToB);
+            b.connect(bIn, bToA);
+        }
+
+        void close(Endpoint a, Endpoint b) throws Exception {
+            a.disconnect();
+            b.disconnect();
+            aToB.close();
+            bToA.close();
+            a.reader.join(5000);
+            b.reader.join(5000);
+        }
+    }
+
+    /** Counts delivery callbacks. */
+    private static class Deliveries implements FrameWriter.SendCallback {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done;
+
+        Deliveries(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSent() {
+            sent.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    private Endpoint newEndpoint(int window) {
+        Endpoint e = new Endpoint(window);
+        endpoints.add(e);
+        return e;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Endpoint e : endpoints) {
+            if (e.writer != null) {
+                e.disconnect();
+            }
+        }
+    }
+
+    /** Send a message, waiting for room in the window if necessary. */
+    private static void send(ReliableChannel channel, String text, Deliveries deliveries)
+            throws Exception {
+        byte[] bytes = text.getBytes("UTF-8");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!channel.send(bytes, 0, bytes.length, deliveries)) {
+            assertTrue("window never opened", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /** Wait until an endpoint has received "count" messages. */
+    private static void awaitReceived(Endpoint e, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (e.received.size() < count) {
+            assertTrue("received " + e.received.size(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertInOrder(List<String> received, int count) {
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void messages_areDeliveredInOrderAndAcknowledged() throws Exception {
+        Endpoint a = newEndpoint(8);
+        Endpoint b = newEndpoint(8);
+        new Link(a, b);
+
+        int count = 500;
+        Deliveries deliveries = new Deliveries(count);
+        for (int i = 0; i < count; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        assertTrue(deliveries.done.await(5, TimeUnit.SECONDS));
+        assertEquals(count, deliveries.sent.get());
+        assertEquals(0, a.channel.backlog());
+        assertEquals(count, a.channel.getDelivered());
+        assertInOrder(b.received, count);
+    }
+
+    @Test
+    public void fullWindow_rejectsWithoutBlocking() throws Exception {
+        ReliableChannel channel = new ReliableChannel(2);
+        byte[] m = new byte[1];
+        // Not attached, so nothing can be acknowledged.
+        assertTrue(channel.send(m, 0, 1, null));
+        assertTrue(channel.send(m, 0, 1, null));
+        assertFalse(channel.send(m, 0, 1, null));
+        assertEquals(2, channel.backlog());
+    }
+
+    @Test
+    public void lostMessages_areRetransmittedAfterReconnect() throws Exception {
+        Endpoint a = newEndpoint(32);
+        Endpoint b = newEndpoint(32);
+        Link link = new Link(a, b);
+        Deliveries deliveries = new Deliveries(20);
+        for (int i = 0; i < 5; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        awaitReceived(b, 5);
+
+        // Everything written from now on is lost.
+        link.aToB.dropping = true;
+        for (int i = 5; i < 15; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        Thread.sleep(50);
+        link.close(a, b);
+
+        // Messages sent while disconnected wait for the next connection.
+        for (int i = 15; i < 20; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        new Link(a, b);
+        assertTrue(deliveries.done.await(5, TimeUnit.SECONDS));
+        assertEquals(20, deliveries.sent.get());
+        assertInOrder(b.received, 20);
+        assertTrue("retransmitted " + a.channel.getRetransmitted(),
+                a.channel.getRetransmitted() >= 10);
+    }
+
+    @Test
+    public void receivedMessages_arentResentWhenAcksWereLost() throws Exception {
+        Endpoint a = newEndpoint(32);
+        Endpoint b = newEndpoint(32);
+        Link link = new Link(a, b);
+        Thread.sleep(50);
+
+        // B gets everything but A hears nothing back.
+        link.bToA.dropping = true;
+        Deliveries deliveries = new Deliveries(10);
+        for (int i = 0; i < 10; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        awaitReceived(b, 10);
+        assertEquals(10, a.channel.backlog());
+        link.close(a, b);
+
+        // B's HELLO tells A what arrived; nothing is sent twice.
+        new Link(a, b);
+        assertTrue(deliveries.done.await(5, TimeUnit.SECONDS));
+        assertEquals(10, deliveries.sent.get());
+        Thread.sleep(50);
+        assertInOrder(b.received, 10);
+    }
+
+    @Test
+    public void writeFinishingAfterReconnect_isntResent() throws Exception {
+        Endpoint a = newEndpoint(32);
+        Endpoint b = newEndpoint(32);
+        Link link = new Link(a, b);
+        Thread.sleep(50);
+
+        // B gets the message, but A's writer is still in write() and hears no ACK.
+        link.bToA.dropping = true;
+        CountDownLatch hold = new CountDownLatch(1);
+        link.aToB.hold = hold;
+        Deliveries deliveries = new Deliveries(1);
+        send(a.channel, "message 0", deliveries);
+        awaitReceived(b, 1);
+
+        // B's HELLO on the new connection arrives before the old write returns.
+        new Link(a, b);
+        Thread.sleep(50);
+        assertEquals(0, deliveries.sent.get());
+        hold.countDown();
+
+        assertTrue(deliveries.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, deliveries.sent.get());
+        Thread.sleep(50);
+        assertInOrder(b.received, 1);
+        assertEquals(0, a.channel.getRetransmitted());
+        link.aToB.close();
+        link.bToA.close();
+    }
+
+    @Test
+    public void restartedPeer_getsEveryOutstandingMessage() throws Exception {
+        Endpoint a = newEndpoint(32);
+        Endpoint b = newEndpoint(32);
+        Link link = new Link(a, b);
+        Thread.sleep(50);
+        link.bToA.dropping = true;
+        Deliveries deliveries = new Deliveries(3);
+        for (int i = 0; i < 3; i++) {
+            send(a.channel, "message " + i, deliveries);
+        }
+        awaitReceived(b, 3);
+        link.close(a, b);
+
+        // A new channel at the other end knows nothing about A's stream.
+        Endpoint restarted = newEndpoint(32);
+        new Link(a, restarted);
+        assertTrue(deliveries.done.await(5, TimeUnit.SECONDS));
+        assertInOrder(restarted.received, 3);
+    }
+
+    @Test
+    public void close_failsOutstandingMessages() throws Exception {
+        ReliableChannel channel = new ReliableChannel(8);
+        Deliveries deliveries = new Deliveries(4);
+        byte[] m = new byte[1];
+        for (int i = 0; i < 3; i++) {
+            channel.send(m, 0, 1, deliveries);
+        }
+        channel.close(new IOException("closed"));
+        channel.send(m, 0, 1, deliveries);
+        assertTrue(deliveries.done.await(1, TimeUnit.SECONDS));
+        assertEquals(4, deliveries.failed.get());
+        assertTrue(channel.isClosed());
+    }
+}
@@ -0,0 +1,85 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SpscQueue.
+ */
+public class SpscQueueTest {
+    @Test
+    public void offerAndPoll_areFifo() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        assertNull(queue.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() throws Exception {
+        assertEquals(8, new SpscQueue<Integer>(5).capacity());
+        assertEquals(1, new SpscQueue<Integer>(1).capacity());
+    }
+
+    @Test
+    public void wrapAround_keepsOrder() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<>(2);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offer_rejectsNull() throws Exception {
+        new SpscQueue<Integer>(2).offer(null);
+    }
+
+    @Test
+    public void producerAndConsumerThreads_seeEveryElementInOrder() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        final int count = 1000000;
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < count) {
+                    Integer e = queue.poll();
+                    if (e == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (e != expected) {
+                        error.set("expected " + expected + " got " + e);
+                        return;
+                    }
+                    expected++;
+                }
+            }
+        };
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+        assertNull(error.get());
+        assertTrue(queue.isEmpty());
+    }
+}
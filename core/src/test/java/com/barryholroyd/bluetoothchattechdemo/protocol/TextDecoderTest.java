@@ -0,0 +1,160 @@
+package com.barryholroyd.bluetoothchattechdemo.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TextDecoder, TextAssembler and CharBufferPool.
+ */
+public class TextDecoderTest {
+    /** One, two, three and four byte characters (the last is a surrogate pair). */
+    private static final String MIXED = "a\u00e9\u20ac\ud83d\ude00z";
+
+    /** Collects reassembled messages. */
+    private static class Collector implements TextAssembler.TextListener {
+        final List<String> messages = new ArrayList<>();
+        long tooLarge = -1;
+
+        @Override
+        public void onText(CharBuffer text) throws IOException {
+            messages.add(text.toString());
+        }
+
+        @Override
+        public void onMessageTooLarge(long length) {
+            tooLarge = length;
+        }
+    }
+
+    /** Decode "bytes" as two pieces, split at "split", with a shared payload array. */
+    private static String decodeSplit(TextDecoder decoder, byte[] bytes, int split) {
+        byte[] payload = new byte[bytes.length];
+        CharBuffer out = CharBuffer.allocate(bytes.length);
+        System.arraycopy(bytes, 0, payload, 0, split);
+        decoder.decode(payload, 0, split, out);
+        // Reuse the array, as FrameDecoder does.
+        System.arraycopy(bytes, split, payload, 0, bytes.length - split);
+        decoder.decode(payload, 0, bytes.length - split, out);
+        decoder.finish(out);
+        out.flip();
+        return out.toString();
+    }
+
+    @Test
+    public void characters_surviveEverySplitPoint() throws Exception {
+        byte[] bytes = MIXED.getBytes("UTF-8");
+        TextDecoder decoder = new TextDecoder();
+        for (int split = 0; split <= bytes.length; split++) {
+            assertEquals("split at " + split, MIXED, decodeSplit(decoder, bytes, split));
+            assertEquals(0, decoder.pending());
+        }
+    }
+
+    @Test
+    public void oneByteAtATime_decodesIntact() throws Exception {
+        byte[] bytes = MIXED.getBytes("UTF-8");
+        TextDecoder decoder = new TextDecoder();
+        CharBuffer out = CharBuffer.allocate(bytes.length);
+        for (byte b : bytes) {
+            decoder.decode(new byte[] { b }, 0, 1, out);
+        }
+        decoder.finish(out);
+        out.flip();
+        assertEquals(MIXED, out.toString());
+    }
+
+    @Test
+    public void truncatedCharacter_isReplacedAtFinish() throws Exception {
+        byte[] euro = "\u20ac".getBytes("UTF-8");
+        TextDecoder decoder = new TextDecoder();
+        CharBuffer out = CharBuffer.allocate(8);
+        decoder.decode(euro, 0, 2, out);
+        assertEquals(2, decoder.pending());
+        decoder.finish(out);
+        out.flip();
+        assertEquals("\ufffd", out.toString());
+
+        // The next message starts clean.
+        out.clear();
+        decoder.decode(new byte[] { 'o', 'k' }, 0, 2, out);
+        decoder.finish(out);
+        out.flip();
+        assertEquals("ok", out.toString());
+    }
+
+    @Test
+    public void malformedBytes_areReplaced() throws Exception {
+        TextDecoder decoder = new TextDecoder();
+        CharBuffer out = CharBuffer.allocate(8);
+        decoder.decode(new byte[] { 'a', (byte) 0x80, 'b' }, 0, 3, out);
+        decoder.finish(out);
+        out.flip();
+        assertEquals("a\ufffdb", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallOutputBuffer_isRejected() throws Exception {
+        new TextDecoder().decode(new byte[4], 0, 4, CharBuffer.allocate(3));
+    }
+
+    @Test
+    public void assembler_decodesCharactersSplitBetweenChunks() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(MIXED);
+        }
+        String message = sb.toString();
+        byte[] bytes = message.getBytes("UTF-8");
+        Collector collector = new Collector();
+        TextAssembler assembler = new TextAssembler(collector, bytes.length);
+
+        // Odd-sized chunks, so that characters are split all over the place.
+        byte[] payload = new byte[Frames.MAX_PAYLOAD];
+        int chunk = 1001;
+        for (int off = 0; off < bytes.length; off += chunk) {
+            int len = Math.min(chunk, bytes.length - off);
+            System.arraycopy(bytes, off, payload, 0, len);
+            int flags = (off + len == bytes.length) ? Frames.FLAG_LAST : 0;
+            assembler.onChunk(flags, payload, len);
+        }
+        assertEquals(1, collector.messages.size());
+        assertEquals(message, collector.messages.get(0));
+    }
+
+    @Test
+    public void assembler_dropsOversizedMessageAndRecovers() throws Exception {
+        Collector collector = new Collector();
+        TextAssembler assembler = new TextAssembler(collector, 10);
+        byte[] payload = "123456".getBytes("UTF-8");
+        assembler.onChunk(0, payload, 6);
+        assembler.onChunk(0, payload, 6);
+        assembler.onChunk(Frames.FLAG_LAST, payload, 6);
+        assertEquals(18, collector.tooLarge);
+        assertTrue(collector.messages.isEmpty());
+
+        assembler.onChunk(Frames.FLAG_LAST, payload, 6);
+        assertEquals(1, collector.messages.size());
+        assertEquals("123456", collector.messages.get(0));
+    }
+
+    @Test
+    public void charBufferPool_reusesClearedBuffers() throws Exception {
+        CharBufferPool pool = new CharBufferPool(1, 16);
+        CharBufferPool.PooledChars buffer = pool.acquire();
+        assertEquals(0, pool.available());
+        buffer.getCharBuffer().put("hello").flip();
+        buffer.release();
+        assertEquals(1, pool.available());
+
+        CharBufferPool.PooledChars again = pool.acquire();
+        assertSame(buffer, again);
+        assertEquals(0, again.getCharBuffer().position());
+        assertEquals(16, again.getCharBuffer().remaining());
+    }
+}
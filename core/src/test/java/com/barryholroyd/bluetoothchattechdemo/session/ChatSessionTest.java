@@ -0,0 +1,305 @@
+package com.barryholroyd.bluetoothchattechdemo.session;
+
+import com.barryholroyd.bluetoothchattechdemo.protocol.CharBufferPool;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameEncoder;
+import com.barryholroyd.bluetoothchattechdemo.protocol.FrameWriter;
+import com.barryholroyd.bluetoothchattechdemo.protocol.Frames;
+import com.barryholroyd.bluetoothchattechdemo.protocol.ReliableChannel;
+import com.barryholroyd.bluetoothchattechdemo.protocol.RttEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for ChatSession: two sessions talking over a loopback TCP connection.
+ */
+public class ChatSessionTest {
+    /** Transport over a connected TCP socket. */
+    private static class SocketTransport implements Transport {
+        private final Socket socket;
+
+        SocketTransport(Socket _socket) {
+            socket = _socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() { return socket.getRemoteSocketAddress().toString(); }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Collects incoming messages, releasing their buffers. */
+    private static class Recorder implements ChatSession.Listener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile long tooLarge = -1;
+
+        @Override
+        public void onMessage(CharBufferPool.PooledChars message) {
+            messages.add(message.getCharBuffer().toString());
+            message.release();
+        }
+
+        @Override
+        public void onMessageTooLarge(long length) { tooLarge = length; }
+
+        @Override
+        public void onRtt(RttEstimator estimator) {}
+
+        @Override
+        public void onEnded() { ended.countDown(); }
+
+        @Override
+        public void onProgress(String name, long confirmed, long size) {}
+
+        @Override
+        public void onComplete(String name, File file) {}
+
+        @Override
+        public void onFailed(String name, IOException ioe) {}
+    }
+
+    /** Waits for one message to be acknowledged. */
+    private static class Delivery implements FrameWriter.SendCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean sent = false;
+
+        @Override
+        public void onSent() {
+            sent = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException ioe) {
+            done.countDown();
+        }
+    }
+
+    private File dir;
+    private final Recorder aListener = new Recorder();
+    private final Recorder bListener = new Recorder();
+    private ChatSession a;
+    private ChatSession b;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("session", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket aSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket bSocket = server.accept();
+        server.close();
+
+        a = new ChatSession(new SocketTransport(aSocket),
+                new ReliableChannel(ReliableChannel.DEFAULT_WINDOW), null, dir, aListener);
+        b = new ChatSession(new SocketTransport(bSocket),
+                new ReliableChannel(ReliableChannel.DEFAULT_WINDOW), null, dir, bListener);
+        a.start();
+        b.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        a.stopSession();
+        b.stopSession();
+        a.join(5000);
+        b.join(5000);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                assertTrue(f.delete());
+            }
+        }
+        assertTrue(dir.delete());
+    }
+
+    /** Send a message, waiting for room in the window if necessary. */
+    private static void send(ChatSession session, String text) throws Exception {
+        byte[] bytes = text.getBytes("UTF-8");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!session.writeChat(bytes, null)) {
+            assertTrue("window never opened", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void writeChat_isDeliveredAndAcknowledged() throws Exception {
+        Delivery delivery = new Delivery();
+        assertTrue(a.writeChat("hello".getBytes("UTF-8"), delivery));
+
+        assertEquals("hello", bListener.messages.poll(5, TimeUnit.SECONDS));
+        assertTrue(delivery.done.await(5, TimeUnit.SECONDS));
+        assertTrue(delivery.sent);
+    }
+
+    @Test
+    public void writeChat_largerThanAFrame_isReassembled() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3 * Frames.MAX_PAYLOAD) {
+            sb.append("caf\u00e9 ");
+        }
+        String text = sb.toString();
+        assertTrue(a.writeChat(text.getBytes("UTF-8"), null));
+
+        assertEquals(text, bListener.messages.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void messages_flowBothWaysInOrder() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            send(a, "a" + i);
+            send(b, "b" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("a" + i, bListener.messages.poll(5, TimeUnit.SECONDS));
+            assertEquals("b" + i, aListener.messages.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sendBye_thenStop_endsBothSessions() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        assertTrue(a.sendBye(new FrameWriter.SendCallback() {
+            @Override
+            public void onSent() { written.countDown(); }
+
+            @Override
+            public void onFailed(IOException ioe) { fail(ioe.getMessage()); }
+        }));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        a.stopSession();
+
+        assertTrue(aListener.ended.await(5, TimeUnit.SECONDS));
+        assertTrue(bListener.ended.await(5, TimeUnit.SECONDS));
+        assertTrue(b.isClosedByRemote());
+        assertFalse(a.isClosedByRemote());
+    }
+
+    /**
+     * Feed a session single-frame chat messages from a plain socket and count the bytes
+     * allocated by its reader thread once it has warmed up: decoding a frame, decoding
+     * its text into a pooled buffer and handing that to the listener allocates nothing.
+     * The socket never sends a HELLO, so the session sends no acknowledgements; those
+     * are one small frame per read, not per message, and aren't counted.
+     */
+    @Test
+    public void steadyStateReceivePath_allocatesNothing() throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Socket peer = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket socket = server.accept();
+        server.close();
+
+        final AtomicLong received = new AtomicLong();
+        Recorder counter = new Recorder() {
+            @Override
+            public void onMessage(CharBufferPool.PooledChars message) {
+                received.incrementAndGet();
+                message.release();
+            }
+        };
+        ChatSession session = new ChatSession(new SocketTransport(socket),
+                new ReliableChannel(ReliableChannel.DEFAULT_WINDOW), null, dir, counter);
+        session.start();
+
+        // Throw away the session's heartbeats.
+        Thread drain = new Thread() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[1024];
+                try {
+                    //noinspection StatementWithEmptyBody
+                    while (peer.getInputStream().read(buf) >= 0) {
+                    }
+                }
+                catch (IOException ioe) {
+                    // Closed.
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] text = "steady state message, caf\u00e9".getBytes("UTF-8");
+        for (int i = 0; i < 10; i++) {
+            encoder.write(wire, Frames.TYPE_CHAT, 0, text, 0, text.length);
+        }
+        byte[] burst = wire.toByteArray();
+        OutputStream out = peer.getOutputStream();
+
+        try {
+            for (int i = 0; i < 20000; i++) {
+                out.write(burst);
+            }
+            awaitCount(received, 200000);
+
+            long before = threads.getThreadAllocatedBytes(session.getId());
+            for (int i = 0; i < 10000; i++) {
+                out.write(burst);
+            }
+            awaitCount(received, 300000);
+            long allocated = threads.getThreadAllocatedBytes(session.getId()) - before;
+
+            // Allow a little slack for the odd allocation outside the message path.
+            assertTrue(String.format("allocated %d bytes for 100000 messages", allocated),
+                    allocated < 4096);
+        }
+        finally {
+            session.stopSession();
+            peer.close();
+            session.join(5000);
+        }
+    }
+
+    private static void awaitCount(AtomicLong count, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (count.get() < expected) {
+            assertTrue("only " + count.get() + " messages", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SearchIndex.
+ */
+public class SearchIndexTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+    private TranscriptStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("search", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        store = new TranscriptStore(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void findTerm_returnsMatchingMessagesNewestFirst() throws Exception {
+        SearchIndex index = new SearchIndex(store);
+        append("Serial SN-4471B is failing");
+        append("nothing to see here");
+        append("sn-4471b again, with error E42");
+        awaitIndexed(index);
+
+        assertArrayEquals(new long[] { 2, 0 }, index.findTerm("4471B", 10));
+        assertArrayEquals(new long[] { 2 }, index.findTerm("e42", 10));
+        assertArrayEquals(new long[] { 2 }, index.findTerm("4471b", 1));
+        assertEquals(0, index.findTerm("missing", 10).length);
+        index.close();
+    }
+
+    @Test
+    public void findPrefix_matchesEveryTermWithThePrefix() throws Exception {
+        SearchIndex index = new SearchIndex(store);
+        append("error 404");
+        append("error 403 and 404");
+        append("warning 500");
+        awaitIndexed(index);
+
+        assertArrayEquals(new long[] { 1, 0 }, index.findPrefix("40", 10));
+        assertArrayEquals(new long[] { 2, 1, 0 }, index.findPrefix("", 10));
+        index.close();
+    }
+
+    @Test
+    public void search_requiresEveryWord() throws Exception {
+        SearchIndex index = new SearchIndex(store);
+        append("error 404 on pump");
+        append("error 500 on pump");
+        append("pump ok");
+        awaitIndexed(index);
+
+        assertArrayEquals(new long[] { 1, 0 }, index.search("Error pump", 10));
+        assertArrayEquals(new long[] { 0 }, index.search("pump 4*", 10));
+        assertEquals(0, index.search("   ", 10).length);
+        index.close();
+    }
+
+    @Test
+    public void reopen_loadsTheSavedIndexAndCatchesUp() throws Exception {
+        SearchIndex index = new SearchIndex(store);
+        for (int i = 0; i < 300; i++) {
+            append("message " + i);
+        }
+        awaitIndexed(index);
+        index.close();
+        assertTrue(new File(dir, SearchIndex.FILE_NAME).exists());
+
+        append("late arrival");
+        index = new SearchIndex(store);
+        awaitIndexed(index);
+        assertArrayEquals(new long[] { 299 }, index.findTerm("299", 10));
+        assertArrayEquals(new long[] { 300 }, index.findTerm("late", 10));
+        assertEquals(300, index.findTerm("message", 1000).length);
+        index.close();
+    }
+
+    @Test
+    public void damagedFile_isRebuilt() throws Exception {
+        append("hello world");
+        store.flush();
+        FileOutputStream out = new FileOutputStream(new File(dir, SearchIndex.FILE_NAME));
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        SearchIndex index = new SearchIndex(store);
+        awaitIndexed(index);
+        assertArrayEquals(new long[] { 0 }, index.findTerm("world", 10));
+        index.close();
+    }
+
+    @Test
+    public void deletedMessages_areNotReturned() throws Exception {
+        store.close();
+        store = new TranscriptStore(dir, 200, 400);
+        SearchIndex index = new SearchIndex(store);
+        for (int i = 0; i < 100; i++) {
+            append("common " + i);
+        }
+        awaitIndexed(index);
+        long first = store.getFirstSeq();
+        assertTrue(first > 0);
+        long[] found = index.findTerm("common", 1000);
+        assertEquals(100 - first, found.length);
+        assertEquals(first, found[found.length - 1]);
+        index.close();
+    }
+
+    @Test
+    public void save_leavesOutDeletedMessages() throws Exception {
+        store.close();
+        store = new TranscriptStore(dir, 200, 400);
+        SearchIndex index = new SearchIndex(store);
+        for (int i = 0; i < 100; i++) {
+            append("common " + i);
+        }
+        awaitIndexed(index);
+        index.close();
+        long first = store.getFirstSeq();
+        assertTrue(first > 0);
+
+        index = new SearchIndex(store);
+        assertEquals(store.getNextSeq(), index.getIndexedSeq());
+        assertEquals(0, index.findTerm(Long.toString(first - 1), 10).length);
+        assertEquals(100 - first, index.findTerm("common", 1000).length);
+        // "common" and one number per message which is left.
+        assertEquals(1 + 100 - first, index.getTermCount());
+        index.close();
+    }
+
+    @Test
+    public void tokenize_lowerCasesAndDedupes() throws Exception {
+        String[] terms = SearchIndex.tokenize("Pump PUMP, pump-7!");
+        Arrays.sort(terms);
+        assertArrayEquals(new String[] { "7", "pump" }, terms);
+    }
+
+    private void append(String text) throws Exception {
+        byte[] bytes = text.getBytes(UTF8);
+        store.append(TranscriptStore.RECEIVED, 0, bytes, 0, bytes.length);
+    }
+
+    private void awaitIndexed(SearchIndex index) throws Exception {
+        store.flush();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (index.getIndexedSeq() < store.getNextSeq()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
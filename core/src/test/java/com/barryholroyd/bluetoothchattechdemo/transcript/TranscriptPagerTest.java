@@ -0,0 +1,158 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TranscriptPager.
+ */
+public class TranscriptPagerTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+    private TranscriptStore store;
+
+    /** Runs loads only when asked, so that tests can see what was requested. */
+    private final List<Runnable> queued = new ArrayList<>();
+    private final Executor loader = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            queued.add(r);
+        }
+    };
+
+    private final List<long[]> loaded = new ArrayList<>();
+    private final TranscriptPager.Listener listener = new TranscriptPager.Listener() {
+        @Override
+        public void onPageLoaded(long firstSeq, int count) {
+            loaded.add(new long[] { firstSeq, count });
+        }
+
+        @Override
+        public void onLoadFailed(IOException ioe) {
+            fail(ioe.toString());
+        }
+    };
+
+    private final TranscriptPager.RowFormatter<String> formatter =
+            new TranscriptPager.RowFormatter<String>() {
+                @Override
+                public String format(TranscriptEntry entry) {
+                    return entry.getSeq() + "=" + entry.getText();
+                }
+            };
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("pager", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        store = new TranscriptStore(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void get_loadsThePageAndItsNeighbours() throws Exception {
+        append(100);
+        TranscriptPager<String> pager = new TranscriptPager<>(store, 10, 5, loader,
+                formatter, listener);
+        assertNull(pager.get(35));
+        // Pages 3, 2 and 4.
+        assertEquals(3, queued.size());
+        runQueued();
+        assertEquals(3, loaded.size());
+        assertEquals("35=m35", pager.get(35));
+        assertEquals("20=m20", pager.get(20));
+        assertEquals("49=m49", pager.get(49));
+    }
+
+    @Test
+    public void get_doesNotRequestAPageTwice() throws Exception {
+        append(100);
+        TranscriptPager<String> pager = new TranscriptPager<>(store, 10, 5, loader,
+                formatter, listener);
+        pager.get(35);
+        pager.get(36);
+        assertEquals(3, queued.size());
+    }
+
+    @Test
+    public void oldPages_areDropped() throws Exception {
+        append(1000);
+        TranscriptPager<String> pager = new TranscriptPager<>(store, 10, 4, loader,
+                formatter, listener);
+        for (long seq = 0; seq < 1000; seq += 10) {
+            pager.get(seq);
+            runQueued();
+            assertTrue(pager.getPageCount() <= 4);
+        }
+        assertEquals("995=m995", pager.get(995));
+        // Long gone; has to be loaded again.
+        assertNull(pager.get(5));
+    }
+
+    @Test
+    public void lastPage_isReloadedOnceItHasMoreEntries() throws Exception {
+        append(15);
+        TranscriptPager<String> pager = new TranscriptPager<>(store, 10, 5, loader,
+                formatter, listener);
+        pager.get(12);
+        runQueued();
+        assertEquals("14=m14", pager.get(14));
+        assertNull(pager.get(16));
+        assertTrue(queued.isEmpty());
+
+        append(5);
+        assertNull(pager.get(16));
+        runQueued();
+        assertEquals("16=m16", pager.get(16));
+    }
+
+    @Test
+    public void close_ignoresQueuedLoads() throws Exception {
+        append(20);
+        TranscriptPager<String> pager = new TranscriptPager<>(store, 10, 5, loader,
+                formatter, listener);
+        pager.get(5);
+        pager.close();
+        runQueued();
+        assertTrue(loaded.isEmpty());
+        assertEquals(0, pager.getPageCount());
+    }
+
+    private void append(int count) throws IOException {
+        long first = store.getNextSeq();
+        for (long i = first; i < first + count; i++) {
+            byte[] bytes = ("m" + i).getBytes(UTF8);
+            store.append(TranscriptStore.RECEIVED, 0, bytes, 0, bytes.length);
+        }
+        store.flush();
+    }
+
+    private void runQueued() {
+        while (!queued.isEmpty()) {
+            queued.remove(0).run();
+        }
+    }
+}
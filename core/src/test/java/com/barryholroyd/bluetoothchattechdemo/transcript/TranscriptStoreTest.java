@@ -0,0 +1,210 @@
+package com.barryholroyd.bluetoothchattechdemo.transcript;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TranscriptStore.
+ */
+public class TranscriptStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("transcript", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendAndRead_returnEveryMessage() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, append(store, i % 2, 1000 + i, "message " + i));
+        }
+        store.flush();
+        assertEquals(0, store.getFirstSeq());
+        assertEquals(200, store.getNextSeq());
+        for (int i = 0; i < 200; i++) {
+            TranscriptEntry entry = store.read(i);
+            assertEquals(i, entry.getSeq());
+            assertEquals(i % 2, entry.getDirection());
+            assertEquals(1000 + i, entry.getTimeMillis());
+            assertEquals("message " + i, entry.getText());
+        }
+        assertNull(store.read(200));
+        store.close();
+    }
+
+    @Test
+    public void append_afterClose_isIgnored() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir);
+        store.close();
+        assertEquals(-1, append(store, TranscriptStore.SENT, "late"));
+    }
+
+    @Test
+    public void reopen_continuesTheSequence() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir, 256, 1024 * 1024);
+        for (int i = 0; i < 50; i++) {
+            append(store, TranscriptStore.RECEIVED, "message " + i);
+        }
+        store.close();
+        assertTrue(dir.listFiles().length > 1);
+
+        store = new TranscriptStore(dir, 256, 1024 * 1024);
+        assertEquals(50, store.getNextSeq());
+        assertEquals(50, append(store, TranscriptStore.SENT, "after"));
+        store.flush();
+        assertEquals("message 7", store.read(7).getText());
+        assertEquals("after", store.read(50).getText());
+        store.close();
+    }
+
+    @Test
+    public void reopen_cutsOffATornRecord() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir);
+        append(store, TranscriptStore.RECEIVED, "first");
+        append(store, TranscriptStore.RECEIVED, "second");
+        store.close();
+
+        File segment = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        store = new TranscriptStore(dir);
+        assertEquals(1, store.getNextSeq());
+        assertEquals("first", store.read(0).getText());
+        assertNull(store.read(1));
+        assertEquals(1, append(store, TranscriptStore.RECEIVED, "again"));
+        store.flush();
+        assertEquals("again", store.read(1).getText());
+        store.close();
+    }
+
+    @Test
+    public void reopen_cutsOffACorruptRecord() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir);
+        append(store, TranscriptStore.RECEIVED, "first");
+        append(store, TranscriptStore.RECEIVED, "second");
+        store.close();
+
+        File segment = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write('X');
+        raf.close();
+
+        store = new TranscriptStore(dir);
+        assertEquals(1, store.getNextSeq());
+        store.close();
+    }
+
+    @Test
+    public void retention_deletesTheOldestSegments() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir, 200, 600);
+        for (int i = 0; i < 100; i++) {
+            append(store, TranscriptStore.RECEIVED, "message " + i);
+        }
+        store.flush();
+        long first = store.getFirstSeq();
+        assertTrue(first > 0);
+        assertNull(store.read(0));
+        assertEquals("message 99", store.read(99).getText());
+        assertEquals("message " + first, store.read(first).getText());
+
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            total += file.length();
+        }
+        assertTrue(total <= 600 + 200);
+        store.close();
+    }
+
+    @Test
+    public void largeMessage_getsASegmentOfItsOwn() throws Exception {
+        TranscriptStore store = new TranscriptStore(dir, 64, 1024 * 1024);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        append(store, TranscriptStore.RECEIVED, "small");
+        append(store, TranscriptStore.RECEIVED, sb.toString());
+        append(store, TranscriptStore.RECEIVED, "small again");
+        store.flush();
+        assertEquals(sb.toString(), store.read(1).getText());
+        assertEquals("small again", store.read(2).getText());
+        store.close();
+    }
+
+    @Test
+    public void concurrentAppends_areAllWritten() throws Exception {
+        final TranscriptStore store = new TranscriptStore(dir, 4096, 1024 * 1024 * 1024);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        append(store, id, id + ":" + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        store.flush();
+        assertEquals(8000, store.getNextSeq());
+        assertEquals(8000, store.getRecordCount());
+        assertTrue(store.getBatchCount() >= 1);
+
+        int[] next = new int[threads.length];
+        for (long seq = 0; seq < 8000; seq++) {
+            TranscriptEntry entry = store.read(seq);
+            String[] parts = entry.getText().split(":");
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(id, entry.getDirection());
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+        store.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsRetentionBelowSegmentSize() throws Exception {
+        new TranscriptStore(dir, 1024, 512);
+    }
+
+    private static long append(TranscriptStore store, int direction, String text) {
+        return append(store, direction, 1000, text);
+    }
+
+    private static long append(TranscriptStore store, int direction, long time,
+                               String text) {
+        byte[] bytes = text.getBytes(UTF8);
+        return store.append(direction, time, bytes, 0, bytes.length);
+    }
+}